@@ -53,12 +53,14 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.security.KeyPair;
 
 public final class CertGenerator {
     private static final Logger LOGGER = LoggerFactory.getLogger(CertGenerator.class);
 
     private static final String DEFAULT_SUBJECT = "C=US, ST=VA, L=Vienna, O=Nitm, OU=Nitm, CN=Nitm CA Root";
     private static final int DEFAULT_KEYSIZE = 2048;
+    private static final String DEFAULT_KEYTYPE = "RSA";
 
     private CertGenerator() {
     }
@@ -82,6 +84,13 @@ public final class CertGenerator {
                         .argName("KEYSIZE")
                         .desc("key size of certificate, default: 2048")
                         .build());
+        options.addOption(
+                Option.builder("t")
+                        .longOpt("keytype")
+                        .hasArg()
+                        .argName("KEYTYPE")
+                        .desc("key type of certificate(RSA, EC), EC uses P-256 and ignores the key size, default: RSA")
+                        .build());
 
         CommandLine commandLine = null;
         try {
@@ -92,13 +101,16 @@ public final class CertGenerator {
         }
 
         CertGeneratorConfig config = parse(commandLine);
-        LOGGER.info("Generating certificate with subject:{} and keysize:{}",
-                config.getSubject(), config.getKeySize());
+        LOGGER.info("Generating certificate with subject:{}, keytype:{} and keysize:{}",
+                config.getSubject(), config.getKeyType(), config.getKeySize());
 
         File serverPem = new File("server.pem");
         File keyPem = new File("key.pem");
 
-        CertUtil.createCACertificates(serverPem, keyPem, config.getSubject(), config.getKeySize());
+        KeyPair keyPair = "EC".equals(config.getKeyType())
+                ? CertUtil.generateEcKeyPair()
+                : CertUtil.generateKeyPair(config.getKeySize());
+        CertUtil.createCACertificates(serverPem, keyPem, config.getSubject(), keyPair);
 
         //we'll copy server.pem to server.crt for easy import
         Files.copy(Paths.get(serverPem.toURI()), Paths.get("server.crt"));
@@ -116,12 +128,20 @@ public final class CertGenerator {
                 throw new IllegalArgumentException("Not a valid key size: " + commandLine.getOptionValue("k"));
             }
         }
+        if (commandLine.hasOption("t")) {
+            String keyType = commandLine.getOptionValue("t");
+            if (!"RSA".equals(keyType) && !"EC".equals(keyType)) {
+                throw new IllegalArgumentException("Not a valid key type: " + keyType);
+            }
+            config.setKeyType(keyType);
+        }
         return config;
     }
 
     private static class CertGeneratorConfig {
         String subject = DEFAULT_SUBJECT;
         int keySize = DEFAULT_KEYSIZE;
+        String keyType = DEFAULT_KEYTYPE;
 
         public int getKeySize() {
             return keySize;
@@ -131,6 +151,14 @@ public final class CertGenerator {
             this.keySize = keySize;
         }
 
+        public String getKeyType() {
+            return keyType;
+        }
+
+        public void setKeyType(String keyType) {
+            this.keyType = keyType;
+        }
+
         public String getSubject() {
             return subject;
         }
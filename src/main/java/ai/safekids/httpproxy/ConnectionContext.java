@@ -39,6 +39,9 @@
 
 package ai.safekids.httpproxy;
 
+import ai.safekids.httpproxy.channel.BackendChannelPool;
+import ai.safekids.httpproxy.channel.ClientBackendChannels;
+import ai.safekids.httpproxy.handler.protocol.http1.Http1BackendHandler;
 import ai.safekids.httpproxy.listener.NitmProxyListener;
 import ai.safekids.httpproxy.tls.TlsContext;
 import ai.safekids.httpproxy.handler.proxy.HttpProxyHandler;
@@ -51,6 +54,11 @@ import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInitializer;
+import io.netty.util.concurrent.Future;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
 
 import static java.lang.String.*;
 
@@ -67,10 +75,15 @@ public class ConnectionContext {
 
     private Channel clientChannel;
     private Channel serverChannel;
+    private ChannelFuture connectFuture;
+    private ClientBackendChannels idleChannels;
 
     private TlsContext tlsCtx;
     private WebSocketContext wsCtx;
 
+    // The handlers which stopped reading the client
+    private final Set<Object> readSuspenders = Collections.newSetFromMap(new IdentityHashMap<>());
+
     public ConnectionContext(NitmProxyMaster master) {
         this.master = master;
         this.provider = master.provider(this);
@@ -88,6 +101,16 @@ public class ConnectionContext {
         return clientAddr;
     }
 
+    /**
+     * Resolve the host name of the client with reverse DNS lookup, the lookup never blocks the event loop
+     * and the result is cached.
+     *
+     * @return the client host name, or the client ip if it can not be resolved
+     */
+    public Future<String> resolveClientHostName() {
+        return master.reverseDnsResolver().resolve(clientChannel.eventLoop(), clientAddr.getHost());
+    }
+
     public ConnectionContext withServerAddr(Address serverAddr) {
         this.serverAddr = serverAddr;
         return this;
@@ -147,8 +170,7 @@ public class ConnectionContext {
 
     public ChannelFuture connect(Address address, ChannelHandlerContext fromCtx) {
         if (serverChannel != null && (!serverAddr.equals(address) || !serverChannel.isActive())) {
-            serverChannel.close();
-            serverChannel = null;
+            releaseServerChannel();
         }
         if (serverChannel != null) {
             return serverChannel.newSucceededFuture();
@@ -157,7 +179,7 @@ public class ConnectionContext {
         tlsCtx.protocols(fromCtx.executor().newPromise());
         tlsCtx.protocol(fromCtx.executor().newPromise());
         serverAddr = address;
-        return master.connect(fromCtx, this, new ChannelInitializer<Channel>() {
+        connectFuture = master.connect(fromCtx, this, new ChannelInitializer<Channel>() {
             @Override
             protected void initChannel(Channel ch) {
                 withServerChannel(ch);
@@ -166,6 +188,103 @@ public class ConnectionContext {
                 listener().onConnect(ConnectionContext.this, ch);
             }
         });
+        return connectFuture;
+    }
+
+    /**
+     * Connect to the server with plain HTTP/1, an idle connection of the pool will be reused if available.
+     *
+     * @param address the server address
+     * @param fromCtx the context of the client channel
+     * @return the future of the connection
+     */
+    public ChannelFuture connectHttp1(Address address, ChannelHandlerContext fromCtx) {
+        if (connectFuture != null && !connectFuture.isDone() && address.equals(serverAddr)) {
+            // A pipelined request waits for the pending connection instead of racing it
+            return connectFuture;
+        }
+        if (serverChannel != null && serverAddr.equals(address) && serverChannel.isActive()) {
+            return serverChannel.newSucceededFuture();
+        }
+        if (serverChannel != null) {
+            releaseServerChannel();
+        }
+
+        ClientBackendChannels channels = idleChannels();
+        Channel pooled = (channels != null)
+                ? channels.acquire(BackendChannelPool.key(address, null, Protocols.HTTP_1))
+                : null;
+        ChannelFuture future;
+        if (pooled != null) {
+            tlsCtx.protocols(fromCtx.executor().newPromise());
+            tlsCtx.protocol(fromCtx.executor().newPromise());
+            serverAddr = address;
+            withServerChannel(pooled);
+            pooled.pipeline().addLast(provider().http1BackendHandler());
+            pooled.pipeline().addLast(provider().tailBackendHandler());
+            listener().onConnect(this, pooled);
+            future = pooled.newSucceededFuture();
+            connectFuture = future;
+        } else {
+            future = connect(address, fromCtx);
+        }
+        tlsCtx.disableTls();
+        tlsCtx.protocolPromise().setSuccess(Protocols.HTTP_1);
+        return future;
+    }
+
+    /**
+     * Release the server channel. A plain HTTP/1 connection without pending request will be kept for reuse, first
+     * by this client, then by the pool, others will be closed.
+     */
+    public void releaseServerChannel() {
+        Channel channel = serverChannel;
+        if (channel == null) {
+            return;
+        }
+        serverChannel = null;
+        ClientBackendChannels channels = idleChannels();
+        if (channels != null && isReusable(channel)
+            && channels.release(BackendChannelPool.key(serverAddr, null, Protocols.HTTP_1), channel)) {
+            // The channel is detached from this context, so it will never be notified by the backend handlers
+            close();
+            return;
+        }
+        channel.close();
+    }
+
+    /**
+     * Hand over the idle connections kept by this client to the pool, it's invoked when the client is closed.
+     */
+    public void releaseIdleChannels() {
+        if (idleChannels != null) {
+            idleChannels.close();
+        }
+    }
+
+    private ClientBackendChannels idleChannels() {
+        BackendChannelPool pool = master.backendChannelPool();
+        if (idleChannels == null && pool != null) {
+            idleChannels = new ClientBackendChannels(pool, master.config().getMaxIdleConnectionsPerClient());
+        }
+        return idleChannels;
+    }
+
+    private boolean isReusable(Channel channel) {
+        if (tlsCtx.isEnabled() || !channel.isActive()) {
+            return false;
+        }
+        Http1BackendHandler handler = channel.pipeline().get(Http1BackendHandler.class);
+        return handler != null && handler.isReusable();
+    }
+
+    /**
+     * Get the future of the latest connection to the server.
+     *
+     * @return the connect future, or {@code null} if never connected
+     */
+    public ChannelFuture connectFuture() {
+        return connectFuture;
     }
 
     public Channel serverChannel() {
@@ -176,6 +295,33 @@ public class ConnectionContext {
         return clientChannel;
     }
 
+    /**
+     * Stop reading the client on behalf of the holder. The handlers applying backpressure to the client share its
+     * auto read, so reading is only resumed after every holder resumed. It must be called on the client event loop.
+     *
+     * @param holder the handler, or the reason, which stops reading
+     */
+    public void suspendClientRead(Object holder) {
+        if (readSuspenders.add(holder) && readSuspenders.size() == 1) {
+            clientChannel.config().setAutoRead(false);
+        }
+    }
+
+    /**
+     * Resume reading the client on behalf of the holder, it's ignored if the holder didn't suspend reading.
+     *
+     * @param holder the handler, or the reason, which stopped reading
+     */
+    public void resumeClientRead(Object holder) {
+        if (readSuspenders.remove(holder) && readSuspenders.isEmpty()) {
+            clientChannel.config().setAutoRead(true);
+        }
+    }
+
+    public boolean isClientReadSuspended() {
+        return !readSuspenders.isEmpty();
+    }
+
     public TlsContext tlsCtx() {
         return tlsCtx;
     }
@@ -58,6 +58,7 @@ import ai.safekids.httpproxy.handler.protocol.ws.WebSocketBackendHandler;
 import ai.safekids.httpproxy.handler.protocol.ws.WebSocketEventHandler;
 import ai.safekids.httpproxy.handler.protocol.ws.WebSocketFrontendHandler;
 import io.netty.channel.ChannelHandler;
+import io.netty.handler.codec.http2.Http2Settings;
 
 public class HandlerProvider {
 
@@ -125,10 +126,18 @@ public class HandlerProvider {
         return new Http2BackendHandler(context);
     }
 
+    public ChannelHandler http2BackendHandler(boolean upgraded) {
+        return new Http2BackendHandler(context, upgraded);
+    }
+
     public ChannelHandler http2FrontendHandler() {
         return new Http2FrontendHandler(context);
     }
 
+    public ChannelHandler http2FrontendHandler(Http2Settings upgradeSettings) {
+        return new Http2FrontendHandler(context, upgradeSettings);
+    }
+
     public ChannelHandler http2EventHandler() {
         return new Http2EventHandler(context);
     }
@@ -39,14 +39,19 @@
 
 package ai.safekids.httpproxy;
 
+import ai.safekids.httpproxy.channel.Transport;
+import ai.safekids.httpproxy.enums.LeafKeyStrategy;
 import ai.safekids.httpproxy.enums.ProxyMode;
+import ai.safekids.httpproxy.tls.DomainBypassPolicy;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
 import io.netty.handler.logging.LogLevel;
 import io.netty.handler.logging.LoggingHandler;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.util.concurrent.EventExecutor;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
@@ -58,9 +63,13 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.text.spi.NumberFormatProvider;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.Executor;
@@ -75,8 +84,8 @@ public class NitmProxy {
 
     private int port;
 
-    private NioEventLoopGroup bossGroup;
-    private NioEventLoopGroup workerGroup;
+    private EventLoopGroup bossGroup;
+    private EventLoopGroup workerGroup;
     private NitmProxyStatus status = NitmProxyStatus.NOTCONFIGURED;
 
     final Object lockObject = new Object();
@@ -120,25 +129,46 @@ public class NitmProxy {
     public void start() throws Exception {
         config.init();
 
-        bossGroup = new NioEventLoopGroup(1);
-        workerGroup = new NioEventLoopGroup();
+        Transport transport = config.getTransport().orFallback();
+        config.setTransport(transport);
+        LOGGER.info("nitmproxy is using {} transport", transport);
+
+        boolean reusePort = isReusePort(config, transport);
+        if (config.isReusePort() && !reusePort) {
+            LOGGER.warn("SO_REUSEPORT is not supported by {} transport, fallback to single acceptor", transport);
+        }
+
+        workerGroup = transport.newEventLoopGroup(config.getWorkerThreads());
+        NitmProxyInitializer initializer = new NitmProxyInitializer(config);
         try {
-            ServerBootstrap bootstrap = new ServerBootstrap()
-                .group(bossGroup, workerGroup)
-                .channel(NioServerSocketChannel.class)
-                .handler(new LoggingHandler(LogLevel.DEBUG))
-                .childHandler(new NitmProxyInitializer(config));
-
-            Channel channel = bootstrap
-                .bind(config.getHost(), config.getPort())
-                .sync()
-                .channel();
-
-            InetSocketAddress socketAddress = (InetSocketAddress) channel.localAddress();
+            List<Channel> channels = new ArrayList<>();
+            if (reusePort) {
+                // one listening socket per event loop, so that the accepted connection and its backend
+                // connection are both served by the loop which accepted it
+                int bindPort = config.getPort();
+                for (EventExecutor executor : workerGroup) {
+                    EventLoop eventLoop = (EventLoop) executor;
+                    Channel channel = serverBootstrap(transport, eventLoop, eventLoop, initializer)
+                        .option(transport.reusePortOption(), true)
+                        .bind(config.getHost(), bindPort)
+                        .sync()
+                        .channel();
+                    bindPort = ((InetSocketAddress) channel.localAddress()).getPort();
+                    channels.add(channel);
+                }
+            } else {
+                bossGroup = transport.newEventLoopGroup(1);
+                channels.add(serverBootstrap(transport, bossGroup, workerGroup, initializer)
+                                 .bind(config.getHost(), config.getPort())
+                                 .sync()
+                                 .channel());
+            }
+
+            InetSocketAddress socketAddress = (InetSocketAddress) channels.get(0).localAddress();
             this.port = socketAddress.getPort();
 
-            LOGGER.info("nitmproxy is listening at {}:{}",
-                        config.getHost(), this.port);
+            LOGGER.info("nitmproxy is listening at {}:{} with {} acceptor(s)",
+                        config.getHost(), this.port, channels.size());
 
             status = NitmProxyStatus.STARTED;
 
@@ -146,14 +176,40 @@ public class NitmProxy {
                 config.getStatusListener().onStart();
             }
 
-            channel.closeFuture().sync();
+            for (Channel channel : channels) {
+                channel.closeFuture().sync();
+            }
         } finally {
-            bossGroup.shutdownGracefully();
+            if (bossGroup != null) {
+                bossGroup.shutdownGracefully();
+            }
             workerGroup.shutdownGracefully();
+            initializer.close();
             status = NitmProxyStatus.STOPPED;
         }
     }
 
+    /**
+     * Check if every worker event loop listens with its own {@code SO_REUSEPORT} socket, otherwise a single acceptor
+     * listens for all of them.
+     *
+     * @param config    the config
+     * @param transport the transport in use
+     * @return {@code true} if enabled and supported by the transport
+     */
+    static boolean isReusePort(NitmProxyConfig config, Transport transport) {
+        return config.isReusePort() && transport.isReusePortSupported();
+    }
+
+    private ServerBootstrap serverBootstrap(Transport transport, EventLoopGroup parentGroup,
+                                            EventLoopGroup childGroup, NitmProxyInitializer initializer) {
+        return new ServerBootstrap()
+            .group(parentGroup, childGroup)
+            .channel(transport.serverChannelClass())
+            .handler(new LoggingHandler(LogLevel.DEBUG))
+            .childHandler(initializer);
+    }
+
     public void stop() {
         if (bossGroup != null) {
             bossGroup.shutdownGracefully();
@@ -199,6 +255,40 @@ public class NitmProxy {
                   .argName("PORT")
                   .desc("listening port, default: 8080")
                   .build());
+        options.addOption(
+            Option.builder()
+                  .longOpt("transport")
+                  .hasArg()
+                  .argName("TRANSPORT")
+                  .desc("transport(NIO, EPOLL, IO_URING), default: EPOLL if available, otherwise NIO")
+                  .build());
+        options.addOption(
+            Option.builder()
+                  .longOpt("reuseport")
+                  .hasArg(false)
+                  .desc("bind one listening socket per event loop with SO_REUSEPORT (EPOLL, IO_URING)")
+                  .build());
+        options.addOption(
+            Option.builder()
+                  .longOpt("threads")
+                  .hasArg()
+                  .argName("THREADS")
+                  .desc("number of event loop threads, default: 2 * cores")
+                  .build());
+        options.addOption(
+            Option.builder()
+                  .longOpt("hosts")
+                  .hasArg()
+                  .argName("HOSTS")
+                  .desc("hosts file overriding the upstream DNS resolution")
+                  .build());
+        options.addOption(
+            Option.builder()
+                  .longOpt("bypass")
+                  .hasArg()
+                  .argName("BYPASS")
+                  .desc("file of domains, one per line, forwarded without tls interception")
+                  .build());
         options.addOption(
             Option.builder()
                   .longOpt("cert")
@@ -213,6 +303,96 @@ public class NitmProxy {
                   .argName("KEY")
                   .desc("key used by server(*.pem), default: key.pem")
                   .build());
+        options.addOption(
+            Option.builder()
+                  .longOpt("certstore")
+                  .hasArg()
+                  .argName("CERTSTORE")
+                  .desc("file to persist the generated certificates across restarts")
+                  .build());
+        options.addOption(
+            Option.builder()
+                  .longOpt("leafkey")
+                  .hasArg()
+                  .argName("LEAFKEY")
+                  .desc("key pair of the generated certificates(CA, EC_POOL), default: EC_POOL")
+                  .build());
+        options.addOption(
+            Option.builder()
+                  .longOpt("wildcard")
+                  .hasArg(false)
+                  .desc("share a wildcard certificate between the subdomains of a domain")
+                  .build());
+        options.addOption(
+            Option.builder()
+                  .longOpt("warmup")
+                  .hasArg()
+                  .argName("WARMUP")
+                  .desc("file of hosts, one per line, whose certificates are generated in background")
+                  .build());
+        options.addOption(
+            Option.builder()
+                  .longOpt("warmupplain")
+                  .hasArg(false)
+                  .desc("generate in background the certificates of the hosts requested by plain http")
+                  .build());
+        options.addOption(
+            Option.builder()
+                  .longOpt("tlsprovider")
+                  .hasArg()
+                  .argName("TLSPROVIDER")
+                  .desc("tls engine(JDK, OPENSSL, OPENSSL_REFCNT), default: OPENSSL if available, otherwise JDK")
+                  .build());
+        options.addOption(
+            Option.builder()
+                  .longOpt("streaming")
+                  .hasArg(false)
+                  .desc("stream the HTTP/1 and HTTP/2 request bodies, only aggregate the requests inspected by "
+                        + "listeners")
+                  .build());
+        options.addOption(
+            Option.builder()
+                  .longOpt("h2window")
+                  .hasArg()
+                  .argName("H2WINDOW")
+                  .desc("bytes of a HTTP/2 stream read but not yet relayed, default: 262144")
+                  .build());
+        options.addOption(
+            Option.builder()
+                  .longOpt("h2connwindow")
+                  .hasArg()
+                  .argName("H2CONNWINDOW")
+                  .desc("bytes of a HTTP/2 connection read but not yet relayed, default: 1048576")
+                  .build());
+        options.addOption(
+            Option.builder()
+                  .longOpt("h2maxpending")
+                  .hasArg()
+                  .argName("H2MAXPENDING")
+                  .desc("HTTP/2 frames relayed before a flush within a read, default: 256")
+                  .build());
+        options.addOption(
+            Option.builder()
+                  .longOpt("spill")
+                  .hasArg()
+                  .argName("SPILL")
+                  .desc("bytes of an aggregated body held in memory per connection before spilling to a temp file, "
+                        + "default: 1048576")
+                  .build());
+        options.addOption(
+            Option.builder()
+                  .longOpt("spillbudget")
+                  .hasArg()
+                  .argName("SPILLBUDGET")
+                  .desc("bytes of the aggregated bodies held in memory by all connections, default: 67108864")
+                  .build());
+        options.addOption(
+            Option.builder()
+                  .longOpt("spilldir")
+                  .hasArg()
+                  .argName("SPILLDIR")
+                  .desc("directory of the spilled bodies, default: the temp directory")
+                  .build());
         options.addOption(
             Option.builder("k")
                   .longOpt("insecure")
@@ -262,6 +442,33 @@ public class NitmProxy {
                 throw new IllegalArgumentException("Not a legal port: " + commandLine.getOptionValue("p"));
             }
         }
+        if (commandLine.hasOption("transport")) {
+            config.setTransport(Transport.of(commandLine.getOptionValue("transport")));
+        }
+        if (commandLine.hasOption("reuseport")) {
+            config.setReusePort(true);
+        }
+        if (commandLine.hasOption("threads")) {
+            try {
+                config.setWorkerThreads(Integer.parseInt(commandLine.getOptionValue("threads")));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Not a valid threads: " + commandLine.getOptionValue("threads"));
+            }
+        }
+        if (commandLine.hasOption("hosts")) {
+            String hostsFile = commandLine.getOptionValue("hosts");
+            if (!new File(hostsFile).exists()) {
+                throw new IllegalArgumentException("No hosts file found: " + hostsFile);
+            }
+            config.setHostsFile(hostsFile);
+        }
+        if (commandLine.hasOption("bypass")) {
+            String bypassFile = commandLine.getOptionValue("bypass");
+            if (!new File(bypassFile).exists()) {
+                throw new IllegalArgumentException("No bypass file found: " + bypassFile);
+            }
+            config.setBypassPolicy(DomainBypassPolicy.fromFile(bypassFile));
+        }
         if (commandLine.hasOption("cert")) {
             String certFile = commandLine.getOptionValue("cert");
             if (!new File(certFile).exists()) {
@@ -276,6 +483,41 @@ public class NitmProxy {
             }
             config.setKey(readPrivateKeyFromFile(certKey));
         }
+        if (commandLine.hasOption("certstore")) {
+            config.setCertStoreFile(commandLine.getOptionValue("certstore"));
+        }
+        if (commandLine.hasOption("leafkey")) {
+            config.setLeafKeyStrategy(LeafKeyStrategy.of(commandLine.getOptionValue("leafkey")));
+        }
+        if (commandLine.hasOption("wildcard")) {
+            config.setWildcardCerts(true);
+        }
+        if (commandLine.hasOption("warmup")) {
+            String warmUpFile = commandLine.getOptionValue("warmup");
+            try {
+                config.setWarmUpHosts(Files.readAllLines(Paths.get(warmUpFile))
+                                           .stream()
+                                           .map(String::trim)
+                                           .filter(line -> !line.isEmpty() && !line.startsWith("#"))
+                                           .collect(Collectors.toList()));
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Not a valid warm up file: " + warmUpFile);
+            }
+        }
+        if (commandLine.hasOption("warmupplain")) {
+            config.setWarmUpPlainHosts(true);
+        }
+        if (commandLine.hasOption("tlsprovider")) {
+            String tlsProvider = commandLine.getOptionValue("tlsprovider");
+            try {
+                config.setTlsProvider(SslProvider.valueOf(tlsProvider));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Illegal tls provider: " + tlsProvider);
+            }
+            if (!SslProvider.isAlpnSupported(config.getTlsProvider())) {
+                throw new IllegalArgumentException("Tls provider not available: " + tlsProvider);
+            }
+        }
         if (commandLine.hasOption("tls")) {
             String tlsProtocols = commandLine.getOptionValue("tls");
             List<String> res = Arrays.asList(tlsProtocols.split(","));
@@ -294,6 +536,33 @@ public class NitmProxy {
             config.setMaxContentLength(maxLength);
         }
 
+        if (commandLine.hasOption("streaming")) {
+            config.setHttp1Streaming(true);
+            config.setHttp2Streaming(true);
+        }
+        if (commandLine.hasOption("h2window")) {
+            config.setHttp2StreamWindow(Integer.parseInt(commandLine.getOptionValue("h2window")));
+        }
+        if (commandLine.hasOption("h2connwindow")) {
+            config.setHttp2ConnectionWindow(Integer.parseInt(commandLine.getOptionValue("h2connwindow")));
+        }
+        if (commandLine.hasOption("h2maxpending")) {
+            config.setHttp2MaxPendingFrames(Integer.parseInt(commandLine.getOptionValue("h2maxpending")));
+        }
+        if (commandLine.hasOption("spill")) {
+            config.setAggregationMemoryPerConnection(Long.parseLong(commandLine.getOptionValue("spill")));
+        }
+        if (commandLine.hasOption("spillbudget")) {
+            config.setAggregationMemory(Long.parseLong(commandLine.getOptionValue("spillbudget")));
+        }
+        if (commandLine.hasOption("spilldir")) {
+            String spillDirectory = commandLine.getOptionValue("spilldir");
+            if (!Files.isDirectory(Paths.get(spillDirectory))) {
+                throw new IllegalArgumentException("Not a valid spill directory: " + spillDirectory);
+            }
+            config.setSpillDirectory(spillDirectory);
+        }
+
         if (commandLine.hasOption("k")) {
             config.setInsecure(true);
         }
@@ -39,19 +39,28 @@
 
 package ai.safekids.httpproxy;
 
+import ai.safekids.httpproxy.channel.Transport;
+import ai.safekids.httpproxy.enums.LeafKeyStrategy;
 import ai.safekids.httpproxy.enums.ProxyMode;
 import ai.safekids.httpproxy.handler.protocol.ProtocolDetector;
+import ai.safekids.httpproxy.handler.protocol.SignatureProtocolDetector;
 import ai.safekids.httpproxy.handler.protocol.http1.Http1ProtocolDetector;
+import ai.safekids.httpproxy.handler.protocol.http2.Http2ProtocolDetector;
 import ai.safekids.httpproxy.listener.NitmProxyListenerProvider;
 import ai.safekids.httpproxy.listener.NitmProxyListenerStore;
+import ai.safekids.httpproxy.tls.BypassPolicy;
 import ai.safekids.httpproxy.tls.CertUtil;
+import ai.safekids.httpproxy.tls.TlsUtil;
 import ai.safekids.httpproxy.tls.UnsafeAccessSupport;
 import com.google.common.base.Joiner;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.resolver.AddressResolverGroup;
 import org.bouncycastle.asn1.pkcs.PrivateKeyInfo;
 import org.bouncycastle.cert.X509CertificateHolder;
 
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.TrustManager;
+import java.net.SocketAddress;
 import java.security.Provider;
 import java.util.Collections;
 import java.util.List;
@@ -69,24 +78,54 @@ public class NitmProxyConfig {
 
     private String host;
     private int port;
+    private Transport transport;
+    private int workerThreads;
+    private boolean reusePort;
+
+    // DNS related
+    private AddressResolverGroup<? extends SocketAddress> resolver;
+    private String hostsFile;
+
+    // Upstream connection pool
+    private int maxIdleConnectionsPerHost;
+    private int maxIdleConnectionsPerClient;
+    private long idleConnectionTimeoutMillis;
 
     // TLS related
     private X509CertificateHolder certificate;
     private PrivateKeyInfo key;
     private boolean insecure;
     private Provider sslProvider;
+    private SslProvider tlsProvider;
     private List<String> tlsProtocols;
     private KeyManagerFactory clientKeyManagerFactory;
+    private String certStoreFile;
+    private long tlsSessionTimeout;
+    private LeafKeyStrategy leafKeyStrategy;
+    private boolean wildcardCerts;
+    private List<String> warmUpHosts;
+    private int warmUpCpuBudget;
+    private boolean warmUpPlainHosts;
 
     private int maxContentLength;
+    private boolean http1Streaming;
+    private boolean http2Streaming;
+    private int http2StreamWindow;
+    private int http2ConnectionWindow;
+    private int http2MaxPendingFrames;
+    private long aggregationMemoryPerConnection;
+    private long aggregationMemory;
+    private String spillDirectory;
 
     private NitmProxyStatusListener statusListener;
     private NitmProxyListenerStore listenerStore;
 
     private TrustManager trustManager;
     private UnsafeAccessSupport unsafeAccessSupport = UnsafeAccessSupport.DENY;
+    private BypassPolicy bypassPolicy = BypassPolicy.NONE;
 
     private List<ProtocolDetector> detectors;
+    private ProtocolDetector detector;
 
     // Default values
     public NitmProxyConfig() {
@@ -97,11 +136,24 @@ public class NitmProxyConfig {
 
         insecure = false;
         tlsProtocols = asList("TLSv1.3", "TLSv1.2");
+        tlsSessionTimeout = 3600;
+        leafKeyStrategy = LeafKeyStrategy.EC_POOL;
+        warmUpHosts = Collections.emptyList();
+        warmUpCpuBudget = 10;
 
         maxContentLength = 50 * 1024 * 1024;
+        aggregationMemoryPerConnection = 1024 * 1024;
+        aggregationMemory = 64 * 1024 * 1024;
+        http2StreamWindow = 256 * 1024;
+        http2ConnectionWindow = 1024 * 1024;
+        http2MaxPendingFrames = 256;
+
+        maxIdleConnectionsPerHost = 8;
+        maxIdleConnectionsPerClient = 4;
+        idleConnectionTimeoutMillis = 30_000;
 
         listenerStore = new NitmProxyListenerStore();
-        detectors = Collections.singletonList(Http1ProtocolDetector.INSTANCE);
+        setDetectors(asList(Http1ProtocolDetector.INSTANCE, Http2ProtocolDetector.INSTANCE));
     }
 
     public void init() {
@@ -111,6 +163,9 @@ public class NitmProxyConfig {
         if (key == null) {
             key = CertUtil.readPrivateKeyFromFile(DEFAULT_KEY);
         }
+        if (transport == null) {
+            transport = Transport.detect();
+        }
     }
 
     public ProxyMode getProxyMode() {
@@ -137,6 +192,108 @@ public class NitmProxyConfig {
         this.port = port;
     }
 
+    /**
+     * Get the transport, it will be detected while {@link #init()} if not configured.
+     *
+     * @return the transport
+     */
+    public Transport getTransport() {
+        return transport;
+    }
+
+    public void setTransport(Transport transport) {
+        this.transport = transport;
+    }
+
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    /**
+     * Set the number of event loop threads, {@code 0} to use the netty default.
+     *
+     * @param workerThreads the number of event loop threads
+     */
+    public void setWorkerThreads(int workerThreads) {
+        this.workerThreads = workerThreads;
+    }
+
+    public boolean isReusePort() {
+        return reusePort;
+    }
+
+    /**
+     * Bind one listening socket per event loop with {@code SO_REUSEPORT}, so the kernel balances the accepted
+     * connections across the event loops. Only supported by the native transports.
+     *
+     * @param reusePort {@code true} to enable
+     */
+    public void setReusePort(boolean reusePort) {
+        this.reusePort = reusePort;
+    }
+
+    public AddressResolverGroup<? extends SocketAddress> getResolver() {
+        return resolver;
+    }
+
+    /**
+     * Set the resolver of the upstream addresses, the non-blocking DNS resolver will be used if not configured.
+     *
+     * @param resolver the resolver
+     */
+    public void setResolver(AddressResolverGroup<? extends SocketAddress> resolver) {
+        this.resolver = resolver;
+    }
+
+    public String getHostsFile() {
+        return hostsFile;
+    }
+
+    /**
+     * Set the hosts file, which overrides the platform hosts file while resolving the upstream addresses.
+     *
+     * @param hostsFile the path of the hosts file
+     */
+    public void setHostsFile(String hostsFile) {
+        this.hostsFile = hostsFile;
+    }
+
+    public int getMaxIdleConnectionsPerHost() {
+        return maxIdleConnectionsPerHost;
+    }
+
+    /**
+     * Set the max number of idle upstream connections kept for each host in each event loop, {@code 0} to disable
+     * the connection pool.
+     *
+     * @param maxIdleConnectionsPerHost the max number of idle connections
+     */
+    public void setMaxIdleConnectionsPerHost(int maxIdleConnectionsPerHost) {
+        this.maxIdleConnectionsPerHost = maxIdleConnectionsPerHost;
+    }
+
+    public int getMaxIdleConnectionsPerClient() {
+        return maxIdleConnectionsPerClient;
+    }
+
+    /**
+     * Set the max number of idle upstream connections kept aside for each client connection, so a client alternating
+     * between hosts gets its own connections back. The connections beyond that are released to the pool.
+     *
+     * @param maxIdleConnectionsPerClient the max number of idle connections, {@code 0} to use the pool only
+     */
+    public void setMaxIdleConnectionsPerClient(int maxIdleConnectionsPerClient) {
+        this.maxIdleConnectionsPerClient = maxIdleConnectionsPerClient;
+    }
+
+    public long getIdleConnectionTimeoutMillis() {
+        return idleConnectionTimeoutMillis;
+    }
+
+    public void setIdleConnectionTimeoutMillis(long idleConnectionTimeoutMillis) {
+        this.idleConnectionTimeoutMillis = idleConnectionTimeoutMillis;
+    }
+
     public X509CertificateHolder getCertificate() {
         return certificate;
     }
@@ -169,6 +326,19 @@ public class NitmProxyConfig {
         this.sslProvider = sslProvider;
     }
 
+    public SslProvider getTlsProvider() {
+        return tlsProvider;
+    }
+
+    /**
+     * Set the tls engine of both the client and the server contexts.
+     *
+     * @param tlsProvider the tls engine, {@code null} to use OpenSSL if available, otherwise the JDK engine
+     */
+    public void setTlsProvider(SslProvider tlsProvider) {
+        this.tlsProvider = tlsProvider;
+    }
+
     public List<String> getTlsProtocols() {
         return tlsProtocols;
     }
@@ -185,6 +355,98 @@ public class NitmProxyConfig {
         this.clientKeyManagerFactory = clientKeyManagerFactory;
     }
 
+    public String getCertStoreFile() {
+        return certStoreFile;
+    }
+
+    /**
+     * Set the file to persist the leaf certs, so they need not be signed again after restart.
+     *
+     * @param certStoreFile the path of the cert store, {@code null} to keep the certs in memory only
+     */
+    public void setCertStoreFile(String certStoreFile) {
+        this.certStoreFile = certStoreFile;
+    }
+
+    public long getTlsSessionTimeout() {
+        return tlsSessionTimeout;
+    }
+
+    /**
+     * Set how long the tls sessions can be resumed on both legs, it's also the rotation interval of the session
+     * ticket keys.
+     *
+     * @param tlsSessionTimeout the timeout in seconds, default 3600
+     */
+    public void setTlsSessionTimeout(long tlsSessionTimeout) {
+        this.tlsSessionTimeout = tlsSessionTimeout;
+    }
+
+    public LeafKeyStrategy getLeafKeyStrategy() {
+        return leafKeyStrategy;
+    }
+
+    /**
+     * Set the key pair used by the generated leaf certs.
+     *
+     * @param leafKeyStrategy the leaf key strategy, default {@link LeafKeyStrategy#EC_POOL}
+     */
+    public void setLeafKeyStrategy(LeafKeyStrategy leafKeyStrategy) {
+        this.leafKeyStrategy = leafKeyStrategy;
+    }
+
+    public boolean isWildcardCerts() {
+        return wildcardCerts;
+    }
+
+    /**
+     * Set whether to share a single {@code *.parent} cert between the subdomains of a domain.
+     *
+     * @param wildcardCerts {@code true} to generate wildcard certs, default {@code false}
+     */
+    public void setWildcardCerts(boolean wildcardCerts) {
+        this.wildcardCerts = wildcardCerts;
+    }
+
+    public List<String> getWarmUpHosts() {
+        return warmUpHosts;
+    }
+
+    /**
+     * Set the hosts whose certs are created in background ahead of the handshakes.
+     *
+     * @param warmUpHosts the hosts to warm up
+     */
+    public void setWarmUpHosts(List<String> warmUpHosts) {
+        this.warmUpHosts = warmUpHosts;
+    }
+
+    public int getWarmUpCpuBudget() {
+        return warmUpCpuBudget;
+    }
+
+    /**
+     * Set the percentage of a core the background cert creation may use.
+     *
+     * @param warmUpCpuBudget the percentage in (0, 100], default 10
+     */
+    public void setWarmUpCpuBudget(int warmUpCpuBudget) {
+        this.warmUpCpuBudget = warmUpCpuBudget;
+    }
+
+    public boolean isWarmUpPlainHosts() {
+        return warmUpPlainHosts;
+    }
+
+    /**
+     * Set whether to warm up the certs of the hosts requested by plain http, which are often redirected to https.
+     *
+     * @param warmUpPlainHosts {@code true} to warm up the plain http hosts, default {@code false}
+     */
+    public void setWarmUpPlainHosts(boolean warmUpPlainHosts) {
+        this.warmUpPlainHosts = warmUpPlainHosts;
+    }
+
     public TrustManager getTrustManager() {
         return trustManager;
     }
@@ -201,6 +463,118 @@ public class NitmProxyConfig {
         this.maxContentLength = maxContentLength;
     }
 
+    public boolean isHttp1Streaming() {
+        return http1Streaming;
+    }
+
+    /**
+     * Stream the HTTP/1 request bodies to the server instead of aggregating them, only the requests that a listener
+     * wants to inspect are aggregated.
+     *
+     * @param http1Streaming {@code true} to stream the request bodies
+     * @see ai.safekids.httpproxy.listener.NitmProxyListener#aggregateHttp1Request
+     */
+    public void setHttp1Streaming(boolean http1Streaming) {
+        this.http1Streaming = http1Streaming;
+    }
+
+    public boolean isHttp2Streaming() {
+        return http2Streaming;
+    }
+
+    /**
+     * Relay the HTTP/2 request bodies to the server as they arrive instead of aggregating them, only the requests
+     * that a listener wants to inspect are aggregated.
+     *
+     * @param http2Streaming {@code true} to stream the request bodies
+     * @see ai.safekids.httpproxy.listener.NitmProxyListener#aggregateHttp2Request
+     */
+    public void setHttp2Streaming(boolean http2Streaming) {
+        this.http2Streaming = http2Streaming;
+    }
+
+    public int getHttp2StreamWindow() {
+        return http2StreamWindow;
+    }
+
+    /**
+     * Set the initial window of the HTTP/2 streams received by the proxy, on both the client and server connections.
+     * It bounds the bytes of a stream read from one side but not yet written to the other.
+     *
+     * @param http2StreamWindow the window in bytes
+     */
+    public void setHttp2StreamWindow(int http2StreamWindow) {
+        this.http2StreamWindow = http2StreamWindow;
+    }
+
+    public int getHttp2ConnectionWindow() {
+        return http2ConnectionWindow;
+    }
+
+    /**
+     * Set the window shared by the HTTP/2 streams of a connection, it bounds the undelivered bytes of a connection.
+     *
+     * @param http2ConnectionWindow the window in bytes
+     */
+    public void setHttp2ConnectionWindow(int http2ConnectionWindow) {
+        this.http2ConnectionWindow = http2ConnectionWindow;
+    }
+
+    public int getHttp2MaxPendingFrames() {
+        return http2MaxPendingFrames;
+    }
+
+    /**
+     * Set the number of HTTP/2 frames relayed to the other connection before it's flushed. The frames read together
+     * are flushed once the read completed, this only bounds the frames waiting for a long read.
+     *
+     * @param http2MaxPendingFrames the number of frames
+     */
+    public void setHttp2MaxPendingFrames(int http2MaxPendingFrames) {
+        this.http2MaxPendingFrames = http2MaxPendingFrames;
+    }
+
+    public long getAggregationMemoryPerConnection() {
+        return aggregationMemoryPerConnection;
+    }
+
+    /**
+     * Set the bytes of an aggregated body held in memory by a connection, the rest of the body is spilled to a temp
+     * file.
+     *
+     * @param aggregationMemoryPerConnection the bytes held in memory
+     */
+    public void setAggregationMemoryPerConnection(long aggregationMemoryPerConnection) {
+        this.aggregationMemoryPerConnection = aggregationMemoryPerConnection;
+    }
+
+    public long getAggregationMemory() {
+        return aggregationMemory;
+    }
+
+    /**
+     * Set the bytes of the aggregated bodies held in memory by all connections together, the bodies are spilled to
+     * temp files once exhausted.
+     *
+     * @param aggregationMemory the bytes held in memory
+     */
+    public void setAggregationMemory(long aggregationMemory) {
+        this.aggregationMemory = aggregationMemory;
+    }
+
+    public String getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    /**
+     * Set the directory of the spilled bodies, the default temp directory is used if not set.
+     *
+     * @param spillDirectory the directory
+     */
+    public void setSpillDirectory(String spillDirectory) {
+        this.spillDirectory = spillDirectory;
+    }
+
     public NitmProxyStatusListener getStatusListener() {
         return statusListener;
     }
@@ -231,12 +605,40 @@ public class NitmProxyConfig {
         this.unsafeAccessSupport = unsafeAccessSupport;
     }
 
+    public BypassPolicy getBypassPolicy() {
+        return bypassPolicy;
+    }
+
+    /**
+     * Set the policy of the tls connections which are forwarded without interception.
+     *
+     * @param bypassPolicy the bypass policy, default {@link BypassPolicy#NONE}
+     */
+    public void setBypassPolicy(BypassPolicy bypassPolicy) {
+        this.bypassPolicy = bypassPolicy;
+    }
+
     public List<ProtocolDetector> getDetectors() {
         return detectors;
     }
 
+    /**
+     * Set the protocol detectors of plain connections, the first detected protocol wins.
+     *
+     * @param detectors the detectors in priority order
+     */
     public void setDetectors(List<ProtocolDetector> detectors) {
         this.detectors = detectors;
+        this.detector = SignatureProtocolDetector.compile(detectors);
+    }
+
+    /**
+     * Get the detectors compiled into a single detector.
+     *
+     * @return the compiled detector
+     */
+    public ProtocolDetector getDetector() {
+        return detector;
     }
 
     @Override
@@ -247,13 +649,36 @@ public class NitmProxyConfig {
             format("proxyMode=%s", proxyMode),
             format("host=%s", host),
             format("port=%s", port),
+            format("transport=%s", transport),
+            format("workerThreads=%d", workerThreads),
+            format("reusePort=%b", reusePort),
+            format("hostsFile=%s", hostsFile),
+            format("maxIdleConnectionsPerHost=%d", maxIdleConnectionsPerHost),
+            format("maxIdleConnectionsPerClient=%d", maxIdleConnectionsPerClient),
+            format("idleConnectionTimeoutMillis=%d", idleConnectionTimeoutMillis),
             format("cert=%s", serverCert),
             format("key=%s", serverKey),
+            format("certStore=%s", certStoreFile),
+            format("leafKeyStrategy=%s", leafKeyStrategy),
+            format("wildcardCerts=%b", wildcardCerts),
+            format("warmUpHosts=%d", warmUpHosts.size()),
+            format("warmUpCpuBudget=%d%%", warmUpCpuBudget),
+            format("warmUpPlainHosts=%b", warmUpPlainHosts),
             format("insecure=%b", insecure),
             format("tlsProtocols=%s", tlsProtocols),
+            format("tlsSessionTimeout=%d", tlsSessionTimeout),
             format("sslProvider=%s", sslProvider),
+            format("tlsProvider=%s", TlsUtil.tlsProvider(this)),
             format("keyManagerFactory=%b", clientKeyManagerFactory),
-            format("maxContentLength=%d", maxContentLength));
+            format("maxContentLength=%d", maxContentLength),
+            format("http1Streaming=%b", http1Streaming),
+            format("http2Streaming=%b", http2Streaming),
+            format("http2StreamWindow=%d", http2StreamWindow),
+            format("http2ConnectionWindow=%d", http2ConnectionWindow),
+            format("http2MaxPendingFrames=%d", http2MaxPendingFrames),
+            format("aggregationMemoryPerConnection=%d", aggregationMemoryPerConnection),
+            format("aggregationMemory=%d", aggregationMemory),
+            format("spillDirectory=%s", spillDirectory));
         return format("NitmProxyConfig%n%s", Joiner.on(lineSeparator()).join(properties));
     }
 }
\ No newline at end of file
@@ -63,8 +63,10 @@ public class NitmProxyInitializer extends ChannelInitializer<Channel> {
 
     @Override
     protected void initChannel(Channel channel) {
+        // getHostString() never triggers a reverse lookup, listeners can resolve the host name with
+        // ConnectionContext.resolveClientHostName() if needed
         InetSocketAddress address = (InetSocketAddress) channel.remoteAddress();
-        Address clientAddress = new Address(address.getHostName(), address.getPort());
+        Address clientAddress = new Address(address.getHostString(), address.getPort());
 
         ConnectionContext context = new ConnectionContext(master)
                 .withClientAddr(clientAddress)
@@ -77,4 +79,11 @@ public class NitmProxyInitializer extends ChannelInitializer<Channel> {
         channel.pipeline().replace(this, null, context.proxyHandler());
         channel.pipeline().addLast(context.provider().tailFrontendHandler());
     }
+
+    /**
+     * Release the resources of the master once the proxy is stopped.
+     */
+    public void close() {
+        master.close();
+    }
 }
@@ -40,26 +40,71 @@
 package ai.safekids.httpproxy;
 
 import ai.safekids.httpproxy.channel.BackendChannelBootstrap;
+import ai.safekids.httpproxy.channel.BackendChannelPool;
+import ai.safekids.httpproxy.dns.DnsUtil;
+import ai.safekids.httpproxy.dns.ReverseDnsResolver;
+import ai.safekids.httpproxy.dns.StaticHostsResolver;
+import ai.safekids.httpproxy.http.MemoryBudget;
 import ai.safekids.httpproxy.listener.NitmProxyListenerManagerProvider;
 import ai.safekids.httpproxy.listener.NitmProxyListenerProvider;
 import ai.safekids.httpproxy.tls.CertManager;
+import ai.safekids.httpproxy.tls.CertWarmer;
+import ai.safekids.httpproxy.tls.SslContextCache;
+import ai.safekids.httpproxy.tls.TlsSessionStats;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.resolver.AddressResolverGroup;
+import io.netty.resolver.DefaultAddressResolverGroup;
+import io.netty.resolver.HostsFileEntriesResolver;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.net.SocketAddress;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 public class NitmProxyMaster {
 
+    private static final int SPILL_THREADS = 2;
+
     private NitmProxyConfig config;
     private BackendChannelBootstrap backendChannelBootstrap;
+    private BackendChannelPool backendChannelPool;
     private NitmProxyListenerManagerProvider listenerProvider;
     private CertManager certManager;
+    private SslContextCache sslContextCache;
+    private CertWarmer certWarmer;
+    private TlsSessionStats tlsSessionStats;
+    private ReverseDnsResolver reverseDnsResolver;
+    private MemoryBudget aggregationBudget;
+    private ExecutorService spillExecutor;
+    private AddressResolverGroup<? extends SocketAddress> resolver;
+    private boolean ownsResolver;
 
     public NitmProxyMaster(NitmProxyConfig config,
                            BackendChannelBootstrap backendChannelBootstrap) {
         this.config = config;
         this.backendChannelBootstrap = backendChannelBootstrap;
+        this.backendChannelPool = new BackendChannelPool(config.getMaxIdleConnectionsPerHost(),
+                                                         config.getIdleConnectionTimeoutMillis());
         this.listenerProvider = new NitmProxyListenerManagerProvider(config.getListenerStore());
         this.certManager = new CertManager(config);
+        this.sslContextCache = new SslContextCache(TimeUnit.SECONDS.toMillis(config.getTlsSessionTimeout()));
+        this.tlsSessionStats = new TlsSessionStats();
+        this.certManager.addRotationListener(sslContextCache::invalidate);
+        if (!config.getWarmUpHosts().isEmpty() || config.isWarmUpPlainHosts()) {
+            this.certWarmer = new CertWarmer(config, certManager, sslContextCache);
+            this.certWarmer.offer(config.getWarmUpHosts());
+            this.certWarmer.start();
+        }
+        this.reverseDnsResolver = new ReverseDnsResolver();
+        this.aggregationBudget = new MemoryBudget(config.getAggregationMemory());
+        this.spillExecutor = Executors.newFixedThreadPool(SPILL_THREADS,
+                                                          new DefaultThreadFactory("nitmproxy-spill", true));
+        this.resolver = createResolver(config);
+        this.ownsResolver = resolver != config.getResolver() && resolver != DefaultAddressResolverGroup.INSTANCE;
     }
 
     public NitmProxyConfig config() {
@@ -78,8 +123,84 @@ public class NitmProxyMaster {
         return certManager;
     }
 
+    public SslContextCache sslContextCache() {
+        return sslContextCache;
+    }
+
+    public TlsSessionStats tlsSessionStats() {
+        return tlsSessionStats;
+    }
+
+    /**
+     * Get the cert warmer, which is only created if any host to warm up is configured.
+     *
+     * @return the warmer, or {@code null} if warm up is disabled
+     */
+    public CertWarmer certWarmer() {
+        return certWarmer;
+    }
+
+    public ReverseDnsResolver reverseDnsResolver() {
+        return reverseDnsResolver;
+    }
+
+    /**
+     * Get the memory budget shared by the aggregated bodies of all connections.
+     *
+     * @return the budget
+     */
+    public MemoryBudget aggregationBudget() {
+        return aggregationBudget;
+    }
+
+    /**
+     * Get the executor writing the spilled bodies to the temp files, off the event loops.
+     *
+     * @return the executor
+     */
+    public Executor spillExecutor() {
+        return spillExecutor;
+    }
+
+    public AddressResolverGroup<? extends SocketAddress> resolver() {
+        return resolver;
+    }
+
+    public BackendChannelPool backendChannelPool() {
+        return backendChannelPool;
+    }
+
     public ChannelFuture connect(ChannelHandlerContext fromCtx, ConnectionContext connectionContext,
                                  ChannelHandler handler) {
         return backendChannelBootstrap.connect(fromCtx, connectionContext, handler);
     }
+
+    /**
+     * Stop the background threads of the master, and close the resolver created by the master.
+     */
+    public void close() {
+        if (certWarmer != null) {
+            certWarmer.stop();
+        }
+        certManager.close();
+        reverseDnsResolver.close();
+        spillExecutor.shutdown();
+        if (ownsResolver) {
+            resolver.close();
+        }
+    }
+
+    private static AddressResolverGroup<? extends SocketAddress> createResolver(NitmProxyConfig config) {
+        if (config.getResolver() != null) {
+            return config.getResolver();
+        }
+        if (config.getTransport() == null) {
+            // The datagram channel must match the event loops, which are unknown without a transport
+            return DefaultAddressResolverGroup.INSTANCE;
+        }
+        HostsFileEntriesResolver hostsResolver = config.getHostsFile() != null
+                ? StaticHostsResolver.fromFile(config.getHostsFile())
+                : HostsFileEntriesResolver.DEFAULT;
+        return DnsUtil.newResolverGroup(config.getTransport(), hostsResolver);
+    }
 }
@@ -49,10 +49,12 @@ public class BackendChannelBootstrap {
     public ChannelFuture connect(ChannelHandlerContext fromCtx,
                                  ConnectionContext connectionContext,
                                  ChannelHandler handler) {
+        Transport transport = connectionContext.config().getTransport();
         return new Bootstrap()
                 .group(fromCtx.channel().eventLoop())
-                .channel(fromCtx.channel().getClass())
+                .channel(transport != null? transport.socketChannelClass() : fromCtx.channel().getClass())
                 .handler(handler)
+                .resolver(connectionContext.master().resolver())
                 .connect(connectionContext.getServerAddr().getHost(),
                          connectionContext.getServerAddr().getPort());
     }
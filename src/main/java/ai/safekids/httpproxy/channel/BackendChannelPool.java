@@ -0,0 +1,286 @@
+/*
+ * Copyright 2021 - Safe Kids LLC
+ *
+ * The complete license agreement is available at https://safekids.ai/eula
+ *
+ *
+ * LICENSE GRANT
+ * ==============================================
+ * Licensor hereby grants to you a non-exclusive and non-transferable license to use the Software and
+ * related documentation (the "Documentation") solely for the intended purposes of the Software as set forth in the
+ * Documentation, according to the provisions contained herein and subject to payment of applicable license fees.
+ * You are not permitted to lease, rent, distribute or sublicense the Software or any rights therein.
+ * You also may not install the Software on a network server, use the Software in a time-sharing arrangement or
+ * in any other unauthorized manner. Further, no license is granted to you in the human readable code of the Software
+ *  (source code). Except as provided below, this Agreement does not grant you any rights to patents, copyrights,
+ *  trade secrets, trademarks, or any other rights in the Software and Documentation.
+ *
+ * NO MODIFICATION, NO REVERSE ENGINEERING
+ * ===============================================
+ * You agree not to, without the prior written permission of Licensor: (i); disassemble, decompile or "unlock",
+ * decode or otherwise reverse translate or engineer, or attempt in any manner to reconstruct or discover any source
+ * code or underlying algorithms of the Software, if provided in object code form only; (ii) use, copy,
+ * modify, translate,reverse engineer, decompile, disassemble, or create derivative works of the Software and
+ * any accompanying documents, or assist someone in performing such prohibited acts; or (iii) transfer, rent,
+ * lease, or sub license the Software.
+ *
+ * NO WARRANTIES.
+ * ===============================================
+ * LICENSOR MAKES NO WARRANTIES, EXPRESS OR IMPLIED, INCLUDING, BUT NOT LIMITED TO, IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, TITLE, AND NON-INFRINGEMENT OF THIRD PARTIES' RIGHTS.
+ * THE SOFTWARE (INCLUDING SOURCE CODE) IS PROVIDED TO YOU ON AN "AS IS" BASIS. TO THE FULL EXTENT PERMITTED BY LAW,
+ * THE DURATION OF STATUTORILY REQUIRED WARRANTIES, IF ANY, SHALL BE LIMITED TO THE ABOVE LIMITED WARRANTY PERIOD.
+ * MOREOVER, IN NO EVENT WILL WARRANTIES PROVIDED BY LAW, IF ANY, APPLY UNLESS THEY ARE REQUIRED TO APPLY BY
+ * STATUTE NOTWITHSTANDING THEIR EXCLUSION BY CONTRACT. NO DEALER, AGENT, OR EMPLOYEE OF LICENSOR IS AUTHORIZED TO
+ * MAKE ANY MODIFICATIONS, EXTENSIONS, OR ADDITIONS TO THIS LIMITED WARRANTY. THE ENTIRE RISK ARISING OUT OF USE OR
+ * PERFORMANCE OF THE SOFTWARE REMAINS WITH YOU.
+ *
+ */
+
+package ai.safekids.httpproxy.channel;
+
+import ai.safekids.httpproxy.Address;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.FastThreadLocal;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import static java.lang.String.*;
+import static java.util.concurrent.TimeUnit.*;
+
+/**
+ * The pool of idle backend channels.
+ *
+ * <p>Every event loop has its own idle channels, a channel is only reused by the client channels of the event loop
+ * which it was released in, so the pool never needs to be synchronized. While a channel is idle, it will be closed
+ * if the server sends anything or the idle timeout is reached.</p>
+ */
+public class BackendChannelPool {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BackendChannelPool.class);
+
+    private final int maxIdlePerHost;
+    private final long idleTimeoutMillis;
+
+    private final FastThreadLocal<Map<Key, Deque<Channel>>> idleChannels =
+            new FastThreadLocal<Map<Key, Deque<Channel>>>() {
+                @Override
+                protected Map<Key, Deque<Channel>> initialValue() {
+                    return new HashMap<>();
+                }
+            };
+
+    /**
+     * Create a pool.
+     *
+     * @param maxIdlePerHost    the max number of idle channels of each key in each event loop, {@code 0} to disable
+     * @param idleTimeoutMillis the time an idle channel will be kept
+     */
+    public BackendChannelPool(int maxIdlePerHost, long idleTimeoutMillis) {
+        this.maxIdlePerHost = maxIdlePerHost;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    public static Key key(Address address, String sni, String protocol) {
+        return new Key(address, sni, protocol);
+    }
+
+    /**
+     * Acquire an idle channel, it must be called in the event loop which the channel will be served in.
+     *
+     * @param key the key of the channel
+     * @return the channel with only the transport and tls handlers, or {@code null} if no healthy idle channel
+     */
+    public Channel acquire(Key key) {
+        Map<Key, Deque<Channel>> channels = idleChannels.get();
+        Deque<Channel> idles = channels.get(key);
+        if (idles == null) {
+            return null;
+        }
+        try {
+            Channel channel;
+            while ((channel = idles.pollLast()) != null) {
+                if (unpark(channel)) {
+                    LOGGER.debug("Reuse idle channel {} of {}", channel, key);
+                    return channel;
+                }
+            }
+            return null;
+        } finally {
+            if (idles.isEmpty()) {
+                channels.remove(key, idles);
+            }
+        }
+    }
+
+    /**
+     * Release a channel to the pool, it must be called in the event loop of the channel, and the channel should have
+     * no pending request.
+     *
+     * @param key     the key of the channel
+     * @param channel the channel
+     * @return {@code true} if the channel was kept in the pool, otherwise the caller should close it
+     */
+    public boolean release(Key key, Channel channel) {
+        if (maxIdlePerHost <= 0 || !channel.isActive() || !channel.eventLoop().inEventLoop()) {
+            return false;
+        }
+        Map<Key, Deque<Channel>> channels = idleChannels.get();
+        Deque<Channel> idles = channels.computeIfAbsent(key, k -> new ArrayDeque<>());
+        if (idles.size() >= maxIdlePerHost) {
+            return false;
+        }
+        park(key, channel, () -> {
+            if (idles.remove(channel) && idles.isEmpty()) {
+                channels.remove(key, idles);
+            }
+        });
+        idles.addLast(channel);
+        LOGGER.debug("Release idle channel {} of {}", channel, key);
+        return true;
+    }
+
+    /**
+     * Keep an idle channel outside of the shared channels, it's watched the same as the pooled channels, but only
+     * the caller could take it back. It must be called in the event loop of the channel.
+     *
+     * @param key       the key of the channel
+     * @param channel   the channel
+     * @param onEvicted invoked when the channel is evicted, while it's idle
+     */
+    void park(Key key, Channel channel, Runnable onEvicted) {
+        resetPipeline(channel.pipeline());
+        channel.pipeline().addLast(new IdleHandler(key, onEvicted));
+    }
+
+    /**
+     * Take back an idle channel, an unhealthy channel will be closed.
+     *
+     * @param channel the channel
+     * @return {@code true} if the channel is healthy and could be reused
+     */
+    boolean unpark(Channel channel) {
+        IdleHandler idleHandler = channel.pipeline().get(IdleHandler.class);
+        if (idleHandler != null && idleHandler.healthy && channel.isActive()) {
+            channel.pipeline().remove(idleHandler);
+            return true;
+        }
+        channel.close();
+        return false;
+    }
+
+    /**
+     * Remove all the handlers bound to the connection context, only the tls handler is kept.
+     */
+    private static void resetPipeline(ChannelPipeline pipeline) {
+        List<ChannelHandler> handlers = new ArrayList<>(pipeline.toMap().values());
+        for (int i = handlers.size() - 1; i >= 0; i--) {
+            ChannelHandler handler = handlers.get(i);
+            if (!(handler instanceof SslHandler) && pipeline.context(handler) != null) {
+                pipeline.remove(handler);
+            }
+        }
+    }
+
+    private class IdleHandler extends ChannelInboundHandlerAdapter {
+        private final Key key;
+        private final Runnable onEvicted;
+        private ScheduledFuture<?> timeout;
+        private boolean healthy = true;
+
+        private IdleHandler(Key key, Runnable onEvicted) {
+            this.key = key;
+            this.onEvicted = onEvicted;
+        }
+
+        @Override
+        public void handlerAdded(ChannelHandlerContext ctx) {
+            timeout = ctx.executor().schedule(() -> evict(ctx), idleTimeoutMillis, MILLISECONDS);
+        }
+
+        @Override
+        public void handlerRemoved(ChannelHandlerContext ctx) {
+            timeout.cancel(false);
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            LOGGER.debug("Unexpected data from idle channel {} of {}", ctx.channel(), key);
+            ReferenceCountUtil.release(msg);
+            evict(ctx);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            healthy = false;
+            onEvicted.run();
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            LOGGER.debug("Idle channel {} of {} failed", ctx.channel(), key, cause);
+            evict(ctx);
+        }
+
+        private void evict(ChannelHandlerContext ctx) {
+            healthy = false;
+            onEvicted.run();
+            ctx.close();
+        }
+    }
+
+    /**
+     * The key of the pooled channels, the channels are only reused by the connections to the same address with the
+     * same tls server name and application protocol.
+     */
+    public static final class Key {
+        private final Address address;
+        private final String sni;
+        private final String protocol;
+
+        private Key(Address address, String sni, String protocol) {
+            this.address = address;
+            this.sni = sni;
+            this.protocol = protocol;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Key key = (Key) o;
+            return Objects.equals(address, key.address)
+                   && Objects.equals(sni, key.sni)
+                   && Objects.equals(protocol, key.protocol);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(address, sni, protocol);
+        }
+
+        @Override
+        public String toString() {
+            return format("%s(sni=%s, protocol=%s)", address, sni, protocol);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2021 - Safe Kids LLC
+ *
+ * The complete license agreement is available at https://safekids.ai/eula
+ *
+ *
+ * LICENSE GRANT
+ * ==============================================
+ * Licensor hereby grants to you a non-exclusive and non-transferable license to use the Software and
+ * related documentation (the "Documentation") solely for the intended purposes of the Software as set forth in the
+ * Documentation, according to the provisions contained herein and subject to payment of applicable license fees.
+ * You are not permitted to lease, rent, distribute or sublicense the Software or any rights therein.
+ * You also may not install the Software on a network server, use the Software in a time-sharing arrangement or
+ * in any other unauthorized manner. Further, no license is granted to you in the human readable code of the Software
+ *  (source code). Except as provided below, this Agreement does not grant you any rights to patents, copyrights,
+ *  trade secrets, trademarks, or any other rights in the Software and Documentation.
+ *
+ * NO MODIFICATION, NO REVERSE ENGINEERING
+ * ===============================================
+ * You agree not to, without the prior written permission of Licensor: (i); disassemble, decompile or "unlock",
+ * decode or otherwise reverse translate or engineer, or attempt in any manner to reconstruct or discover any source
+ * code or underlying algorithms of the Software, if provided in object code form only; (ii) use, copy,
+ * modify, translate,reverse engineer, decompile, disassemble, or create derivative works of the Software and
+ * any accompanying documents, or assist someone in performing such prohibited acts; or (iii) transfer, rent,
+ * lease, or sub license the Software.
+ *
+ * NO WARRANTIES.
+ * ===============================================
+ * LICENSOR MAKES NO WARRANTIES, EXPRESS OR IMPLIED, INCLUDING, BUT NOT LIMITED TO, IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, TITLE, AND NON-INFRINGEMENT OF THIRD PARTIES' RIGHTS.
+ * THE SOFTWARE (INCLUDING SOURCE CODE) IS PROVIDED TO YOU ON AN "AS IS" BASIS. TO THE FULL EXTENT PERMITTED BY LAW,
+ * THE DURATION OF STATUTORILY REQUIRED WARRANTIES, IF ANY, SHALL BE LIMITED TO THE ABOVE LIMITED WARRANTY PERIOD.
+ * MOREOVER, IN NO EVENT WILL WARRANTIES PROVIDED BY LAW, IF ANY, APPLY UNLESS THEY ARE REQUIRED TO APPLY BY
+ * STATUTE NOTWITHSTANDING THEIR EXCLUSION BY CONTRACT. NO DEALER, AGENT, OR EMPLOYEE OF LICENSOR IS AUTHORIZED TO
+ * MAKE ANY MODIFICATIONS, EXTENSIONS, OR ADDITIONS TO THIS LIMITED WARRANTY. THE ENTIRE RISK ARISING OUT OF USE OR
+ * PERFORMANCE OF THE SOFTWARE REMAINS WITH YOU.
+ *
+ */
+
+package ai.safekids.httpproxy.channel;
+
+import ai.safekids.httpproxy.channel.BackendChannelPool.Key;
+import io.netty.channel.Channel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The idle backend channels of a single client connection, in front of the shared {@link BackendChannelPool}.
+ *
+ * <p>A client alternating between a few hosts gets its own channels back, instead of competing with the other
+ * clients for the pooled ones. The least recently released channel beyond the limit, and all the channels left when
+ * the client is closed, are handed over to the shared pool. It must be used in the event loop of the client
+ * channel.</p>
+ */
+public class ClientBackendChannels {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ClientBackendChannels.class);
+
+    private final BackendChannelPool pool;
+    private final int maxChannels;
+    private final Map<Key, Channel> idles = new LinkedHashMap<>();
+
+    /**
+     * Create the channels of a client.
+     *
+     * @param pool        the shared pool
+     * @param maxChannels the max number of idle channels kept for the client, {@code 0} to use the pool only
+     */
+    public ClientBackendChannels(BackendChannelPool pool, int maxChannels) {
+        this.pool = pool;
+        this.maxChannels = maxChannels;
+    }
+
+    /**
+     * Acquire an idle channel of the client, or of the shared pool if the client has none.
+     *
+     * @param key the key of the channel
+     * @return the channel with only the transport and tls handlers, or {@code null} if no healthy idle channel
+     */
+    public Channel acquire(Key key) {
+        Channel channel = idles.remove(key);
+        if (channel != null && pool.unpark(channel)) {
+            LOGGER.debug("Reuse client channel {} of {}", channel, key);
+            return channel;
+        }
+        return pool.acquire(key);
+    }
+
+    /**
+     * Release a channel, which should have no pending request.
+     *
+     * @param key     the key of the channel
+     * @param channel the channel
+     * @return {@code true} if the channel was kept, otherwise the caller should close it
+     */
+    public boolean release(Key key, Channel channel) {
+        if (maxChannels <= 0) {
+            return pool.release(key, channel);
+        }
+        if (!channel.isActive() || !channel.eventLoop().inEventLoop()) {
+            return false;
+        }
+        Channel previous = idles.remove(key);
+        if (previous != null) {
+            handOver(key, previous);
+        } else if (idles.size() >= maxChannels) {
+            Iterator<Map.Entry<Key, Channel>> eldest = idles.entrySet().iterator();
+            Map.Entry<Key, Channel> entry = eldest.next();
+            eldest.remove();
+            handOver(entry.getKey(), entry.getValue());
+        }
+        pool.park(key, channel, () -> idles.remove(key, channel));
+        idles.put(key, channel);
+        LOGGER.debug("Release client channel {} of {}", channel, key);
+        return true;
+    }
+
+    /**
+     * Hand over all the idle channels to the shared pool, it's invoked when the client is closed.
+     */
+    public void close() {
+        List<Map.Entry<Key, Channel>> entries = new ArrayList<>(idles.entrySet());
+        idles.clear();
+        entries.forEach(entry -> handOver(entry.getKey(), entry.getValue()));
+    }
+
+    public int size() {
+        return idles.size();
+    }
+
+    private void handOver(Key key, Channel channel) {
+        if (pool.unpark(channel) && !pool.release(key, channel)) {
+            channel.close();
+        }
+    }
+}
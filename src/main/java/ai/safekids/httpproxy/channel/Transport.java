@@ -0,0 +1,222 @@
+/*
+ * Copyright 2021 - Safe Kids LLC
+ *
+ * The complete license agreement is available at https://safekids.ai/eula
+ *
+ *
+ * LICENSE GRANT
+ * ==============================================
+ * Licensor hereby grants to you a non-exclusive and non-transferable license to use the Software and
+ * related documentation (the "Documentation") solely for the intended purposes of the Software as set forth in the
+ * Documentation, according to the provisions contained herein and subject to payment of applicable license fees.
+ * You are not permitted to lease, rent, distribute or sublicense the Software or any rights therein.
+ * You also may not install the Software on a network server, use the Software in a time-sharing arrangement or
+ * in any other unauthorized manner. Further, no license is granted to you in the human readable code of the Software
+ *  (source code). Except as provided below, this Agreement does not grant you any rights to patents, copyrights,
+ *  trade secrets, trademarks, or any other rights in the Software and Documentation.
+ *
+ * NO MODIFICATION, NO REVERSE ENGINEERING
+ * ===============================================
+ * You agree not to, without the prior written permission of Licensor: (i); disassemble, decompile or "unlock",
+ * decode or otherwise reverse translate or engineer, or attempt in any manner to reconstruct or discover any source
+ * code or underlying algorithms of the Software, if provided in object code form only; (ii) use, copy,
+ * modify, translate,reverse engineer, decompile, disassemble, or create derivative works of the Software and
+ * any accompanying documents, or assist someone in performing such prohibited acts; or (iii) transfer, rent,
+ * lease, or sub license the Software.
+ *
+ * NO WARRANTIES.
+ * ===============================================
+ * LICENSOR MAKES NO WARRANTIES, EXPRESS OR IMPLIED, INCLUDING, BUT NOT LIMITED TO, IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, TITLE, AND NON-INFRINGEMENT OF THIRD PARTIES' RIGHTS.
+ * THE SOFTWARE (INCLUDING SOURCE CODE) IS PROVIDED TO YOU ON AN "AS IS" BASIS. TO THE FULL EXTENT PERMITTED BY LAW,
+ * THE DURATION OF STATUTORILY REQUIRED WARRANTIES, IF ANY, SHALL BE LIMITED TO THE ABOVE LIMITED WARRANTY PERIOD.
+ * MOREOVER, IN NO EVENT WILL WARRANTIES PROVIDED BY LAW, IF ANY, APPLY UNLESS THEY ARE REQUIRED TO APPLY BY
+ * STATUTE NOTWITHSTANDING THEIR EXCLUSION BY CONTRACT. NO DEALER, AGENT, OR EMPLOYEE OF LICENSOR IS AUTHORIZED TO
+ * MAKE ANY MODIFICATIONS, EXTENSIONS, OR ADDITIONS TO THIS LIMITED WARRANTY. THE ENTIRE RISK ARISING OUT OF USE OR
+ * PERFORMANCE OF THE SOFTWARE REMAINS WITH YOU.
+ *
+ */
+
+package ai.safekids.httpproxy.channel;
+
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.incubator.channel.uring.IOUring;
+import io.netty.incubator.channel.uring.IOUringChannelOption;
+import io.netty.incubator.channel.uring.IOUringDatagramChannel;
+import io.netty.incubator.channel.uring.IOUringEventLoopGroup;
+import io.netty.incubator.channel.uring.IOUringServerSocketChannel;
+import io.netty.incubator.channel.uring.IOUringSocketChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The netty transport used by both the listening channel and the backend channels.
+ */
+public enum Transport {
+    NIO {
+        @Override
+        public boolean isAvailable() {
+            return true;
+        }
+
+        @Override
+        public EventLoopGroup newEventLoopGroup(int threads) {
+            return new NioEventLoopGroup(threads);
+        }
+
+        @Override
+        public Class<? extends ServerChannel> serverChannelClass() {
+            return NioServerSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends SocketChannel> socketChannelClass() {
+            return NioSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends DatagramChannel> datagramChannelClass() {
+            return NioDatagramChannel.class;
+        }
+
+        @Override
+        public ChannelOption<Boolean> reusePortOption() {
+            return null;
+        }
+    },
+    EPOLL {
+        @Override
+        public boolean isAvailable() {
+            return Epoll.isAvailable();
+        }
+
+        @Override
+        public EventLoopGroup newEventLoopGroup(int threads) {
+            return new EpollEventLoopGroup(threads);
+        }
+
+        @Override
+        public Class<? extends ServerChannel> serverChannelClass() {
+            return EpollServerSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends SocketChannel> socketChannelClass() {
+            return EpollSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends DatagramChannel> datagramChannelClass() {
+            return EpollDatagramChannel.class;
+        }
+
+        @Override
+        public ChannelOption<Boolean> reusePortOption() {
+            return EpollChannelOption.SO_REUSEPORT;
+        }
+    },
+    IO_URING {
+        @Override
+        public boolean isAvailable() {
+            return IOUring.isAvailable();
+        }
+
+        @Override
+        public EventLoopGroup newEventLoopGroup(int threads) {
+            return new IOUringEventLoopGroup(threads);
+        }
+
+        @Override
+        public Class<? extends ServerChannel> serverChannelClass() {
+            return IOUringServerSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends SocketChannel> socketChannelClass() {
+            return IOUringSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends DatagramChannel> datagramChannelClass() {
+            return IOUringDatagramChannel.class;
+        }
+
+        @Override
+        public ChannelOption<Boolean> reusePortOption() {
+            return IOUringChannelOption.SO_REUSEPORT;
+        }
+    };
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Transport.class);
+
+    public abstract boolean isAvailable();
+
+    /**
+     * Create a new event loop group of this transport.
+     *
+     * @param threads the number of threads, {@code 0} to use the netty default
+     * @return the event loop group
+     */
+    public abstract EventLoopGroup newEventLoopGroup(int threads);
+
+    public abstract Class<? extends ServerChannel> serverChannelClass();
+
+    public abstract Class<? extends SocketChannel> socketChannelClass();
+
+    public abstract Class<? extends DatagramChannel> datagramChannelClass();
+
+    /**
+     * Get the {@code SO_REUSEPORT} option of this transport.
+     *
+     * @return the option, or {@code null} if not supported
+     */
+    public abstract ChannelOption<Boolean> reusePortOption();
+
+    public boolean isReusePortSupported() {
+        return reusePortOption() != null;
+    }
+
+    /**
+     * Get this transport if the native library was loaded, otherwise fallback to {@link #NIO}.
+     *
+     * @return the available transport
+     */
+    public Transport orFallback() {
+        if (isAvailable()) {
+            return this;
+        }
+        LOGGER.warn("Transport {} is not available on this platform, fallback to {}", this, NIO);
+        return NIO;
+    }
+
+    /**
+     * Detect the best transport of current platform, epoll if available, otherwise nio.
+     *
+     * @return the detected transport
+     */
+    public static Transport detect() {
+        return EPOLL.isAvailable()? EPOLL : NIO;
+    }
+
+    public static Transport of(String name) {
+        try {
+            return Transport.valueOf(name);
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Illegal transport: " + name);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2021 - Safe Kids LLC
+ *
+ * The complete license agreement is available at https://safekids.ai/eula
+ *
+ *
+ * LICENSE GRANT
+ * ==============================================
+ * Licensor hereby grants to you a non-exclusive and non-transferable license to use the Software and
+ * related documentation (the "Documentation") solely for the intended purposes of the Software as set forth in the
+ * Documentation, according to the provisions contained herein and subject to payment of applicable license fees.
+ * You are not permitted to lease, rent, distribute or sublicense the Software or any rights therein.
+ * You also may not install the Software on a network server, use the Software in a time-sharing arrangement or
+ * in any other unauthorized manner. Further, no license is granted to you in the human readable code of the Software
+ *  (source code). Except as provided below, this Agreement does not grant you any rights to patents, copyrights,
+ *  trade secrets, trademarks, or any other rights in the Software and Documentation.
+ *
+ * NO MODIFICATION, NO REVERSE ENGINEERING
+ * ===============================================
+ * You agree not to, without the prior written permission of Licensor: (i); disassemble, decompile or "unlock",
+ * decode or otherwise reverse translate or engineer, or attempt in any manner to reconstruct or discover any source
+ * code or underlying algorithms of the Software, if provided in object code form only; (ii) use, copy,
+ * modify, translate,reverse engineer, decompile, disassemble, or create derivative works of the Software and
+ * any accompanying documents, or assist someone in performing such prohibited acts; or (iii) transfer, rent,
+ * lease, or sub license the Software.
+ *
+ * NO WARRANTIES.
+ * ===============================================
+ * LICENSOR MAKES NO WARRANTIES, EXPRESS OR IMPLIED, INCLUDING, BUT NOT LIMITED TO, IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, TITLE, AND NON-INFRINGEMENT OF THIRD PARTIES' RIGHTS.
+ * THE SOFTWARE (INCLUDING SOURCE CODE) IS PROVIDED TO YOU ON AN "AS IS" BASIS. TO THE FULL EXTENT PERMITTED BY LAW,
+ * THE DURATION OF STATUTORILY REQUIRED WARRANTIES, IF ANY, SHALL BE LIMITED TO THE ABOVE LIMITED WARRANTY PERIOD.
+ * MOREOVER, IN NO EVENT WILL WARRANTIES PROVIDED BY LAW, IF ANY, APPLY UNLESS THEY ARE REQUIRED TO APPLY BY
+ * STATUTE NOTWITHSTANDING THEIR EXCLUSION BY CONTRACT. NO DEALER, AGENT, OR EMPLOYEE OF LICENSOR IS AUTHORIZED TO
+ * MAKE ANY MODIFICATIONS, EXTENSIONS, OR ADDITIONS TO THIS LIMITED WARRANTY. THE ENTIRE RISK ARISING OUT OF USE OR
+ * PERFORMANCE OF THE SOFTWARE REMAINS WITH YOU.
+ *
+ */
+
+package ai.safekids.httpproxy.dns;
+
+import ai.safekids.httpproxy.channel.Transport;
+import io.netty.resolver.AddressResolverGroup;
+import io.netty.resolver.HostsFileEntriesResolver;
+import io.netty.resolver.dns.DefaultDnsCache;
+import io.netty.resolver.dns.DnsAddressResolverGroup;
+import io.netty.resolver.dns.DnsNameResolverBuilder;
+import io.netty.resolver.dns.DnsServerAddressStreamProviders;
+
+import java.net.InetSocketAddress;
+
+public final class DnsUtil {
+
+    private static final int MIN_TTL_SECONDS = 0;
+    private static final int MAX_TTL_SECONDS = 300;
+    private static final int NEGATIVE_TTL_SECONDS = 10;
+
+    private DnsUtil() {
+    }
+
+    /**
+     * Create a non-blocking resolver group which resolves the upstream addresses.
+     *
+     * <p>The resolvers of all the event loops share one cache, which keeps both the resolved and the failed queries,
+     * and the concurrent queries of the same host name are coalesced into one.</p>
+     *
+     * @param transport     the transport of the event loops which use the resolvers
+     * @param hostsResolver the resolver of the hosts file entries
+     * @return the resolver group
+     */
+    public static AddressResolverGroup<InetSocketAddress> newResolverGroup(Transport transport,
+                                                                           HostsFileEntriesResolver hostsResolver) {
+        DnsNameResolverBuilder builder = new DnsNameResolverBuilder()
+                .channelType(transport.datagramChannelClass())
+                .socketChannelType(transport.socketChannelClass())
+                .nameServerProvider(DnsServerAddressStreamProviders.platformDefault())
+                .resolveCache(new DefaultDnsCache(MIN_TTL_SECONDS, MAX_TTL_SECONDS, NEGATIVE_TTL_SECONDS))
+                .hostsFileEntriesResolver(hostsResolver);
+        return new DnsAddressResolverGroup(builder);
+    }
+}
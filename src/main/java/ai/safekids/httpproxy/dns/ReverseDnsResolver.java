@@ -0,0 +1,126 @@
+/*
+ * Copyright 2021 - Safe Kids LLC
+ *
+ * The complete license agreement is available at https://safekids.ai/eula
+ *
+ *
+ * LICENSE GRANT
+ * ==============================================
+ * Licensor hereby grants to you a non-exclusive and non-transferable license to use the Software and
+ * related documentation (the "Documentation") solely for the intended purposes of the Software as set forth in the
+ * Documentation, according to the provisions contained herein and subject to payment of applicable license fees.
+ * You are not permitted to lease, rent, distribute or sublicense the Software or any rights therein.
+ * You also may not install the Software on a network server, use the Software in a time-sharing arrangement or
+ * in any other unauthorized manner. Further, no license is granted to you in the human readable code of the Software
+ *  (source code). Except as provided below, this Agreement does not grant you any rights to patents, copyrights,
+ *  trade secrets, trademarks, or any other rights in the Software and Documentation.
+ *
+ * NO MODIFICATION, NO REVERSE ENGINEERING
+ * ===============================================
+ * You agree not to, without the prior written permission of Licensor: (i); disassemble, decompile or "unlock",
+ * decode or otherwise reverse translate or engineer, or attempt in any manner to reconstruct or discover any source
+ * code or underlying algorithms of the Software, if provided in object code form only; (ii) use, copy,
+ * modify, translate,reverse engineer, decompile, disassemble, or create derivative works of the Software and
+ * any accompanying documents, or assist someone in performing such prohibited acts; or (iii) transfer, rent,
+ * lease, or sub license the Software.
+ *
+ * NO WARRANTIES.
+ * ===============================================
+ * LICENSOR MAKES NO WARRANTIES, EXPRESS OR IMPLIED, INCLUDING, BUT NOT LIMITED TO, IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, TITLE, AND NON-INFRINGEMENT OF THIRD PARTIES' RIGHTS.
+ * THE SOFTWARE (INCLUDING SOURCE CODE) IS PROVIDED TO YOU ON AN "AS IS" BASIS. TO THE FULL EXTENT PERMITTED BY LAW,
+ * THE DURATION OF STATUTORILY REQUIRED WARRANTIES, IF ANY, SHALL BE LIMITED TO THE ABOVE LIMITED WARRANTY PERIOD.
+ * MOREOVER, IN NO EVENT WILL WARRANTIES PROVIDED BY LAW, IF ANY, APPLY UNLESS THEY ARE REQUIRED TO APPLY BY
+ * STATUTE NOTWITHSTANDING THEIR EXCLUSION BY CONTRACT. NO DEALER, AGENT, OR EMPLOYEE OF LICENSOR IS AUTHORIZED TO
+ * MAKE ANY MODIFICATIONS, EXTENSIONS, OR ADDITIONS TO THIS LIMITED WARRANTY. THE ENTIRE RISK ARISING OUT OF USE OR
+ * PERFORMANCE OF THE SOFTWARE REMAINS WITH YOU.
+ *
+ */
+
+package ai.safekids.httpproxy.dns;
+
+import ai.safekids.httpproxy.util.CoalescingExecutor;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.netty.util.NetUtil;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+
+import java.net.InetAddress;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolves the host name of an ip address with reverse DNS lookup.
+ *
+ * <p>The lookup runs on dedicated threads, so it never blocks an event loop. Results are cached, and concurrent
+ * lookups of the same address share a single query.</p>
+ */
+public class ReverseDnsResolver {
+
+    private static final int CACHE_SIZE = 10000;
+    private static final long CACHE_TTL_MINUTES = 10;
+    private static final int LOOKUP_THREADS = 2;
+
+    private final CoalescingExecutor<String, String> lookups;
+    private final ExecutorService ownedExecutor;
+    private final Cache<String, String> cache;
+
+    public ReverseDnsResolver() {
+        this(Executors.newFixedThreadPool(LOOKUP_THREADS, new DefaultThreadFactory("nitmproxy-rdns", true)), true);
+    }
+
+    public ReverseDnsResolver(Executor executor) {
+        this(executor, false);
+    }
+
+    private ReverseDnsResolver(Executor executor, boolean ownsExecutor) {
+        this.lookups = new CoalescingExecutor<>(executor);
+        this.ownedExecutor = ownsExecutor? (ExecutorService) executor : null;
+        this.cache = CacheBuilder
+                .newBuilder()
+                .expireAfterWrite(CACHE_TTL_MINUTES, TimeUnit.MINUTES)
+                .maximumSize(CACHE_SIZE)
+                .build();
+    }
+
+    /**
+     * Resolve the host name of the ip address.
+     *
+     * @param eventExecutor the executor to notify the returned future
+     * @param ip            the ip address literal
+     * @return the host name, or the ip itself if it can not be resolved
+     */
+    public Future<String> resolve(EventExecutor eventExecutor, String ip) {
+        String cached = cache.getIfPresent(ip);
+        if (cached != null) {
+            return eventExecutor.newSucceededFuture(cached);
+        }
+
+        return lookups.submit(eventExecutor, ip, key -> {
+            String hostName = lookup(key);
+            cache.put(key, hostName);
+            return hostName;
+        });
+    }
+
+    /**
+     * Stop the lookup threads created by this resolver, the lookups afterwards fail.
+     */
+    public void close() {
+        if (ownedExecutor != null) {
+            ownedExecutor.shutdownNow();
+        }
+    }
+
+    private static String lookup(String ip) {
+        InetAddress address = NetUtil.createInetAddressFromIpAddressString(ip);
+        if (address == null) {
+            return ip;
+        }
+        return address.getHostName();
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2021 - Safe Kids LLC
+ *
+ * The complete license agreement is available at https://safekids.ai/eula
+ *
+ *
+ * LICENSE GRANT
+ * ==============================================
+ * Licensor hereby grants to you a non-exclusive and non-transferable license to use the Software and
+ * related documentation (the "Documentation") solely for the intended purposes of the Software as set forth in the
+ * Documentation, according to the provisions contained herein and subject to payment of applicable license fees.
+ * You are not permitted to lease, rent, distribute or sublicense the Software or any rights therein.
+ * You also may not install the Software on a network server, use the Software in a time-sharing arrangement or
+ * in any other unauthorized manner. Further, no license is granted to you in the human readable code of the Software
+ *  (source code). Except as provided below, this Agreement does not grant you any rights to patents, copyrights,
+ *  trade secrets, trademarks, or any other rights in the Software and Documentation.
+ *
+ * NO MODIFICATION, NO REVERSE ENGINEERING
+ * ===============================================
+ * You agree not to, without the prior written permission of Licensor: (i); disassemble, decompile or "unlock",
+ * decode or otherwise reverse translate or engineer, or attempt in any manner to reconstruct or discover any source
+ * code or underlying algorithms of the Software, if provided in object code form only; (ii) use, copy,
+ * modify, translate,reverse engineer, decompile, disassemble, or create derivative works of the Software and
+ * any accompanying documents, or assist someone in performing such prohibited acts; or (iii) transfer, rent,
+ * lease, or sub license the Software.
+ *
+ * NO WARRANTIES.
+ * ===============================================
+ * LICENSOR MAKES NO WARRANTIES, EXPRESS OR IMPLIED, INCLUDING, BUT NOT LIMITED TO, IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, TITLE, AND NON-INFRINGEMENT OF THIRD PARTIES' RIGHTS.
+ * THE SOFTWARE (INCLUDING SOURCE CODE) IS PROVIDED TO YOU ON AN "AS IS" BASIS. TO THE FULL EXTENT PERMITTED BY LAW,
+ * THE DURATION OF STATUTORILY REQUIRED WARRANTIES, IF ANY, SHALL BE LIMITED TO THE ABOVE LIMITED WARRANTY PERIOD.
+ * MOREOVER, IN NO EVENT WILL WARRANTIES PROVIDED BY LAW, IF ANY, APPLY UNLESS THEY ARE REQUIRED TO APPLY BY
+ * STATUTE NOTWITHSTANDING THEIR EXCLUSION BY CONTRACT. NO DEALER, AGENT, OR EMPLOYEE OF LICENSOR IS AUTHORIZED TO
+ * MAKE ANY MODIFICATIONS, EXTENSIONS, OR ADDITIONS TO THIS LIMITED WARRANTY. THE ENTIRE RISK ARISING OUT OF USE OR
+ * PERFORMANCE OF THE SOFTWARE REMAINS WITH YOU.
+ *
+ */
+
+package ai.safekids.httpproxy.dns;
+
+import ai.safekids.httpproxy.exception.NitmProxyException;
+import io.netty.resolver.HostsFileEntries;
+import io.netty.resolver.HostsFileEntriesResolver;
+import io.netty.resolver.HostsFileParser;
+import io.netty.resolver.ResolvedAddressTypes;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Resolves host names from a static hosts file, the entries override the ones of the platform hosts file.
+ */
+public class StaticHostsResolver implements HostsFileEntriesResolver {
+
+    private final Map<String, Inet4Address> inet4Entries;
+    private final Map<String, Inet6Address> inet6Entries;
+    private final HostsFileEntriesResolver fallback;
+
+    public StaticHostsResolver(HostsFileEntries entries) {
+        this(entries, HostsFileEntriesResolver.DEFAULT);
+    }
+
+    public StaticHostsResolver(HostsFileEntries entries, HostsFileEntriesResolver fallback) {
+        this.inet4Entries = entries.inet4Entries();
+        this.inet6Entries = entries.inet6Entries();
+        this.fallback = fallback;
+    }
+
+    /**
+     * Create a resolver from a file of the hosts file format.
+     *
+     * @param hostsFile the hosts file
+     * @return the resolver
+     * @throws NitmProxyException if there is any exception while reading the hosts file
+     */
+    public static StaticHostsResolver fromFile(String hostsFile) {
+        try {
+            return new StaticHostsResolver(HostsFileParser.parse(new File(hostsFile)));
+        } catch (IOException e) {
+            throw new NitmProxyException("Parse hosts file failed: " + hostsFile, e);
+        }
+    }
+
+    @Override
+    public InetAddress address(String inetHost, ResolvedAddressTypes resolvedAddressTypes) {
+        String host = inetHost.toLowerCase(Locale.ENGLISH);
+        InetAddress address;
+        switch (resolvedAddressTypes) {
+        case IPV4_ONLY:
+            address = inet4Entries.get(host);
+            break;
+        case IPV6_ONLY:
+            address = inet6Entries.get(host);
+            break;
+        case IPV6_PREFERRED:
+            address = firstNonNull(inet6Entries.get(host), inet4Entries.get(host));
+            break;
+        default:
+            address = firstNonNull(inet4Entries.get(host), inet6Entries.get(host));
+            break;
+        }
+        return address != null? address : fallback.address(inetHost, resolvedAddressTypes);
+    }
+
+    private static InetAddress firstNonNull(InetAddress first, InetAddress second) {
+        return first != null? first : second;
+    }
+}
@@ -45,25 +45,33 @@ import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpVersion;
 
+/**
+ * The summary of an exchange, passed to {@link ai.safekids.httpproxy.listener.NitmProxyListener#onHttpEvent}.
+ *
+ * <p>The events of the proxied exchanges are read-only views of {@link RecyclableHttpEvent}s, which are reused once
+ * the listeners returned, so an event is only valid during the callback. A listener retaining an event, or reading it
+ * from another thread, should keep its {@link #snapshot()} instead.</p>
+ */
 public class HttpEvent {
-    private Address client;
-    private Address server;
+    Address client;
+    Address server;
 
     // request
-    private HttpMethod method;
-    private HttpVersion version;
-    private String host;
-    private String path;
-    private long requestBodySize;
-    private long requestTime;
+    HttpMethod method;
+    HttpVersion version;
+    CharSequence host;
+    CharSequence path;
+    long requestBodySize;
+    long requestTime;
 
     // response
-    private HttpResponseStatus status;
-    private String contentType;
-    private long responseBodySize;
-    private long responseTime;
+    HttpResponseStatus status;
+    String contentType;
+    long responseBodySize;
+    long responseTime;
 
-    private long timeSpent;
+    HttpEvent() {
+    }
 
     private HttpEvent(Builder builder) {
         client = builder.client;
@@ -80,14 +88,38 @@ public class HttpEvent {
         contentType = builder.contentType;
         responseBodySize = builder.responseBodySize;
         responseTime = builder.responseTime;
+    }
 
-        timeSpent = builder.responseTime - builder.requestTime;
+    HttpEvent(HttpEvent event) {
+        client = event.client;
+        server = event.server;
+
+        method = event.method;
+        version = event.version;
+        host = event.getHost();
+        path = event.getPath();
+        requestBodySize = event.requestBodySize;
+        requestTime = event.requestTime;
+
+        status = event.status;
+        contentType = event.getContentType();
+        responseBodySize = event.responseBodySize;
+        responseTime = event.responseTime;
     }
 
     public static Builder builder(ConnectionContext ctx) {
         return new Builder(ctx);
     }
 
+    /**
+     * Get an immutable copy of the event, which stays valid after the callback.
+     *
+     * @return the copy, or the event itself if it's already immutable
+     */
+    public HttpEvent snapshot() {
+        return this;
+    }
+
     public Address getClient() {
         return client;
     }
@@ -105,11 +137,11 @@ public class HttpEvent {
     }
 
     public String getHost() {
-        return host;
+        return host == null? null : host.toString();
     }
 
     public String getPath() {
-        return path;
+        return path == null? null : path.toString();
     }
 
     public long getRequestBodySize() {
@@ -137,7 +169,7 @@ public class HttpEvent {
     }
 
     public long getTimeSpent() {
-        return timeSpent;
+        return responseTime - requestTime;
     }
 
     public static class Builder {
@@ -163,6 +195,17 @@ public class HttpEvent {
             server = ctx.getServerAddr();
         }
 
+        /**
+         * Set the server address, which could be unknown when the builder was created for a plain proxy request.
+         *
+         * @param server the server address
+         * @return the builder itself
+         */
+        public Builder server(Address server) {
+            this.server = server;
+            return this;
+        }
+
         public Builder method(HttpMethod method) {
             this.method = method;
             return this;
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2021 - Safe Kids LLC
+ *
+ * The complete license agreement is available at https://safekids.ai/eula
+ *
+ *
+ * LICENSE GRANT
+ * ==============================================
+ * Licensor hereby grants to you a non-exclusive and non-transferable license to use the Software and
+ * related documentation (the "Documentation") solely for the intended purposes of the Software as set forth in the
+ * Documentation, according to the provisions contained herein and subject to payment of applicable license fees.
+ * You are not permitted to lease, rent, distribute or sublicense the Software or any rights therein.
+ * You also may not install the Software on a network server, use the Software in a time-sharing arrangement or
+ * in any other unauthorized manner. Further, no license is granted to you in the human readable code of the Software
+ *  (source code). Except as provided below, this Agreement does not grant you any rights to patents, copyrights,
+ *  trade secrets, trademarks, or any other rights in the Software and Documentation.
+ *
+ * NO MODIFICATION, NO REVERSE ENGINEERING
+ * ===============================================
+ * You agree not to, without the prior written permission of Licensor: (i); disassemble, decompile or "unlock",
+ * decode or otherwise reverse translate or engineer, or attempt in any manner to reconstruct or discover any source
+ * code or underlying algorithms of the Software, if provided in object code form only; (ii) use, copy,
+ * modify, translate,reverse engineer, decompile, disassemble, or create derivative works of the Software and
+ * any accompanying documents, or assist someone in performing such prohibited acts; or (iii) transfer, rent,
+ * lease, or sub license the Software.
+ *
+ * NO WARRANTIES.
+ * ===============================================
+ * LICENSOR MAKES NO WARRANTIES, EXPRESS OR IMPLIED, INCLUDING, BUT NOT LIMITED TO, IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, TITLE, AND NON-INFRINGEMENT OF THIRD PARTIES' RIGHTS.
+ * THE SOFTWARE (INCLUDING SOURCE CODE) IS PROVIDED TO YOU ON AN "AS IS" BASIS. TO THE FULL EXTENT PERMITTED BY LAW,
+ * THE DURATION OF STATUTORILY REQUIRED WARRANTIES, IF ANY, SHALL BE LIMITED TO THE ABOVE LIMITED WARRANTY PERIOD.
+ * MOREOVER, IN NO EVENT WILL WARRANTIES PROVIDED BY LAW, IF ANY, APPLY UNLESS THEY ARE REQUIRED TO APPLY BY
+ * STATUTE NOTWITHSTANDING THEIR EXCLUSION BY CONTRACT. NO DEALER, AGENT, OR EMPLOYEE OF LICENSOR IS AUTHORIZED TO
+ * MAKE ANY MODIFICATIONS, EXTENSIONS, OR ADDITIONS TO THIS LIMITED WARRANTY. THE ENTIRE RISK ARISING OUT OF USE OR
+ * PERFORMANCE OF THE SOFTWARE REMAINS WITH YOU.
+ *
+ */
+
+package ai.safekids.httpproxy.event;
+
+import ai.safekids.httpproxy.Address;
+import ai.safekids.httpproxy.ConnectionContext;
+import ai.safekids.httpproxy.http.HttpHeadersUtil;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.Recycler;
+
+/**
+ * The mutable record of an {@link HttpEvent}, filled while an exchange is proxied, and recycled after the listeners
+ * were notified.
+ *
+ * <p>The listeners only get its {@link #event() read-only view}, which can't be cast back to modify or recycle it.
+ * The host, path and content type are kept as the header values they come from, and only converted to strings when
+ * read. It's confined to the event loop of the connection, and must be recycled exactly once.</p>
+ */
+public final class RecyclableHttpEvent {
+
+    private static final Recycler<RecyclableHttpEvent> RECYCLER = new Recycler<RecyclableHttpEvent>() {
+        @Override
+        protected RecyclableHttpEvent newObject(Handle<RecyclableHttpEvent> handle) {
+            return new RecyclableHttpEvent(handle);
+        }
+    };
+
+    private final Recycler.Handle<RecyclableHttpEvent> handle;
+    private final View event = new View();
+
+    private RecyclableHttpEvent(Recycler.Handle<RecyclableHttpEvent> handle) {
+        this.handle = handle;
+    }
+
+    /**
+     * Get an event of the connection from the recycler.
+     *
+     * @param ctx the connection context
+     * @return the event
+     */
+    public static RecyclableHttpEvent newInstance(ConnectionContext ctx) {
+        RecyclableHttpEvent recyclable = RECYCLER.get();
+        recyclable.event.client = ctx.getClientAddr();
+        recyclable.event.server = ctx.getServerAddr();
+        return recyclable;
+    }
+
+    /**
+     * Get the read-only view passed to the listeners, it's only valid until the event was recycled.
+     *
+     * @return the view
+     */
+    public HttpEvent event() {
+        return event;
+    }
+
+    /**
+     * Set the server address, which could be unknown when the event was created for a plain proxy request.
+     *
+     * @param server the server address
+     * @return the event itself
+     */
+    public RecyclableHttpEvent server(Address server) {
+        event.server = server;
+        return this;
+    }
+
+    public RecyclableHttpEvent method(HttpMethod method) {
+        event.method = method;
+        return this;
+    }
+
+    public RecyclableHttpEvent version(HttpVersion version) {
+        event.version = version;
+        return this;
+    }
+
+    public RecyclableHttpEvent host(CharSequence host) {
+        event.host = host;
+        return this;
+    }
+
+    public RecyclableHttpEvent path(CharSequence path) {
+        event.path = path;
+        return this;
+    }
+
+    public RecyclableHttpEvent requestBodySize(long requestBodySize) {
+        event.requestBodySize = requestBodySize;
+        return this;
+    }
+
+    public RecyclableHttpEvent addRequestBodySize(long delta) {
+        event.requestBodySize += delta;
+        return this;
+    }
+
+    public RecyclableHttpEvent requestTime(long requestTime) {
+        event.requestTime = requestTime;
+        return this;
+    }
+
+    public RecyclableHttpEvent status(HttpResponseStatus status) {
+        event.status = status;
+        return this;
+    }
+
+    /**
+     * Set the content type header value, the parameters are dropped when read.
+     *
+     * @param contentType the header value
+     * @return the event itself
+     */
+    public RecyclableHttpEvent contentType(CharSequence contentType) {
+        event.rawContentType = contentType;
+        event.contentType = null;
+        return this;
+    }
+
+    public RecyclableHttpEvent responseBodySize(long responseBodySize) {
+        event.responseBodySize = responseBodySize;
+        return this;
+    }
+
+    public RecyclableHttpEvent addResponseBodySize(long delta) {
+        event.responseBodySize += delta;
+        return this;
+    }
+
+    public RecyclableHttpEvent responseTime(long responseTime) {
+        event.responseTime = responseTime;
+        return this;
+    }
+
+    /**
+     * Clear the event and return it to the recycler, it must not be accessed anymore.
+     */
+    public void recycle() {
+        event.client = null;
+        event.server = null;
+        event.method = null;
+        event.version = null;
+        event.host = null;
+        event.path = null;
+        event.requestBodySize = 0;
+        event.requestTime = 0;
+        event.status = null;
+        event.contentType = null;
+        event.rawContentType = null;
+        event.responseBodySize = 0;
+        event.responseTime = 0;
+        handle.recycle(this);
+    }
+
+    private static final class View extends HttpEvent {
+        private CharSequence rawContentType;
+
+        @Override
+        public HttpEvent snapshot() {
+            return new HttpEvent(this);
+        }
+
+        @Override
+        public String getContentType() {
+            if (contentType == null && rawContentType != null) {
+                contentType = HttpHeadersUtil.mediaType(rawContentType);
+            }
+            return contentType;
+        }
+    }
+}
@@ -40,6 +40,7 @@
 package ai.safekids.httpproxy.handler;
 
 import ai.safekids.httpproxy.ConnectionContext;
+import ai.safekids.httpproxy.handler.protocol.http2.Http2FrameWrapper;
 import ai.safekids.httpproxy.util.LogWrappers;
 import io.netty.channel.ChannelDuplexHandler;
 import io.netty.channel.ChannelHandlerContext;
@@ -56,6 +57,9 @@ public class TailFrontendHandler extends ChannelDuplexHandler {
 
     private ConnectionContext connectionContext;
 
+    // The HTTP/2 frames written to the server but not flushed yet
+    private int pendingFrames;
+
     private static final Pattern IGNORABLE_ERROR_MESSAGE =
         Pattern.compile("^.*(?:connection.*(?:reset|closed|abort|broken)|broken.*pipe).*$", 2);
 
@@ -71,11 +75,26 @@ public class TailFrontendHandler extends ChannelDuplexHandler {
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) {
         LOGGER.debug("{} : write {} to server", connectionContext, LogWrappers.description(msg));
-        connectionContext.serverChannel().writeAndFlush(msg);
+        if (!(msg instanceof Http2FrameWrapper)) {
+            connectionContext.serverChannel().writeAndFlush(msg);
+            return;
+        }
+        // The frames read together are flushed at once when the read completed
+        connectionContext.serverChannel().write(msg);
+        if (++pendingFrames >= connectionContext.config().getHttp2MaxPendingFrames()) {
+            flushServer();
+        }
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        flushServer();
+        super.channelReadComplete(ctx);
     }
 
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        flushServer();
         super.channelInactive(ctx);
         LOGGER.debug("{} : channelInactive", connectionContext);
         connectionContext.close();
@@ -97,6 +116,14 @@ public class TailFrontendHandler extends ChannelDuplexHandler {
             ctx.close();
         }
     }
+
+    private void flushServer() {
+        if (pendingFrames > 0) {
+            pendingFrames = 0;
+            connectionContext.serverChannel().flush();
+        }
+    }
+
     private boolean ignoreException(Throwable t) {
         if (t instanceof IOException) {
             String message = t.getMessage();
@@ -47,4 +47,13 @@ public interface ProtocolDetector {
 
     Optional<String> detect(ByteBuf msg);
 
+    /**
+     * Check if the message is a prefix of a detectable protocol, so the detection should wait for more bytes.
+     *
+     * @param msg the message
+     * @return {@code true} if more bytes are needed
+     */
+    default boolean needMoreData(ByteBuf msg) {
+        return false;
+    }
 }
@@ -49,7 +49,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.List;
-import java.util.stream.Stream;
+import java.util.Optional;
 
 public class ProtocolSelectHandler extends ByteToMessageDecoder {
 
@@ -63,13 +63,12 @@ public class ProtocolSelectHandler extends ByteToMessageDecoder {
 
     @Override
     protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
-        String protocol = connectionContext
-                .config()
-                .getDetectors()
-                .stream()
-                .flatMap(detector -> detector.detect(in).map(Stream::of).orElse(Stream.empty()))
-                .findFirst()
-                .orElse(Protocols.FORWARD);
+        ProtocolDetector detector = connectionContext.config().getDetector();
+        Optional<String> detected = detector.detect(in);
+        if (!detected.isPresent() && detector.needMoreData(in)) {
+            return;
+        }
+        String protocol = detected.orElse(Protocols.FORWARD);
         connectionContext.tlsCtx().protocolPromise().setSuccess(protocol);
 
         try {
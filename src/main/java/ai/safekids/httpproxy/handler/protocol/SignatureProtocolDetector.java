@@ -0,0 +1,231 @@
+/*
+ * Copyright 2021 - Safe Kids LLC
+ *
+ * The complete license agreement is available at https://safekids.ai/eula
+ *
+ *
+ * LICENSE GRANT
+ * ==============================================
+ * Licensor hereby grants to you a non-exclusive and non-transferable license to use the Software and
+ * related documentation (the "Documentation") solely for the intended purposes of the Software as set forth in the
+ * Documentation, according to the provisions contained herein and subject to payment of applicable license fees.
+ * You are not permitted to lease, rent, distribute or sublicense the Software or any rights therein.
+ * You also may not install the Software on a network server, use the Software in a time-sharing arrangement or
+ * in any other unauthorized manner. Further, no license is granted to you in the human readable code of the Software
+ *  (source code). Except as provided below, this Agreement does not grant you any rights to patents, copyrights,
+ *  trade secrets, trademarks, or any other rights in the Software and Documentation.
+ *
+ * NO MODIFICATION, NO REVERSE ENGINEERING
+ * ===============================================
+ * You agree not to, without the prior written permission of Licensor: (i); disassemble, decompile or "unlock",
+ * decode or otherwise reverse translate or engineer, or attempt in any manner to reconstruct or discover any source
+ * code or underlying algorithms of the Software, if provided in object code form only; (ii) use, copy,
+ * modify, translate,reverse engineer, decompile, disassemble, or create derivative works of the Software and
+ * any accompanying documents, or assist someone in performing such prohibited acts; or (iii) transfer, rent,
+ * lease, or sub license the Software.
+ *
+ * NO WARRANTIES.
+ * ===============================================
+ * LICENSOR MAKES NO WARRANTIES, EXPRESS OR IMPLIED, INCLUDING, BUT NOT LIMITED TO, IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, TITLE, AND NON-INFRINGEMENT OF THIRD PARTIES' RIGHTS.
+ * THE SOFTWARE (INCLUDING SOURCE CODE) IS PROVIDED TO YOU ON AN "AS IS" BASIS. TO THE FULL EXTENT PERMITTED BY LAW,
+ * THE DURATION OF STATUTORILY REQUIRED WARRANTIES, IF ANY, SHALL BE LIMITED TO THE ABOVE LIMITED WARRANTY PERIOD.
+ * MOREOVER, IN NO EVENT WILL WARRANTIES PROVIDED BY LAW, IF ANY, APPLY UNLESS THEY ARE REQUIRED TO APPLY BY
+ * STATUTE NOTWITHSTANDING THEIR EXCLUSION BY CONTRACT. NO DEALER, AGENT, OR EMPLOYEE OF LICENSOR IS AUTHORIZED TO
+ * MAKE ANY MODIFICATIONS, EXTENSIONS, OR ADDITIONS TO THIS LIMITED WARRANTY. THE ENTIRE RISK ARISING OUT OF USE OR
+ * PERFORMANCE OF THE SOFTWARE REMAINS WITH YOU.
+ *
+ */
+
+package ai.safekids.httpproxy.handler.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.CharsetUtil;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+import static java.lang.String.*;
+
+/**
+ * Detects the protocol by matching byte signatures against the beginning of the message.
+ *
+ * <p>The signatures are compiled into a decision table indexed by the first byte, so a detection only compares the
+ * few candidates sharing the first byte, directly against the buffer and without allocation. When signatures
+ * overlap, the one added first wins.</p>
+ */
+public class SignatureProtocolDetector implements ProtocolDetector {
+
+    private static final Signature[] NO_CANDIDATES = new Signature[0];
+
+    private final List<Signature> signatures;
+    private final Signature[][] table = new Signature[256][];
+
+    public SignatureProtocolDetector(String protocol, String... signatures) {
+        this(signatures(protocol, signatures));
+    }
+
+    public SignatureProtocolDetector(List<Signature> signatures) {
+        this.signatures = Collections.unmodifiableList(new ArrayList<>(signatures));
+        List<List<Signature>> candidates = new ArrayList<>(table.length);
+        for (int i = 0; i < table.length; i++) {
+            candidates.add(new ArrayList<>());
+        }
+        for (Signature signature : signatures) {
+            candidates.get(signature.bytes[0] & 0xFF).add(signature);
+        }
+        for (int i = 0; i < table.length; i++) {
+            table[i] = candidates.get(i).isEmpty()? NO_CANDIDATES : candidates.get(i).toArray(NO_CANDIDATES);
+        }
+    }
+
+    /**
+     * Merge the adjacent signature detectors into a single decision table, the order of the detectors is kept.
+     *
+     * @param detectors the detectors in priority order
+     * @return the compiled detector
+     */
+    public static ProtocolDetector compile(List<ProtocolDetector> detectors) {
+        List<ProtocolDetector> compiled = new ArrayList<>();
+        List<Signature> signatures = new ArrayList<>();
+        for (ProtocolDetector detector : detectors) {
+            if (detector instanceof SignatureProtocolDetector) {
+                signatures.addAll(((SignatureProtocolDetector) detector).signatures());
+                continue;
+            }
+            if (!signatures.isEmpty()) {
+                compiled.add(new SignatureProtocolDetector(signatures));
+                signatures.clear();
+            }
+            compiled.add(detector);
+        }
+        if (!signatures.isEmpty()) {
+            compiled.add(new SignatureProtocolDetector(signatures));
+        }
+        return compiled.size() == 1? compiled.get(0) : new CompositeProtocolDetector(compiled);
+    }
+
+    public List<Signature> signatures() {
+        return signatures;
+    }
+
+    @Override
+    public Optional<String> detect(ByteBuf msg) {
+        if (!msg.isReadable()) {
+            return Optional.empty();
+        }
+        for (Signature signature : table[msg.getUnsignedByte(msg.readerIndex())]) {
+            if (signature.length() <= msg.readableBytes() && signature.matches(msg)) {
+                return signature.result;
+            }
+        }
+        return Optional.empty();
+    }
+
+    @Override
+    public boolean needMoreData(ByteBuf msg) {
+        if (!msg.isReadable()) {
+            return true;
+        }
+        for (Signature signature : table[msg.getUnsignedByte(msg.readerIndex())]) {
+            if (signature.length() > msg.readableBytes() && signature.matches(msg)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return format("SignatureProtocolDetector(%s)", signatures);
+    }
+
+    private static List<Signature> signatures(String protocol, String... signatures) {
+        List<Signature> list = new ArrayList<>(signatures.length);
+        for (String signature : signatures) {
+            list.add(new Signature(protocol, signature.getBytes(CharsetUtil.US_ASCII)));
+        }
+        return list;
+    }
+
+    /**
+     * The leading bytes of a protocol.
+     */
+    public static class Signature {
+
+        private final String protocol;
+        private final byte[] bytes;
+        private final Optional<String> result;
+
+        public Signature(String protocol, byte[] bytes) {
+            if (bytes.length == 0) {
+                throw new IllegalArgumentException("Empty signature of " + protocol);
+            }
+            this.protocol = protocol;
+            this.bytes = bytes.clone();
+            this.result = Optional.of(protocol);
+        }
+
+        public String protocol() {
+            return protocol;
+        }
+
+        public int length() {
+            return bytes.length;
+        }
+
+        /**
+         * Check if the readable bytes of the message match the signature, up to the length of the shorter one.
+         *
+         * @param msg the message
+         * @return {@code true} if matched
+         */
+        boolean matches(ByteBuf msg) {
+            int readerIndex = msg.readerIndex();
+            int length = Math.min(bytes.length, msg.readableBytes());
+            for (int i = 0; i < length; i++) {
+                if (msg.getByte(readerIndex + i) != bytes[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return format("%s:%s", protocol, new String(bytes, CharsetUtil.US_ASCII).trim());
+        }
+    }
+
+    private static class CompositeProtocolDetector implements ProtocolDetector {
+
+        private final ProtocolDetector[] detectors;
+
+        private CompositeProtocolDetector(List<ProtocolDetector> detectors) {
+            this.detectors = detectors.toArray(new ProtocolDetector[0]);
+        }
+
+        @Override
+        public Optional<String> detect(ByteBuf msg) {
+            for (ProtocolDetector detector : detectors) {
+                Optional<String> protocol = detector.detect(msg);
+                if (protocol.isPresent()) {
+                    return protocol;
+                }
+            }
+            return Optional.empty();
+        }
+
+        @Override
+        public boolean needMoreData(ByteBuf msg) {
+            for (ProtocolDetector detector : detectors) {
+                if (detector.needMoreData(msg)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -40,6 +40,7 @@
 package ai.safekids.httpproxy.handler.protocol.http1;
 
 import ai.safekids.httpproxy.ConnectionContext;
+import ai.safekids.httpproxy.handler.protocol.http2.Http2Util;
 import ai.safekids.httpproxy.handler.protocol.ws.WebSocketBackendHandler;
 import ai.safekids.httpproxy.http.HttpHeadersUtil;
 import io.netty.channel.ChannelDuplexHandler;
@@ -50,11 +51,17 @@ import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.HttpClientCodec;
 import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpStatusClass;
+import io.netty.handler.codec.http.LastHttpContent;
 import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionUtil;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.util.ReferenceCountUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import static io.netty.handler.codec.http.HttpResponseStatus.*;
+import static io.netty.handler.codec.http.HttpUtil.*;
 
 public class Http1BackendHandler extends ChannelDuplexHandler {
 
@@ -62,6 +69,16 @@ public class Http1BackendHandler extends ChannelDuplexHandler {
 
     private ConnectionContext connectionContext;
 
+    private int pendingResponses;
+    // Whether the body of a streamed request is still being written, the server may respond before that
+    private boolean streamingRequest;
+    private boolean keepAlive = true;
+    // Whether the server responded without request, the connection is being closed
+    private boolean unexpectedResponse;
+    private boolean informational;
+    private boolean h2cUpgrading;
+    private boolean h2cSwitching;
+
     public Http1BackendHandler(ConnectionContext connectionContext) {
         this.connectionContext = connectionContext;
     }
@@ -75,21 +92,91 @@ public class Http1BackendHandler extends ChannelDuplexHandler {
     //    @Override
     public void handlerRemoved(ChannelHandlerContext ctx) {
         LOGGER.debug("{} : handlerRemoved", connectionContext);
-        ctx.pipeline().remove(HttpClientCodec.class);
+        if (ctx.pipeline().get(HttpClientCodec.class) != null) {
+            ctx.pipeline().remove(HttpClientCodec.class);
+        }
     }
 
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) {
         LOGGER.debug("{} : read", connectionContext);
+        if (msg instanceof HttpResponse && pendingResponses <= 0) {
+            // e.g. 408 sent by the server before closing an idle connection, never pass it to the client
+            LOGGER.debug("{} : unexpected response {}", connectionContext, ((HttpResponse) msg).status());
+            unexpectedResponse = true;
+            keepAlive = false;
+            ctx.close();
+        }
+        if (unexpectedResponse) {
+            ReferenceCountUtil.release(msg);
+            return;
+        }
+        if (msg instanceof HttpResponse) {
+            HttpResponse response = (HttpResponse) msg;
+            informational = response.status().codeClass() == HttpStatusClass.INFORMATIONAL;
+            if (response.status().equals(SWITCHING_PROTOCOLS) || !informational && !isKeepAlive(response)) {
+                keepAlive = false;
+            }
+            if (h2cUpgrading) {
+                h2cSwitching = response.status().equals(SWITCHING_PROTOCOLS);
+                h2cUpgrading = informational && !h2cSwitching;
+            }
+        }
+        if (msg instanceof LastHttpContent && !informational) {
+            pendingResponses--;
+        }
         ctx.fireChannelRead(msg);
+        if (h2cSwitching && msg instanceof LastHttpContent) {
+            upgradeToH2c(ctx);
+        }
     }
 
     @Override
     public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (msg instanceof HttpRequest) {
+            pendingResponses++;
+            keepAlive &= isKeepAlive((HttpRequest) msg);
+        }
+        if (msg instanceof HttpRequest || msg instanceof LastHttpContent) {
+            streamingRequest = !(msg instanceof LastHttpContent);
+        }
         if (msg instanceof FullHttpRequest && HttpHeadersUtil.isWebSocketUpgrade(((FullHttpRequest) msg).headers())) {
+            keepAlive = false;
             ctx.pipeline().addBefore(ctx.name(), null, new WebSocketBackendHandler(connectionContext));
             LOGGER.debug("{} : ws upgrading", connectionContext);
         }
+        if (msg instanceof HttpRequest && HttpHeadersUtil.isH2cUpgrade(((HttpRequest) msg).headers())) {
+            keepAlive = false;
+            h2cUpgrading = true;
+            // The settings of the client are replaced with ours, since the server will talk to us after switching
+            ((HttpRequest) msg).headers().set(Http2CodecUtil.HTTP_UPGRADE_SETTINGS_HEADER,
+                                              Http2Util.encodeSettingsHeader(Http2Settings.defaultSettings()));
+            LOGGER.debug("{} : h2c upgrading", connectionContext);
+        }
         ctx.write(msg, promise);
     }
+
+    /**
+     * Switch to HTTP/2 after the 101 response was read, the response of the upgrade request will be received on
+     * stream 1.
+     */
+    private void upgradeToH2c(ChannelHandlerContext ctx) {
+        LOGGER.debug("{} : h2c upgraded", connectionContext);
+        h2cSwitching = false;
+
+        // Let the encoder pass the client preface through, the codec is removed by handlerRemoved after the HTTP/2
+        // codec was added, so the bytes following the 101 response are passed to the HTTP/2 codec
+        ctx.pipeline().get(HttpClientCodec.class).prepareUpgradeFrom(ctx);
+        ctx.pipeline().replace(this, null, connectionContext.provider().http2BackendHandler(true));
+    }
+
+    /**
+     * Check if the connection could be reused by other requests, which means it's keep-alive, all the requests were
+     * written and all the responses were received.
+     *
+     * @return {@code true} if reusable
+     */
+    public boolean isReusable() {
+        return keepAlive && pendingResponses == 0 && !streamingRequest;
+    }
 }
\ No newline at end of file
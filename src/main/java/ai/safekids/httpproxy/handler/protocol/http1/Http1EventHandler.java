@@ -40,9 +40,8 @@
 package ai.safekids.httpproxy.handler.protocol.http1;
 
 import ai.safekids.httpproxy.ConnectionContext;
-import ai.safekids.httpproxy.http.HttpHeadersUtil;
 import ai.safekids.httpproxy.listener.NitmProxyListener;
-import ai.safekids.httpproxy.event.HttpEvent;
+import ai.safekids.httpproxy.event.RecyclableHttpEvent;
 import io.netty.channel.ChannelDuplexHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelPromise;
@@ -50,18 +49,22 @@ import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpContent;
 import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpStatusClass;
 import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.ReferenceCountUtil;
 import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.PromiseCombiner;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
 import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.atomic.AtomicLong;
 
 import static com.google.common.base.Preconditions.*;
 import static io.netty.handler.codec.http.HttpHeaderNames.*;
@@ -74,10 +77,17 @@ public class Http1EventHandler extends ChannelDuplexHandler {
     private NitmProxyListener listener;
     private ConnectionContext connectionContext;
 
-    private long requestTime;
-    private Queue<FullHttpRequest> requests;
+    // The requests waiting for responses in order, either the event of a forwarded request, or the response of the
+    // listeners held until the previous responses were written. And the event whose body is being streamed. They are
+    // only accessed in the event loop of the client channel
+    private Queue<Object> requests;
+    private RecyclableHttpEvent streamingRequest;
+    // Whether the body of a request answered by the listeners is being dropped
+    private boolean discarding;
+    // The messages read while the listeners are deciding on the headers of a request
+    private List<Object> pendings;
     private HttpResponse response;
-    private AtomicLong responseBytes;
+    private long responseBytes;
 
     /**
      * Create new instance of http1 event handler.
@@ -87,7 +97,7 @@ public class Http1EventHandler extends ChannelDuplexHandler {
     public Http1EventHandler(ConnectionContext connectionContext) {
         this.connectionContext = connectionContext;
         this.listener = connectionContext.listener();
-        this.requests = new ConcurrentLinkedQueue<>();
+        this.requests = new ArrayDeque<>();
     }
 
     @Override
@@ -98,43 +108,44 @@ public class Http1EventHandler extends ChannelDuplexHandler {
             return;
         }
         List<HttpObject> output = listener.onHttp1Response(connectionContext, (HttpObject) msg);
+        boolean completed = false;
         for (HttpObject httpObject : output) {
             if (httpObject instanceof HttpResponse) {
-                checkState(!requests.isEmpty(), "request is empty");
+                checkState(requests.peek() instanceof RecyclableHttpEvent, "request is empty");
                 checkState(response == null, "response is not null");
-                responseBytes = new AtomicLong();
+                responseBytes = 0;
                 response = retain((HttpResponse) httpObject);
             }
             if (httpObject instanceof HttpContent) {
-                checkState(responseBytes != null, "responseBytes is null");
-                HttpContent httpContent = (HttpContent) msg;
-                responseBytes.addAndGet(httpContent.content().readableBytes());
+                checkState(response != null, "response is null");
+                responseBytes += ((HttpContent) httpObject).content().readableBytes();
             }
             if (httpObject instanceof LastHttpContent) {
-                checkState(!requests.isEmpty(), "request is empty");
+                checkState(requests.peek() instanceof RecyclableHttpEvent, "request is empty");
                 checkState(response != null, "response is null");
-                FullHttpRequest request = requests.poll();
-                long responseTime = currentTimeMillis();
-                HttpEvent httpEvent = HttpEvent.builder(connectionContext)
-                                               .method(request.method())
-                                               .version(request.protocolVersion())
-                                               .host(request.headers().get(HOST))
-                                               .path(request.uri())
-                                               .requestBodySize(request.content().readableBytes())
-                                               .requestTime(requestTime)
-                                               .status(response.status())
-                                               .contentType(HttpHeadersUtil.getContentType(response.headers()))
-                                               .responseTime(responseTime)
-                                               .responseBodySize(responseBytes.get())
-                                               .build();
+                if (isInterim(response)) {
+                    // e.g. 100 Continue, the final response follows
+                    release(response);
+                    response = null;
+                    continue;
+                }
+                completed = true;
+                RecyclableHttpEvent httpEvent = (RecyclableHttpEvent) requests.poll();
+                if (httpEvent == streamingRequest) {
+                    // Answered before the whole body was sent, the rest of the body is not counted
+                    streamingRequest = null;
+                }
+                httpEvent.server(connectionContext.getServerAddr())
+                         .status(response.status())
+                         .contentType(response.headers().get(CONTENT_TYPE))
+                         .responseTime(currentTimeMillis())
+                         .responseBodySize(responseBytes);
                 try {
-                    listener.onHttpEvent(httpEvent);
+                    listener.onHttpEvent(httpEvent.event());
                 } finally {
-                    release(request);
+                    httpEvent.recycle();
                     release(response);
-                    requestTime = 0;
                     response = null;
-                    responseBytes = null;
                 }
             }
         }
@@ -148,20 +159,128 @@ public class Http1EventHandler extends ChannelDuplexHandler {
             output.stream().map(ctx::write).forEach(combiner::add);
             combiner.finish(promise);
         }
+        if (completed) {
+            writeHeldResponses(ctx);
+        }
+    }
+
+    private static boolean isInterim(HttpResponse response) {
+        return response.status().codeClass() == HttpStatusClass.INFORMATIONAL &&
+               !response.status().equals(HttpResponseStatus.SWITCHING_PROTOCOLS);
+    }
+
+    /**
+     * Write the responses of the listeners whose previous responses were all written.
+     */
+    private void writeHeldResponses(ChannelHandlerContext ctx) {
+        while (requests.peek() instanceof FullHttpResponse) {
+            ctx.writeAndFlush(requests.poll());
+        }
     }
 
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) {
-        if (!(msg instanceof FullHttpRequest)) {
-            ctx.fireChannelRead(msg);
+        if (pendings != null) {
+            pendings.add(msg);
             return;
         }
+        if (msg instanceof HttpRequest) {
+            HttpRequest request = (HttpRequest) msg;
+            Future<Optional<FullHttpResponse>> headersFuture =
+                listener.onHttp1RequestHeaders(ctx, connectionContext, request);
+            if (headersFuture.isDone()) {
+                handleRequestHeaders(ctx, request, headersFuture);
+                return;
+            }
+
+            holdUntilDone(ctx, request, headersFuture, () -> handleRequestHeaders(ctx, request, headersFuture));
+            return;
+        }
+        if (msg instanceof HttpContent) {
+            handleContent(ctx, (HttpContent) msg);
+            return;
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    /**
+     * Hold the following messages until the listeners decided, and stop reading meanwhile, so the requests are
+     * handled in order.
+     */
+    private void holdUntilDone(ChannelHandlerContext ctx, HttpRequest request, Future<?> future, Runnable action) {
+        pendings = new ArrayList<>();
+        connectionContext.suspendClientRead(this);
+        future.addListener(f -> {
+            if (ctx.isRemoved()) {
+                release(request);
+                connectionContext.resumeClientRead(this);
+                return;
+            }
+            List<Object> messages = pendings;
+            pendings = null;
+            action.run();
+            resume(ctx, messages);
+        });
+    }
+
+    private void resume(ChannelHandlerContext ctx, List<Object> messages) {
+        for (int i = 0; i < messages.size(); i++) {
+            if (pendings != null) {
+                // Another request is waiting for the listeners
+                pendings.addAll(messages.subList(i, messages.size()));
+                return;
+            }
+            channelRead(ctx, messages.get(i));
+        }
+        if (pendings == null) {
+            connectionContext.resumeClientRead(this);
+        }
+    }
 
+    private void handleRequestHeaders(ChannelHandlerContext ctx, HttpRequest request,
+                                      Future<Optional<FullHttpResponse>> headersFuture) {
+        Optional<FullHttpResponse> res = (headersFuture.isSuccess())? headersFuture.getNow() : Optional.empty();
+        if (res.isPresent()) {
+            // The body of a streamed request is not needed anymore
+            discarding = !(request instanceof LastHttpContent);
+            try {
+                sendResponse(ctx, request, res.get());
+            } finally {
+                release(request);
+            }
+            return;
+        }
+        if (request instanceof FullHttpRequest) {
+            handleFullRequest(ctx, (FullHttpRequest) request);
+            return;
+        }
+
+        // A streamed request, which is not inspected by the listeners
+        streamingRequest = requestEvent(request).requestTime(currentTimeMillis());
+        requests.add(streamingRequest);
+        fireRequest(ctx, request, streamingRequest);
+    }
+
+    private void handleContent(ChannelHandlerContext ctx, HttpContent content) {
+        if (discarding) {
+            discarding = !(content instanceof LastHttpContent);
+            content.release();
+            return;
+        }
+        if (streamingRequest != null) {
+            streamingRequest.addRequestBodySize(content.content().readableBytes());
+            if (content instanceof LastHttpContent) {
+                streamingRequest = null;
+            }
+        }
+        ctx.fireChannelRead(content);
+    }
+
+    private void handleFullRequest(ChannelHandlerContext ctx, FullHttpRequest request) {
         /**
          * Create a new promise to receive the callback
          */
         try {
-            FullHttpRequest request = (FullHttpRequest) msg;
             Future<Optional<FullHttpResponse>> responsePromise =
                 listener.onHttp1Request(ctx, connectionContext, request);
 
@@ -174,10 +293,10 @@ public class Http1EventHandler extends ChannelDuplexHandler {
             }
 
             //otherwise handle an async response
-            responsePromise.addListener(p -> {
-                Optional<FullHttpResponse> res = (p.isSuccess())? responsePromise.getNow() : Optional.empty();
+            holdUntilDone(ctx, request, responsePromise, () -> {
+                Optional<FullHttpResponse> res =
+                    (responsePromise.isSuccess())? responsePromise.getNow() : Optional.empty();
                 handleResponse(ctx, request, res);
-                return;
             });
         } catch (Exception e) {
             LOGGER.debug("onHttp1Request error", e);
@@ -197,26 +316,52 @@ public class Http1EventHandler extends ChannelDuplexHandler {
                 request.release();
             }
         } else {
-            this.requests.add(request.retain());
-            this.requestTime = currentTimeMillis();
-            ctx.fireChannelRead(request);
+            RecyclableHttpEvent requestEvent = requestEvent(request)
+                    .requestBodySize(request.content().readableBytes())
+                    .requestTime(currentTimeMillis());
+            this.requests.add(requestEvent);
+            fireRequest(ctx, request, requestEvent);
+        }
+    }
+
+    private void sendResponse(ChannelHandlerContext ctx, HttpRequest request, FullHttpResponse response) {
+        long requestBodySize = (request instanceof FullHttpRequest)?
+                ((FullHttpRequest) request).content().readableBytes() : 0;
+        RecyclableHttpEvent httpEvent = requestEvent(request)
+                .requestBodySize(requestBodySize)
+                .requestTime(currentTimeMillis())
+                .status(response.status())
+                .contentType(response.headers().get(CONTENT_TYPE))
+                .responseBodySize(response.content().readableBytes());
+        try {
+            listener.onHttpEvent(httpEvent.event());
+        } finally {
+            httpEvent.recycle();
+        }
+        if (requests.isEmpty()) {
+            ctx.writeAndFlush(response);
+        } else {
+            // Pipelined after requests still waiting for the server
+            requests.add(response);
         }
     }
 
-    private void sendResponse(ChannelHandlerContext ctx, FullHttpRequest request, FullHttpResponse response) {
-        HttpEvent httpEvent = HttpEvent.builder(connectionContext)
-                                       .method(request.method())
-                                       .version(request.protocolVersion())
-                                       .host(request.headers().get(HOST))
-                                       .path(request.uri())
-                                       .requestBodySize(request.content().readableBytes())
-                                       .requestTime(currentTimeMillis())
-                                       .status(response.status())
-                                       .contentType(HttpHeadersUtil.getContentType(response.headers()))
-                                       .responseBodySize(response.content().readableBytes())
-                                       .build();
-        listener.onHttpEvent(httpEvent);
-        ctx.writeAndFlush(response);
+    /**
+     * Forward the request, the path is taken after that since the frontend handler rewrites the absolute form of a
+     * plain proxy request. Only the request line and headers are kept for the event, the body is not retained.
+     */
+    private static void fireRequest(ChannelHandlerContext ctx, HttpRequest request,
+                                    RecyclableHttpEvent requestEvent) {
+        ctx.fireChannelRead(request);
+        requestEvent.path(request.uri());
+    }
+
+    private RecyclableHttpEvent requestEvent(HttpRequest request) {
+        return RecyclableHttpEvent.newInstance(connectionContext)
+                                  .method(request.method())
+                                  .version(request.protocolVersion())
+                                  .host(request.headers().get(HOST))
+                                  .path(request.uri());
     }
 
     @Override
@@ -226,7 +371,21 @@ public class Http1EventHandler extends ChannelDuplexHandler {
 
     @Override
     public void handlerRemoved(ChannelHandlerContext ctx) {
-        requests.forEach(FullHttpRequest::release);
         release(response);
+        response = null;
+        streamingRequest = null;
+        for (Object request : requests) {
+            if (request instanceof RecyclableHttpEvent) {
+                ((RecyclableHttpEvent) request).recycle();
+            } else {
+                release(request);
+            }
+        }
+        requests.clear();
+        if (pendings != null) {
+            pendings.forEach(ReferenceCountUtil::release);
+            pendings = null;
+        }
+        connectionContext.resumeClientRead(this);
     }
 }
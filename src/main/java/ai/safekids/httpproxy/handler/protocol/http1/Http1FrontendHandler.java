@@ -41,32 +41,47 @@ package ai.safekids.httpproxy.handler.protocol.http1;
 
 import ai.safekids.httpproxy.Address;
 import ai.safekids.httpproxy.ConnectionContext;
+import ai.safekids.httpproxy.NitmProxyConfig;
 import ai.safekids.httpproxy.NitmProxyMaster;
+import ai.safekids.httpproxy.handler.protocol.http2.Http2Util;
 import ai.safekids.httpproxy.handler.protocol.ws.WebSocketFrontendHandler;
 import ai.safekids.httpproxy.http.HttpHeadersUtil;
 import ai.safekids.httpproxy.http.HttpUrl;
 import ai.safekids.httpproxy.http.HttpUtil;
 import ai.safekids.httpproxy.util.LogWrappers;
-import ai.safekids.httpproxy.Protocols;
 import ai.safekids.httpproxy.enums.ProxyMode;
 import ai.safekids.httpproxy.event.OutboundChannelClosedEvent;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelDuplexHandler;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpMethod;
-import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpStatusClass;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.util.NetUtil;
+import io.netty.util.ReferenceCountUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
+import java.util.function.Predicate;
 
 public class Http1FrontendHandler extends ChannelDuplexHandler {
 
@@ -76,8 +91,26 @@ public class Http1FrontendHandler extends ChannelDuplexHandler {
     private ConnectionContext connectionContext;
     private boolean tunneled;
 
+    // The settings of a pending h2c upgrade request, and whether the server accepted it
+    private Http2Settings h2cSettings;
+    private boolean h2cSwitching;
+
+    // The body of a streamed request, and the requests pipelined after it, read before the server is connected
+    private List<Object> pendings;
+
+    // The number of forwarded requests waiting for responses, and the messages held until they were responded
+    private int inFlight;
+    private boolean informational;
+    private Deque<Object> queued;
+    private ChannelFuture serverCloseFuture;
+    private ChannelFutureListener serverCloseListener;
+
     private List<ChannelHandler> addedHandlers = new ArrayList<>(3);
 
+    // The reasons to stop reading the client
+    private final Object queueing = new Object();
+    private final Object connecting = new Object();
+
     public Http1FrontendHandler(NitmProxyMaster master, ConnectionContext connectionContext) {
         this.master = master;
         this.connectionContext = connectionContext;
@@ -89,7 +122,7 @@ public class Http1FrontendHandler extends ChannelDuplexHandler {
         LOGGER.debug("{} : handlerAdded", connectionContext);
 
         addedHandlers.add(new HttpServerCodec());
-        addedHandlers.add(new HttpObjectAggregator(master.config().getMaxContentLength()));
+        addedHandlers.add(aggregator());
         addedHandlers.add(connectionContext.provider().http1EventHandler());
         addedHandlers.forEach(handler -> ctx.pipeline().addBefore(ctx.name(), null, handler));
     }
@@ -98,38 +131,68 @@ public class Http1FrontendHandler extends ChannelDuplexHandler {
     public void handlerRemoved(ChannelHandlerContext ctx) {
         LOGGER.debug("{} : handlerRemoved", connectionContext);
         addedHandlers.forEach(handler -> ctx.pipeline().remove(handler));
+        if (pendings != null) {
+            pendings.forEach(ReferenceCountUtil::release);
+            pendings = null;
+        }
+        if (queued != null) {
+            queued.forEach(ReferenceCountUtil::release);
+            queued = null;
+        }
+        connectionContext.resumeClientRead(queueing);
+        connectionContext.resumeClientRead(connecting);
     }
 
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
         super.channelInactive(ctx);
-        if (connectionContext.connected()) {
-            connectionContext.serverChannel().close();
-        }
+        connectionContext.releaseServerChannel();
+        connectionContext.releaseIdleChannels();
     }
 
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) {
-        if (!(msg instanceof FullHttpRequest)) {
-            ctx.fireChannelRead(msg);
+        if (queued != null) {
+            queued.add(msg);
+            return;
+        }
+        if (msg instanceof HttpRequest && shouldQueue((HttpRequest) msg)) {
+            // The responses must be sent in order, so the server is switched after the pending ones were received
+            LOGGER.debug("{} : queue request until {} responses received", connectionContext, inFlight);
+            queued = new ArrayDeque<>();
+            queued.add(msg);
+            connectionContext.suspendClientRead(queueing);
+            closeIfServerClosedBeforeResponded(ctx);
             return;
         }
-        FullHttpRequest request = (FullHttpRequest) msg;
+        if (!(msg instanceof HttpRequest)) {
+            if (pendings != null) {
+                pendings.add(msg);
+            } else {
+                ctx.fireChannelRead(msg);
+            }
+            return;
+        }
+        HttpRequest request = (HttpRequest) msg;
+        if (request.method() != HttpMethod.CONNECT && HttpHeadersUtil.isH2cUpgrade(request.headers())) {
+            prepareH2cUpgrade(request);
+        }
         if (master.config().getProxyMode() == ProxyMode.HTTP && !tunneled) {
             if (request.method() == HttpMethod.CONNECT) {
-                handleTunnelProxyConnection(ctx, request);
+                // CONNECT requests are always aggregated
+                handleTunnelProxyConnection(ctx, (FullHttpRequest) request);
             } else {
                 handleHttpProxyConnection(ctx, request);
             }
         } else if (master.config().getProxyMode() == ProxyMode.TRANSPARENT && !connectionContext.connected()) {
             //handle web socket upgrade and add the handler as necessary
-            if (HttpHeadersUtil.isWebSocketUpgrade(((FullHttpRequest) msg).headers())) {
+            if (HttpHeadersUtil.isWebSocketUpgrade(request.headers())) {
                 ctx.pipeline().addAfter(ctx.name(), null, new WebSocketFrontendHandler(connectionContext));
             }
             handleTransparentProxyConnection(ctx, request);
         } else {
             //handle web socket upgrade and add the handler as necessary
-            if (HttpHeadersUtil.isWebSocketUpgrade(((FullHttpRequest) msg).headers()) && tunneled) {
+            if (HttpHeadersUtil.isWebSocketUpgrade(request.headers()) && tunneled) {
                 ctx.pipeline().addAfter(ctx.name(), null, new WebSocketFrontendHandler(connectionContext));
             }
 
@@ -137,6 +200,30 @@ public class Http1FrontendHandler extends ChannelDuplexHandler {
         }
     }
 
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (msg instanceof HttpResponse) {
+            informational = ((HttpResponse) msg).status().codeClass() == HttpStatusClass.INFORMATIONAL;
+        }
+        if (h2cSettings != null && msg instanceof HttpResponse) {
+            HttpResponse response = (HttpResponse) msg;
+            if (response.status().equals(HttpResponseStatus.SWITCHING_PROTOCOLS)) {
+                h2cSwitching = true;
+            } else if (response.status().codeClass() != HttpStatusClass.INFORMATIONAL) {
+                LOGGER.debug("{} : h2c upgrade declined by server", connectionContext);
+                h2cSettings = null;
+            }
+        }
+        ctx.write(msg, promise);
+        if (h2cSwitching && msg instanceof LastHttpContent) {
+            upgradeToH2c(ctx);
+            return;
+        }
+        if (msg instanceof LastHttpContent && !informational && inFlight > 0 && --inFlight == 0 && queued != null) {
+            ctx.executor().execute(() -> dequeue(ctx));
+        }
+    }
+
     @Override
     public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
         super.userEventTriggered(ctx, evt);
@@ -166,38 +253,172 @@ public class Http1FrontendHandler extends ChannelDuplexHandler {
         }
     }
 
-    private void handleHttpProxyConnection(ChannelHandlerContext ctx, FullHttpRequest request) {
+    /**
+     * Check if the request must wait for the responses of the previous requests, before switching the server or
+     * tunneling.
+     */
+    private boolean shouldQueue(HttpRequest request) {
+        if (inFlight == 0 || master.config().getProxyMode() != ProxyMode.HTTP || tunneled) {
+            return false;
+        }
+        if (request.method() == HttpMethod.CONNECT) {
+            return true;
+        }
         HttpUrl httpUrl = HttpUrl.resolve(request.uri());
-        Address address = new Address(httpUrl.getHost(), httpUrl.getPort());
-        request.setUri(httpUrl.getPath());
-        connectionContext.connect(address, ctx).addListener((ChannelFuture future) -> {
-            if (future.isSuccess()) {
-                LOGGER.debug("{} : {}", connectionContext, LogWrappers.description(request));
-                ctx.fireChannelRead(request);
+        return !new Address(httpUrl.getHost(), httpUrl.getPort()).equals(connectionContext.getServerAddr());
+    }
+
+    /**
+     * The pending responses will never arrive if the server was closed, the client can not be answered in order
+     * anymore.
+     */
+    private void closeIfServerClosedBeforeResponded(ChannelHandlerContext ctx) {
+        Channel serverChannel = connectionContext.serverChannel();
+        if (serverChannel == null) {
+            return;
+        }
+        serverCloseFuture = serverChannel.closeFuture();
+        serverCloseListener = future -> {
+            if (queued != null && inFlight > 0) {
+                LOGGER.debug("{} : server closed with {} pending responses", connectionContext, inFlight);
+                ctx.close();
+            }
+        };
+        serverCloseFuture.addListener(serverCloseListener);
+    }
+
+    /**
+     * Replay the queued messages, until a request must wait again.
+     */
+    private void dequeue(ChannelHandlerContext ctx) {
+        Deque<Object> messages = queued;
+        queued = null;
+        if (messages == null) {
+            return;
+        }
+        if (serverCloseFuture != null) {
+            serverCloseFuture.removeListener(serverCloseListener);
+            serverCloseFuture = null;
+            serverCloseListener = null;
+        }
+        connectionContext.resumeClientRead(queueing);
+        Object msg;
+        while ((msg = messages.poll()) != null) {
+            if (ctx.isRemoved()) {
+                ctx.fireChannelRead(msg);
+            } else if (queued != null) {
+                queued.add(msg);
             } else {
-                request.release();
-                ctx.channel().close();
+                channelRead(ctx, msg);
             }
-        });
-        if (!connectionContext.tlsCtx().isNegotiated()) {
-            connectionContext.tlsCtx().disableTls();
-            connectionContext.tlsCtx().protocolPromise().setSuccess(Protocols.HTTP_1);
         }
     }
 
-    private void handleTransparentProxyConnection(ChannelHandlerContext ctx, FullHttpRequest request) {
+    private void handleHttpProxyConnection(ChannelHandlerContext ctx, HttpRequest request) {
+        HttpUrl httpUrl = HttpUrl.resolve(request.uri());
+        Address address = new Address(httpUrl.getHost(), httpUrl.getPort());
+        request.setUri(httpUrl.getPath());
+        warmUp(address);
+        forwardWhenConnected(ctx, connectionContext.connectHttp1(address, ctx), request);
+    }
+
+    private void handleTransparentProxyConnection(ChannelHandlerContext ctx, HttpRequest request) {
         Address address = Address.resolve(request.headers().get(HttpHeaderNames.HOST), HttpUtil.HTTP_PORT);
-        connectionContext.connect(address, ctx).addListener((ChannelFuture future) -> {
+        warmUp(address);
+        forwardWhenConnected(ctx, connectionContext.connectHttp1(address, ctx), request);
+    }
+
+    /**
+     * Forward the request after the server was connected. The body of a streamed request is held until then, and the
+     * client is not read meanwhile, so it never piles up in memory.
+     */
+    private void forwardWhenConnected(ChannelHandlerContext ctx, ChannelFuture connectFuture, HttpRequest request) {
+        inFlight++;
+        if (pendings != null) {
+            // A pipelined request must follow the held body of the previous one
+            pendings.add(request);
+            return;
+        }
+        boolean streamed = !(request instanceof LastHttpContent);
+        if (streamed && !connectFuture.isDone()) {
+            pendings = new ArrayList<>();
+            connectionContext.suspendClientRead(connecting);
+        }
+        connectFuture.addListener((ChannelFuture future) -> {
+            List<Object> contents = pendings;
+            if (contents != null) {
+                pendings = null;
+                connectionContext.resumeClientRead(connecting);
+            }
             if (future.isSuccess()) {
                 LOGGER.debug("{} : {}", connectionContext, LogWrappers.description(request));
-                //future.channel().writeAndFlush(request);
                 ctx.fireChannelRead(request);
+                if (contents != null) {
+                    contents.forEach(ctx::fireChannelRead);
+                }
             } else {
-                request.release();
+                ReferenceCountUtil.release(request);
+                if (contents != null) {
+                    contents.forEach(ReferenceCountUtil::release);
+                }
                 ctx.channel().close();
             }
         });
-        connectionContext.tlsCtx().disableTls();
-        connectionContext.tlsCtx().protocolPromise().setSuccess(Protocols.HTTP_1);
     }
-}
\ No newline at end of file
+
+    private SpillingHttpObjectAggregator aggregator() {
+        NitmProxyConfig config = master.config();
+        Predicate<HttpRequest> predicate = config.isHttp1Streaming()
+                ? request -> connectionContext.listener().aggregateHttp1Request(connectionContext, request)
+                : request -> true;
+        return new SpillingHttpObjectAggregator(
+                connectionContext,
+                config.getMaxContentLength(),
+                config.getAggregationMemoryPerConnection(),
+                master.aggregationBudget(),
+                config.getSpillDirectory() == null? null : Paths.get(config.getSpillDirectory()),
+                master.spillExecutor(),
+                predicate);
+    }
+
+    private void prepareH2cUpgrade(HttpRequest request) {
+        try {
+            h2cSettings = Http2Util.decodeSettingsHeader(
+                    request.headers().get(Http2CodecUtil.HTTP_UPGRADE_SETTINGS_HEADER));
+            LOGGER.debug("{} : h2c upgrading", connectionContext);
+        } catch (IllegalArgumentException e) {
+            // Never let the server switch to a protocol that the client side can not follow
+            LOGGER.debug("{} : Drop malformed h2c upgrade with {}", connectionContext, e.getMessage());
+            request.headers().remove(HttpHeaderNames.UPGRADE);
+            request.headers().remove(Http2CodecUtil.HTTP_UPGRADE_SETTINGS_HEADER);
+        }
+    }
+
+    /**
+     * Switch to HTTP/2 after the 101 response was written, the response of the upgrade request will be sent on
+     * stream 1.
+     */
+    private void upgradeToH2c(ChannelHandlerContext ctx) {
+        LOGGER.debug("{} : h2c upgraded", connectionContext);
+        Http2Settings settings = h2cSettings;
+        h2cSettings = null;
+        h2cSwitching = false;
+
+        // Remove the HTTP/1 codec first, so the server preface is not encoded as HTTP/1
+        addedHandlers.forEach(handler -> ctx.pipeline().remove(handler));
+        addedHandlers.clear();
+        ctx.pipeline().replace(this, null, connectionContext.provider().http2FrontendHandler(settings));
+    }
+
+    /**
+     * Plain http requests are often redirected to https, warm up the cert of the host before that happens. Ip
+     * literals are skipped since they are rarely served over https.
+     */
+    private void warmUp(Address address) {
+        String host = address.getHost();
+        if (master.certWarmer() != null && master.config().isWarmUpPlainHosts()
+            && !NetUtil.isValidIpV4Address(host) && !NetUtil.isValidIpV6Address(host)) {
+            master.certWarmer().offer(host);
+        }
+    }
+}
@@ -0,0 +1,335 @@
+/*
+ * Copyright 2021 - Safe Kids LLC
+ *
+ * The complete license agreement is available at https://safekids.ai/eula
+ *
+ *
+ * LICENSE GRANT
+ * ==============================================
+ * Licensor hereby grants to you a non-exclusive and non-transferable license to use the Software and
+ * related documentation (the "Documentation") solely for the intended purposes of the Software as set forth in the
+ * Documentation, according to the provisions contained herein and subject to payment of applicable license fees.
+ * You are not permitted to lease, rent, distribute or sublicense the Software or any rights therein.
+ * You also may not install the Software on a network server, use the Software in a time-sharing arrangement or
+ * in any other unauthorized manner. Further, no license is granted to you in the human readable code of the Software
+ *  (source code). Except as provided below, this Agreement does not grant you any rights to patents, copyrights,
+ *  trade secrets, trademarks, or any other rights in the Software and Documentation.
+ *
+ * NO MODIFICATION, NO REVERSE ENGINEERING
+ * ===============================================
+ * You agree not to, without the prior written permission of Licensor: (i); disassemble, decompile or "unlock",
+ * decode or otherwise reverse translate or engineer, or attempt in any manner to reconstruct or discover any source
+ * code or underlying algorithms of the Software, if provided in object code form only; (ii) use, copy,
+ * modify, translate,reverse engineer, decompile, disassemble, or create derivative works of the Software and
+ * any accompanying documents, or assist someone in performing such prohibited acts; or (iii) transfer, rent,
+ * lease, or sub license the Software.
+ *
+ * NO WARRANTIES.
+ * ===============================================
+ * LICENSOR MAKES NO WARRANTIES, EXPRESS OR IMPLIED, INCLUDING, BUT NOT LIMITED TO, IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, TITLE, AND NON-INFRINGEMENT OF THIRD PARTIES' RIGHTS.
+ * THE SOFTWARE (INCLUDING SOURCE CODE) IS PROVIDED TO YOU ON AN "AS IS" BASIS. TO THE FULL EXTENT PERMITTED BY LAW,
+ * THE DURATION OF STATUTORILY REQUIRED WARRANTIES, IF ANY, SHALL BE LIMITED TO THE ABOVE LIMITED WARRANTY PERIOD.
+ * MOREOVER, IN NO EVENT WILL WARRANTIES PROVIDED BY LAW, IF ANY, APPLY UNLESS THEY ARE REQUIRED TO APPLY BY
+ * STATUTE NOTWITHSTANDING THEIR EXCLUSION BY CONTRACT. NO DEALER, AGENT, OR EMPLOYEE OF LICENSOR IS AUTHORIZED TO
+ * MAKE ANY MODIFICATIONS, EXTENSIONS, OR ADDITIONS TO THIS LIMITED WARRANTY. THE ENTIRE RISK ARISING OUT OF USE OR
+ * PERFORMANCE OF THE SOFTWARE REMAINS WITH YOU.
+ *
+ */
+
+package ai.safekids.httpproxy.handler.protocol.http1;
+
+import ai.safekids.httpproxy.ConnectionContext;
+import ai.safekids.httpproxy.http.MemoryBudget;
+import ai.safekids.httpproxy.http.SpillableBuffer;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToMessageDecoder;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpMessage;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.ReferenceCountUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Predicate;
+
+/**
+ * Aggregates the requests accepted by the predicate into {@link FullHttpRequest}s, the other requests are passed
+ * through as {@link HttpRequest} followed by {@link HttpContent}s.
+ *
+ * <p>Unlike {@link io.netty.handler.codec.http.HttpObjectAggregator}, the body is held by a {@link SpillableBuffer},
+ * so only the first bytes of a body are kept in memory, within the memory limit of the connection and the budget
+ * shared by all connections, the rest is spilled to a temp file. The content of a spilled request is a memory
+ * mapping of the file.</p>
+ *
+ * <p>The temp file is written by the spill executor, the client is not read meanwhile, and the messages already read
+ * are held until the write completes, so the event loop never blocks on the disk.</p>
+ *
+ * <p>{@code CONNECT} and upgrade requests are always aggregated, since the handlers switching the protocol expect
+ * a {@link FullHttpRequest}.</p>
+ */
+public class SpillingHttpObjectAggregator extends MessageToMessageDecoder<HttpObject> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SpillingHttpObjectAggregator.class);
+
+    private final ConnectionContext connectionContext;
+    private final int maxContentLength;
+    private final long memoryLimit;
+    private final MemoryBudget budget;
+    private final Path directory;
+    private final Executor spillExecutor;
+    private final Predicate<HttpRequest> predicate;
+
+    // The request being aggregated and its body
+    private HttpRequest request;
+    private SpillableBuffer body;
+
+    // Drop the rest of a rejected request
+    private boolean discarding;
+
+    // The messages read while the body is being written to the temp file
+    private boolean spilling;
+    private final Deque<Object> queued = new ArrayDeque<>();
+
+    /**
+     * Create an aggregator.
+     *
+     * @param connectionContext the connection context
+     * @param maxContentLength the max length of an aggregated body, a larger request is rejected with 413
+     * @param memoryLimit      the number of bytes of a body held in memory before spilling
+     * @param budget           the memory budget shared by all connections
+     * @param directory        the directory of the temp files, or {@code null} for the default temp directory
+     * @param spillExecutor    the executor writing the temp files
+     * @param predicate        the requests to aggregate
+     */
+    public SpillingHttpObjectAggregator(ConnectionContext connectionContext, int maxContentLength, long memoryLimit,
+                                        MemoryBudget budget, Path directory, Executor spillExecutor,
+                                        Predicate<HttpRequest> predicate) {
+        this.connectionContext = connectionContext;
+        this.maxContentLength = maxContentLength;
+        this.memoryLimit = memoryLimit;
+        this.budget = budget;
+        this.directory = directory;
+        this.spillExecutor = spillExecutor;
+        this.predicate = predicate;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (spilling) {
+            queued.add(msg);
+            return;
+        }
+        super.channelRead(ctx, msg);
+    }
+
+    @Override
+    public boolean acceptInboundMessage(Object msg) throws Exception {
+        if (msg instanceof HttpRequest && !(msg instanceof FullHttpMessage)) {
+            return shouldAggregate((HttpRequest) msg);
+        }
+        return (request != null || discarding) && msg instanceof HttpContent;
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, HttpObject msg, List<Object> out) throws Exception {
+        if (msg instanceof HttpRequest) {
+            begin(ctx, (HttpRequest) msg);
+            return;
+        }
+        boolean last = msg instanceof LastHttpContent;
+        if (discarding) {
+            discarding = !last;
+            return;
+        }
+
+        HttpContent content = (HttpContent) msg;
+        if (body.size() + content.content().readableBytes() > maxContentLength) {
+            reject(ctx, HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE, last);
+            return;
+        }
+        if (!body.tryAppend(content.content())) {
+            spill(ctx, content.retain());
+            return;
+        }
+        if (last || content.decoderResult().isFailure()) {
+            out.add(finish(content));
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        try {
+            super.channelInactive(ctx);
+        } finally {
+            reset();
+            releaseQueued();
+        }
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        try {
+            super.handlerRemoved(ctx);
+        } finally {
+            reset();
+            releaseQueued();
+        }
+    }
+
+    /**
+     * Append the content to the body by the spill executor, and stop reading the client until it's written.
+     */
+    private void spill(ChannelHandlerContext ctx, HttpContent content) {
+        connectionContext.suspendClientRead(this);
+        spilling = true;
+        SpillableBuffer spilled = body;
+        try {
+            spillExecutor.execute(() -> {
+                IOException cause = null;
+                try {
+                    spilled.append(content.content());
+                } catch (IOException e) {
+                    cause = e;
+                }
+                IOException failure = cause;
+                ctx.executor().execute(() -> spilled(ctx, spilled, content, failure));
+            });
+        } catch (RejectedExecutionException e) {
+            // the proxy is stopping
+            spilled(ctx, spilled, content, new IOException("Spill executor was shut down", e));
+        }
+    }
+
+    private void spilled(ChannelHandlerContext ctx, SpillableBuffer spilled, HttpContent content,
+                         IOException cause) {
+        spilling = false;
+        connectionContext.resumeClientRead(this);
+        try {
+            if (spilled != body) {
+                // The connection was closed while spilling
+                spilled.release();
+                return;
+            }
+            boolean last = content instanceof LastHttpContent;
+            if (cause != null) {
+                LOGGER.warn("Failed to spill the body of {}", request.uri(), cause);
+                reject(ctx, HttpResponseStatus.INTERNAL_SERVER_ERROR, last);
+            } else if (last || content.decoderResult().isFailure()) {
+                ctx.fireChannelRead(finish(content));
+            }
+            Object msg;
+            while (!spilling && (msg = queued.poll()) != null) {
+                channelRead(ctx, msg);
+            }
+            ctx.fireChannelReadComplete();
+        } catch (Exception e) {
+            ctx.fireExceptionCaught(e);
+        } finally {
+            content.release();
+        }
+    }
+
+    private void begin(ChannelHandlerContext ctx, HttpRequest start) {
+        discarding = false;
+        if (isUnsupportedExpectation(start)) {
+            reject(ctx, HttpResponseStatus.EXPECTATION_FAILED, false);
+            return;
+        }
+        if (HttpUtil.getContentLength(start, -1L) > maxContentLength) {
+            reject(ctx, HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE, false);
+            return;
+        }
+        if (HttpUtil.is100ContinueExpected(start)) {
+            ctx.writeAndFlush(new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.CONTINUE,
+                                                          Unpooled.EMPTY_BUFFER));
+            start.headers().remove(HttpHeaderNames.EXPECT);
+        }
+        request = start;
+        body = new SpillableBuffer(ctx.alloc(), memoryLimit, budget, directory);
+    }
+
+    private FullHttpRequest finish(HttpContent last) throws IOException {
+        if (body.isSpilled()) {
+            LOGGER.debug("Aggregated {} with {} bytes spilled", request.uri(), body.size());
+        }
+        FullHttpRequest full = new DefaultFullHttpRequest(request.protocolVersion(), request.method(), request.uri(),
+                                                          body.content());
+        full.headers().set(request.headers());
+        if (last instanceof LastHttpContent) {
+            full.trailingHeaders().set(((LastHttpContent) last).trailingHeaders());
+        }
+        full.setDecoderResult(last.decoderResult().isFailure()? last.decoderResult() : request.decoderResult());
+        HttpUtil.setTransferEncodingChunked(full, false);
+        if (!HttpUtil.isContentLengthSet(full)) {
+            full.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, full.content().readableBytes());
+        }
+        request = null;
+        body = null;
+        return full;
+    }
+
+    /**
+     * Reject the request and close the connection once the response was written, the rest of the request is
+     * discarded meanwhile.
+     */
+    private void reject(ChannelHandlerContext ctx, HttpResponseStatus status, boolean last) {
+        reset();
+        discarding = !last;
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status, Unpooled.EMPTY_BUFFER);
+        response.headers()
+                .setInt(HttpHeaderNames.CONTENT_LENGTH, 0)
+                .set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+        ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+    }
+
+    private void reset() {
+        request = null;
+        if (body != null && !spilling) {
+            body.release();
+        }
+        // A body being spilled is released once written
+        body = null;
+    }
+
+    private void releaseQueued() {
+        Object msg;
+        while ((msg = queued.poll()) != null) {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    private static boolean isUnsupportedExpectation(HttpRequest request) {
+        String expect = request.headers().get(HttpHeaderNames.EXPECT);
+        return expect != null &&
+               request.protocolVersion().compareTo(HttpVersion.HTTP_1_1) >= 0 &&
+               !HttpHeaderValues.CONTINUE.contentEqualsIgnoreCase(expect);
+    }
+
+    private boolean shouldAggregate(HttpRequest request) {
+        return request.method() == HttpMethod.CONNECT ||
+               request.headers().contains(HttpHeaderNames.UPGRADE) ||
+               predicate.test(request);
+    }
+}
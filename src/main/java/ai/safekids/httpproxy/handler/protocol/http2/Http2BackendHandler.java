@@ -47,6 +47,7 @@ import com.google.common.collect.HashBiMap;
 import com.google.common.collect.Maps;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelDuplexHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelPromise;
@@ -56,11 +57,11 @@ import io.netty.handler.codec.http2.DefaultHttp2GoAwayFrame;
 import io.netty.handler.codec.http2.DefaultHttp2HeadersFrame;
 import io.netty.handler.codec.http2.DefaultHttp2ResetFrame;
 import io.netty.handler.codec.http2.DefaultHttp2SettingsFrame;
-import io.netty.handler.codec.http2.DefaultHttp2WindowUpdateFrame;
 import io.netty.handler.codec.http2.Http2Connection;
 import io.netty.handler.codec.http2.Http2ConnectionHandler;
 import io.netty.handler.codec.http2.Http2ConnectionHandlerBuilder;
 import io.netty.handler.codec.http2.Http2DataFrame;
+import io.netty.handler.codec.http2.Http2Exception;
 import io.netty.handler.codec.http2.Http2Flags;
 import io.netty.handler.codec.http2.Http2Frame;
 import io.netty.handler.codec.http2.Http2FrameListener;
@@ -75,10 +76,15 @@ import io.netty.handler.codec.http2.Http2WindowUpdateFrame;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 import static ai.safekids.httpproxy.handler.protocol.http2.Http2FrameWrapper.*;
 import static ai.safekids.httpproxy.util.LogWrappers.*;
+import static io.netty.handler.codec.http2.Http2CodecUtil.*;
+import static io.netty.handler.codec.http2.Http2Error.*;
 import static io.netty.handler.logging.LogLevel.*;
 import static io.netty.util.ReferenceCountUtil.*;
 
@@ -96,9 +102,25 @@ public class Http2BackendHandler
     private BiMap<Integer, Integer> streams = Maps.synchronizedBiMap(HashBiMap.create());
 
     private Http2Settings http2Settings;
+    private boolean upgraded;
+
+    // The frames written to the client but not flushed yet
+    private int pendingFrames;
 
     public Http2BackendHandler(ConnectionContext connectionContext) {
+        this(connectionContext, false);
+    }
+
+    /**
+     * Create the handler of a connection, which may be upgraded from HTTP/1 with h2c. The response of the upgrade
+     * request is received on stream 1, and mapped to stream 1 of the client.
+     *
+     * @param connectionContext the connection context
+     * @param upgraded          {@code true} if upgraded with h2c
+     */
+    public Http2BackendHandler(ConnectionContext connectionContext, boolean upgraded) {
         this.connectionContext = connectionContext;
+        this.upgraded = upgraded;
     }
 
     @Override
@@ -108,6 +130,7 @@ public class Http2BackendHandler
         Http2Connection http2Connection = new DefaultHttp2Connection(false);
         http2ConnectionHandler = new Http2ConnectionHandlerBuilder()
             .connection(http2Connection)
+            .initialSettings(new Http2Settings().initialWindowSize(connectionContext.config().getHttp2StreamWindow()))
             .frameListener(this)
             .frameLogger(new Http2FrameLogger(TRACE, this.getClass()))
             .build();
@@ -116,6 +139,11 @@ public class Http2BackendHandler
            .addBefore(ctx.name(), null, http2ConnectionHandler);
 
         ready = ctx.newPromise();
+        if (upgraded) {
+            http2ConnectionHandler.onHttpClientUpgrade();
+            streams.put(HTTP_UPGRADE_STREAM_ID, HTTP_UPGRADE_STREAM_ID);
+            currentStreamId.set(HTTP_UPGRADE_STREAM_ID + 2);
+        }
     }
 
     @Override
@@ -126,18 +154,20 @@ public class Http2BackendHandler
             ctx.write(msg, promise);
             return;
         }
-        Http2FrameWrapper<?> frame = (Http2FrameWrapper<?>) msg;
+        Http2FrameWrapper<?> frame = Http2FlowControl.localSettings((Http2FrameWrapper<?>) msg,
+                                                                    connectionContext.config().getHttp2StreamWindow());
+        ChannelPromise writePromise = Http2FlowControl.consumeOnWrite(frame, promise);
 
         if (ready.isSuccess()) {
+            // Flushed by the caller, which relays the frames read together from the client at once
             log(frame);
             frame.write(ctx, http2ConnectionHandler.encoder(), getUpstreamStreamId(frame.streamId()),
-                        promise);
-            ctx.flush();
+                        writePromise);
         } else {
             ready.addListener(ignore -> {
                 log(frame);
                 frame.write(ctx, http2ConnectionHandler.encoder(), getUpstreamStreamId(frame.streamId()),
-                            promise);
+                            writePromise);
                 ctx.flush();
             });
         }
@@ -149,8 +179,15 @@ public class Http2BackendHandler
 //        ctx.close();
 //    }
 
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        flushClient();
+        super.channelReadComplete(ctx);
+    }
+
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        flushClient();
         super.channelInactive(ctx);
 
         LOGGER.debug("{} : channelInactive", connectionContext);
@@ -168,12 +205,14 @@ public class Http2BackendHandler
                          endOfStream);
         }
         int originStreamId = getOriginStreamId(streamId);
-        int processed = data.readableBytes() + padding;
-        Http2DataFrameWrapper frame = frameWrapper(originStreamId,
-                                                   new DefaultHttp2DataFrame(data.copy(), endOfStream, padding));
-        connectionContext.clientChannel().writeAndFlush(touch(frame,
-                                                              format("%s context=%s", frame, connectionContext)));
-        return processed;
+        // The bytes are consumed once written to the client, so a slow client slows down the server
+        int bytes = data.readableBytes() + padding;
+        // The data is relayed without copy, it's released by the client encoder once written or discarded
+        Http2DataFrameWrapper frame = Http2FlowControl.consumeOnDelivery(
+                ctx, http2ConnectionHandler, streamId, bytes,
+                frameWrapper(originStreamId, new DefaultHttp2DataFrame(data.retain(), endOfStream, padding)));
+        relay(touch(frame, format("%s context=%s", frame, connectionContext)));
+        return 0;
     }
 
     @Override
@@ -185,8 +224,7 @@ public class Http2BackendHandler
                          originStreamId,
                          endOfStream, headers);
         }
-        connectionContext.clientChannel().writeAndFlush(
-            frameWrapper(originStreamId, new DefaultHttp2HeadersFrame(headers, endOfStream, padding)));
+        relay(frameWrapper(originStreamId, new DefaultHttp2HeadersFrame(headers, endOfStream, padding)));
     }
 
     @Override
@@ -198,8 +236,7 @@ public class Http2BackendHandler
                          originStreamId,
                          endOfStream, headers);
         }
-        connectionContext.clientChannel().writeAndFlush(
-            frameWrapper(originStreamId, new DefaultHttp2HeadersFrame(headers, endOfStream, padding)));
+        relay(frameWrapper(originStreamId, new DefaultHttp2HeadersFrame(headers, endOfStream, padding)));
     }
 
     @Override
@@ -219,8 +256,7 @@ public class Http2BackendHandler
                          connectionContext, originStreamId,
                          errorCode);
         }
-        connectionContext.clientChannel().writeAndFlush(
-            frameWrapper(originStreamId, new DefaultHttp2ResetFrame(errorCode)));
+        relay(frameWrapper(originStreamId, new DefaultHttp2ResetFrame(errorCode)));
     }
 
     @Override
@@ -231,15 +267,17 @@ public class Http2BackendHandler
     }
 
     @Override
-    public void onSettingsRead(ChannelHandlerContext ctx, Http2Settings settings) {
+    public void onSettingsRead(ChannelHandlerContext ctx, Http2Settings settings) throws Http2Exception {
         this.http2Settings = settings;
         if (LOGGER.isTraceEnabled()) {
             LOGGER.trace("{} : read settings frame from server {}", connectionContext, settings);
         }
-        ready.setSuccess();
-        connectionContext.clientChannel().writeAndFlush(
-            frameWrapper(0,
-                         new DefaultHttp2SettingsFrame(settings)));
+        if (!ready.isDone()) {
+            Http2FlowControl.expandConnectionWindow(http2ConnectionHandler,
+                                                    connectionContext.config().getHttp2ConnectionWindow());
+        }
+        ready.trySuccess();
+        relay(frameWrapper(0, new DefaultHttp2SettingsFrame(settings)));
     }
 
     @Override
@@ -258,26 +296,34 @@ public class Http2BackendHandler
     @Override
     public void onGoAwayRead(ChannelHandlerContext ctx, int lastStreamId, long errorCode,
                              ByteBuf debugData) {
-        int originStreamId = getOriginStreamId(lastStreamId);
         if (LOGGER.isTraceEnabled()) {
             LOGGER.trace("{} : go away read frame for streamId:{} errorCode:{} debugData:{}",
                          connectionContext, lastStreamId, errorCode, ByteBufUtil.prettyHexDump(debugData));
         }
-        DefaultHttp2GoAwayFrame frame = new DefaultHttp2GoAwayFrame(errorCode, debugData);
+        // The streams above the last stream are closed without being processed, the client may retry them. The
+        // reset releases the frames still held for them on the client side
+        List<Integer> refused = streams.entrySet().stream()
+                                       .filter(entry -> entry.getValue() > lastStreamId)
+                                       .map(Map.Entry::getKey)
+                                       .collect(Collectors.toList());
+        for (Integer originStreamId : refused) {
+            streams.remove(originStreamId);
+            relay(frameWrapper(originStreamId, new DefaultHttp2ResetFrame(REFUSED_STREAM)));
+        }
+        // The debug data is a slice of the read buffer, which is released after this callback
+        DefaultHttp2GoAwayFrame frame = new DefaultHttp2GoAwayFrame(
+            errorCode, Unpooled.wrappedBuffer(ByteBufUtil.getBytes(debugData)));
         frame.setExtraStreamIds(lastStreamId);
-        connectionContext.clientChannel().writeAndFlush(frameWrapper(originStreamId, frame));
+        relay(frameWrapper(0, frame));
     }
 
     @Override
     public void onWindowUpdateRead(ChannelHandlerContext ctx, int streamId, int windowSizeIncrement) {
-        int originStreamId = getOriginStreamId(streamId);
+        // Applied to the windows of this connection by the encoder, the client connection has its own windows
         if (LOGGER.isTraceEnabled()) {
-            LOGGER.trace("{} : read windows update frame streamId:{} increment {}", connectionContext, originStreamId,
+            LOGGER.trace("{} : read windows update frame streamId:{} increment {}", connectionContext, streamId,
                          windowSizeIncrement);
         }
-        connectionContext.clientChannel().writeAndFlush(
-            frameWrapper(originStreamId,
-                         new DefaultHttp2WindowUpdateFrame(windowSizeIncrement)));
     }
 
     @Override
@@ -285,6 +331,24 @@ public class Http2BackendHandler
                                Http2Flags flags, ByteBuf payload) {
     }
 
+    /**
+     * Write a frame read from the server to the client, the frames of a read are flushed once it completed, or once
+     * there are too many of them.
+     */
+    private void relay(Object frame) {
+        connectionContext.clientChannel().write(frame);
+        if (++pendingFrames >= connectionContext.config().getHttp2MaxPendingFrames()) {
+            flushClient();
+        }
+    }
+
+    private void flushClient() {
+        if (pendingFrames > 0) {
+            pendingFrames = 0;
+            connectionContext.clientChannel().flush();
+        }
+    }
+
     private int getUpstreamStreamId(int streamId) {
         if (streamId == 0) {
             return streamId;
@@ -47,10 +47,38 @@ public class Http2DataFrameWrapper
         extends Http2FrameWrapper<Http2DataFrame>
         implements ByteBufHolder {
 
+    // Returns the flow-controlled bytes of the frame to the connection it was read from
+    private Runnable consumer;
+
     public Http2DataFrameWrapper(int streamId, Http2DataFrame frame) {
         super(streamId, frame);
     }
 
+    /**
+     * Set the callback returning the flow-controlled bytes of the frame to the connection it was read from.
+     *
+     * @param consumer the callback
+     * @return the wrapper itself
+     * @see Http2FlowControl
+     */
+    public Http2DataFrameWrapper consumer(Runnable consumer) {
+        this.consumer = consumer;
+        return this;
+    }
+
+    /**
+     * Return the flow-controlled bytes of the frame to the connection it was read from, it's invoked once the frame
+     * was written to the other connection, or held by a handler which needs the whole stream. Only the first
+     * invocation has effect.
+     */
+    public void consume() {
+        Runnable consumer = this.consumer;
+        if (consumer != null) {
+            this.consumer = null;
+            consumer.run();
+        }
+    }
+
     @Override
     public ByteBuf content() {
         return frame.content();
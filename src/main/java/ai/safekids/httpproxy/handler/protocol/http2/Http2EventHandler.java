@@ -40,31 +40,30 @@
 package ai.safekids.httpproxy.handler.protocol.http2;
 
 import ai.safekids.httpproxy.ConnectionContext;
-import ai.safekids.httpproxy.event.HttpEvent;
+import ai.safekids.httpproxy.event.RecyclableHttpEvent;
 import ai.safekids.httpproxy.http.HttpUtil;
 import ai.safekids.httpproxy.listener.NitmProxyListener;
 import io.netty.channel.ChannelDuplexHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelPromise;
-import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http2.Http2DataFrame;
 import io.netty.handler.codec.http2.Http2Frame;
 import io.netty.handler.codec.http2.Http2Headers;
 import io.netty.handler.codec.http2.Http2HeadersFrame;
+import io.netty.handler.codec.http2.Http2ResetFrame;
 import io.netty.util.ReferenceCountUtil;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
 import io.netty.util.concurrent.Future;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.awt.Frame;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.ConcurrentHashMap;
 
 import static ai.safekids.httpproxy.http.HttpHeadersUtil.*;
+import static io.netty.handler.codec.http.HttpHeaderNames.*;
 import static io.netty.util.ReferenceCountUtil.*;
 import static java.lang.System.*;
 
@@ -74,11 +73,10 @@ public class Http2EventHandler extends ChannelDuplexHandler {
     private NitmProxyListener listener;
     private ConnectionContext connectionContext;
 
-    private Map<Integer, FrameCollector> streams = new ConcurrentHashMap<>();
+    // The streams are only accessed in the event loop of the client channel
+    private IntObjectMap<FrameCollector> streams = new IntObjectHashMap<>();
 
-    private Map<Integer, FrameWrapperCollector> streamsWrapper = new ConcurrentHashMap<>();
-
-    private List<Integer> streamsToIntercept = Collections.synchronizedList(new ArrayList<>());
+    private IntObjectMap<FrameWrapperCollector> streamsWrapper = new IntObjectHashMap<>();
 
     /**
      * Create new instance of http1 event handler.
@@ -104,19 +102,21 @@ public class Http2EventHandler extends ChannelDuplexHandler {
         }
 
         Http2FrameWrapper<?> frameWrapper = (Http2FrameWrapper<?>) msg;
-        FrameCollector frameCollector = streams.computeIfAbsent(frameWrapper.streamId(), this::newFrameCollector);
+        if (Http2FrameWrapper.isFrame(msg, Http2ResetFrame.class)) {
+            releaseStream(frameWrapper.streamId());
+            ctx.write(msg, promise);
+            return;
+        }
+        FrameCollector frameCollector = frameCollector(frameWrapper.streamId());
 
-        FrameWrapperCollector frameWrapperCollector =
-            streamsWrapper.computeIfAbsent(frameWrapper.streamId(), this::newFrameWrapperCollector);
+        FrameWrapperCollector frameWrapperCollector = frameWrapperCollector(frameWrapper.streamId());
 
-        boolean intercepting = streamsToIntercept.contains(frameWrapper.streamId());
+        boolean intercepting = frameWrapperCollector.intercepting;
 
         if (frameWrapper.isHeaders() && !intercepting) {
             Http2Headers headers = ((Http2HeadersFrame) frameWrapper.frame()).headers();
             intercepting = listener.interceptHttp2Response(headers);
-            if (intercepting) {
-                streamsToIntercept.add(frameWrapper.streamId());
-            }
+            frameWrapperCollector.intercepting = intercepting;
         }
 
         boolean streamEnded = frameWrapper.isEndStream();
@@ -127,6 +127,8 @@ public class Http2EventHandler extends ChannelDuplexHandler {
             frameCollector.onResponseFrame(frameWrapper.frame());
             ctx.write(frameWrapper, promise);
         } else {
+            // The intercepted frames are held until the end of the stream, so the server must not wait for them
+            consume(frameWrapper);
             frameWrapperCollector.add(frameWrapper);
         }
 
@@ -140,12 +142,11 @@ public class Http2EventHandler extends ChannelDuplexHandler {
                 writeFrames(ctx, frameWrapperCollector.getFrames(), promise);
             }
             try {
-                frameCollector.collect().ifPresent(listener::onHttpEvent);
+                frameCollector.publish(listener);
             } finally {
                 frameCollector.release();
                 streams.remove(frameWrapper.streamId());
                 streamsWrapper.remove(frameWrapper.streamId());
-                streamsToIntercept.remove(Integer.valueOf(frameWrapper.streamId()));
             }
         }
     }
@@ -164,6 +165,11 @@ public class Http2EventHandler extends ChannelDuplexHandler {
 
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if (Http2FrameWrapper.isFrame(msg, Http2ResetFrame.class)) {
+            releaseStream(((Http2FrameWrapper<?>) msg).streamId());
+            ctx.fireChannelRead(msg);
+            return;
+        }
         if (!(msg instanceof Http2FrameWrapper) || (!Http2FrameWrapper.isFrame(msg, Http2HeadersFrame.class) &&
                                                     !Http2FrameWrapper.isFrame(msg, Http2DataFrame.class))) {
             ctx.fireChannelRead(msg);
@@ -171,7 +177,26 @@ public class Http2EventHandler extends ChannelDuplexHandler {
         }
 
         Http2FrameWrapper<?> frameWrapper = (Http2FrameWrapper<?>) msg;
-        FrameCollector frameCollector = streams.computeIfAbsent(frameWrapper.streamId(), this::newFrameCollector);
+        if (frameWrapper.isData() && !streams.containsKey(frameWrapper.streamId())) {
+            // The response ended before the streaming request, the rest of the request is relayed as is
+            ctx.fireChannelRead(msg);
+            return;
+        }
+        FrameCollector frameCollector = frameCollector(frameWrapper.streamId());
+        if (frameWrapper.isHeaders() && frameCollector.requestHeader == null &&
+            connectionContext.config().isHttp2Streaming()) {
+            Http2Headers headers = ((Http2HeadersFrame) frameWrapper.frame()).headers();
+            frameCollector.streaming = !listener.aggregateHttp2Request(connectionContext, headers);
+        }
+        if (frameCollector.streaming) {
+            // Relay the original frame, its bytes are consumed once delivered to the server
+            frameCollector.onRequestFrame(frameWrapper.frame());
+            ctx.fireChannelRead(msg);
+            return;
+        }
+
+        // The aggregated frames are held until the end of the request, so the client must not wait for them
+        consume(frameWrapper);
         Optional<Http2FramesWrapper> requestOptional = frameCollector.onRequestFrame(frameWrapper.frame());
         if (!requestOptional.isPresent()) {
             return;
@@ -193,6 +218,8 @@ public class Http2EventHandler extends ChannelDuplexHandler {
                     Optional<Http2FramesWrapper> responseOptional =
                         (responsePromise.isSuccess())? responsePromise.getNow() : Optional.empty();
                     handleResponse(ctx, frameWrapper, frameCollector, request, responseOptional);
+                    // Relayed outside of a read, complete it so the request is flushed
+                    ctx.fireChannelReadComplete();
                 });
             }
         } catch (Exception e) {
@@ -205,6 +232,12 @@ public class Http2EventHandler extends ChannelDuplexHandler {
                                 FrameCollector frameCollector,
                                 Http2FramesWrapper request,
                                 Optional<Http2FramesWrapper> responseOptional) {
+        if (ctx.isRemoved() || streams.get(msg.streamId()) != frameCollector) {
+            // The collector was released with the handler, or when the stream was reset
+            request.getData().forEach(ReferenceCountUtil::release);
+            responseOptional.ifPresent(response -> response.getData().forEach(ReferenceCountUtil::release));
+            return;
+        }
         if (!responseOptional.isPresent()) {
             request.getAllFrames().forEach(ctx::fireChannelRead);
             return;
@@ -213,7 +246,7 @@ public class Http2EventHandler extends ChannelDuplexHandler {
             Http2FramesWrapper response = responseOptional.get();
             frameCollector.onResponseHeadersFrame(response.getHeaders());
             response.getData().forEach(frameCollector::onResponseDataFrame);
-            frameCollector.collect().ifPresent(listener::onHttpEvent);
+            frameCollector.publish(listener);
             response.getAllFrames().forEach(ctx::write);
             ctx.flush();
         } finally {
@@ -226,32 +259,69 @@ public class Http2EventHandler extends ChannelDuplexHandler {
     @Override
     public void handlerRemoved(ChannelHandlerContext ctx) {
         streams.values().forEach(FrameCollector::release);
+        streams.clear();
+        streamsWrapper.values().forEach(FrameWrapperCollector::release);
+        streamsWrapper.clear();
+    }
+
+    /**
+     * Release the frames held for a stream which was reset, since it will never end.
+     *
+     * @param streamId the stream id
+     */
+    private void releaseStream(int streamId) {
+        FrameCollector frameCollector = streams.remove(streamId);
+        if (frameCollector != null) {
+            frameCollector.release();
+        }
+        FrameWrapperCollector frameWrapperCollector = streamsWrapper.remove(streamId);
+        if (frameWrapperCollector != null) {
+            frameWrapperCollector.release();
+        }
     }
 
-    private FrameCollector newFrameCollector(int streamId) {
-        return new FrameCollector(streamId, HttpEvent.builder(connectionContext));
+    private static void consume(Http2FrameWrapper<?> frameWrapper) {
+        if (frameWrapper instanceof Http2DataFrameWrapper) {
+            ((Http2DataFrameWrapper) frameWrapper).consume();
+        }
     }
 
-    private FrameWrapperCollector newFrameWrapperCollector(int streamId) {
-        return new FrameWrapperCollector(streamId);
+    private FrameCollector frameCollector(int streamId) {
+        FrameCollector frameCollector = streams.get(streamId);
+        if (frameCollector == null) {
+            frameCollector = new FrameCollector(streamId, RecyclableHttpEvent.newInstance(connectionContext));
+            streams.put(streamId, frameCollector);
+        }
+        return frameCollector;
+    }
+
+    private FrameWrapperCollector frameWrapperCollector(int streamId) {
+        FrameWrapperCollector frameWrapperCollector = streamsWrapper.get(streamId);
+        if (frameWrapperCollector == null) {
+            frameWrapperCollector = new FrameWrapperCollector(streamId);
+            streamsWrapper.put(streamId, frameWrapperCollector);
+        }
+        return frameWrapperCollector;
     }
 
     private static class FrameCollector {
 
         private int streamId;
-        private HttpEvent.Builder httpEventBuilder;
+        private RecyclableHttpEvent httpEvent;
         private Http2HeadersFrame requestHeader;
         private List<Http2DataFrame> requestData = new ArrayList<>();
 
+        private boolean streaming;
         private boolean requestDone;
 
-        public FrameCollector(int streamId, HttpEvent.Builder httpEventBuilder) {
+        public FrameCollector(int streamId, RecyclableHttpEvent httpEvent) {
             this.streamId = streamId;
-            this.httpEventBuilder = httpEventBuilder;
+            this.httpEvent = httpEvent;
         }
 
         /**
-         * Handles a http2 frame of the request, and return full request frames while the request was ended.
+         * Handles a http2 frame of the request, and return full request frames while the request was ended. The data
+         * frames of a streaming request are only counted, and it never returns the request.
          *
          * @param frame a http2 frame
          * @return full request frames if the request was ended, return empty if there are more frames of the request
@@ -260,18 +330,20 @@ public class Http2EventHandler extends ChannelDuplexHandler {
             if (frame instanceof Http2HeadersFrame) {
                 requestHeader = (Http2HeadersFrame) frame;
                 Http2Headers headers = requestHeader.headers();
-                httpEventBuilder.method(HttpMethod.valueOf(headers.method().toString())).version(HttpUtil.HTTP_2)
-                                .host(headers.authority().toString()).path(headers.path().toString())
-                                .requestTime(currentTimeMillis());
+                httpEvent.method(getMethod(headers)).version(HttpUtil.HTTP_2)
+                         .host(headers.authority()).path(headers.path())
+                         .requestTime(currentTimeMillis());
                 requestDone = requestHeader.isEndStream();
             } else if (frame instanceof Http2DataFrame) {
                 Http2DataFrame data = (Http2DataFrame) frame;
-                requestData.add(data);
-                httpEventBuilder.addRequestBodySize(data.content().readableBytes());
+                if (!streaming) {
+                    requestData.add(data);
+                }
+                httpEvent.addRequestBodySize(data.content().readableBytes());
                 requestDone = data.isEndStream();
             }
 
-            if (requestDone) {
+            if (requestDone && !streaming) {
                 Http2FramesWrapper request =
                     Http2FramesWrapper.builder(streamId).headers(requestHeader).data(requestData).build();
                 requestData.clear();
@@ -292,25 +364,33 @@ public class Http2EventHandler extends ChannelDuplexHandler {
 
         public boolean onResponseHeadersFrame(Http2HeadersFrame frame) {
             Http2Headers headers = frame.headers();
-            httpEventBuilder.status(getStatus(headers)).contentType(getContentType(headers))
-                            .responseTime(currentTimeMillis());
+            httpEvent.status(getStatus(headers)).contentType(headers.get(CONTENT_TYPE))
+                     .responseTime(currentTimeMillis());
             return frame.isEndStream();
         }
 
         public boolean onResponseDataFrame(Http2DataFrame frame) {
-            httpEventBuilder.addResponseBodySize(frame.content().readableBytes());
+            httpEvent.addResponseBodySize(frame.content().readableBytes());
             return frame.isEndStream();
         }
 
-        public Optional<HttpEvent> collect() {
+        /**
+         * Notify the listener of the event if the request was ended, the event is only valid during the callback.
+         *
+         * @param listener the listener
+         */
+        public void publish(NitmProxyListener listener) {
             if (requestDone) {
-                return Optional.of(httpEventBuilder.build());
+                listener.onHttpEvent(httpEvent.event());
             }
-            return Optional.empty();
         }
 
         public void release() {
             requestData.forEach(ReferenceCountUtil::release);
+            if (httpEvent != null) {
+                httpEvent.recycle();
+                httpEvent = null;
+            }
         }
 
         public List<Http2DataFrame> getRequestData() {
@@ -322,6 +402,7 @@ public class Http2EventHandler extends ChannelDuplexHandler {
 
         private int streamId;
         private List<Http2FrameWrapper<?>> frames = new ArrayList<>();
+        private boolean intercepting;
 
         private boolean requestDone;
 
@@ -336,5 +417,10 @@ public class Http2EventHandler extends ChannelDuplexHandler {
         public List<Http2FrameWrapper<?>> getFrames() {
             return frames;
         }
+
+        public void release() {
+            frames.forEach(ReferenceCountUtil::release);
+            frames.clear();
+        }
     }
 }
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2021 - Safe Kids LLC
+ *
+ * The complete license agreement is available at https://safekids.ai/eula
+ *
+ *
+ * LICENSE GRANT
+ * ==============================================
+ * Licensor hereby grants to you a non-exclusive and non-transferable license to use the Software and
+ * related documentation (the "Documentation") solely for the intended purposes of the Software as set forth in the
+ * Documentation, according to the provisions contained herein and subject to payment of applicable license fees.
+ * You are not permitted to lease, rent, distribute or sublicense the Software or any rights therein.
+ * You also may not install the Software on a network server, use the Software in a time-sharing arrangement or
+ * in any other unauthorized manner. Further, no license is granted to you in the human readable code of the Software
+ *  (source code). Except as provided below, this Agreement does not grant you any rights to patents, copyrights,
+ *  trade secrets, trademarks, or any other rights in the Software and Documentation.
+ *
+ * NO MODIFICATION, NO REVERSE ENGINEERING
+ * ===============================================
+ * You agree not to, without the prior written permission of Licensor: (i); disassemble, decompile or "unlock",
+ * decode or otherwise reverse translate or engineer, or attempt in any manner to reconstruct or discover any source
+ * code or underlying algorithms of the Software, if provided in object code form only; (ii) use, copy,
+ * modify, translate,reverse engineer, decompile, disassemble, or create derivative works of the Software and
+ * any accompanying documents, or assist someone in performing such prohibited acts; or (iii) transfer, rent,
+ * lease, or sub license the Software.
+ *
+ * NO WARRANTIES.
+ * ===============================================
+ * LICENSOR MAKES NO WARRANTIES, EXPRESS OR IMPLIED, INCLUDING, BUT NOT LIMITED TO, IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, TITLE, AND NON-INFRINGEMENT OF THIRD PARTIES' RIGHTS.
+ * THE SOFTWARE (INCLUDING SOURCE CODE) IS PROVIDED TO YOU ON AN "AS IS" BASIS. TO THE FULL EXTENT PERMITTED BY LAW,
+ * THE DURATION OF STATUTORILY REQUIRED WARRANTIES, IF ANY, SHALL BE LIMITED TO THE ABOVE LIMITED WARRANTY PERIOD.
+ * MOREOVER, IN NO EVENT WILL WARRANTIES PROVIDED BY LAW, IF ANY, APPLY UNLESS THEY ARE REQUIRED TO APPLY BY
+ * STATUTE NOTWITHSTANDING THEIR EXCLUSION BY CONTRACT. NO DEALER, AGENT, OR EMPLOYEE OF LICENSOR IS AUTHORIZED TO
+ * MAKE ANY MODIFICATIONS, EXTENSIONS, OR ADDITIONS TO THIS LIMITED WARRANTY. THE ENTIRE RISK ARISING OUT OF USE OR
+ * PERFORMANCE OF THE SOFTWARE REMAINS WITH YOU.
+ *
+ */
+
+package ai.safekids.httpproxy.handler.protocol.http2;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http2.DefaultHttp2SettingsFrame;
+import io.netty.handler.codec.http2.Http2ConnectionHandler;
+import io.netty.handler.codec.http2.Http2Exception;
+import io.netty.handler.codec.http2.Http2LocalFlowController;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.codec.http2.Http2SettingsFrame;
+import io.netty.handler.codec.http2.Http2Stream;
+
+import static ai.safekids.httpproxy.handler.protocol.http2.Http2FrameWrapper.*;
+
+/**
+ * Bridges the flow control of the client and server connections of a HTTP/2 relay.
+ *
+ * <p>The bytes of a DATA frame read from one connection are not consumed when read, but once the frame was written
+ * to the other connection, so the WINDOW_UPDATE returned to the sender follows the pace of the receiver. The proxy
+ * holds at most a stream window of undelivered bytes per stream, and a connection window per connection. Each
+ * connection keeps its own windows, the WINDOW_UPDATE frames are never relayed.</p>
+ */
+public final class Http2FlowControl {
+
+    private Http2FlowControl() {
+    }
+
+    /**
+     * Defer the consumption of a DATA frame read from a connection until the frame was delivered.
+     *
+     * @param ctx      the context of the handler of the connection the frame was read from
+     * @param handler  the connection handler
+     * @param streamId the stream id of the connection
+     * @param bytes    the flow-controlled bytes, including the padding
+     * @param frame    the relayed frame
+     * @return the frame
+     */
+    static Http2DataFrameWrapper consumeOnDelivery(ChannelHandlerContext ctx, Http2ConnectionHandler handler,
+                                                   int streamId, int bytes, Http2DataFrameWrapper frame) {
+        if (bytes == 0) {
+            return frame;
+        }
+        return frame.consumer(() -> consume(ctx, handler, streamId, bytes));
+    }
+
+    /**
+     * Consume the bytes of a DATA frame once it was written, or failed to be written since the stream was closed.
+     *
+     * @param frame   the frame being written
+     * @param promise the promise of the write
+     * @return the promise to pass to the encoder
+     */
+    static ChannelPromise consumeOnWrite(Http2FrameWrapper<?> frame, ChannelPromise promise) {
+        if (!(frame instanceof Http2DataFrameWrapper)) {
+            return promise;
+        }
+        Http2DataFrameWrapper data = (Http2DataFrameWrapper) frame;
+        ChannelPromise unvoid = promise.unvoid();
+        unvoid.addListener(ignore -> data.consume());
+        return unvoid;
+    }
+
+    /**
+     * Replace the relayed settings of the peer by the windows of the proxy, since the settings frames are relayed
+     * as the local settings of the other connection.
+     *
+     * @param frame      the relayed frame
+     * @param windowSize the initial stream window of the proxy
+     * @return the frame to write
+     */
+    static Http2FrameWrapper<?> localSettings(Http2FrameWrapper<?> frame, int windowSize) {
+        if (!(frame.frame() instanceof Http2SettingsFrame)) {
+            return frame;
+        }
+        Http2Settings settings = ((Http2SettingsFrame) frame.frame()).settings();
+        if (settings.initialWindowSize() != null && settings.initialWindowSize() == windowSize) {
+            return frame;
+        }
+        Http2Settings local = new Http2Settings();
+        local.putAll(settings);
+        local.initialWindowSize(windowSize);
+        return frameWrapper(frame.streamId(), new DefaultHttp2SettingsFrame(local));
+    }
+
+    /**
+     * Grow the connection window, which is shared by the streams. It must be invoked after the preface was sent.
+     *
+     * @param handler    the connection handler
+     * @param windowSize the connection window
+     * @throws Http2Exception if the window overflows
+     */
+    static void expandConnectionWindow(Http2ConnectionHandler handler, int windowSize) throws Http2Exception {
+        Http2Stream connectionStream = handler.connection().connectionStream();
+        Http2LocalFlowController flowController = handler.connection().local().flowController();
+        int delta = windowSize - flowController.initialWindowSize(connectionStream);
+        if (delta > 0) {
+            flowController.incrementWindowSize(connectionStream, delta);
+        }
+    }
+
+    private static void consume(ChannelHandlerContext ctx, Http2ConnectionHandler handler, int streamId,
+                                int bytes) {
+        if (!ctx.executor().inEventLoop()) {
+            ctx.executor().execute(() -> consume(ctx, handler, streamId, bytes));
+            return;
+        }
+        Http2Stream stream = handler.connection().stream(streamId);
+        if (stream == null) {
+            // The unconsumed bytes of a closed stream were already returned to the connection window
+            return;
+        }
+        try {
+            if (handler.connection().local().flowController().consumeBytes(stream, bytes)) {
+                ctx.flush();
+            }
+        } catch (Http2Exception e) {
+            ctx.fireExceptionCaught(e);
+        }
+    }
+}
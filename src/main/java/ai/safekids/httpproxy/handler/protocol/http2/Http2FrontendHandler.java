@@ -39,9 +39,15 @@
 
 package ai.safekids.httpproxy.handler.protocol.http2;
 
+import ai.safekids.httpproxy.Address;
 import ai.safekids.httpproxy.ConnectionContext;
+import ai.safekids.httpproxy.Protocols;
 import ai.safekids.httpproxy.handler.HeadExceptionHandler;
+import ai.safekids.httpproxy.http.HttpUrl;
+import ai.safekids.httpproxy.http.HttpUtil;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelOutboundHandlerAdapter;
 import io.netty.channel.ChannelPromise;
@@ -51,21 +57,27 @@ import io.netty.handler.codec.http2.DefaultHttp2GoAwayFrame;
 import io.netty.handler.codec.http2.DefaultHttp2HeadersFrame;
 import io.netty.handler.codec.http2.DefaultHttp2ResetFrame;
 import io.netty.handler.codec.http2.DefaultHttp2SettingsFrame;
-import io.netty.handler.codec.http2.DefaultHttp2WindowUpdateFrame;
 import io.netty.handler.codec.http2.Http2CodecUtil;
 import io.netty.handler.codec.http2.Http2Connection;
 import io.netty.handler.codec.http2.Http2ConnectionHandler;
 import io.netty.handler.codec.http2.Http2ConnectionHandlerBuilder;
+import io.netty.handler.codec.http2.Http2Exception;
 import io.netty.handler.codec.http2.Http2Flags;
 import io.netty.handler.codec.http2.Http2Frame;
 import io.netty.handler.codec.http2.Http2FrameListener;
 import io.netty.handler.codec.http2.Http2FrameLogger;
 import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.handler.codec.http2.Http2HeadersFrame;
 import io.netty.handler.codec.http2.Http2Settings;
 import io.netty.handler.codec.http2.Http2SettingsFrame;
+import io.netty.util.AsciiString;
+import io.netty.util.ReferenceCountUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import static ai.safekids.httpproxy.handler.protocol.http2.Http2FrameWrapper.*;
 import static ai.safekids.httpproxy.util.LogWrappers.*;
 import static io.netty.handler.logging.LogLevel.*;
@@ -79,9 +91,27 @@ public class Http2FrontendHandler
 
     private ConnectionContext connectionContext;
     private Http2ConnectionHandler http2ConnectionHandler;
+    private Http2Settings upgradeSettings;
+    private boolean settingsRead;
+
+    // The frames read before the server is connected, only used for cleartext h2 in transparent mode
+    private List<Http2FrameWrapper<?>> pendings;
+    private boolean connecting;
 
     public Http2FrontendHandler(ConnectionContext connectionContext) {
+        this(connectionContext, null);
+    }
+
+    /**
+     * Create the handler of a connection upgraded from HTTP/1 with h2c, the response of the upgrade request will be
+     * sent on stream 1.
+     *
+     * @param connectionContext the connection context
+     * @param upgradeSettings   the settings of the {@code HTTP2-Settings} header, or {@code null} if not upgraded
+     */
+    public Http2FrontendHandler(ConnectionContext connectionContext, Http2Settings upgradeSettings) {
         this.connectionContext = connectionContext;
+        this.upgradeSettings = upgradeSettings;
     }
 
     @Override
@@ -89,7 +119,8 @@ public class Http2FrontendHandler
         LOGGER.debug("{} : handlerAdded", connectionContext);
 
         Http2Settings initialSettings = new Http2Settings()
-            .maxHeaderListSize(2*Http2CodecUtil.DEFAULT_HEADER_LIST_SIZE);
+            .maxHeaderListSize(2*Http2CodecUtil.DEFAULT_HEADER_LIST_SIZE)
+            .initialWindowSize(connectionContext.config().getHttp2StreamWindow());
 
         Http2Connection http2Connection = new DefaultHttp2Connection(true);
         http2ConnectionHandler = new Http2ConnectionHandlerBuilder()
@@ -103,11 +134,22 @@ public class Http2FrontendHandler
            .addBefore(ctx.name(), null, new HeadExceptionHandler(connectionContext))
            .addBefore(ctx.name(), null, http2ConnectionHandler)
            .addAfter(ctx.name(), null, connectionContext.provider().http2EventHandler());
+
+        if (upgradeSettings != null) {
+            http2ConnectionHandler.onHttpServerUpgrade(upgradeSettings);
+        }
+        if (!connectionContext.connected()) {
+            pendings = new ArrayList<>();
+        }
     }
 
     @Override
     public void handlerRemoved(ChannelHandlerContext ctx) {
         LOGGER.debug("{} : handlerRemoved", connectionContext);
+        if (pendings != null) {
+            pendings.forEach(ReferenceCountUtil::release);
+            pendings = null;
+        }
     }
 
     @Override
@@ -116,7 +158,9 @@ public class Http2FrontendHandler
         if (msg instanceof Http2FrameWrapper) {
             Http2FrameWrapper<?> frame = (Http2FrameWrapper<?>) touch(msg,
                                                                       format("%s context=%s", msg, connectionContext));
-            frame.write(ctx, http2ConnectionHandler.encoder(), frame.streamId(), promise);
+            frame = Http2FlowControl.localSettings(frame, connectionContext.config().getHttp2StreamWindow());
+            frame.write(ctx, http2ConnectionHandler.encoder(), frame.streamId(),
+                        Http2FlowControl.consumeOnWrite(frame, promise));
         } else {
             ctx.write(msg, promise);
         }
@@ -125,21 +169,24 @@ public class Http2FrontendHandler
     @Override
     public int onDataRead(ChannelHandlerContext ctx, int streamId, ByteBuf data, int padding,
                           boolean endOfStream) {
-        int processed = data.readableBytes() + padding;
-        ctx.fireChannelRead(frameWrapper(streamId, new DefaultHttp2DataFrame(data.retain(), endOfStream, padding)));
-        return processed;
+        // The bytes are consumed once written to the server
+        int bytes = data.readableBytes() + padding;
+        fireRead(ctx, Http2FlowControl.consumeOnDelivery(
+                ctx, http2ConnectionHandler, streamId, bytes,
+                frameWrapper(streamId, new DefaultHttp2DataFrame(data.retain(), endOfStream, padding))));
+        return 0;
     }
 
     @Override
     public void onHeadersRead(ChannelHandlerContext ctx, int streamId, Http2Headers headers,
                               int padding, boolean endOfStream) {
-        ctx.fireChannelRead(frameWrapper(streamId, new DefaultHttp2HeadersFrame(headers, endOfStream, padding)));
+        fireRead(ctx, frameWrapper(streamId, new DefaultHttp2HeadersFrame(originForm(headers), endOfStream, padding)));
     }
 
     @Override
     public void onHeadersRead(ChannelHandlerContext ctx, int streamId, Http2Headers headers,
                               int streamDependency, short weight, boolean exclusive, int padding, boolean endOfStream) {
-        ctx.fireChannelRead(frameWrapper(streamId, new DefaultHttp2HeadersFrame(headers, endOfStream, padding)));
+        fireRead(ctx, frameWrapper(streamId, new DefaultHttp2HeadersFrame(originForm(headers), endOfStream, padding)));
     }
 
     @Override
@@ -149,7 +196,7 @@ public class Http2FrontendHandler
 
     @Override
     public void onRstStreamRead(ChannelHandlerContext ctx, int streamId, long errorCode) {
-        ctx.fireChannelRead(frameWrapper(0, new DefaultHttp2ResetFrame(errorCode)));
+        fireRead(ctx, frameWrapper(streamId, new DefaultHttp2ResetFrame(errorCode)));
     }
 
     @Override
@@ -157,8 +204,14 @@ public class Http2FrontendHandler
     }
 
     @Override
-    public void onSettingsRead(ChannelHandlerContext ctx, Http2Settings settings) {
-        ctx.fireChannelRead(frameWrapper(0, new DefaultHttp2SettingsFrame(settings)));
+    public void onSettingsRead(ChannelHandlerContext ctx, Http2Settings settings) throws Http2Exception {
+        if (!settingsRead) {
+            // The preface of the proxy was sent before the settings of the client were read
+            settingsRead = true;
+            Http2FlowControl.expandConnectionWindow(http2ConnectionHandler,
+                                                    connectionContext.config().getHttp2ConnectionWindow());
+        }
+        fireRead(ctx, frameWrapper(0, new DefaultHttp2SettingsFrame(settings)));
     }
 
     @Override
@@ -177,19 +230,76 @@ public class Http2FrontendHandler
     @Override
     public void onGoAwayRead(ChannelHandlerContext ctx, int lastStreamId, long errorCode,
                              ByteBuf debugData) {
-        DefaultHttp2GoAwayFrame frame = new DefaultHttp2GoAwayFrame(errorCode, debugData);
+        // The debug data is a slice of the read buffer, which is released after this callback
+        DefaultHttp2GoAwayFrame frame = new DefaultHttp2GoAwayFrame(
+            errorCode, Unpooled.wrappedBuffer(ByteBufUtil.getBytes(debugData)));
         frame.setExtraStreamIds(lastStreamId);
-        ctx.fireChannelRead(frameWrapper(lastStreamId, frame));
+        fireRead(ctx, frameWrapper(0, frame));
     }
 
     @Override
     public void onWindowUpdateRead(ChannelHandlerContext ctx, int streamId, int windowSizeIncrement) {
-        ctx.fireChannelRead(frameWrapper(streamId,
-                                         new DefaultHttp2WindowUpdateFrame(windowSizeIncrement)));
+        // Applied to the windows of this connection by the encoder, the server connection has its own windows
     }
 
     @Override
     public void onUnknownFrame(ChannelHandlerContext ctx, byte frameType, int streamId,
                                Http2Flags flags, ByteBuf payload) {
     }
-}
\ No newline at end of file
+
+    /**
+     * Clients of a plain proxy connection upgraded with h2c keep sending the path in absolute form, which is
+     * rewritten to the origin form like HTTP/1 requests.
+     */
+    private static Http2Headers originForm(Http2Headers headers) {
+        CharSequence path = headers.path();
+        if (path != null && (startsWith(path, "http://") || startsWith(path, "https://"))) {
+            headers.path(HttpUrl.resolve(path.toString()).getPath());
+        }
+        return headers;
+    }
+
+    private static boolean startsWith(CharSequence value, String prefix) {
+        return AsciiString.regionMatches(value, true, 0, prefix, 0, prefix.length());
+    }
+
+    private void fireRead(ChannelHandlerContext ctx, Http2FrameWrapper<?> frame) {
+        if (pendings == null) {
+            ctx.fireChannelRead(frame);
+            return;
+        }
+        pendings.add(frame);
+        if (frame.isHeaders() && !connecting) {
+            connect(ctx, ((Http2HeadersFrame) frame.frame()).headers());
+        }
+    }
+
+    /**
+     * Connect to the server by the authority of the first request, the destination of a transparent connection is
+     * unknown until then.
+     */
+    private void connect(ChannelHandlerContext ctx, Http2Headers headers) {
+        connecting = true;
+        if (headers.authority() == null) {
+            LOGGER.error("{} : Authority is required for cleartext h2 in transparent mode", connectionContext);
+            ctx.close();
+            return;
+        }
+        Address address = Address.resolve(headers.authority().toString(), HttpUtil.HTTP_PORT);
+        connectionContext.connect(address, ctx).addListener(future -> {
+            if (!future.isSuccess()) {
+                ctx.close();
+                return;
+            }
+            List<Http2FrameWrapper<?>> frames = pendings;
+            pendings = null;
+            if (frames != null) {
+                frames.forEach(ctx::fireChannelRead);
+                // Replayed outside of a read, complete it so the frames are flushed
+                ctx.fireChannelReadComplete();
+            }
+        });
+        connectionContext.tlsCtx().disableTls();
+        connectionContext.tlsCtx().protocolPromise().setSuccess(Protocols.HTTP_2);
+    }
+}
@@ -57,18 +57,66 @@ import io.netty.handler.codec.http2.DefaultHttp2Headers;
 import io.netty.handler.codec.http2.Http2Frame;
 import io.netty.handler.codec.http2.Http2Headers;
 import io.netty.handler.codec.http2.Http2HeadersFrame;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.util.collection.CharObjectMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.ByteBuffer;
+import java.util.Base64;
 import java.util.List;
 import java.util.Objects;
 
 public class Http2Util {
     private static final Logger LOGGER = LoggerFactory.getLogger(Http2Util.class);
 
+    private static final int SETTING_ENTRY_LENGTH = 6;
+
     private Http2Util() {
     }
 
+    /**
+     * Encode the settings as the value of the {@code HTTP2-Settings} header of a h2c upgrade request.
+     *
+     * @param settings the settings
+     * @return the base64url encoded settings payload
+     */
+    public static String encodeSettingsHeader(Http2Settings settings) {
+        ByteBuffer payload = ByteBuffer.allocate(settings.size() * SETTING_ENTRY_LENGTH);
+        for (CharObjectMap.PrimitiveEntry<Long> entry : settings.entries()) {
+            payload.putShort((short) entry.key());
+            payload.putInt(entry.value().intValue());
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(payload.array());
+    }
+
+    /**
+     * Decode the value of the {@code HTTP2-Settings} header of a h2c upgrade request.
+     *
+     * @param header the base64url encoded settings payload
+     * @return the settings
+     * @throws IllegalArgumentException if the header is malformed
+     */
+    public static Http2Settings decodeSettingsHeader(CharSequence header) {
+        byte[] payload = Base64.getUrlDecoder().decode(header.toString().trim());
+        if (payload.length % SETTING_ENTRY_LENGTH != 0) {
+            throw new IllegalArgumentException("Malformed HTTP2-Settings: " + header);
+        }
+        Http2Settings settings = new Http2Settings();
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        while (buffer.hasRemaining()) {
+            char id = (char) (buffer.getShort() & 0xFFFF);
+            long value = buffer.getInt() & 0xFFFFFFFFL;
+            try {
+                settings.put(id, Long.valueOf(value));
+            } catch (IllegalArgumentException e) {
+                // Unknown settings must be ignored
+                LOGGER.debug("Ignore setting {}={} with {}", (int) id, value, e.getMessage());
+            }
+        }
+        return settings;
+    }
+
     public static Http2Headers frameToHeaders(List<Http2Frame> frames) {
         Http2Headers headers =
             frames.stream()
@@ -1,172 +0,0 @@
-/*
- * Copyright 2021 - Safe Kids LLC
- *
- * The complete license agreement is available at https://safekids.ai/eula
- *
- *
- * LICENSE GRANT
- * ==============================================
- * Licensor hereby grants to you a non-exclusive and non-transferable license to use the Software and
- * related documentation (the "Documentation") solely for the intended purposes of the Software as set forth in the
- * Documentation, according to the provisions contained herein and subject to payment of applicable license fees.
- * You are not permitted to lease, rent, distribute or sublicense the Software or any rights therein.
- * You also may not install the Software on a network server, use the Software in a time-sharing arrangement or
- * in any other unauthorized manner. Further, no license is granted to you in the human readable code of the Software
- *  (source code). Except as provided below, this Agreement does not grant you any rights to patents, copyrights,
- *  trade secrets, trademarks, or any other rights in the Software and Documentation.
- *
- * NO MODIFICATION, NO REVERSE ENGINEERING
- * ===============================================
- * You agree not to, without the prior written permission of Licensor: (i); disassemble, decompile or "unlock",
- * decode or otherwise reverse translate or engineer, or attempt in any manner to reconstruct or discover any source
- * code or underlying algorithms of the Software, if provided in object code form only; (ii) use, copy,
- * modify, translate,reverse engineer, decompile, disassemble, or create derivative works of the Software and
- * any accompanying documents, or assist someone in performing such prohibited acts; or (iii) transfer, rent,
- * lease, or sub license the Software.
- *
- * NO WARRANTIES.
- * ===============================================
- * LICENSOR MAKES NO WARRANTIES, EXPRESS OR IMPLIED, INCLUDING, BUT NOT LIMITED TO, IMPLIED WARRANTIES OF
- * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, TITLE, AND NON-INFRINGEMENT OF THIRD PARTIES' RIGHTS.
- * THE SOFTWARE (INCLUDING SOURCE CODE) IS PROVIDED TO YOU ON AN "AS IS" BASIS. TO THE FULL EXTENT PERMITTED BY LAW,
- * THE DURATION OF STATUTORILY REQUIRED WARRANTIES, IF ANY, SHALL BE LIMITED TO THE ABOVE LIMITED WARRANTY PERIOD.
- * MOREOVER, IN NO EVENT WILL WARRANTIES PROVIDED BY LAW, IF ANY, APPLY UNLESS THEY ARE REQUIRED TO APPLY BY
- * STATUTE NOTWITHSTANDING THEIR EXCLUSION BY CONTRACT. NO DEALER, AGENT, OR EMPLOYEE OF LICENSOR IS AUTHORIZED TO
- * MAKE ANY MODIFICATIONS, EXTENSIONS, OR ADDITIONS TO THIS LIMITED WARRANTY. THE ENTIRE RISK ARISING OUT OF USE OR
- * PERFORMANCE OF THE SOFTWARE REMAINS WITH YOU.
- *
- */
-
-package ai.safekids.httpproxy.handler.protocol.tls;
-
-import ai.safekids.httpproxy.event.AlpnCompletionEvent;
-
-import java.util.ArrayList;
-import java.util.List;
-
-import io.netty.buffer.ByteBuf;
-import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.ssl.SslClientHelloHandler;
-import io.netty.util.CharsetUtil;
-import io.netty.util.concurrent.Future;
-
-public abstract class AbstractAlpnHandler<T> extends SslClientHelloHandler<T> {
-
-    private static List<String> extractAlpnProtocols(ByteBuf in) {
-        // See https://tools.ietf.org/html/rfc5246#section-7.4.1.2
-        //
-        // Decode the ssl client hello packet.
-        //
-        // struct {
-        //    ProtocolVersion client_version;
-        //    Random random;
-        //    SessionID session_id;
-        //    CipherSuite cipher_suites<2..2^16-2>;
-        //    CompressionMethod compression_methods<1..2^8-1>;
-        //    select (extensions_present) {
-        //        case false:
-        //            struct {};
-        //        case true:
-        //            Extension extensions<0..2^16-1>;
-        //    };
-        // } ClientHello;
-        //
-
-        // We have to skip bytes until SessionID (which sum to 34 bytes in this case).
-        int offset = in.readerIndex();
-        int endOffset = in.writerIndex();
-        offset += 34;
-
-        if (endOffset - offset >= 6) {
-            final int sessionIdLength = in.getUnsignedByte(offset);
-            offset += sessionIdLength + 1;
-
-            final int cipherSuitesLength = in.getUnsignedShort(offset);
-            offset += cipherSuitesLength + 2;
-
-            final int compressionMethodLength = in.getUnsignedByte(offset);
-            offset += compressionMethodLength + 1;
-
-            final int extensionsLength = in.getUnsignedShort(offset);
-            offset += 2;
-            final int extensionsLimit = offset + extensionsLength;
-
-            // Extensions should never exceed the record boundary.
-            if (extensionsLimit <= endOffset) {
-                while (extensionsLimit - offset >= 4) {
-                    final int extensionType = in.getUnsignedShort(offset);
-                    offset += 2;
-
-                    final int extensionLength = in.getUnsignedShort(offset);
-                    offset += 2;
-
-                    if (extensionsLimit - offset < extensionLength) {
-                        break;
-                    }
-
-                    // Alpn
-                    // See https://tools.ietf.org/html/rfc7301
-                    if (extensionType == 16) {
-                        offset += 2;
-                        if (extensionsLimit - offset < 3) {
-                            break;
-                        }
-
-                        final int extensionLimit = offset + extensionLength;
-                        List<String> protocols = new ArrayList<>();
-                        while (offset + 8 < extensionLimit) {
-                            final short protocolLength = in.getUnsignedByte(offset);
-                            offset += 1;
-
-                            if (extensionLimit - offset < protocolLength) {
-                                break;
-                            }
-
-                            final String protocol = in.toString(offset, protocolLength, CharsetUtil.US_ASCII);
-                            offset += protocolLength;
-                            protocols.add(protocol);
-                        }
-                        return protocols;
-                    }
-
-                    offset += extensionLength;
-                }
-            }
-        }
-        return null;
-    }
-
-    private List<String> protocols;
-
-    @Override
-    protected Future<T> lookup(ChannelHandlerContext ctx, ByteBuf clientHello) throws Exception {
-        protocols = clientHello == null? null : extractAlpnProtocols(clientHello);
-
-        return lookup(ctx, protocols);
-    }
-
-    protected abstract Future<T> lookup(ChannelHandlerContext ctx, List<String> protocols)
-            throws Exception;
-
-    @Override
-    protected void onLookupComplete(ChannelHandlerContext ctx, Future<T> future) throws Exception {
-        try {
-            onLookupComplete(ctx, protocols, future);
-        } finally {
-            fireAlpnCompletionEvent(ctx, protocols, future);
-        }
-    }
-
-    protected abstract void onLookupComplete(ChannelHandlerContext ctx,
-                                             List<String> protocols, Future<T> future) throws Exception;
-
-    private static void fireAlpnCompletionEvent(ChannelHandlerContext ctx, List<String> protocols,
-                                                Future<?> future) {
-        Throwable cause = future.cause();
-        if (cause == null) {
-            ctx.fireUserEventTriggered(new AlpnCompletionEvent(protocols));
-        } else {
-            ctx.fireUserEventTriggered(new AlpnCompletionEvent(protocols, cause));
-        }
-    }
-}
@@ -50,6 +50,7 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelPromise;
 import io.netty.handler.ssl.ApplicationProtocolNames;
 import io.netty.handler.ssl.ApplicationProtocolNegotiationHandler;
+import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslHandler;
 import io.netty.handler.ssl.SslMasterKeyHandler;
 import io.netty.util.ReferenceCountUtil;
@@ -142,8 +143,19 @@ public class TlsBackendHandler extends ChannelDuplexHandler {
     }
 
     private SslHandler sslHandler(ByteBufAllocator alloc) throws SSLException {
-        return TlsUtil.ctxForClient(connectionContext).newHandler(alloc, connectionContext.getServerAddr().getHost(),
-                                                                  connectionContext.getServerAddr().getPort());
+        // The peer host and port key the client session cache, so the origin handshakes can be resumed
+        SslContext sslContext = TlsUtil.ctxForClient(connectionContext);
+        SslHandler sslHandler;
+        try {
+            sslHandler = sslContext.newHandler(
+                    alloc, connectionContext.getServerAddr().getHost(), connectionContext.getServerAddr().getPort());
+        } finally {
+            ReferenceCountUtil.release(sslContext);
+        }
+        if (master.tlsSessionStats() != null) {
+            master.tlsSessionStats().track(sslHandler, false);
+        }
+        return sslHandler;
     }
 
     private void flushPendings(ChannelHandlerContext ctx) {
@@ -43,23 +43,31 @@ import ai.safekids.httpproxy.Address;
 import ai.safekids.httpproxy.ConnectionContext;
 import ai.safekids.httpproxy.Protocols;
 import ai.safekids.httpproxy.enums.ProxyMode;
+import ai.safekids.httpproxy.event.AlpnCompletionEvent;
+import ai.safekids.httpproxy.exception.TlsException;
+import ai.safekids.httpproxy.tls.Certificate;
+import ai.safekids.httpproxy.tls.ClientHello;
 import ai.safekids.httpproxy.tls.TlsUtil;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufAllocator;
 import io.netty.buffer.ByteBufUtil;
 import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
-import io.netty.handler.ssl.AbstractSniHandler;
 import io.netty.handler.ssl.ApplicationProtocolNames;
 import io.netty.handler.ssl.ApplicationProtocolNegotiationHandler;
 import io.netty.handler.ssl.OpenSsl;
 import io.netty.handler.ssl.ReferenceCountedOpenSslEngine;
+import io.netty.handler.ssl.SniCompletionEvent;
+import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslClientHelloHandler;
 import io.netty.handler.ssl.SslHandler;
 import io.netty.handler.ssl.SslHandshakeCompletionEvent;
 import io.netty.handler.ssl.SslMasterKeyHandler;
+import io.netty.util.ReferenceCountUtil;
 import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
 import io.netty.util.internal.ReflectionUtil;
 import io.netty.util.internal.SystemPropertyUtil;
 import io.netty.util.internal.logging.InternalLogger;
@@ -90,7 +98,7 @@ public class TlsFrontendHandler extends ChannelDuplexHandler {
     @Override
     public void handlerAdded(ChannelHandlerContext ctx) {
         LOGGER.debug("{} : handlerAdded", connectionContext);
-        ctx.pipeline().replace(ctx.name(), null, new DetectSslHandler());
+        ctx.pipeline().replace(ctx.name(), null, new ClientHelloHandler());
     }
 
     @Override
@@ -102,104 +110,182 @@ public class TlsFrontendHandler extends ChannelDuplexHandler {
         return connectionContext.config().getProxyMode() == ProxyMode.TRANSPARENT;
     }
 
-    private SslHandler sslHandler(ByteBufAllocator alloc) throws SSLException {
-        return TlsUtil.ctxForServer(connectionContext).newHandler(alloc);
+    private SslHandler sslHandler(ByteBufAllocator alloc, Certificate certificate) throws SSLException {
+        SslContext sslContext = TlsUtil.ctxForServer(connectionContext, certificate);
+        SslHandler sslHandler;
+        try {
+            sslHandler = sslContext.newHandler(alloc);
+        } finally {
+            ReferenceCountUtil.release(sslContext);
+        }
+        if (connectionContext.master().tlsSessionStats() != null) {
+            connectionContext.master().tlsSessionStats().track(sslHandler, true);
+        }
+        return sslHandler;
     }
 
-    private class DetectSslHandler extends SslClientHelloHandler<Boolean> {
+    /**
+     * Inspects the ClientHello once for TLS detection, SNI and ALPN, then replaces itself with either the
+     * {@link SslHandler}, the forwarding handler of a bypassed host, or the protocol selector of plain traffic.
+     */
+    private class ClientHelloHandler extends SslClientHelloHandler<String> {
 
-        @Override
-        protected Future<Boolean> lookup(ChannelHandlerContext ctx, ByteBuf byteBuf) {
-            boolean ssl = byteBuf != null;
-            LOGGER.debug("SSL detection with {}", ssl);
-            return ctx.executor().newSucceededFuture(ssl);
-        }
+        private boolean tls;
+        private boolean bypass;
+        private String hostname;
+        private List<String> protocols;
+        private Certificate certificate;
 
         @Override
-        protected void onLookupComplete(ChannelHandlerContext ctx, Future<Boolean> future) {
-            if (!future.isSuccess()) {
-                LOGGER.debug("SSL detection failed with {}", future.cause().getMessage());
-                ctx.close();
-            } else if (!future.getNow()) {
-                //Not TLS.... setup for pass through
-                if (isTransparentProxy()) {
-                    // In a case of transparent proxy, remote connection happens only
-                    // after the SNI lookup since destination IP is not reliable
-                    connectionContext.tlsCtx().protocols(ctx.executor().newPromise());
-                    connectionContext.tlsCtx().protocol(ctx.executor().newPromise());
-                }
-                connectionContext.tlsCtx().disableTls();
-                ctx.pipeline().replace(ctx.name(), null, connectionContext.provider().protocolSelectHandler());
-            } else {
-                ctx.pipeline().replace(ctx.name(), null, new SniExtractorHandler());
+        protected Future<String> lookup(ChannelHandlerContext ctx, ByteBuf clientHello) {
+            tls = clientHello != null;
+            LOGGER.debug("SSL detection with {}", tls);
+            if (!tls) {
+                return ctx.executor().newSucceededFuture(null);
             }
-        }
-    }
 
-    private class SniExtractorHandler extends AbstractSniHandler<Address> {
+            ClientHello hello = ClientHello.parse(clientHello);
+            hostname = hello.serverName();
+            protocols = hello.alpnProtocols();
+            LOGGER.debug("Client SNI lookup with {}, ALPN lookup with {}", hostname, protocols);
 
-        @Override
-        protected Future<Address> lookup(ChannelHandlerContext ctx, String hostname) {
-            LOGGER.debug("Client SNI lookup with {}", hostname);
+            Address address = null;
             if (hostname != null) {
                 int port = isTransparentProxy()? 443 : connectionContext.getServerAddr().getPort();
-                return ctx.executor().newSucceededFuture(new Address(hostname, port));
+                address = new Address(hostname, port);
+            }
+            String host = (hostname != null || isTransparentProxy())
+                    ? hostname
+                    : connectionContext.getServerAddr().getHost();
+            bypass = host != null && connectionContext.config().getBypassPolicy().bypass(connectionContext, host);
+            if (bypass) {
+                return bypass(ctx, address, host);
             }
-            return ctx.executor().newSucceededFuture(null);
-        }
 
-        @Override
-        protected void onLookupComplete(ChannelHandlerContext ctx, String hostname, Future<Address> future) {
-            Address address = future.getNow();
             if (isTransparentProxy()) {
                 if (address == null) {
                     LOGGER.error("SNI is required for tls connection in transparent mode");
-                    ctx.close();
-                    return;
+                    return ctx.executor().newFailedFuture(
+                            new TlsException("SNI is required for tls connection in transparent mode"));
                 }
                 connectionContext.connect(address, ctx).addListener((channelFuture) -> {
                     if (!channelFuture.isSuccess()) {
                         ctx.close();
                     }
                 });
-            } else {
+            } else if (address != null) {
                 connectionContext.withServerAddr(address);
             }
-            ctx.pipeline().replace(ctx.name(), null, new AlpnNegotiateHandler());
+            return negotiate(ctx);
         }
-    }
 
-    private class AlpnNegotiateHandler extends AbstractAlpnHandler<String> {
+        private Future<String> bypass(ChannelHandlerContext ctx, Address address, String host) {
+            // The buffered ClientHello is replayed as is, so the server must be connected before switching to
+            // forwarding
+            LOGGER.debug("{} : Bypass tls interception of {}", connectionContext, host);
+            ChannelFuture connectFuture = isTransparentProxy()
+                    ? connectionContext.connect(address, ctx)
+                    : connectionContext.connectFuture();
+            Promise<String> promise = ctx.executor().newPromise();
+            connectFuture.addListener(future -> {
+                if (future.isSuccess()) {
+                    promise.trySuccess(Protocols.FORWARD);
+                } else {
+                    promise.tryFailure(future.cause());
+                }
+            });
+            return promise;
+        }
 
-        @Override
-        protected void onLookupComplete(ChannelHandlerContext ctx, List<String> protocols,
-                                        Future<String> future) throws Exception {
-            if (!future.isSuccess()) {
-                LOGGER.debug("ALPN negotiate failed with {}", future.cause().getMessage());
-                ctx.close();
-            } else {
-                LOGGER.debug("ALPN negotiated with {}", future.getNow());
-                SslHandler sslHandler = sslHandler(ctx.alloc());
-                try {
-                    ctx.pipeline()
-                       .addAfter(ctx.name(), null, new AlpnHandler())
-                       .replace(ctx.name(), null, sslHandler);
-                    sslHandler = null;
-                } finally {
-                    if (sslHandler != null) {
-                        safeRelease(sslHandler.engine());
+        private Future<String> negotiate(ChannelHandlerContext ctx) {
+            // Sign the cert while the protocol is negotiating with the server, the ClientHello is buffered until
+            // both of them are done, so the event loop is never blocked
+            Future<Certificate> certFuture = connectionContext.master().certManager().getCert(
+                    ctx.executor(), connectionContext.getServerAddr().getHost());
+            if (!connectionContext.tlsCtx().protocolPromise().isDone()) {
+                connectionContext.tlsCtx().protocolsPromise().setSuccess(protocols);
+            }
+
+            Promise<String> promise = ctx.executor().newPromise();
+            connectionContext.tlsCtx().protocolPromise().addListener((Future<String> protocolFuture) -> {
+                if (!protocolFuture.isSuccess()) {
+                    promise.tryFailure(protocolFuture.cause());
+                    return;
+                }
+                certFuture.addListener((Future<Certificate> future) -> {
+                    if (future.isSuccess()) {
+                        certificate = future.getNow();
+                        promise.trySuccess(protocolFuture.getNow());
+                    } else {
+                        promise.tryFailure(future.cause());
                     }
+                });
+            });
+            return promise;
+        }
+
+        @Override
+        protected void onLookupComplete(ChannelHandlerContext ctx, Future<String> future) throws Exception {
+            if (!tls) {
+                plain(ctx);
+                return;
+            }
+            try {
+                if (!future.isSuccess()) {
+                    LOGGER.debug("ClientHello lookup failed with {}", future.cause().getMessage());
+                    ctx.close();
+                } else if (bypass) {
+                    splice(ctx);
+                } else {
+                    LOGGER.debug("ALPN negotiated with {}", future.getNow());
+                    intercept(ctx);
                 }
+            } finally {
+                fireCompletionEvents(ctx, future);
             }
         }
 
-        @Override
-        protected Future<String> lookup(ChannelHandlerContext ctx, List<String> protocols) {
-            LOGGER.debug("Client ALPN lookup with {}", protocols);
-            if (!connectionContext.tlsCtx().protocolPromise().isDone()) {
-                connectionContext.tlsCtx().protocolsPromise().setSuccess(protocols);
+        private void plain(ChannelHandlerContext ctx) {
+            //Not TLS.... setup for pass through
+            if (isTransparentProxy()) {
+                // In a case of transparent proxy, remote connection happens only
+                // after the SNI lookup since destination IP is not reliable
+                connectionContext.tlsCtx().protocols(ctx.executor().newPromise());
+                connectionContext.tlsCtx().protocol(ctx.executor().newPromise());
+            }
+            connectionContext.tlsCtx().disableTls();
+            ctx.pipeline().replace(ctx.name(), null, connectionContext.provider().protocolSelectHandler());
+        }
+
+        private void splice(ChannelHandlerContext ctx) {
+            connectionContext.tlsCtx().protocolPromise().setSuccess(Protocols.FORWARD);
+            connectionContext.tlsCtx().disableTls();
+            ctx.pipeline().replace(ctx.name(), null, connectionContext.provider().forwardFrontendHandler());
+        }
+
+        private void intercept(ChannelHandlerContext ctx) throws SSLException {
+            SslHandler sslHandler = sslHandler(ctx.alloc(), certificate);
+            try {
+                ctx.pipeline()
+                   .addAfter(ctx.name(), null, new AlpnHandler())
+                   .replace(ctx.name(), null, sslHandler);
+                sslHandler = null;
+            } finally {
+                if (sslHandler != null) {
+                    safeRelease(sslHandler.engine());
+                }
+            }
+        }
+
+        private void fireCompletionEvents(ChannelHandlerContext ctx, Future<String> future) {
+            Throwable cause = future.cause();
+            if (cause == null) {
+                ctx.fireUserEventTriggered(new SniCompletionEvent(hostname));
+                ctx.fireUserEventTriggered(new AlpnCompletionEvent(protocols));
+            } else {
+                ctx.fireUserEventTriggered(new SniCompletionEvent(hostname, cause));
+                ctx.fireUserEventTriggered(new AlpnCompletionEvent(protocols, cause));
             }
-            return connectionContext.tlsCtx().protocolPromise();
         }
     }
 
@@ -42,14 +42,20 @@ package ai.safekids.httpproxy.http;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpHeaderValues;
 import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http2.Http2CodecUtil;
 import io.netty.handler.codec.http2.Http2Headers;
 
 import static io.netty.handler.codec.http.HttpHeaderNames.*;
-import static java.lang.Integer.*;
 
 public class HttpHeadersUtil {
 
+    private static final HttpMethod[] KNOWN_METHODS = {
+            HttpMethod.GET, HttpMethod.POST, HttpMethod.PUT, HttpMethod.DELETE, HttpMethod.HEAD,
+            HttpMethod.OPTIONS, HttpMethod.PATCH, HttpMethod.CONNECT, HttpMethod.TRACE
+    };
+
     private HttpHeadersUtil() {
     }
 
@@ -60,10 +66,7 @@ public class HttpHeadersUtil {
      * @return the content type
      */
     public static String getContentType(HttpHeaders headers) {
-        if (headers.contains(CONTENT_TYPE)) {
-            return headers.get(CONTENT_TYPE).split(";")[0];
-        }
-        return null;
+        return mediaType(headers.get(CONTENT_TYPE));
     }
 
     /**
@@ -73,10 +76,25 @@ public class HttpHeadersUtil {
      * @return the content type
      */
     public static String getContentType(Http2Headers headers) {
-        if (headers.contains(CONTENT_TYPE)) {
-            return headers.get(CONTENT_TYPE).toString().split(";")[0];
+        return mediaType(headers.get(CONTENT_TYPE));
+    }
+
+    /**
+     * Get the media type of a content type header value, the parameters are dropped.
+     *
+     * @param contentType the header value, could be {@code null}
+     * @return the media type, or {@code null} if the value is {@code null}
+     */
+    public static String mediaType(CharSequence contentType) {
+        if (contentType == null) {
+            return null;
+        }
+        for (int i = 0; i < contentType.length(); i++) {
+            if (contentType.charAt(i) == ';') {
+                return contentType.subSequence(0, i).toString();
+            }
         }
-        return null;
+        return contentType.toString();
     }
 
     /**
@@ -86,7 +104,23 @@ public class HttpHeadersUtil {
      * @return the status
      */
     public static HttpResponseStatus getStatus(Http2Headers headers) {
-        return HttpResponseStatus.valueOf(parseInt(headers.status().toString()));
+        return HttpResponseStatus.parseLine(headers.status());
+    }
+
+    /**
+     * Get the method from http2 headers, the well-known methods are shared instead of parsed.
+     *
+     * @param headers the http2 headers
+     * @return the method
+     */
+    public static HttpMethod getMethod(Http2Headers headers) {
+        CharSequence method = headers.method();
+        for (HttpMethod known : KNOWN_METHODS) {
+            if (known.asciiName().contentEquals(method)) {
+                return known;
+            }
+        }
+        return HttpMethod.valueOf(method.toString());
     }
 
     /**
@@ -100,4 +134,16 @@ public class HttpHeadersUtil {
                headers.containsValue(HttpHeaderNames.CONNECTION, HttpHeaderValues.UPGRADE, true) &&
                headers.contains(HttpHeaderNames.UPGRADE, HttpHeaderValues.WEBSOCKET, true);
     }
+
+    /**
+     * Get whether is a h2c upgrade or not.
+     *
+     * @param headers the http headers
+     * @return {@code true} if it's a h2c upgrade, otherwise, {@code false}
+     */
+    public static boolean isH2cUpgrade(HttpHeaders headers) {
+        return headers.containsValue(HttpHeaderNames.CONNECTION, HttpHeaderValues.UPGRADE, true) &&
+               headers.containsValue(HttpHeaderNames.UPGRADE, Http2CodecUtil.HTTP_UPGRADE_PROTOCOL_NAME, true) &&
+               headers.contains(Http2CodecUtil.HTTP_UPGRADE_SETTINGS_HEADER);
+    }
 }
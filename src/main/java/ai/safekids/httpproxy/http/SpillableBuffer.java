@@ -0,0 +1,294 @@
+/*
+ * Copyright 2021 - Safe Kids LLC
+ *
+ * The complete license agreement is available at https://safekids.ai/eula
+ *
+ *
+ * LICENSE GRANT
+ * ==============================================
+ * Licensor hereby grants to you a non-exclusive and non-transferable license to use the Software and
+ * related documentation (the "Documentation") solely for the intended purposes of the Software as set forth in the
+ * Documentation, according to the provisions contained herein and subject to payment of applicable license fees.
+ * You are not permitted to lease, rent, distribute or sublicense the Software or any rights therein.
+ * You also may not install the Software on a network server, use the Software in a time-sharing arrangement or
+ * in any other unauthorized manner. Further, no license is granted to you in the human readable code of the Software
+ *  (source code). Except as provided below, this Agreement does not grant you any rights to patents, copyrights,
+ *  trade secrets, trademarks, or any other rights in the Software and Documentation.
+ *
+ * NO MODIFICATION, NO REVERSE ENGINEERING
+ * ===============================================
+ * You agree not to, without the prior written permission of Licensor: (i); disassemble, decompile or "unlock",
+ * decode or otherwise reverse translate or engineer, or attempt in any manner to reconstruct or discover any source
+ * code or underlying algorithms of the Software, if provided in object code form only; (ii) use, copy,
+ * modify, translate,reverse engineer, decompile, disassemble, or create derivative works of the Software and
+ * any accompanying documents, or assist someone in performing such prohibited acts; or (iii) transfer, rent,
+ * lease, or sub license the Software.
+ *
+ * NO WARRANTIES.
+ * ===============================================
+ * LICENSOR MAKES NO WARRANTIES, EXPRESS OR IMPLIED, INCLUDING, BUT NOT LIMITED TO, IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, TITLE, AND NON-INFRINGEMENT OF THIRD PARTIES' RIGHTS.
+ * THE SOFTWARE (INCLUDING SOURCE CODE) IS PROVIDED TO YOU ON AN "AS IS" BASIS. TO THE FULL EXTENT PERMITTED BY LAW,
+ * THE DURATION OF STATUTORILY REQUIRED WARRANTIES, IF ANY, SHALL BE LIMITED TO THE ABOVE LIMITED WARRANTY PERIOD.
+ * MOREOVER, IN NO EVENT WILL WARRANTIES PROVIDED BY LAW, IF ANY, APPLY UNLESS THEY ARE REQUIRED TO APPLY BY
+ * STATUTE NOTWITHSTANDING THEIR EXCLUSION BY CONTRACT. NO DEALER, AGENT, OR EMPLOYEE OF LICENSOR IS AUTHORIZED TO
+ * MAKE ANY MODIFICATIONS, EXTENSIONS, OR ADDITIONS TO THIS LIMITED WARRANTY. THE ENTIRE RISK ARISING OUT OF USE OR
+ * PERFORMANCE OF THE SOFTWARE REMAINS WITH YOU.
+ *
+ */
+
+package ai.safekids.httpproxy.http;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.buffer.UnpooledDirectByteBuf;
+import io.netty.util.internal.PlatformDependent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Accumulates a body in memory up to a limit, and spills it to a temp file beyond the limit.
+ *
+ * <p>The memory is reserved from both the limit of this buffer and the shared {@link MemoryBudget}, the buffer
+ * spills as soon as either one is exhausted. A chunk is only retained if it doesn't pin a much larger buffer,
+ * otherwise it is copied, and the memory retained is what's reserved. The temp file is deleted once closed, the
+ * spilled body is read back as a private memory mapping of the file, so it is paged in by the os instead of being
+ * copied to the heap.</p>
+ *
+ * <p>{@link #tryAppend(ByteBuf)} never touches the temp file, while {@link #append(ByteBuf)} blocks the calling
+ * thread on writing it, so the latter must be called off the event loops.</p>
+ */
+public class SpillableBuffer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SpillableBuffer.class);
+
+    private static final int MAX_COMPONENTS = 1024;
+
+    private final ByteBufAllocator alloc;
+    private final long memoryLimit;
+    private final MemoryBudget budget;
+    private final Path directory;
+
+    private BudgetedByteBuf memory;
+    private FileChannel file;
+    private long size;
+
+    /**
+     * Create a buffer.
+     *
+     * @param alloc       the allocator of the in-memory body
+     * @param memoryLimit the number of bytes held in memory before spilling
+     * @param budget      the budget shared with the other buffers
+     * @param directory   the directory of the temp file, or {@code null} for the default temp directory
+     */
+    public SpillableBuffer(ByteBufAllocator alloc, long memoryLimit, MemoryBudget budget, Path directory) {
+        this.alloc = alloc;
+        this.memoryLimit = memoryLimit;
+        this.budget = budget;
+        this.directory = directory;
+    }
+
+    /**
+     * Append the readable bytes of the buffer if they can be held in memory, the buffer is neither released nor
+     * consumed.
+     *
+     * @param buf the buffer
+     * @return {@code true} if appended, {@code false} if the buffer is spilled or out of memory
+     */
+    public boolean tryAppend(ByteBuf buf) {
+        int length = buf.readableBytes();
+        if (length == 0) {
+            return true;
+        }
+        if (file != null) {
+            return false;
+        }
+        ByteBuf chunk = retainedCapacity(buf) > length * 2L? alloc.buffer(length, length) : buf;
+        if (!reserve(chunk.capacity())) {
+            if (chunk != buf) {
+                chunk.release();
+            }
+            return false;
+        }
+        memory.addComponent(true, (chunk != buf)? chunk.writeBytes(buf, buf.readerIndex(), length) : buf.retain());
+        size += length;
+        return true;
+    }
+
+    /**
+     * Append the readable bytes of the buffer, the buffer is neither released nor consumed. The buffer is spilled to
+     * the temp file if the bytes can't be held in memory, which blocks the calling thread.
+     *
+     * @param buf the buffer
+     * @throws IOException if the temp file could not be written
+     */
+    public void append(ByteBuf buf) throws IOException {
+        if (tryAppend(buf)) {
+            return;
+        }
+        if (file == null) {
+            spill();
+        }
+        write(buf);
+        size += buf.readableBytes();
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public boolean isSpilled() {
+        return file != null;
+    }
+
+    /**
+     * Get the body, the ownership is transferred to the caller, and this buffer becomes empty.
+     *
+     * <p>The memory reserved for the body is given back when the returned buffer is released.</p>
+     *
+     * @return the body
+     * @throws IOException if the temp file could not be mapped
+     */
+    public ByteBuf content() throws IOException {
+        try {
+            if (file != null) {
+                MappedByteBuffer mapped = file.map(MapMode.PRIVATE, 0, size);
+                return new MappedByteBuf(mapped);
+            }
+            if (memory == null) {
+                return alloc.buffer(0);
+            }
+            ByteBuf content = memory;
+            memory = null;
+            return content;
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Release the body if it was not taken, the temp file is deleted.
+     */
+    public void release() {
+        if (memory != null) {
+            memory.release();
+            memory = null;
+        }
+        if (file != null) {
+            close(file);
+            file = null;
+        }
+        size = 0;
+    }
+
+    private boolean reserve(int length) {
+        long reserved = memory == null? 0 : memory.reserved;
+        if (reserved + length > memoryLimit || !budget.tryReserve(length)) {
+            return false;
+        }
+        if (memory == null) {
+            memory = new BudgetedByteBuf(alloc, budget);
+        }
+        memory.reserved += length;
+        return true;
+    }
+
+    /**
+     * Get the capacity of the buffer which holds the bytes, e.g. a slice of a read buffer keeps the read buffer.
+     */
+    private static int retainedCapacity(ByteBuf buf) {
+        ByteBuf retained = buf;
+        while (retained.unwrap() != null) {
+            retained = retained.unwrap();
+        }
+        return retained.capacity();
+    }
+
+    private void spill() throws IOException {
+        Path path = directory == null
+                ? Files.createTempFile("nitmproxy-", ".body")
+                : Files.createTempFile(directory, "nitmproxy-", ".body");
+        try {
+            file = FileChannel.open(path, READ, WRITE, DELETE_ON_CLOSE);
+        } catch (IOException e) {
+            Files.deleteIfExists(path);
+            throw e;
+        }
+        LOGGER.debug("Spill body of {} bytes to {}", size, path);
+        if (memory != null) {
+            write(memory);
+            memory.release();
+            memory = null;
+        }
+    }
+
+    private void write(ByteBuf buf) throws IOException {
+        int index = buf.readerIndex();
+        int remaining = buf.readableBytes();
+        long position = file.size();
+        while (remaining > 0) {
+            int written = buf.getBytes(index, file, position, remaining);
+            index += written;
+            position += written;
+            remaining -= written;
+        }
+    }
+
+    private static void close(FileChannel file) {
+        try {
+            file.close();
+        } catch (IOException e) {
+            LOGGER.warn("Failed to close spilled body", e);
+        }
+    }
+
+    /**
+     * The in-memory body, which gives back its reserved bytes when deallocated.
+     */
+    private static class BudgetedByteBuf extends CompositeByteBuf {
+
+        private final MemoryBudget budget;
+        private long reserved;
+
+        private BudgetedByteBuf(ByteBufAllocator alloc, MemoryBudget budget) {
+            super(alloc, true, MAX_COMPONENTS);
+            this.budget = budget;
+        }
+
+        @Override
+        protected void deallocate() {
+            super.deallocate();
+            budget.release(reserved);
+        }
+    }
+
+    /**
+     * The spilled body, which is unmapped when deallocated instead of waiting for the gc.
+     */
+    private static class MappedByteBuf extends UnpooledDirectByteBuf {
+
+        private final MappedByteBuffer mapped;
+
+        private MappedByteBuf(MappedByteBuffer mapped) {
+            super(UnpooledByteBufAllocator.DEFAULT, mapped, mapped.capacity());
+            this.mapped = mapped;
+        }
+
+        @Override
+        protected void deallocate() {
+            super.deallocate();
+            PlatformDependent.freeDirectBuffer(mapped);
+        }
+    }
+}
@@ -50,7 +50,7 @@ public class HttpEventLogger implements NitmProxyListener {
 
     @Override
     public void onHttpEvent(HttpEvent event) {
-        if (!HttpMethod.CONNECT.equals(event.getMethod())) {
+        if (LOGGER.isInfoEnabled() && !HttpMethod.CONNECT.equals(event.getMethod())) {
             LOGGER.info("{} {} {} {} {} {} {} {}",
                     event.getResponseTime() - event.getRequestTime(),
                     event.getHost(),
@@ -52,6 +52,7 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.websocketx.WebSocketFrame;
 import io.netty.handler.codec.http2.Http2Headers;
 import io.netty.util.concurrent.Future;
@@ -83,11 +84,41 @@ public interface NitmProxyListener {
     /**
      * This callback will be invoked when a full request and response was served.
      *
-     * @param event the http event
+     * <p>The event is reused after the callback returned, use {@link HttpEvent#snapshot()} to keep it.</p>
+     *
+     * @param event the http event, only valid during the callback
      */
     default void onHttpEvent(HttpEvent event) {
     }
 
+    /**
+     * This callback will be invoked when receiving the headers of a request from client, before the body was read.
+     * It's invoked for every request, so decisions based on the host, path and headers should be made here, which
+     * never requires the body to be aggregated. The request line and headers could be rewritten in place.
+     *
+     * @param connectionContext the connection context
+     * @param request           the request, its body must not be accessed even if it's a {@link FullHttpRequest}
+     * @return response if you want to intercept the request, the body of the request will be discarded
+     */
+    default Future<Optional<FullHttpResponse>> onHttp1RequestHeaders(ChannelHandlerContext ctx,
+                                                                     ConnectionContext connectionContext,
+                                                                     HttpRequest request) {
+        return ctx.executor().newSucceededFuture(Optional.empty());
+    }
+
+    /**
+     * Decide whether the body of the request should be aggregated, only the aggregated requests are passed to
+     * {@link #onHttp1Request(ChannelHandlerContext, ConnectionContext, FullHttpRequest)} when HTTP/1 streaming is
+     * enabled. Otherwise, every request is aggregated and this is not invoked.
+     *
+     * @param connectionContext the connection context
+     * @param request           the request headers
+     * @return {@code true} if the listener wants to inspect the full request
+     */
+    default boolean aggregateHttp1Request(ConnectionContext connectionContext, HttpRequest request) {
+        return false;
+    }
+
     /**
      * This callback will be invoked when receiving a request from client.
      *
@@ -114,6 +145,19 @@ public interface NitmProxyListener {
         return ImmutableList.of(response);
     }
 
+    /**
+     * Decide whether the body of the request should be aggregated, only the aggregated requests are passed to
+     * {@link #onHttp2Request(ChannelHandlerContext, ConnectionContext, Http2FramesWrapper)} when HTTP/2 streaming is
+     * enabled. Otherwise, every request is aggregated and this is not invoked.
+     *
+     * @param connectionContext the connection context
+     * @param headers           the request headers
+     * @return {@code true} if the listener wants to inspect the full request
+     */
+    default boolean aggregateHttp2Request(ConnectionContext connectionContext, Http2Headers headers) {
+        return false;
+    }
+
     /**
      * This callback will be invoked when receiving a request from client.
      *
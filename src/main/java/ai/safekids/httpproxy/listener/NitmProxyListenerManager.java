@@ -53,6 +53,7 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.websocketx.WebSocketFrame;
 import io.netty.handler.codec.http2.Http2Headers;
 import io.netty.util.concurrent.Future;
@@ -91,6 +92,47 @@ public class NitmProxyListenerManager implements NitmProxyListener {
         listeners.forEach(listener -> listener.onHttpEvent(event));
     }
 
+    @Override
+    public Future<Optional<FullHttpResponse>> onHttp1RequestHeaders(ChannelHandlerContext ctx,
+                                                                    ConnectionContext connectionContext,
+                                                                    HttpRequest request) {
+        // Listeners are asked one by one, so a rewrite is seen by the following listeners, and the first
+        // response wins without asking the rest
+        return onHttp1RequestHeaders(ctx, connectionContext, request, 0);
+    }
+
+    private Future<Optional<FullHttpResponse>> onHttp1RequestHeaders(ChannelHandlerContext ctx,
+                                                                     ConnectionContext connectionContext,
+                                                                     HttpRequest request, int index) {
+        for (int i = index; i < listeners.size(); i++) {
+            Future<Optional<FullHttpResponse>> future =
+                listeners.get(i).onHttp1RequestHeaders(ctx, connectionContext, request);
+            if (!future.isDone()) {
+                int next = i + 1;
+                Promise<Optional<FullHttpResponse>> promise = ctx.executor().newPromise();
+                future.addListener(f -> {
+                    if (f.isSuccess() && future.getNow().isPresent()) {
+                        promise.setSuccess(future.getNow());
+                    } else {
+                        Future<Optional<FullHttpResponse>> rest =
+                            onHttp1RequestHeaders(ctx, connectionContext, request, next);
+                        rest.addListener(r -> promise.setSuccess(rest.isSuccess()? rest.getNow() : Optional.empty()));
+                    }
+                });
+                return promise;
+            }
+            if (future.isSuccess() && future.getNow().isPresent()) {
+                return future;
+            }
+        }
+        return ctx.executor().newSucceededFuture(Optional.empty());
+    }
+
+    @Override
+    public boolean aggregateHttp1Request(ConnectionContext connectionContext, HttpRequest request) {
+        return listeners.stream().anyMatch(listener -> listener.aggregateHttp1Request(connectionContext, request));
+    }
+
     @Override
     public Promise<Optional<FullHttpResponse>> onHttp1Request(ChannelHandlerContext ctx,
                                                               ConnectionContext connectionContext,
@@ -136,6 +178,11 @@ public class NitmProxyListenerManager implements NitmProxyListener {
                            .collect(ImmutableList.toImmutableList()), (accu, objects) -> objects);
     }
 
+    @Override
+    public boolean aggregateHttp2Request(ConnectionContext connectionContext, Http2Headers headers) {
+        return listeners.stream().anyMatch(listener -> listener.aggregateHttp2Request(connectionContext, headers));
+    }
+
     @Override
     public Future<Optional<Http2FramesWrapper>> onHttp2Request(ChannelHandlerContext ctx,
                                                                ConnectionContext connectionContext,
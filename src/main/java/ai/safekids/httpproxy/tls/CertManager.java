@@ -40,34 +40,81 @@
 package ai.safekids.httpproxy.tls;
 
 import ai.safekids.httpproxy.NitmProxyConfig;
+import ai.safekids.httpproxy.enums.LeafKeyStrategy;
 import ai.safekids.httpproxy.exception.NitmProxyException;
+import ai.safekids.httpproxy.util.CoalescingExecutor;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.net.InternetDomainName;
+import io.netty.util.NetUtil;
+import io.netty.util.NettyRuntime;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
 import org.bouncycastle.asn1.pkcs.PrivateKeyInfo;
 import org.bouncycastle.cert.X509CertificateHolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 import static com.google.common.base.Preconditions.*;
 
 public class CertManager {
 
+    private static final Logger LOGGER = LoggerFactory.getLogger(CertManager.class);
+
     private static final int CERT_CACHE_SIZE = 2000;
+    private static final int SIGNING_THREADS = Math.max(1, NettyRuntime.availableProcessors() / 2);
 
     private final X509CertificateHolder certificate;
     private final PrivateKeyInfo key;
 
+    private final boolean wildcard;
+    private final LeafKeyPool leafKeyPool;
+    private final CertStore certStore;
     private LoadingCache<String, Certificate> certsCache;
+    private final List<Consumer<Certificate>> rotationListeners = new CopyOnWriteArrayList<>();
+
+    private final CoalescingExecutor<String, Certificate> signings;
+    private final ExecutorService ownedExecutor;
 
     public CertManager(NitmProxyConfig config) {
+        this(config, Executors.newFixedThreadPool(SIGNING_THREADS,
+                                                  new DefaultThreadFactory("nitmproxy-signer", true)), true);
+    }
+
+    public CertManager(NitmProxyConfig config, Executor signingExecutor) {
+        this(config, signingExecutor, false);
+    }
+
+    private CertManager(NitmProxyConfig config, Executor signingExecutor, boolean ownsExecutor) {
+        this.signings = new CoalescingExecutor<>(signingExecutor);
+        this.ownedExecutor = ownsExecutor? (ExecutorService) signingExecutor : null;
         this.certificate = checkNotNull(config.getCertificate(), "certificate");
         this.key = checkNotNull(config.getKey(), "key");
+        this.wildcard = config.isWildcardCerts();
+        this.leafKeyPool = (config.getLeafKeyStrategy() == LeafKeyStrategy.EC_POOL)? new LeafKeyPool() : null;
+        this.certStore = (config.getCertStoreFile() != null)
+                ? CertStore.open(new File(config.getCertStoreFile()), certificate)
+                : null;
         this.certsCache = CacheBuilder
                 .newBuilder()
                 .expireAfterWrite(1, TimeUnit.DAYS)
                 .maximumSize(CERT_CACHE_SIZE)
+                .removalListener((RemovalNotification<String, Certificate> notification) ->
+                        rotationListeners.forEach(listener -> listener.accept(notification.getValue())))
                 .build(new CacheLoader<String, Certificate>() {
                     @Override
                     public Certificate load(String host) {
@@ -78,13 +125,113 @@ public class CertManager {
 
     public Certificate getCert(String host) {
         try {
-            return certsCache.get(host);
+            return certsCache.get(certHost(host));
         } catch (ExecutionException e) {
             throw new NitmProxyException("Create cert failed", e.getCause());
         }
     }
 
+    /**
+     * Get the cert of the host without blocking, the cert will be created by the signing executor if absent, and
+     * concurrent requests of the same host share a single signing.
+     *
+     * @param eventExecutor the executor to notify the returned future
+     * @param host          the host
+     * @return the future of the cert
+     */
+    public Future<Certificate> getCert(EventExecutor eventExecutor, String host) {
+        String certHost = certHost(host);
+        Certificate cached = certsCache.getIfPresent(certHost);
+        if (cached != null) {
+            return eventExecutor.newSucceededFuture(cached);
+        }
+
+        return signings.submit(eventExecutor, certHost, this::getCert);
+    }
+
+    /**
+     * Check whether the cert of the host is created or being created for a handshake.
+     *
+     * @param host the host
+     * @return {@code true} if the cert need not be created ahead
+     */
+    public boolean hasCert(String host) {
+        String certHost = certHost(host);
+        return certsCache.getIfPresent(certHost) != null || signings.isPending(certHost);
+    }
+
+    /**
+     * Check whether any cert is being created for a handshake.
+     *
+     * @return {@code true} if there are handshakes waiting for certs
+     */
+    public boolean isSigning() {
+        return signings.hasPendings();
+    }
+
+    /**
+     * Drop the cert of the host, a new cert will be created on next access.
+     *
+     * @param host the host
+     */
+    public void rotate(String host) {
+        certsCache.invalidate(certHost(host));
+    }
+
+    /**
+     * Add a listener which will be notified with the old cert whenever a cert is rotated or evicted.
+     *
+     * @param listener the listener
+     */
+    public void addRotationListener(Consumer<Certificate> listener) {
+        rotationListeners.add(listener);
+    }
+
+    /**
+     * Get the host of the cert which serves the host. If wildcard certs are enabled, the subdomains of a registrable
+     * domain share a single {@code *.parent} cert, e.g. {@code img1.example.com} and {@code img2.example.com} are
+     * both served by {@code *.example.com}, which also covers {@code example.com}.
+     *
+     * @param host the host
+     * @return the host of the cert
+     */
+    String certHost(String host) {
+        if (!wildcard || host.startsWith("*.") || NetUtil.isValidIpV4Address(host)
+            || NetUtil.isValidIpV6Address(host) || !InternetDomainName.isValid(host)) {
+            return host;
+        }
+        InternetDomainName name = InternetDomainName.from(host);
+        if (!name.isUnderPublicSuffix()) {
+            return host;
+        }
+        return "*." + (name.isTopPrivateDomain()? name : name.parent());
+    }
+
+    /**
+     * Stop the signing threads created by this manager and close the cert store, the certs created afterwards are
+     * no longer persisted.
+     */
+    public void close() {
+        if (ownedExecutor != null) {
+            ownedExecutor.shutdownNow();
+        }
+        if (certStore != null) {
+            try {
+                certStore.close();
+            } catch (IOException e) {
+                LOGGER.warn("Close cert store failed", e);
+            }
+        }
+    }
+
     private Certificate createCert(String host) {
-        return CertUtil.newCert(certificate, key, host);
+        Certificate cert = (certStore != null)? certStore.get(host) : null;
+        if (cert == null) {
+            cert = CertUtil.newCert(certificate, key, host, (leafKeyPool != null)? leafKeyPool.next() : null);
+            if (certStore != null) {
+                certStore.put(host, cert);
+            }
+        }
+        return cert;
     }
 }
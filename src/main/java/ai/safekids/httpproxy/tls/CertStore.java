@@ -0,0 +1,384 @@
+/*
+ * Copyright 2021 - Safe Kids LLC
+ *
+ * The complete license agreement is available at https://safekids.ai/eula
+ *
+ *
+ * LICENSE GRANT
+ * ==============================================
+ * Licensor hereby grants to you a non-exclusive and non-transferable license to use the Software and
+ * related documentation (the "Documentation") solely for the intended purposes of the Software as set forth in the
+ * Documentation, according to the provisions contained herein and subject to payment of applicable license fees.
+ * You are not permitted to lease, rent, distribute or sublicense the Software or any rights therein.
+ * You also may not install the Software on a network server, use the Software in a time-sharing arrangement or
+ * in any other unauthorized manner. Further, no license is granted to you in the human readable code of the Software
+ *  (source code). Except as provided below, this Agreement does not grant you any rights to patents, copyrights,
+ *  trade secrets, trademarks, or any other rights in the Software and Documentation.
+ *
+ * NO MODIFICATION, NO REVERSE ENGINEERING
+ * ===============================================
+ * You agree not to, without the prior written permission of Licensor: (i); disassemble, decompile or "unlock",
+ * decode or otherwise reverse translate or engineer, or attempt in any manner to reconstruct or discover any source
+ * code or underlying algorithms of the Software, if provided in object code form only; (ii) use, copy,
+ * modify, translate,reverse engineer, decompile, disassemble, or create derivative works of the Software and
+ * any accompanying documents, or assist someone in performing such prohibited acts; or (iii) transfer, rent,
+ * lease, or sub license the Software.
+ *
+ * NO WARRANTIES.
+ * ===============================================
+ * LICENSOR MAKES NO WARRANTIES, EXPRESS OR IMPLIED, INCLUDING, BUT NOT LIMITED TO, IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, TITLE, AND NON-INFRINGEMENT OF THIRD PARTIES' RIGHTS.
+ * THE SOFTWARE (INCLUDING SOURCE CODE) IS PROVIDED TO YOU ON AN "AS IS" BASIS. TO THE FULL EXTENT PERMITTED BY LAW,
+ * THE DURATION OF STATUTORILY REQUIRED WARRANTIES, IF ANY, SHALL BE LIMITED TO THE ABOVE LIMITED WARRANTY PERIOD.
+ * MOREOVER, IN NO EVENT WILL WARRANTIES PROVIDED BY LAW, IF ANY, APPLY UNLESS THEY ARE REQUIRED TO APPLY BY
+ * STATUTE NOTWITHSTANDING THEIR EXCLUSION BY CONTRACT. NO DEALER, AGENT, OR EMPLOYEE OF LICENSOR IS AUTHORIZED TO
+ * MAKE ANY MODIFICATIONS, EXTENSIONS, OR ADDITIONS TO THIS LIMITED WARRANTY. THE ENTIRE RISK ARISING OUT OF USE OR
+ * PERFORMANCE OF THE SOFTWARE REMAINS WITH YOU.
+ *
+ */
+
+package ai.safekids.httpproxy.tls;
+
+import ai.safekids.httpproxy.exception.NitmProxyException;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.*;
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * The persistent store of the leaf certs, so the certs survive restarts and need not be signed again.
+ *
+ * <p>The certs are appended to a single file, the latest record of a host wins. Only the offsets of the records are
+ * kept in memory, a record is read from the file when it's requested. The file is bound to the fingerprint of the CA
+ * cert, it will be discarded once the CA is changed.</p>
+ */
+public class CertStore implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CertStore.class);
+
+    private static final byte[] MAGIC = "NITMCERT".getBytes(US_ASCII);
+    private static final int VERSION = 1;
+    private static final long EXPIRY_MARGIN_MILLIS = TimeUnit.DAYS.toMillis(1);
+    private static final int MAX_RECORD_LENGTH = 64 * 1024;
+    private static final FileAttribute<Set<PosixFilePermission>> OWNER_ONLY =
+            PosixFilePermissions.asFileAttribute(EnumSet.of(PosixFilePermission.OWNER_READ,
+                                                            PosixFilePermission.OWNER_WRITE));
+
+    private final Path path;
+    private final X509Certificate caCert;
+    private final byte[] caFingerprint;
+    private final Map<String, Record> index = new ConcurrentHashMap<>();
+
+    private FileChannel channel;
+    private long headerLength;
+
+    private CertStore(Path path, X509Certificate caCert, byte[] caFingerprint) {
+        this.path = path;
+        this.caCert = caCert;
+        this.caFingerprint = caFingerprint;
+    }
+
+    /**
+     * Open the store, the file will be created if absent, or discarded if it was created for other CA.
+     *
+     * @param file the file of the store
+     * @param ca   the CA cert which signs the leaf certs
+     * @return the store
+     * @throws NitmProxyException if the file can't be opened
+     */
+    public static CertStore open(File file, X509CertificateHolder ca) {
+        try {
+            CertStore store = new CertStore(
+                    file.toPath(),
+                    new JcaX509CertificateConverter().getCertificate(ca),
+                    MessageDigest.getInstance("SHA-256").digest(ca.getEncoded()));
+            store.load();
+            return store;
+        } catch (Exception e) {
+            throw new NitmProxyException("Open cert store failed: " + file, e);
+        }
+    }
+
+    /**
+     * Get the cert of the host.
+     *
+     * @param host the host
+     * @return the cert, or {@code null} if absent or about to expire
+     */
+    public Certificate get(String host) {
+        Record record = index.get(host);
+        if (record == null) {
+            return null;
+        }
+        if (record.isExpired()) {
+            index.remove(host, record);
+            return null;
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(record.length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, record.offset + buffer.position()) < 0) {
+                    throw new IOException("Unexpected end of cert store");
+                }
+            }
+            return decode(buffer.array());
+        } catch (Exception e) {
+            LOGGER.warn("Read cert of {} from store failed", host, e);
+            index.remove(host, record);
+            return null;
+        }
+    }
+
+    /**
+     * Append the cert of the host to the store, failures are logged since the store is only a cache.
+     *
+     * @param host the host
+     * @param cert the cert
+     */
+    public synchronized void put(String host, Certificate cert) {
+        try {
+            X509Certificate leaf = cert.getChain()[0];
+            byte[] content = encode(host, cert);
+            long offset = channel.size();
+            ByteBuffer buffer = ByteBuffer.allocate(4 + content.length);
+            buffer.putInt(content.length).put(content).flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, offset + buffer.position());
+            }
+            index.put(host, new Record(offset + 4, content.length, leaf.getNotAfter().getTime()));
+        } catch (Exception e) {
+            LOGGER.warn("Write cert of {} to store failed", host, e);
+        }
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    private void load() throws IOException {
+        channel = open(path, CREATE, READ, WRITE);
+        // created by an older version, or by other tools
+        restrictPermissions(path);
+        if (!readHeader()) {
+            if (channel.size() > 0) {
+                LOGGER.info("Discard cert store {} which was created for other CA", path);
+            }
+            channel.truncate(0);
+            writeHeader(channel);
+            return;
+        }
+
+        int records = 0;
+        long offset = headerLength;
+        ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+        while (true) {
+            lengthBuffer.clear();
+            if (!readFully(lengthBuffer, offset)) {
+                break;
+            }
+            int length = lengthBuffer.getInt(0);
+            if (length <= 0 || length > MAX_RECORD_LENGTH || offset + 4 + length > channel.size()) {
+                break;
+            }
+            ByteBuffer content = ByteBuffer.allocate(length);
+            readFully(content, offset + 4);
+            try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(content.array()))) {
+                String host = input.readUTF();
+                long notAfter = input.readLong();
+                index.put(host, new Record(offset + 4, length, notAfter));
+            }
+            records++;
+            offset += 4 + length;
+        }
+        if (offset < channel.size()) {
+            LOGGER.warn("Truncate the incomplete records of cert store {}", path);
+            channel.truncate(offset);
+        }
+        index.values().removeIf(Record::isExpired);
+        if (records > 2 * index.size()) {
+            compact();
+        }
+        LOGGER.info("Loaded {} certs from cert store {}", index.size(), path);
+    }
+
+    /**
+     * Rewrite the file with only the live records.
+     */
+    private void compact() throws IOException {
+        Path compacting = path.resolveSibling(path.getFileName() + ".compacting");
+        // a leftover of an interrupted compaction may have looser permissions
+        Files.deleteIfExists(compacting);
+        try (FileChannel target = open(compacting, CREATE_NEW, WRITE)) {
+            writeHeader(target);
+            for (Map.Entry<String, Record> entry : index.entrySet()) {
+                Record record = entry.getValue();
+                long offset = target.size();
+                long transferred = 0;
+                while (transferred < record.length + 4) {
+                    transferred += channel.transferTo(record.offset - 4 + transferred,
+                                                      record.length + 4 - transferred, target);
+                }
+                entry.setValue(new Record(offset + 4, record.length, record.notAfter));
+            }
+            target.force(true);
+        }
+        channel.close();
+        Files.move(compacting, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(path, READ, WRITE);
+    }
+
+    private boolean readHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 4 + 4 + caFingerprint.length);
+        if (!readFully(header, 0)) {
+            return false;
+        }
+        header.flip();
+        byte[] magic = new byte[MAGIC.length];
+        header.get(magic);
+        if (!Arrays.equals(MAGIC, magic) || header.getInt() != VERSION
+            || header.getInt() != caFingerprint.length) {
+            return false;
+        }
+        byte[] fingerprint = new byte[caFingerprint.length];
+        header.get(fingerprint);
+        headerLength = header.limit();
+        return Arrays.equals(caFingerprint, fingerprint);
+    }
+
+    private void writeHeader(FileChannel target) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 4 + 4 + caFingerprint.length);
+        header.put(MAGIC).putInt(VERSION).putInt(caFingerprint.length).put(caFingerprint).flip();
+        while (header.hasRemaining()) {
+            target.write(header);
+        }
+        headerLength = header.limit();
+    }
+
+    private boolean readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The records contain private keys, so only the owner should be able to read the file, the permissions are set
+     * when the file is created, before any key is written.
+     */
+    private static FileChannel open(Path file, OpenOption... options) throws IOException {
+        Set<OpenOption> openOptions = new HashSet<>(Arrays.asList(options));
+        try {
+            return FileChannel.open(file, openOptions, OWNER_ONLY);
+        } catch (UnsupportedOperationException e) {
+            // not a posix file system
+            return FileChannel.open(file, openOptions);
+        }
+    }
+
+    private static void restrictPermissions(Path file) throws IOException {
+        try {
+            Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("rw-------"));
+        } catch (UnsupportedOperationException ignore) {
+            // not a posix file system
+        }
+    }
+
+    private static byte[] encode(String host, Certificate cert) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream output = new DataOutputStream(bytes)) {
+            KeyPair keyPair = cert.getKeyPair();
+            output.writeUTF(host);
+            output.writeLong(cert.getChain()[0].getNotAfter().getTime());
+            output.writeUTF(keyPair.getPrivate().getAlgorithm());
+            writeBytes(output, cert.getChain()[0].getEncoded());
+            writeBytes(output, keyPair.getPublic().getEncoded());
+            writeBytes(output, keyPair.getPrivate().getEncoded());
+        }
+        return bytes.toByteArray();
+    }
+
+    private Certificate decode(byte[] content) throws Exception {
+        try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(content))) {
+            input.readUTF();
+            input.readLong();
+            String keyAlgorithm = input.readUTF();
+            KeyFactory keyFactory = KeyFactory.getInstance("ECDSA".equals(keyAlgorithm)? "EC" : keyAlgorithm);
+            X509Certificate leaf = (X509Certificate) CertificateFactory
+                    .getInstance("X.509")
+                    .generateCertificate(new ByteArrayInputStream(readBytes(input)));
+            PublicKey publicKey = keyFactory.generatePublic(new X509EncodedKeySpec(readBytes(input)));
+            PrivateKey privateKey = keyFactory.generatePrivate(new PKCS8EncodedKeySpec(readBytes(input)));
+            return new Certificate(new KeyPair(publicKey, privateKey), leaf, caCert);
+        }
+    }
+
+    private static void writeBytes(DataOutputStream output, byte[] bytes) throws IOException {
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream input) throws IOException {
+        byte[] bytes = new byte[input.readInt()];
+        input.readFully(bytes);
+        return bytes;
+    }
+
+    private static final class Record {
+        private final long offset;
+        private final int length;
+        private final long notAfter;
+
+        private Record(long offset, int length, long notAfter) {
+            this.offset = offset;
+            this.length = length;
+            this.notAfter = notAfter;
+        }
+
+        private boolean isExpired() {
+            return notAfter - EXPIRY_MARGIN_MILLIS < System.currentTimeMillis();
+        }
+    }
+}
@@ -58,6 +58,7 @@ import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.bouncycastle.openssl.PEMKeyPair;
 import org.bouncycastle.openssl.PEMParser;
 import org.bouncycastle.openssl.jcajce.JcaPEMWriter;
+import org.bouncycastle.openssl.jcajce.JcaPKCS8Generator;
 import org.bouncycastle.openssl.jcajce.JcaPEMKeyConverter;
 import org.bouncycastle.operator.ContentSigner;
 import org.bouncycastle.operator.OperatorCreationException;
@@ -70,15 +71,16 @@ import java.io.OutputStreamWriter;
 import java.math.BigInteger;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.Provider;
-import java.security.PublicKey;
 import java.security.SecureRandom;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.security.spec.ECGenParameterSpec;
 import java.time.Instant;
 import java.time.Year;
 import java.time.ZoneId;
@@ -91,12 +93,28 @@ import static java.nio.charset.StandardCharsets.*;
 public class CertUtil {
 
     private static final Provider PROVIDER = new BouncyCastleProvider();
+    private static final SecureRandom SECURE_RANDOM = new SecureRandom();
+    private static final String EC_CURVE = "secp256r1";
 
     private CertUtil() {
     }
 
-    @SuppressWarnings("deprecation")
     public static Certificate newCert(X509CertificateHolder parent, PrivateKeyInfo key, String host) {
+        return newCert(parent, key, host, null);
+    }
+
+    /**
+     * Create a leaf cert signed by the CA.
+     *
+     * @param parent      the CA cert
+     * @param key         the CA private key
+     * @param host        the host of the leaf cert
+     * @param leafKeyPair the key pair of the leaf cert, {@code null} to use the key pair of the CA
+     * @return the leaf cert
+     */
+    @SuppressWarnings("deprecation")
+    public static Certificate newCert(X509CertificateHolder parent, PrivateKeyInfo key, String host,
+                                      KeyPair leafKeyPair) {
         try {
             //need a date before today to adjust for other time zones
             Date before = Date.from(
@@ -111,17 +129,18 @@ public class CertUtil {
                         .toInstant());
 
             JcaPEMKeyConverter converter = new JcaPEMKeyConverter().setProvider(PROVIDER);
-            PublicKey publicKey = converter.getPublicKey(parent.getSubjectPublicKeyInfo());
             PrivateKey privateKey = converter.getPrivateKey(key);
+            KeyPair keyPair = (leafKeyPair != null)
+                    ? leafKeyPair
+                    : new KeyPair(converter.getPublicKey(parent.getSubjectPublicKeyInfo()), privateKey);
             X509v3CertificateBuilder x509 = new JcaX509v3CertificateBuilder(
                     parent.getSubject(),
-                    new BigInteger(64, new SecureRandom()),
+                    new BigInteger(64, SECURE_RANDOM),
                     before,
                     after,
                     new X500Name("CN=" + host),
-                    publicKey);
-            GeneralNames generalNames = GeneralNames.getInstance(
-                    new DERSequence(new GeneralName(GeneralName.dNSName, host)));
+                    keyPair.getPublic());
+            GeneralNames generalNames = GeneralNames.getInstance(new DERSequence(subjectAltNames(host)));
             x509.addExtension(Extension.subjectAlternativeName, true, generalNames);
 
             //add extended key usage needed for newer Mac OS requirements
@@ -130,14 +149,15 @@ public class CertUtil {
                     true,
                     new ExtendedKeyUsage(KeyPurposeId.id_kp_serverAuth));
 
-            ContentSigner signer = new JcaContentSignerBuilder("SHA256WithRSAEncryption")
+            ContentSigner signer = new JcaContentSignerBuilder(signatureAlgorithm(privateKey))
+                    .setProvider(PROVIDER)
                     .build(privateKey);
 
             JcaX509CertificateConverter x509CertificateConverter = new JcaX509CertificateConverter()
                     .setProvider(PROVIDER);
 
             return new Certificate(
-                    new KeyPair(publicKey, privateKey),
+                    keyPair,
                     x509CertificateConverter.getCertificate(x509.build(signer)),
                     x509CertificateConverter.getCertificate(parent));
         } catch (Exception e) {
@@ -145,6 +165,36 @@ public class CertUtil {
         }
     }
 
+    /**
+     * Get the subject alternative names of the host, a wildcard host also covers its parent domain.
+     *
+     * @param host the host, can be a wildcard like {@code *.example.com}
+     * @return the subject alternative names
+     */
+    private static GeneralName[] subjectAltNames(String host) {
+        if (host.startsWith("*.")) {
+            return new GeneralName[] {
+                    new GeneralName(GeneralName.dNSName, host),
+                    new GeneralName(GeneralName.dNSName, host.substring(2))
+            };
+        }
+        return new GeneralName[] { new GeneralName(GeneralName.dNSName, host) };
+    }
+
+    /**
+     * Get the signature algorithm of the signing key, ECDSA for EC keys, otherwise RSA.
+     *
+     * @param signingKey the signing key
+     * @return the signature algorithm
+     */
+    public static String signatureAlgorithm(PrivateKey signingKey) {
+        String algorithm = signingKey.getAlgorithm();
+        if ("EC".equals(algorithm) || "ECDSA".equals(algorithm)) {
+            return "SHA256withECDSA";
+        }
+        return "SHA256WithRSAEncryption";
+    }
+
     /**
      * Read pem from file.
      *
@@ -207,7 +257,19 @@ public class CertUtil {
     @SuppressWarnings("deprecation")
     public static KeyPair generateKeyPair(int keySize) throws NoSuchAlgorithmException {
         KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
-        keyGen.initialize(keySize, new SecureRandom());
+        keyGen.initialize(keySize, SECURE_RANDOM);
+        return keyGen.generateKeyPair();
+    }
+
+    /**
+     * Generate an ECDSA P-256 key pair.
+     *
+     * @return the key pair
+     * @throws GeneralSecurityException if EC is not supported
+     */
+    public static KeyPair generateEcKeyPair() throws GeneralSecurityException {
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("EC");
+        keyGen.initialize(new ECGenParameterSpec(EC_CURVE), SECURE_RANDOM);
         return keyGen.generateKeyPair();
     }
 
@@ -236,7 +298,7 @@ public class CertUtil {
                 new X500Name(subject),
                 keyPair.getPublic());
         certBuilder.addExtension(Extension.basicConstraints, true, new BasicConstraints(0));
-        ContentSigner signer = new JcaContentSignerBuilder("SHA256WithRSAEncryption")
+        ContentSigner signer = new JcaContentSignerBuilder(signatureAlgorithm(keyPair.getPrivate()))
                 .build(keyPair.getPrivate());
         return new JcaX509CertificateConverter().getCertificate(certBuilder.build(signer));
     }
@@ -250,11 +312,24 @@ public class CertUtil {
      * @param keySize
      * @throws Exception
      */
-    @SuppressWarnings("deprecation")
     public static void createCACertificates(File caCertFile, File caPrivateFile, String subject, int keySize)
             throws Exception {
+        createCACertificates(caCertFile, caPrivateFile, subject, generateKeyPair(keySize));
+    }
 
-        KeyPair keyPair = generateKeyPair(keySize);
+    /**
+     * Create the CA certificate with the key pair, the certificate is signed with ECDSA for EC key pair, otherwise
+     * RSA. It does overwrite existing certificates if they are present.
+     *
+     * @param caCertFile    the file of the CA certificate
+     * @param caPrivateFile the file of the CA private key
+     * @param subject       the subject of the CA certificate
+     * @param keyPair       the key pair of the CA
+     * @throws Exception if failed to create the certificate
+     */
+    @SuppressWarnings("deprecation")
+    public static void createCACertificates(File caCertFile, File caPrivateFile, String subject, KeyPair keyPair)
+            throws Exception {
         if (caCertFile.exists()) {
             caCertFile.delete();
         }
@@ -283,7 +358,8 @@ public class CertUtil {
             caPrivateFile.delete();
         }
 
+        //PKCS#8 keeps the curve of EC keys, which the traditional format drops
         Files.write(caPrivateFile.toPath(),
-                toPem(keyPair.getPrivate()));
+                toPem(new JcaPKCS8Generator(keyPair.getPrivate(), null)));
     }
 }
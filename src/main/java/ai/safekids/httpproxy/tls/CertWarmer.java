@@ -0,0 +1,171 @@
+/*
+ * Copyright 2021 - Safe Kids LLC
+ *
+ * The complete license agreement is available at https://safekids.ai/eula
+ *
+ *
+ * LICENSE GRANT
+ * ==============================================
+ * Licensor hereby grants to you a non-exclusive and non-transferable license to use the Software and
+ * related documentation (the "Documentation") solely for the intended purposes of the Software as set forth in the
+ * Documentation, according to the provisions contained herein and subject to payment of applicable license fees.
+ * You are not permitted to lease, rent, distribute or sublicense the Software or any rights therein.
+ * You also may not install the Software on a network server, use the Software in a time-sharing arrangement or
+ * in any other unauthorized manner. Further, no license is granted to you in the human readable code of the Software
+ *  (source code). Except as provided below, this Agreement does not grant you any rights to patents, copyrights,
+ *  trade secrets, trademarks, or any other rights in the Software and Documentation.
+ *
+ * NO MODIFICATION, NO REVERSE ENGINEERING
+ * ===============================================
+ * You agree not to, without the prior written permission of Licensor: (i); disassemble, decompile or "unlock",
+ * decode or otherwise reverse translate or engineer, or attempt in any manner to reconstruct or discover any source
+ * code or underlying algorithms of the Software, if provided in object code form only; (ii) use, copy,
+ * modify, translate,reverse engineer, decompile, disassemble, or create derivative works of the Software and
+ * any accompanying documents, or assist someone in performing such prohibited acts; or (iii) transfer, rent,
+ * lease, or sub license the Software.
+ *
+ * NO WARRANTIES.
+ * ===============================================
+ * LICENSOR MAKES NO WARRANTIES, EXPRESS OR IMPLIED, INCLUDING, BUT NOT LIMITED TO, IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, TITLE, AND NON-INFRINGEMENT OF THIRD PARTIES' RIGHTS.
+ * THE SOFTWARE (INCLUDING SOURCE CODE) IS PROVIDED TO YOU ON AN "AS IS" BASIS. TO THE FULL EXTENT PERMITTED BY LAW,
+ * THE DURATION OF STATUTORILY REQUIRED WARRANTIES, IF ANY, SHALL BE LIMITED TO THE ABOVE LIMITED WARRANTY PERIOD.
+ * MOREOVER, IN NO EVENT WILL WARRANTIES PROVIDED BY LAW, IF ANY, APPLY UNLESS THEY ARE REQUIRED TO APPLY BY
+ * STATUTE NOTWITHSTANDING THEIR EXCLUSION BY CONTRACT. NO DEALER, AGENT, OR EMPLOYEE OF LICENSOR IS AUTHORIZED TO
+ * MAKE ANY MODIFICATIONS, EXTENSIONS, OR ADDITIONS TO THIS LIMITED WARRANTY. THE ENTIRE RISK ARISING OUT OF USE OR
+ * PERFORMANCE OF THE SOFTWARE REMAINS WITH YOU.
+ *
+ */
+
+package ai.safekids.httpproxy.tls;
+
+import ai.safekids.httpproxy.NitmProxyConfig;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.*;
+
+/**
+ * Creates the certs and the server contexts of the predicted hosts ahead of the handshakes.
+ *
+ * <p>The hosts are warmed up one by one on a single low priority thread. After each host the worker sleeps in
+ * proportion to the time it took, so it uses at most the configured percentage of a core, and it backs off while
+ * any handshake is waiting for a cert.</p>
+ */
+public class CertWarmer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CertWarmer.class);
+
+    private static final int QUEUE_SIZE = 1000;
+    private static final long BACKOFF_MILLIS = 50;
+
+    private final NitmProxyConfig config;
+    private final CertManager certManager;
+    private final SslContextCache sslContextCache;
+    private final int cpuBudget;
+
+    private final BlockingQueue<String> queue = new LinkedBlockingQueue<>(QUEUE_SIZE);
+    private final Set<String> queued = ConcurrentHashMap.newKeySet();
+    private Thread worker;
+
+    public CertWarmer(NitmProxyConfig config, CertManager certManager, SslContextCache sslContextCache) {
+        checkArgument(config.getWarmUpCpuBudget() > 0 && config.getWarmUpCpuBudget() <= 100,
+                      "CPU budget must be in (0, 100]: %s", config.getWarmUpCpuBudget());
+        this.config = config;
+        this.certManager = certManager;
+        this.sslContextCache = sslContextCache;
+        this.cpuBudget = config.getWarmUpCpuBudget();
+    }
+
+    /**
+     * Start the worker thread.
+     */
+    public synchronized void start() {
+        if (worker == null) {
+            worker = new DefaultThreadFactory("nitmproxy-warmer", true, Thread.MIN_PRIORITY).newThread(this::run);
+            worker.start();
+        }
+    }
+
+    /**
+     * Stop the worker thread, the hosts left in the queue are dropped.
+     */
+    public synchronized void stop() {
+        if (worker != null) {
+            worker.interrupt();
+            worker = null;
+        }
+        queue.clear();
+        queued.clear();
+    }
+
+    /**
+     * Offer a host to warm up, it's ignored if the cert is ready or the queue is full.
+     *
+     * @param host the host
+     */
+    public void offer(String host) {
+        if (host == null || certManager.hasCert(host) || !queued.add(host)) {
+            return;
+        }
+        if (!queue.offer(host)) {
+            queued.remove(host);
+        }
+    }
+
+    public void offer(Collection<String> hosts) {
+        hosts.forEach(this::offer);
+    }
+
+    public int pending() {
+        return queue.size();
+    }
+
+    /**
+     * Warm up the next host in the queue.
+     *
+     * @return the time taken in nanoseconds, or {@code -1} if the queue is empty
+     */
+    long warmUpNext() {
+        String host = queue.poll();
+        return (host != null)? warmUp(host) : -1;
+    }
+
+    private long warmUp(String host) {
+        long start = System.nanoTime();
+        try {
+            if (!certManager.hasCert(host)) {
+                LOGGER.debug("Warming up cert of {}", host);
+                TlsUtil.warmServerContexts(config, sslContextCache, certManager.getCert(host));
+            }
+        } catch (Exception e) {
+            LOGGER.debug("Warm up cert of {} failed", host, e);
+        } finally {
+            queued.remove(host);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                String host = queue.take();
+                while (certManager.isSigning()) {
+                    TimeUnit.MILLISECONDS.sleep(BACKOFF_MILLIS);
+                }
+                long elapsed = warmUp(host);
+                TimeUnit.NANOSECONDS.sleep(elapsed * (100 - cpuBudget) / cpuBudget);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
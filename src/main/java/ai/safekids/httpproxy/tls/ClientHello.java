@@ -0,0 +1,339 @@
+/*
+ * Copyright 2021 - Safe Kids LLC
+ *
+ * The complete license agreement is available at https://safekids.ai/eula
+ *
+ *
+ * LICENSE GRANT
+ * ==============================================
+ * Licensor hereby grants to you a non-exclusive and non-transferable license to use the Software and
+ * related documentation (the "Documentation") solely for the intended purposes of the Software as set forth in the
+ * Documentation, according to the provisions contained herein and subject to payment of applicable license fees.
+ * You are not permitted to lease, rent, distribute or sublicense the Software or any rights therein.
+ * You also may not install the Software on a network server, use the Software in a time-sharing arrangement or
+ * in any other unauthorized manner. Further, no license is granted to you in the human readable code of the Software
+ *  (source code). Except as provided below, this Agreement does not grant you any rights to patents, copyrights,
+ *  trade secrets, trademarks, or any other rights in the Software and Documentation.
+ *
+ * NO MODIFICATION, NO REVERSE ENGINEERING
+ * ===============================================
+ * You agree not to, without the prior written permission of Licensor: (i); disassemble, decompile or "unlock",
+ * decode or otherwise reverse translate or engineer, or attempt in any manner to reconstruct or discover any source
+ * code or underlying algorithms of the Software, if provided in object code form only; (ii) use, copy,
+ * modify, translate,reverse engineer, decompile, disassemble, or create derivative works of the Software and
+ * any accompanying documents, or assist someone in performing such prohibited acts; or (iii) transfer, rent,
+ * lease, or sub license the Software.
+ *
+ * NO WARRANTIES.
+ * ===============================================
+ * LICENSOR MAKES NO WARRANTIES, EXPRESS OR IMPLIED, INCLUDING, BUT NOT LIMITED TO, IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, TITLE, AND NON-INFRINGEMENT OF THIRD PARTIES' RIGHTS.
+ * THE SOFTWARE (INCLUDING SOURCE CODE) IS PROVIDED TO YOU ON AN "AS IS" BASIS. TO THE FULL EXTENT PERMITTED BY LAW,
+ * THE DURATION OF STATUTORILY REQUIRED WARRANTIES, IF ANY, SHALL BE LIMITED TO THE ABOVE LIMITED WARRANTY PERIOD.
+ * MOREOVER, IN NO EVENT WILL WARRANTIES PROVIDED BY LAW, IF ANY, APPLY UNLESS THEY ARE REQUIRED TO APPLY BY
+ * STATUTE NOTWITHSTANDING THEIR EXCLUSION BY CONTRACT. NO DEALER, AGENT, OR EMPLOYEE OF LICENSOR IS AUTHORIZED TO
+ * MAKE ANY MODIFICATIONS, EXTENSIONS, OR ADDITIONS TO THIS LIMITED WARRANTY. THE ENTIRE RISK ARISING OUT OF USE OR
+ * PERFORMANCE OF THE SOFTWARE REMAINS WITH YOU.
+ *
+ */
+
+package ai.safekids.httpproxy.tls;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.util.CharsetUtil;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A flyweight view of a TLS ClientHello message.
+ *
+ * <p>The message is parsed once, only the offsets of the interesting fields are kept, and the accessors read
+ * directly from the underlying buffer. Therefore, the view is only valid while the buffer is not released.
+ * Malformed fields are reported as absent.</p>
+ *
+ * <pre>
+ * struct {
+ *    ProtocolVersion client_version;
+ *    Random random;
+ *    SessionID session_id;
+ *    CipherSuite cipher_suites&lt;2..2^16-2&gt;;
+ *    CompressionMethod compression_methods&lt;1..2^8-1&gt;;
+ *    Extension extensions&lt;0..2^16-1&gt;;
+ * } ClientHello;
+ * </pre>
+ *
+ * @see <a href="https://tools.ietf.org/html/rfc8446#section-4.1.2">RFC 8446 section 4.1.2</a>
+ */
+public final class ClientHello {
+
+    private static final int RANDOM_LENGTH = 32;
+
+    private static final int EXTENSION_SERVER_NAME = 0;
+    private static final int EXTENSION_ALPN = 16;
+    private static final int EXTENSION_SUPPORTED_VERSIONS = 43;
+
+    private static final int SERVER_NAME_HOST_NAME = 0;
+
+    private final ByteBuf buf;
+    private int legacyVersion = -1;
+    private int cipherSuitesOffset = -1;
+    private int cipherSuitesLength;
+    private int serverNameOffset = -1;
+    private int serverNameLength;
+    private int alpnOffset = -1;
+    private int alpnLength;
+    private int supportedVersionsOffset = -1;
+    private int supportedVersionsLength;
+
+    private ClientHello(ByteBuf buf) {
+        this.buf = buf;
+    }
+
+    /**
+     * Parse the ClientHello message, without the handshake header, between the reader and writer index of the
+     * buffer. The indexes of the buffer are not changed.
+     *
+     * @param buf the buffer of the ClientHello message
+     * @return the view of the message
+     */
+    public static ClientHello parse(ByteBuf buf) {
+        ClientHello clientHello = new ClientHello(buf);
+        clientHello.parse(buf.readerIndex(), buf.writerIndex());
+        return clientHello;
+    }
+
+    private void parse(int offset, int limit) {
+        if (limit - offset < 2 + RANDOM_LENGTH + 1) {
+            return;
+        }
+        legacyVersion = buf.getUnsignedShort(offset);
+        offset += 2 + RANDOM_LENGTH;
+
+        int sessionIdLength = buf.getUnsignedByte(offset);
+        offset += 1 + sessionIdLength;
+
+        if (limit - offset < 2) {
+            return;
+        }
+        int length = buf.getUnsignedShort(offset);
+        offset += 2;
+        if (limit - offset < length) {
+            return;
+        }
+        cipherSuitesOffset = offset;
+        cipherSuitesLength = length;
+        offset += length;
+
+        if (limit - offset < 1) {
+            return;
+        }
+        offset += 1 + buf.getUnsignedByte(offset);
+
+        if (limit - offset < 2) {
+            return;
+        }
+        int extensionsLimit = offset + 2 + buf.getUnsignedShort(offset);
+        offset += 2;
+        if (extensionsLimit > limit) {
+            return;
+        }
+        while (extensionsLimit - offset >= 4) {
+            int type = buf.getUnsignedShort(offset);
+            int extensionLength = buf.getUnsignedShort(offset + 2);
+            offset += 4;
+            if (extensionsLimit - offset < extensionLength) {
+                return;
+            }
+            switch (type) {
+                case EXTENSION_SERVER_NAME:
+                    parseServerName(offset, offset + extensionLength);
+                    break;
+                case EXTENSION_ALPN:
+                    parseAlpn(offset, offset + extensionLength);
+                    break;
+                case EXTENSION_SUPPORTED_VERSIONS:
+                    parseSupportedVersions(offset, offset + extensionLength);
+                    break;
+                default:
+                    break;
+            }
+            offset += extensionLength;
+        }
+    }
+
+    private void parseServerName(int offset, int limit) {
+        // See https://tools.ietf.org/html/rfc6066#section-3
+        if (limit - offset < 2) {
+            return;
+        }
+        offset += 2;
+        while (limit - offset >= 3) {
+            int nameType = buf.getUnsignedByte(offset);
+            int nameLength = buf.getUnsignedShort(offset + 1);
+            offset += 3;
+            if (limit - offset < nameLength) {
+                return;
+            }
+            if (nameType == SERVER_NAME_HOST_NAME) {
+                serverNameOffset = offset;
+                serverNameLength = nameLength;
+                return;
+            }
+            offset += nameLength;
+        }
+    }
+
+    private void parseAlpn(int offset, int limit) {
+        // See https://tools.ietf.org/html/rfc7301#section-3.1
+        if (limit - offset < 2) {
+            return;
+        }
+        int length = buf.getUnsignedShort(offset);
+        offset += 2;
+        if (limit - offset < length) {
+            return;
+        }
+        alpnOffset = offset;
+        alpnLength = length;
+    }
+
+    private void parseSupportedVersions(int offset, int limit) {
+        // See https://tools.ietf.org/html/rfc8446#section-4.2.1
+        if (limit - offset < 1) {
+            return;
+        }
+        int length = buf.getUnsignedByte(offset);
+        offset += 1;
+        if (limit - offset < length) {
+            return;
+        }
+        supportedVersionsOffset = offset;
+        supportedVersionsLength = length;
+    }
+
+    /**
+     * Get the legacy version field, e.g. {@code 0x0303} for TLSv1.2.
+     *
+     * @return the version, or {@code -1} if the message is truncated
+     */
+    public int legacyVersion() {
+        return legacyVersion;
+    }
+
+    public int cipherSuiteCount() {
+        return cipherSuitesOffset < 0? 0 : cipherSuitesLength / 2;
+    }
+
+    public int cipherSuite(int index) {
+        return buf.getUnsignedShort(cipherSuitesOffset + index * 2);
+    }
+
+    /**
+     * Get the number of versions in the {@code supported_versions} extension, which is only sent by TLSv1.3
+     * clients.
+     *
+     * @return the number of versions
+     */
+    public int supportedVersionCount() {
+        return supportedVersionsOffset < 0? 0 : supportedVersionsLength / 2;
+    }
+
+    public int supportedVersion(int index) {
+        return buf.getUnsignedShort(supportedVersionsOffset + index * 2);
+    }
+
+    public boolean hasServerName() {
+        return serverNameOffset >= 0;
+    }
+
+    /**
+     * Get the host name of the {@code server_name} extension in lower case.
+     *
+     * @return the host name, or {@code null} if absent
+     */
+    public String serverName() {
+        if (serverNameOffset < 0) {
+            return null;
+        }
+        return buf.toString(serverNameOffset, serverNameLength, CharsetUtil.US_ASCII).toLowerCase(Locale.US);
+    }
+
+    public boolean hasAlpn() {
+        return alpnOffset >= 0;
+    }
+
+    /**
+     * Check if the protocol is offered by the {@code application_layer_protocol_negotiation} extension, without
+     * copying the protocol names.
+     *
+     * @param protocol the protocol name
+     * @return {@code true} if offered
+     */
+    public boolean offersAlpn(String protocol) {
+        int offset = alpnOffset;
+        int limit = alpnOffset + alpnLength;
+        while (alpnOffset >= 0 && offset < limit) {
+            int length = buf.getUnsignedByte(offset);
+            offset += 1;
+            if (limit - offset < length) {
+                return false;
+            }
+            if (equalsAscii(offset, length, protocol)) {
+                return true;
+            }
+            offset += length;
+        }
+        return false;
+    }
+
+    /**
+     * Get the protocols of the {@code application_layer_protocol_negotiation} extension, the well-known protocol
+     * names are shared instead of copied.
+     *
+     * @return the protocols, or {@code null} if absent
+     */
+    public List<String> alpnProtocols() {
+        if (alpnOffset < 0) {
+            return null;
+        }
+        List<String> protocols = new ArrayList<>(2);
+        int offset = alpnOffset;
+        int limit = alpnOffset + alpnLength;
+        while (offset < limit) {
+            int length = buf.getUnsignedByte(offset);
+            offset += 1;
+            if (limit - offset < length) {
+                break;
+            }
+            protocols.add(protocol(offset, length));
+            offset += length;
+        }
+        return Collections.unmodifiableList(protocols);
+    }
+
+    private String protocol(int offset, int length) {
+        if (equalsAscii(offset, length, ApplicationProtocolNames.HTTP_2)) {
+            return ApplicationProtocolNames.HTTP_2;
+        }
+        if (equalsAscii(offset, length, ApplicationProtocolNames.HTTP_1_1)) {
+            return ApplicationProtocolNames.HTTP_1_1;
+        }
+        return buf.toString(offset, length, CharsetUtil.US_ASCII);
+    }
+
+    private boolean equalsAscii(int offset, int length, String value) {
+        if (length != value.length()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (buf.getByte(offset + i) != (byte) value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -46,9 +46,9 @@ import ai.safekids.httpproxy.handler.protocol.http2.Http2FramesWrapper;
 import com.google.common.io.Resources;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
-import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpVersion;
 import io.netty.util.concurrent.Future;
@@ -106,9 +106,9 @@ public class SimpleUnsafeAccessSupport implements UnsafeAccessSupport {
 
     class Interceptor implements NitmProxyListener {
         @Override
-        public Future<Optional<FullHttpResponse>> onHttp1Request(ChannelHandlerContext ctx,
-                                                                 ConnectionContext connectionContext,
-                                                                 FullHttpRequest request) {
+        public Future<Optional<FullHttpResponse>> onHttp1RequestHeaders(ChannelHandlerContext ctx,
+                                                                        ConnectionContext connectionContext,
+                                                                        HttpRequest request) {
             Promise<Optional<FullHttpResponse>> promise = ctx.executor().newPromise();
             if (connectionContext.getServerAddr() == null || !accepted.containsKey(connectionContext.getServerAddr())) {
                 return promise.setSuccess(Optional.empty());
@@ -147,7 +147,7 @@ public class SimpleUnsafeAccessSupport implements UnsafeAccessSupport {
             }
         }
 
-        private Optional<FullHttpResponse> handleAskHttp1(ConnectionContext context, FullHttpRequest request) {
+        private Optional<FullHttpResponse> handleAskHttp1(ConnectionContext context, HttpRequest request) {
             if (request.uri().endsWith(ACCEPT_MAGIC)) {
                 request.setUri(request.uri().replace(ACCEPT_MAGIC, ""));
                 accepted.put(context.getServerAddr(), UnsafeAccess.ACCEPT);
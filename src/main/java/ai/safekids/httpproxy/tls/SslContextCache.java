@@ -0,0 +1,255 @@
+/*
+ * Copyright 2021 - Safe Kids LLC
+ *
+ * The complete license agreement is available at https://safekids.ai/eula
+ *
+ *
+ * LICENSE GRANT
+ * ==============================================
+ * Licensor hereby grants to you a non-exclusive and non-transferable license to use the Software and
+ * related documentation (the "Documentation") solely for the intended purposes of the Software as set forth in the
+ * Documentation, according to the provisions contained herein and subject to payment of applicable license fees.
+ * You are not permitted to lease, rent, distribute or sublicense the Software or any rights therein.
+ * You also may not install the Software on a network server, use the Software in a time-sharing arrangement or
+ * in any other unauthorized manner. Further, no license is granted to you in the human readable code of the Software
+ *  (source code). Except as provided below, this Agreement does not grant you any rights to patents, copyrights,
+ *  trade secrets, trademarks, or any other rights in the Software and Documentation.
+ *
+ * NO MODIFICATION, NO REVERSE ENGINEERING
+ * ===============================================
+ * You agree not to, without the prior written permission of Licensor: (i); disassemble, decompile or "unlock",
+ * decode or otherwise reverse translate or engineer, or attempt in any manner to reconstruct or discover any source
+ * code or underlying algorithms of the Software, if provided in object code form only; (ii) use, copy,
+ * modify, translate,reverse engineer, decompile, disassemble, or create derivative works of the Software and
+ * any accompanying documents, or assist someone in performing such prohibited acts; or (iii) transfer, rent,
+ * lease, or sub license the Software.
+ *
+ * NO WARRANTIES.
+ * ===============================================
+ * LICENSOR MAKES NO WARRANTIES, EXPRESS OR IMPLIED, INCLUDING, BUT NOT LIMITED TO, IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, TITLE, AND NON-INFRINGEMENT OF THIRD PARTIES' RIGHTS.
+ * THE SOFTWARE (INCLUDING SOURCE CODE) IS PROVIDED TO YOU ON AN "AS IS" BASIS. TO THE FULL EXTENT PERMITTED BY LAW,
+ * THE DURATION OF STATUTORILY REQUIRED WARRANTIES, IF ANY, SHALL BE LIMITED TO THE ABOVE LIMITED WARRANTY PERIOD.
+ * MOREOVER, IN NO EVENT WILL WARRANTIES PROVIDED BY LAW, IF ANY, APPLY UNLESS THEY ARE REQUIRED TO APPLY BY
+ * STATUTE NOTWITHSTANDING THEIR EXCLUSION BY CONTRACT. NO DEALER, AGENT, OR EMPLOYEE OF LICENSOR IS AUTHORIZED TO
+ * MAKE ANY MODIFICATIONS, EXTENSIONS, OR ADDITIONS TO THIS LIMITED WARRANTY. THE ENTIRE RISK ARISING OUT OF USE OR
+ * PERFORMANCE OF THE SOFTWARE REMAINS WITH YOU.
+ *
+ */
+
+package ai.safekids.httpproxy.tls;
+
+import ai.safekids.httpproxy.exception.TlsException;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalNotification;
+import io.netty.handler.ssl.OpenSslSessionContext;
+import io.netty.handler.ssl.OpenSslSessionTicketKey;
+import io.netty.handler.ssl.SslContext;
+import io.netty.util.IllegalReferenceCountException;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.ReferenceCounted;
+
+import javax.net.ssl.SSLException;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The cache of the {@link SslContext}s, so the keys, the trust managers and the contexts are not rebuilt for every
+ * connection.
+ *
+ * <p>Server contexts are keyed by the host certificate and the ALPN protocols, client contexts are keyed by the
+ * trust config and the ALPN protocols. The certificates and the trust configs are compared by identity, so a rotated
+ * certificate never matches the contexts of the old one.</p>
+ *
+ * <p>Keeping the contexts also keeps their session caches, so the handshakes can be resumed. The OpenSSL server
+ * contexts share session ticket keys which are rotated once per rotation interval, the previous key is kept for
+ * one more interval to decrypt the tickets issued with it. The JDK provider rotates its ticket keys by itself.</p>
+ *
+ * <p>A reference counted context ({@code OPENSSL_REFCNT}) is retained for the caller of every lookup, so it can't
+ * be freed by an eviction before the caller created its handler. The caller releases it afterwards.</p>
+ */
+public class SslContextCache {
+
+    private static final int SERVER_CONTEXT_CACHE_SIZE = 2000;
+    private static final int CLIENT_CONTEXT_CACHE_SIZE = 100;
+    private static final long DEFAULT_TICKET_KEY_ROTATION_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final int TICKET_KEY_LENGTH = 16;
+    private static final SecureRandom SECURE_RANDOM = new SecureRandom();
+
+    private final Cache<Key, SslContext> serverContexts;
+    private final Cache<Key, SslContext> clientContexts;
+
+    private final long ticketKeyRotationMillis;
+    private final AtomicLong nextRotation = new AtomicLong();
+    private volatile OpenSslSessionTicketKey[] ticketKeys = new OpenSslSessionTicketKey[0];
+
+    public SslContextCache() {
+        this(DEFAULT_TICKET_KEY_ROTATION_MILLIS);
+    }
+
+    public SslContextCache(long ticketKeyRotationMillis) {
+        this.ticketKeyRotationMillis = ticketKeyRotationMillis;
+        this.serverContexts = CacheBuilder
+                .newBuilder()
+                .maximumSize(SERVER_CONTEXT_CACHE_SIZE)
+                .removalListener(SslContextCache::release)
+                .build();
+        this.clientContexts = CacheBuilder
+                .newBuilder()
+                .maximumSize(CLIENT_CONTEXT_CACHE_SIZE)
+                .removalListener(SslContextCache::release)
+                .build();
+    }
+
+    /**
+     * Get the server context, the caller must release it once the handler was created.
+     *
+     * @param certificate   the host certificate
+     * @param alpnProtocols the ALPN protocols
+     * @param loader        the loader to create the context if absent
+     * @return the server context
+     * @throws SSLException if failed to create the context
+     */
+    public SslContext serverContext(Certificate certificate, List<String> alpnProtocols,
+                                    Callable<SslContext> loader) throws SSLException {
+        rotateTicketKeysIfDue();
+        return get(serverContexts, new Key(certificate, alpnProtocols), () -> withTicketKeys(loader.call()));
+    }
+
+    /**
+     * Get the client context, the caller must release it once the handler was created.
+     *
+     * @param trustConfig   the trust manager or the trust manager factory shared by the connections
+     * @param alpnProtocols the ALPN protocols
+     * @param loader        the loader to create the context if absent
+     * @return the client context
+     * @throws SSLException if failed to create the context
+     */
+    public SslContext clientContext(Object trustConfig, List<String> alpnProtocols,
+                                    Callable<SslContext> loader) throws SSLException {
+        return get(clientContexts, new Key(trustConfig, alpnProtocols), loader);
+    }
+
+    /**
+     * Invalidate the server contexts of the certificate.
+     *
+     * @param certificate the certificate
+     */
+    public void invalidate(Certificate certificate) {
+        serverContexts.asMap().keySet().removeIf(key -> key.identity == certificate);
+    }
+
+    /**
+     * Replace the session ticket keys of the server contexts with a new key, and keep the previous one to decrypt.
+     */
+    public void rotateTicketKeys() {
+        byte[] name = new byte[TICKET_KEY_LENGTH];
+        byte[] hmacKey = new byte[TICKET_KEY_LENGTH];
+        byte[] aesKey = new byte[TICKET_KEY_LENGTH];
+        SECURE_RANDOM.nextBytes(name);
+        SECURE_RANDOM.nextBytes(hmacKey);
+        SECURE_RANDOM.nextBytes(aesKey);
+        OpenSslSessionTicketKey[] current = ticketKeys;
+        OpenSslSessionTicketKey[] rotated = (current.length == 0)
+                ? new OpenSslSessionTicketKey[1]
+                : new OpenSslSessionTicketKey[2];
+        rotated[0] = new OpenSslSessionTicketKey(name, hmacKey, aesKey);
+        if (current.length > 0) {
+            rotated[1] = current[0];
+        }
+        ticketKeys = rotated;
+        serverContexts.asMap().values().forEach(this::withTicketKeys);
+    }
+
+    private void rotateTicketKeysIfDue() {
+        long now = System.currentTimeMillis();
+        long due = nextRotation.get();
+        if (now >= due && nextRotation.compareAndSet(due, now + ticketKeyRotationMillis)) {
+            rotateTicketKeys();
+        }
+    }
+
+    private SslContext withTicketKeys(SslContext sslContext) {
+        if (sslContext != null && sslContext.sessionContext() instanceof OpenSslSessionContext) {
+            ((OpenSslSessionContext) sslContext.sessionContext()).setTicketKeys(ticketKeys);
+        }
+        return sslContext;
+    }
+
+    /**
+     * Release the removed context if it's reference counted ({@code OPENSSL_REFCNT}), the engines created from it
+     * hold their own references, so the live connections are not affected.
+     */
+    private static void release(RemovalNotification<Key, SslContext> notification) {
+        ReferenceCountUtil.release(notification.getValue());
+    }
+
+    private static SslContext get(Cache<Key, SslContext> cache, Key key, Callable<SslContext> loader)
+            throws SSLException {
+        SslContext sslContext;
+        do {
+            sslContext = load(cache, key, loader);
+        } while (!retain(sslContext));
+        return sslContext;
+    }
+
+    /**
+     * Retain the context for the caller, it fails if the context was evicted and released meanwhile.
+     */
+    private static boolean retain(SslContext sslContext) {
+        if (!(sslContext instanceof ReferenceCounted)) {
+            return true;
+        }
+        try {
+            ((ReferenceCounted) sslContext).retain();
+            return true;
+        } catch (IllegalReferenceCountException e) {
+            return false;
+        }
+    }
+
+    private static SslContext load(Cache<Key, SslContext> cache, Key key, Callable<SslContext> loader)
+            throws SSLException {
+        try {
+            return cache.get(key, loader);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SSLException) {
+                throw (SSLException) e.getCause();
+            }
+            throw new TlsException("Create ssl context failed", e.getCause());
+        }
+    }
+
+    private static final class Key {
+        private final Object identity;
+        private final List<String> alpnProtocols;
+
+        private Key(Object identity, List<String> alpnProtocols) {
+            this.identity = identity;
+            this.alpnProtocols = alpnProtocols;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Key key = (Key) o;
+            return identity == key.identity && alpnProtocols.equals(key.alpnProtocols);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(identity) + alpnProtocols.hashCode();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2021 - Safe Kids LLC
+ *
+ * The complete license agreement is available at https://safekids.ai/eula
+ *
+ *
+ * LICENSE GRANT
+ * ==============================================
+ * Licensor hereby grants to you a non-exclusive and non-transferable license to use the Software and
+ * related documentation (the "Documentation") solely for the intended purposes of the Software as set forth in the
+ * Documentation, according to the provisions contained herein and subject to payment of applicable license fees.
+ * You are not permitted to lease, rent, distribute or sublicense the Software or any rights therein.
+ * You also may not install the Software on a network server, use the Software in a time-sharing arrangement or
+ * in any other unauthorized manner. Further, no license is granted to you in the human readable code of the Software
+ *  (source code). Except as provided below, this Agreement does not grant you any rights to patents, copyrights,
+ *  trade secrets, trademarks, or any other rights in the Software and Documentation.
+ *
+ * NO MODIFICATION, NO REVERSE ENGINEERING
+ * ===============================================
+ * You agree not to, without the prior written permission of Licensor: (i); disassemble, decompile or "unlock",
+ * decode or otherwise reverse translate or engineer, or attempt in any manner to reconstruct or discover any source
+ * code or underlying algorithms of the Software, if provided in object code form only; (ii) use, copy,
+ * modify, translate,reverse engineer, decompile, disassemble, or create derivative works of the Software and
+ * any accompanying documents, or assist someone in performing such prohibited acts; or (iii) transfer, rent,
+ * lease, or sub license the Software.
+ *
+ * NO WARRANTIES.
+ * ===============================================
+ * LICENSOR MAKES NO WARRANTIES, EXPRESS OR IMPLIED, INCLUDING, BUT NOT LIMITED TO, IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, TITLE, AND NON-INFRINGEMENT OF THIRD PARTIES' RIGHTS.
+ * THE SOFTWARE (INCLUDING SOURCE CODE) IS PROVIDED TO YOU ON AN "AS IS" BASIS. TO THE FULL EXTENT PERMITTED BY LAW,
+ * THE DURATION OF STATUTORILY REQUIRED WARRANTIES, IF ANY, SHALL BE LIMITED TO THE ABOVE LIMITED WARRANTY PERIOD.
+ * MOREOVER, IN NO EVENT WILL WARRANTIES PROVIDED BY LAW, IF ANY, APPLY UNLESS THEY ARE REQUIRED TO APPLY BY
+ * STATUTE NOTWITHSTANDING THEIR EXCLUSION BY CONTRACT. NO DEALER, AGENT, OR EMPLOYEE OF LICENSOR IS AUTHORIZED TO
+ * MAKE ANY MODIFICATIONS, EXTENSIONS, OR ADDITIONS TO THIS LIMITED WARRANTY. THE ENTIRE RISK ARISING OUT OF USE OR
+ * PERFORMANCE OF THE SOFTWARE REMAINS WITH YOU.
+ *
+ */
+
+package ai.safekids.httpproxy.tls;
+
+import io.netty.handler.ssl.ReferenceCountedOpenSslEngine;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.internal.tcnative.SSL;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.lang.String.*;
+
+/**
+ * Counts the resumed and the full handshakes on both legs, the client-facing handshakes where the proxy is the
+ * server, and the origin handshakes where the proxy is the client.
+ */
+public class TlsSessionStats {
+
+    private final LongAdder serverHits = new LongAdder();
+    private final LongAdder serverMisses = new LongAdder();
+    private final LongAdder clientHits = new LongAdder();
+    private final LongAdder clientMisses = new LongAdder();
+
+    /**
+     * Count the handshake of the handler once it succeeds, it must be called before the handshake starts.
+     *
+     * @param sslHandler the ssl handler
+     * @param server     {@code true} if the proxy is the server of the handshake
+     */
+    public void track(SslHandler sslHandler, boolean server) {
+        long handshakeStart = System.currentTimeMillis();
+        sslHandler.handshakeFuture().addListener(future -> {
+            if (future.isSuccess()) {
+                record(server, isResumed(sslHandler.engine(), handshakeStart));
+            }
+        });
+    }
+
+    public void record(boolean server, boolean resumed) {
+        if (server) {
+            (resumed? serverHits : serverMisses).increment();
+        } else {
+            (resumed? clientHits : clientMisses).increment();
+        }
+    }
+
+    public long serverHits() {
+        return serverHits.sum();
+    }
+
+    public long serverMisses() {
+        return serverMisses.sum();
+    }
+
+    public long clientHits() {
+        return clientHits.sum();
+    }
+
+    public long clientMisses() {
+        return clientMisses.sum();
+    }
+
+    /**
+     * OpenSSL reports whether the session is reused, but its session creation time is truncated to seconds, so the
+     * creation time is only checked for the other engines.
+     */
+    static boolean isResumed(SSLEngine engine, long handshakeStart) {
+        if (engine instanceof ReferenceCountedOpenSslEngine) {
+            long ssl = ((ReferenceCountedOpenSslEngine) engine).sslPointer();
+            return ssl != 0 && SSL.isSessionReused(ssl);
+        }
+        return isResumed(engine.getSession(), handshakeStart);
+    }
+
+    /**
+     * A full handshake creates a new session, while a resumed one restores a session created before it started.
+     */
+    static boolean isResumed(SSLSession session, long handshakeStart) {
+        return session != null && session.getCreationTime() < handshakeStart;
+    }
+
+    @Override
+    public String toString() {
+        return format("TlsSessionStats(server hits=%d misses=%d, client hits=%d misses=%d)",
+                      serverHits(), serverMisses(), clientHits(), clientMisses());
+    }
+}
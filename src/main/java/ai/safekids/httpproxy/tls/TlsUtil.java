@@ -40,14 +40,19 @@
 package ai.safekids.httpproxy.tls;
 
 import ai.safekids.httpproxy.ConnectionContext;
+import ai.safekids.httpproxy.NitmProxyConfig;
 import io.netty.handler.ssl.ApplicationProtocolConfig;
 import io.netty.handler.ssl.ApplicationProtocolConfig.Protocol;
 import io.netty.handler.ssl.ApplicationProtocolConfig.SelectedListenerFailureBehavior;
 import io.netty.handler.ssl.ApplicationProtocolConfig.SelectorFailureBehavior;
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.OpenSslSessionContext;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslProvider;
 import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
 import io.netty.handler.ssl.util.TrustManagerFactoryWrapper;
+import io.netty.util.ReferenceCountUtil;
 
 import javax.net.ssl.SSLException;
 import javax.net.ssl.TrustManagerFactory;
@@ -55,6 +60,7 @@ import java.security.KeyStore;
 import java.util.List;
 
 import static io.netty.handler.ssl.ApplicationProtocolNames.*;
+import static java.util.Arrays.*;
 import static javax.net.ssl.TrustManagerFactory.*;
 
 public final class TlsUtil {
@@ -75,35 +81,131 @@ public final class TlsUtil {
     private TlsUtil() {
     }
 
+    /**
+     * Get the client context of the connection, the caller must release it once the handler was created.
+     *
+     * @param context the connection context
+     * @return the client context
+     * @throws SSLException if failed to create the context
+     */
     public static SslContext ctxForClient(ConnectionContext context) throws SSLException {
+        TrustManagerFactory sharedFactory = sharedTrustManagerFactory(context);
+        TrustManagerFactory trustManagerFactory = (sharedFactory != null)
+                ? context.config().getUnsafeAccessSupport().create(sharedFactory, context)
+                : null;
+        String[] alpnProtocols = alpnProtocols(context.tlsCtx());
+        if (trustManagerFactory == null || trustManagerFactory != sharedFactory) {
+            // The trust manager is bound to this connection, the context can't be shared
+            return newClientContext(context, trustManagerFactory, alpnProtocols);
+        }
+        Object trustConfig = (context.config().getTrustManager() != null)
+                ? context.config().getTrustManager()
+                : sharedFactory;
+        return context.master().sslContextCache().clientContext(
+                trustConfig, asList(alpnProtocols),
+                () -> newClientContext(context, trustManagerFactory, alpnProtocols));
+    }
+
+    public static SslContext ctxForServer(ConnectionContext context) throws SSLException {
+        return ctxForServer(context, context.master().certManager().getCert(context.getServerAddr().getHost()));
+    }
+
+    /**
+     * Get the server context of the cert, the caller must release it once the handler was created.
+     *
+     * @param context     the connection context
+     * @param certificate the cert
+     * @return the server context
+     * @throws SSLException if failed to create the context
+     */
+    public static SslContext ctxForServer(ConnectionContext context, Certificate certificate) throws SSLException {
+        String[] alpnProtocols = alpnProtocols(context.tlsCtx());
+        return context.master().sslContextCache().serverContext(
+                certificate, asList(alpnProtocols),
+                () -> newServerContext(context.config(), certificate, alpnProtocols));
+    }
+
+    /**
+     * Build the server contexts of the cert ahead of the handshakes, one for each protocol could be negotiated.
+     *
+     * @param config          the config
+     * @param sslContextCache the cache to keep the contexts
+     * @param certificate     the cert
+     * @throws SSLException if failed to build the contexts
+     */
+    public static void warmServerContexts(NitmProxyConfig config, SslContextCache sslContextCache,
+                                          Certificate certificate) throws SSLException {
+        for (String protocol : asList(HTTP_2, HTTP_1_1)) {
+            String[] alpnProtocols = { protocol };
+            ReferenceCountUtil.release(sslContextCache.serverContext(
+                    certificate, asList(alpnProtocols), () -> newServerContext(config, certificate, alpnProtocols)));
+        }
+    }
+
+    private static SslContext newClientContext(ConnectionContext context, TrustManagerFactory trustManagerFactory,
+                                               String[] alpnProtocols) throws SSLException {
         SslContextBuilder builder = SslContextBuilder
                 .forClient()
                 .protocols(context.config().getTlsProtocols())
+                .sslProvider(tlsProvider(context.config()))
                 .sslContextProvider(context.config().getSslProvider())
-                .applicationProtocolConfig(applicationProtocolConfig(context.tlsCtx()))
-                .trustManager(trustManagerFactory(context));
+                .sessionTimeout(context.config().getTlsSessionTimeout())
+                .applicationProtocolConfig(applicationProtocolConfig(alpnProtocols))
+                .trustManager(trustManagerFactory);
         if (context.config().getClientKeyManagerFactory() != null) {
             builder.keyManager(context.config().getClientKeyManagerFactory());
         }
-        return builder.build();
+        return enableClientSessionCache(builder.build());
     }
 
-    public static SslContext ctxForServer(ConnectionContext context) throws SSLException {
-        Certificate certificate = context.master().certManager().getCert(context.getServerAddr().getHost());
+    /**
+     * OpenSSL client contexts don't cache sessions unless enabled, so the origin handshakes could never be resumed.
+     *
+     * @param clientContext the client context
+     * @return the client context
+     */
+    static SslContext enableClientSessionCache(SslContext clientContext) {
+        if (clientContext.sessionContext() instanceof OpenSslSessionContext) {
+            ((OpenSslSessionContext) clientContext.sessionContext()).setSessionCacheEnabled(true);
+        }
+        return clientContext;
+    }
+
+    private static SslContext newServerContext(NitmProxyConfig config, Certificate certificate,
+                                               String[] alpnProtocols) throws SSLException {
         return SslContextBuilder
                 .forServer(certificate.getKeyPair().getPrivate(), certificate.getChain())
-                .protocols(context.config().getTlsProtocols())
-                .sslContextProvider(context.config().getSslProvider())
-                .applicationProtocolConfig(applicationProtocolConfig(context.tlsCtx()))
+                .protocols(config.getTlsProtocols())
+                .sslProvider(tlsProvider(config))
+                .sslContextProvider(config.getSslProvider())
+                .sessionTimeout(config.getTlsSessionTimeout())
+                .applicationProtocolConfig(applicationProtocolConfig(alpnProtocols))
                 .build();
     }
 
-    private static ApplicationProtocolConfig applicationProtocolConfig(TlsContext tlsContext) {
+    /**
+     * Get the tls engine of the config. Without explicit setting, OpenSSL is used if the native library was loaded,
+     * unless a JCA provider is set, which only works with the JDK engine.
+     *
+     * @param config the config
+     * @return the tls engine
+     */
+    public static SslProvider tlsProvider(NitmProxyConfig config) {
+        if (config.getTlsProvider() != null) {
+            return config.getTlsProvider();
+        }
+        if (config.getSslProvider() == null && OpenSsl.isAvailable()) {
+            return SslProvider.OPENSSL;
+        }
+        return SslProvider.JDK;
+    }
+
+    private static ApplicationProtocolConfig applicationProtocolConfig(String[] alpnProtocols) {
         return new ApplicationProtocolConfig(
                 Protocol.ALPN,
                 SelectorFailureBehavior.NO_ADVERTISE,
                 SelectedListenerFailureBehavior.ACCEPT,
-                alpnProtocols(tlsContext));
+                alpnProtocols);
     }
 
     private static String[] alpnProtocols(TlsContext tlsCtx) {
@@ -119,17 +221,12 @@ public final class TlsUtil {
         return new String[] { HTTP_1_1 };
     }
 
-    private static TrustManagerFactory trustManagerFactory(ConnectionContext context) {
-        UnsafeAccessSupport unsafeAccessSupport = context.config().getUnsafeAccessSupport();
+    private static TrustManagerFactory sharedTrustManagerFactory(ConnectionContext context) {
         if (context.config().getTrustManager() != null) {
-            return unsafeAccessSupport.create(
-                    new TrustManagerFactoryWrapper(context.config().getTrustManager()),
-                    context);
+            return new TrustManagerFactoryWrapper(context.config().getTrustManager());
         } else if (context.config().isInsecure()) {
-            return unsafeAccessSupport.create(InsecureTrustManagerFactory.INSTANCE, context);
-        } else if (TRUST_MANAGER_FACTORY != null) {
-            return unsafeAccessSupport.create(TRUST_MANAGER_FACTORY, context);
+            return InsecureTrustManagerFactory.INSTANCE;
         }
-        return null;
+        return TRUST_MANAGER_FACTORY;
     }
 }
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2021 - Safe Kids LLC
+ *
+ * The complete license agreement is available at https://safekids.ai/eula
+ *
+ *
+ * LICENSE GRANT
+ * ==============================================
+ * Licensor hereby grants to you a non-exclusive and non-transferable license to use the Software and
+ * related documentation (the "Documentation") solely for the intended purposes of the Software as set forth in the
+ * Documentation, according to the provisions contained herein and subject to payment of applicable license fees.
+ * You are not permitted to lease, rent, distribute or sublicense the Software or any rights therein.
+ * You also may not install the Software on a network server, use the Software in a time-sharing arrangement or
+ * in any other unauthorized manner. Further, no license is granted to you in the human readable code of the Software
+ *  (source code). Except as provided below, this Agreement does not grant you any rights to patents, copyrights,
+ *  trade secrets, trademarks, or any other rights in the Software and Documentation.
+ *
+ * NO MODIFICATION, NO REVERSE ENGINEERING
+ * ===============================================
+ * You agree not to, without the prior written permission of Licensor: (i); disassemble, decompile or "unlock",
+ * decode or otherwise reverse translate or engineer, or attempt in any manner to reconstruct or discover any source
+ * code or underlying algorithms of the Software, if provided in object code form only; (ii) use, copy,
+ * modify, translate,reverse engineer, decompile, disassemble, or create derivative works of the Software and
+ * any accompanying documents, or assist someone in performing such prohibited acts; or (iii) transfer, rent,
+ * lease, or sub license the Software.
+ *
+ * NO WARRANTIES.
+ * ===============================================
+ * LICENSOR MAKES NO WARRANTIES, EXPRESS OR IMPLIED, INCLUDING, BUT NOT LIMITED TO, IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, TITLE, AND NON-INFRINGEMENT OF THIRD PARTIES' RIGHTS.
+ * THE SOFTWARE (INCLUDING SOURCE CODE) IS PROVIDED TO YOU ON AN "AS IS" BASIS. TO THE FULL EXTENT PERMITTED BY LAW,
+ * THE DURATION OF STATUTORILY REQUIRED WARRANTIES, IF ANY, SHALL BE LIMITED TO THE ABOVE LIMITED WARRANTY PERIOD.
+ * MOREOVER, IN NO EVENT WILL WARRANTIES PROVIDED BY LAW, IF ANY, APPLY UNLESS THEY ARE REQUIRED TO APPLY BY
+ * STATUTE NOTWITHSTANDING THEIR EXCLUSION BY CONTRACT. NO DEALER, AGENT, OR EMPLOYEE OF LICENSOR IS AUTHORIZED TO
+ * MAKE ANY MODIFICATIONS, EXTENSIONS, OR ADDITIONS TO THIS LIMITED WARRANTY. THE ENTIRE RISK ARISING OUT OF USE OR
+ * PERFORMANCE OF THE SOFTWARE REMAINS WITH YOU.
+ *
+ */
+
+package ai.safekids.httpproxy.util;
+
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+
+/**
+ * Runs blocking tasks off the event loops, concurrent tasks of the same key share a single run.
+ *
+ * @param <K> the type of the key
+ * @param <V> the type of the result
+ */
+public class CoalescingExecutor<K, V> {
+
+    private final Executor executor;
+    private final ConcurrentMap<K, CompletableFuture<V>> pendings = new ConcurrentHashMap<>();
+
+    public CoalescingExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Run the task of the key by the executor, unless a task of the same key is already running.
+     *
+     * @param eventExecutor the executor to notify the returned future
+     * @param key           the key
+     * @param task          the task computing the result of the key
+     * @return the future of the result
+     */
+    public Future<V> submit(EventExecutor eventExecutor, K key, Function<K, V> task) {
+        CompletableFuture<V> running = new CompletableFuture<>();
+        CompletableFuture<V> pending = pendings.putIfAbsent(key, running);
+        if (pending == null) {
+            pending = running;
+            try {
+                executor.execute(() -> {
+                    try {
+                        running.complete(task.apply(key));
+                    } catch (Throwable t) {
+                        running.completeExceptionally(t);
+                    } finally {
+                        pendings.remove(key, running);
+                    }
+                });
+            } catch (Throwable t) {
+                // e.g. rejected after the executor was shut down, later tasks of the key must not wait forever
+                pendings.remove(key, running);
+                running.completeExceptionally(t);
+            }
+        }
+
+        Promise<V> promise = eventExecutor.newPromise();
+        pending.whenComplete((value, cause) -> {
+            if (cause == null) {
+                promise.trySuccess(value);
+            } else {
+                promise.tryFailure(cause);
+            }
+        });
+        return promise;
+    }
+
+    /**
+     * Check whether the task of the key is running.
+     *
+     * @param key the key
+     * @return {@code true} if the task is running
+     */
+    public boolean isPending(K key) {
+        return pendings.containsKey(key);
+    }
+
+    /**
+     * Check whether any task is running.
+     *
+     * @return {@code true} if there are running tasks
+     */
+    public boolean hasPendings() {
+        return !pendings.isEmpty();
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2021 - Safe Kids LLC
+ *
+ * The complete license agreement is available at https://safekids.ai/eula
+ *
+ *
+ * LICENSE GRANT
+ * ==============================================
+ * Licensor hereby grants to you a non-exclusive and non-transferable license to use the Software and
+ * related documentation (the "Documentation") solely for the intended purposes of the Software as set forth in the
+ * Documentation, according to the provisions contained herein and subject to payment of applicable license fees.
+ * You are not permitted to lease, rent, distribute or sublicense the Software or any rights therein.
+ * You also may not install the Software on a network server, use the Software in a time-sharing arrangement or
+ * in any other unauthorized manner. Further, no license is granted to you in the human readable code of the Software
+ *  (source code). Except as provided below, this Agreement does not grant you any rights to patents, copyrights,
+ *  trade secrets, trademarks, or any other rights in the Software and Documentation.
+ *
+ * NO MODIFICATION, NO REVERSE ENGINEERING
+ * ===============================================
+ * You agree not to, without the prior written permission of Licensor: (i); disassemble, decompile or "unlock",
+ * decode or otherwise reverse translate or engineer, or attempt in any manner to reconstruct or discover any source
+ * code or underlying algorithms of the Software, if provided in object code form only; (ii) use, copy,
+ * modify, translate,reverse engineer, decompile, disassemble, or create derivative works of the Software and
+ * any accompanying documents, or assist someone in performing such prohibited acts; or (iii) transfer, rent,
+ * lease, or sub license the Software.
+ *
+ * NO WARRANTIES.
+ * ===============================================
+ * LICENSOR MAKES NO WARRANTIES, EXPRESS OR IMPLIED, INCLUDING, BUT NOT LIMITED TO, IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, TITLE, AND NON-INFRINGEMENT OF THIRD PARTIES' RIGHTS.
+ * THE SOFTWARE (INCLUDING SOURCE CODE) IS PROVIDED TO YOU ON AN "AS IS" BASIS. TO THE FULL EXTENT PERMITTED BY LAW,
+ * THE DURATION OF STATUTORILY REQUIRED WARRANTIES, IF ANY, SHALL BE LIMITED TO THE ABOVE LIMITED WARRANTY PERIOD.
+ * MOREOVER, IN NO EVENT WILL WARRANTIES PROVIDED BY LAW, IF ANY, APPLY UNLESS THEY ARE REQUIRED TO APPLY BY
+ * STATUTE NOTWITHSTANDING THEIR EXCLUSION BY CONTRACT. NO DEALER, AGENT, OR EMPLOYEE OF LICENSOR IS AUTHORIZED TO
+ * MAKE ANY MODIFICATIONS, EXTENSIONS, OR ADDITIONS TO THIS LIMITED WARRANTY. THE ENTIRE RISK ARISING OUT OF USE OR
+ * PERFORMANCE OF THE SOFTWARE REMAINS WITH YOU.
+ *
+ */
+
+package ai.safekids.httpproxy.channel;
+
+import ai.safekids.httpproxy.Address;
+import ai.safekids.httpproxy.channel.BackendChannelPool.Key;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Before;
+import org.junit.Test;
+
+import static java.util.concurrent.TimeUnit.*;
+import static org.junit.Assert.*;
+
+public class BackendChannelPoolTest {
+    private static final long IDLE_TIMEOUT_MILLIS = 1000;
+
+    private BackendChannelPool pool;
+    private Key key;
+
+    @Before
+    public void setUp() {
+        pool = new BackendChannelPool(2, IDLE_TIMEOUT_MILLIS);
+        key = BackendChannelPool.key(new Address("localhost", 8080), null, "http/1.1");
+    }
+
+    @Test
+    public void shouldReuseReleasedChannel() {
+        EmbeddedChannel channel = new EmbeddedChannel(new ChannelHandlerAdapter() {});
+        assertTrue(pool.release(key, channel));
+
+        assertSame(channel, pool.acquire(key));
+        assertNull(pool.acquire(key));
+        assertTrue(channel.isActive());
+        assertTrue(channel.pipeline().toMap().isEmpty());
+    }
+
+    @Test
+    public void shouldNotReuseWithDifferentKey() {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        assertTrue(pool.release(key, channel));
+
+        assertNull(pool.acquire(BackendChannelPool.key(new Address("localhost", 8080), "localhost", "http/1.1")));
+        assertNull(pool.acquire(BackendChannelPool.key(new Address("localhost", 8081), null, "http/1.1")));
+    }
+
+    @Test
+    public void shouldLimitIdleChannelsPerKey() {
+        assertTrue(pool.release(key, new EmbeddedChannel()));
+        assertTrue(pool.release(key, new EmbeddedChannel()));
+        assertFalse(pool.release(key, new EmbeddedChannel()));
+    }
+
+    @Test
+    public void shouldNotReleaseInactiveChannel() {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        channel.close();
+        assertFalse(pool.release(key, channel));
+    }
+
+    @Test
+    public void shouldEvictClosedChannel() {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        assertTrue(pool.release(key, channel));
+        channel.close();
+
+        assertNull(pool.acquire(key));
+    }
+
+    @Test
+    public void shouldEvictChannelReceivedData() {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        assertTrue(pool.release(key, channel));
+        assertFalse(channel.writeInbound(Unpooled.wrappedBuffer(new byte[] { 1 })));
+
+        assertFalse(channel.isActive());
+        assertNull(pool.acquire(key));
+    }
+
+    @Test
+    public void shouldEvictAfterIdleTimeout() {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        assertTrue(pool.release(key, channel));
+        channel.advanceTimeBy(IDLE_TIMEOUT_MILLIS, MILLISECONDS);
+        channel.runScheduledPendingTasks();
+
+        assertFalse(channel.isActive());
+        assertNull(pool.acquire(key));
+    }
+
+    @Test
+    public void shouldNotEvictAfterAcquired() {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        assertTrue(pool.release(key, channel));
+        assertSame(channel, pool.acquire(key));
+        channel.advanceTimeBy(IDLE_TIMEOUT_MILLIS, MILLISECONDS);
+        channel.runScheduledPendingTasks();
+
+        assertTrue(channel.isActive());
+    }
+}
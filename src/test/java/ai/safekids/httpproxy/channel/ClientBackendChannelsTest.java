@@ -0,0 +1,118 @@
+/*
+ * Copyright 2021 - Safe Kids LLC
+ *
+ * The complete license agreement is available at https://safekids.ai/eula
+ *
+ *
+ * LICENSE GRANT
+ * ==============================================
+ * Licensor hereby grants to you a non-exclusive and non-transferable license to use the Software and
+ * related documentation (the "Documentation") solely for the intended purposes of the Software as set forth in the
+ * Documentation, according to the provisions contained herein and subject to payment of applicable license fees.
+ * You are not permitted to lease, rent, distribute or sublicense the Software or any rights therein.
+ * You also may not install the Software on a network server, use the Software in a time-sharing arrangement or
+ * in any other unauthorized manner. Further, no license is granted to you in the human readable code of the Software
+ *  (source code). Except as provided below, this Agreement does not grant you any rights to patents, copyrights,
+ *  trade secrets, trademarks, or any other rights in the Software and Documentation.
+ *
+ * NO MODIFICATION, NO REVERSE ENGINEERING
+ * ===============================================
+ * You agree not to, without the prior written permission of Licensor: (i); disassemble, decompile or "unlock",
+ * decode or otherwise reverse translate or engineer, or attempt in any manner to reconstruct or discover any source
+ * code or underlying algorithms of the Software, if provided in object code form only; (ii) use, copy,
+ * modify, translate,reverse engineer, decompile, disassemble, or create derivative works of the Software and
+ * any accompanying documents, or assist someone in performing such prohibited acts; or (iii) transfer, rent,
+ * lease, or sub license the Software.
+ *
+ * NO WARRANTIES.
+ * ===============================================
+ * LICENSOR MAKES NO WARRANTIES, EXPRESS OR IMPLIED, INCLUDING, BUT NOT LIMITED TO, IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, TITLE, AND NON-INFRINGEMENT OF THIRD PARTIES' RIGHTS.
+ * THE SOFTWARE (INCLUDING SOURCE CODE) IS PROVIDED TO YOU ON AN "AS IS" BASIS. TO THE FULL EXTENT PERMITTED BY LAW,
+ * THE DURATION OF STATUTORILY REQUIRED WARRANTIES, IF ANY, SHALL BE LIMITED TO THE ABOVE LIMITED WARRANTY PERIOD.
+ * MOREOVER, IN NO EVENT WILL WARRANTIES PROVIDED BY LAW, IF ANY, APPLY UNLESS THEY ARE REQUIRED TO APPLY BY
+ * STATUTE NOTWITHSTANDING THEIR EXCLUSION BY CONTRACT. NO DEALER, AGENT, OR EMPLOYEE OF LICENSOR IS AUTHORIZED TO
+ * MAKE ANY MODIFICATIONS, EXTENSIONS, OR ADDITIONS TO THIS LIMITED WARRANTY. THE ENTIRE RISK ARISING OUT OF USE OR
+ * PERFORMANCE OF THE SOFTWARE REMAINS WITH YOU.
+ *
+ */
+
+package ai.safekids.httpproxy.channel;
+
+import ai.safekids.httpproxy.Address;
+import ai.safekids.httpproxy.channel.BackendChannelPool.Key;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ClientBackendChannelsTest {
+    private static final long IDLE_TIMEOUT_MILLIS = 1000;
+
+    private BackendChannelPool pool;
+    private ClientBackendChannels channels;
+    private Key first;
+    private Key second;
+
+    @Before
+    public void setUp() {
+        pool = new BackendChannelPool(2, IDLE_TIMEOUT_MILLIS);
+        channels = new ClientBackendChannels(pool, 1);
+        first = BackendChannelPool.key(new Address("localhost", 8080), null, "http/1.1");
+        second = BackendChannelPool.key(new Address("localhost", 8081), null, "http/1.1");
+    }
+
+    @Test
+    public void shouldReuseOwnChannel() {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        assertTrue(channels.release(first, channel));
+
+        assertNull(pool.acquire(first));
+        assertSame(channel, channels.acquire(first));
+        assertTrue(channel.isActive());
+        assertEquals(0, channels.size());
+    }
+
+    @Test
+    public void shouldHandOverEldestChannelToPool() {
+        EmbeddedChannel firstChannel = new EmbeddedChannel();
+        EmbeddedChannel secondChannel = new EmbeddedChannel();
+        assertTrue(channels.release(first, firstChannel));
+        assertTrue(channels.release(second, secondChannel));
+
+        assertEquals(1, channels.size());
+        assertSame(firstChannel, pool.acquire(first));
+        assertSame(secondChannel, channels.acquire(second));
+    }
+
+    @Test
+    public void shouldFallbackToPool() {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        assertTrue(pool.release(first, channel));
+
+        assertSame(channel, channels.acquire(first));
+    }
+
+    @Test
+    public void shouldHandOverChannelsOnClose() {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        assertTrue(channels.release(first, channel));
+
+        channels.close();
+        assertEquals(0, channels.size());
+        assertSame(channel, pool.acquire(first));
+    }
+
+    @Test
+    public void shouldEvictChannelReceivedData() {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        assertTrue(channels.release(first, channel));
+        assertFalse(channel.writeInbound(Unpooled.wrappedBuffer(new byte[] { 1 })));
+
+        assertFalse(channel.isActive());
+        assertEquals(0, channels.size());
+        assertNull(channels.acquire(first));
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2021 - Safe Kids LLC
+ *
+ * The complete license agreement is available at https://safekids.ai/eula
+ *
+ *
+ * LICENSE GRANT
+ * ==============================================
+ * Licensor hereby grants to you a non-exclusive and non-transferable license to use the Software and
+ * related documentation (the "Documentation") solely for the intended purposes of the Software as set forth in the
+ * Documentation, according to the provisions contained herein and subject to payment of applicable license fees.
+ * You are not permitted to lease, rent, distribute or sublicense the Software or any rights therein.
+ * You also may not install the Software on a network server, use the Software in a time-sharing arrangement or
+ * in any other unauthorized manner. Further, no license is granted to you in the human readable code of the Software
+ *  (source code). Except as provided below, this Agreement does not grant you any rights to patents, copyrights,
+ *  trade secrets, trademarks, or any other rights in the Software and Documentation.
+ *
+ * NO MODIFICATION, NO REVERSE ENGINEERING
+ * ===============================================
+ * You agree not to, without the prior written permission of Licensor: (i); disassemble, decompile or "unlock",
+ * decode or otherwise reverse translate or engineer, or attempt in any manner to reconstruct or discover any source
+ * code or underlying algorithms of the Software, if provided in object code form only; (ii) use, copy,
+ * modify, translate,reverse engineer, decompile, disassemble, or create derivative works of the Software and
+ * any accompanying documents, or assist someone in performing such prohibited acts; or (iii) transfer, rent,
+ * lease, or sub license the Software.
+ *
+ * NO WARRANTIES.
+ * ===============================================
+ * LICENSOR MAKES NO WARRANTIES, EXPRESS OR IMPLIED, INCLUDING, BUT NOT LIMITED TO, IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, TITLE, AND NON-INFRINGEMENT OF THIRD PARTIES' RIGHTS.
+ * THE SOFTWARE (INCLUDING SOURCE CODE) IS PROVIDED TO YOU ON AN "AS IS" BASIS. TO THE FULL EXTENT PERMITTED BY LAW,
+ * THE DURATION OF STATUTORILY REQUIRED WARRANTIES, IF ANY, SHALL BE LIMITED TO THE ABOVE LIMITED WARRANTY PERIOD.
+ * MOREOVER, IN NO EVENT WILL WARRANTIES PROVIDED BY LAW, IF ANY, APPLY UNLESS THEY ARE REQUIRED TO APPLY BY
+ * STATUTE NOTWITHSTANDING THEIR EXCLUSION BY CONTRACT. NO DEALER, AGENT, OR EMPLOYEE OF LICENSOR IS AUTHORIZED TO
+ * MAKE ANY MODIFICATIONS, EXTENSIONS, OR ADDITIONS TO THIS LIMITED WARRANTY. THE ENTIRE RISK ARISING OUT OF USE OR
+ * PERFORMANCE OF THE SOFTWARE REMAINS WITH YOU.
+ *
+ */
+
+package ai.safekids.httpproxy.dns;
+
+import ai.safekids.httpproxy.channel.Transport;
+import io.netty.channel.EventLoopGroup;
+import io.netty.resolver.AddressResolver;
+import io.netty.resolver.AddressResolverGroup;
+import io.netty.resolver.HostsFileParser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import static org.junit.Assert.*;
+
+public class DnsUtilTest {
+    private EventLoopGroup group;
+    private AddressResolverGroup<InetSocketAddress> resolverGroup;
+
+    @Before
+    public void setUp() throws Exception {
+        group = Transport.NIO.newEventLoopGroup(1);
+        resolverGroup = DnsUtil.newResolverGroup(Transport.NIO, new StaticHostsResolver(
+                HostsFileParser.parse(new StringReader("10.1.2.3 upstream.test\n"))));
+    }
+
+    @After
+    public void tearDown() {
+        resolverGroup.close();
+        group.shutdownGracefully();
+    }
+
+    @Test
+    public void shouldResolveFromHostsFile() throws Exception {
+        AddressResolver<InetSocketAddress> resolver = resolverGroup.getResolver(group.next());
+        InetSocketAddress address = resolver.resolve(InetSocketAddress.createUnresolved("upstream.test", 443))
+                                            .sync()
+                                            .getNow();
+        assertEquals(InetAddress.getByName("10.1.2.3"), address.getAddress());
+        assertEquals(443, address.getPort());
+    }
+
+    @Test
+    public void shouldResolveIpLiteral() throws Exception {
+        AddressResolver<InetSocketAddress> resolver = resolverGroup.getResolver(group.next());
+        InetSocketAddress address = resolver.resolve(InetSocketAddress.createUnresolved("127.0.0.1", 80))
+                                            .sync()
+                                            .getNow();
+        assertEquals(InetAddress.getByName("127.0.0.1"), address.getAddress());
+    }
+}
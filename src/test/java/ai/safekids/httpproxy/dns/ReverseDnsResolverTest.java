@@ -0,0 +1,109 @@
+/*
+ * Copyright 2021 - Safe Kids LLC
+ *
+ * The complete license agreement is available at https://safekids.ai/eula
+ *
+ *
+ * LICENSE GRANT
+ * ==============================================
+ * Licensor hereby grants to you a non-exclusive and non-transferable license to use the Software and
+ * related documentation (the "Documentation") solely for the intended purposes of the Software as set forth in the
+ * Documentation, according to the provisions contained herein and subject to payment of applicable license fees.
+ * You are not permitted to lease, rent, distribute or sublicense the Software or any rights therein.
+ * You also may not install the Software on a network server, use the Software in a time-sharing arrangement or
+ * in any other unauthorized manner. Further, no license is granted to you in the human readable code of the Software
+ *  (source code). Except as provided below, this Agreement does not grant you any rights to patents, copyrights,
+ *  trade secrets, trademarks, or any other rights in the Software and Documentation.
+ *
+ * NO MODIFICATION, NO REVERSE ENGINEERING
+ * ===============================================
+ * You agree not to, without the prior written permission of Licensor: (i); disassemble, decompile or "unlock",
+ * decode or otherwise reverse translate or engineer, or attempt in any manner to reconstruct or discover any source
+ * code or underlying algorithms of the Software, if provided in object code form only; (ii) use, copy,
+ * modify, translate,reverse engineer, decompile, disassemble, or create derivative works of the Software and
+ * any accompanying documents, or assist someone in performing such prohibited acts; or (iii) transfer, rent,
+ * lease, or sub license the Software.
+ *
+ * NO WARRANTIES.
+ * ===============================================
+ * LICENSOR MAKES NO WARRANTIES, EXPRESS OR IMPLIED, INCLUDING, BUT NOT LIMITED TO, IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, TITLE, AND NON-INFRINGEMENT OF THIRD PARTIES' RIGHTS.
+ * THE SOFTWARE (INCLUDING SOURCE CODE) IS PROVIDED TO YOU ON AN "AS IS" BASIS. TO THE FULL EXTENT PERMITTED BY LAW,
+ * THE DURATION OF STATUTORILY REQUIRED WARRANTIES, IF ANY, SHALL BE LIMITED TO THE ABOVE LIMITED WARRANTY PERIOD.
+ * MOREOVER, IN NO EVENT WILL WARRANTIES PROVIDED BY LAW, IF ANY, APPLY UNLESS THEY ARE REQUIRED TO APPLY BY
+ * STATUTE NOTWITHSTANDING THEIR EXCLUSION BY CONTRACT. NO DEALER, AGENT, OR EMPLOYEE OF LICENSOR IS AUTHORIZED TO
+ * MAKE ANY MODIFICATIONS, EXTENSIONS, OR ADDITIONS TO THIS LIMITED WARRANTY. THE ENTIRE RISK ARISING OUT OF USE OR
+ * PERFORMANCE OF THE SOFTWARE REMAINS WITH YOU.
+ *
+ */
+
+package ai.safekids.httpproxy.dns;
+
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ReverseDnsResolverTest {
+    private EventExecutor eventExecutor;
+    private List<Runnable> lookups;
+    private ReverseDnsResolver resolver;
+
+    @Before
+    public void setUp() {
+        eventExecutor = ImmediateEventExecutor.INSTANCE;
+        lookups = new ArrayList<>();
+        resolver = new ReverseDnsResolver(lookups::add);
+    }
+
+    @Test
+    public void shouldResolveAsynchronously() {
+        Future<String> future = resolver.resolve(eventExecutor, "127.0.0.1");
+        assertFalse(future.isDone());
+
+        lookups.forEach(Runnable::run);
+        assertTrue(future.isSuccess());
+        assertNotNull(future.getNow());
+    }
+
+    @Test
+    public void shouldCoalesceLookups() {
+        Future<String> first = resolver.resolve(eventExecutor, "127.0.0.1");
+        Future<String> second = resolver.resolve(eventExecutor, "127.0.0.1");
+        assertEquals(1, lookups.size());
+
+        lookups.forEach(Runnable::run);
+        assertEquals(first.getNow(), second.getNow());
+    }
+
+    @Test
+    public void shouldCacheResult() {
+        resolver.resolve(eventExecutor, "127.0.0.1");
+        lookups.forEach(Runnable::run);
+        lookups.clear();
+
+        Future<String> cached = resolver.resolve(eventExecutor, "127.0.0.1");
+        assertTrue(cached.isSuccess());
+        assertTrue(lookups.isEmpty());
+    }
+
+    @Test
+    public void shouldFailAfterClosed() {
+        ReverseDnsResolver closed = new ReverseDnsResolver();
+        closed.close();
+        assertFalse(closed.resolve(eventExecutor, "127.0.0.1").isSuccess());
+    }
+
+    @Test
+    public void shouldReturnInputIfNotIpAddress() {
+        Future<String> future = resolver.resolve(eventExecutor, "localhost");
+        lookups.forEach(Runnable::run);
+        assertEquals("localhost", future.getNow());
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2021 - Safe Kids LLC
+ *
+ * The complete license agreement is available at https://safekids.ai/eula
+ *
+ *
+ * LICENSE GRANT
+ * ==============================================
+ * Licensor hereby grants to you a non-exclusive and non-transferable license to use the Software and
+ * related documentation (the "Documentation") solely for the intended purposes of the Software as set forth in the
+ * Documentation, according to the provisions contained herein and subject to payment of applicable license fees.
+ * You are not permitted to lease, rent, distribute or sublicense the Software or any rights therein.
+ * You also may not install the Software on a network server, use the Software in a time-sharing arrangement or
+ * in any other unauthorized manner. Further, no license is granted to you in the human readable code of the Software
+ *  (source code). Except as provided below, this Agreement does not grant you any rights to patents, copyrights,
+ *  trade secrets, trademarks, or any other rights in the Software and Documentation.
+ *
+ * NO MODIFICATION, NO REVERSE ENGINEERING
+ * ===============================================
+ * You agree not to, without the prior written permission of Licensor: (i); disassemble, decompile or "unlock",
+ * decode or otherwise reverse translate or engineer, or attempt in any manner to reconstruct or discover any source
+ * code or underlying algorithms of the Software, if provided in object code form only; (ii) use, copy,
+ * modify, translate,reverse engineer, decompile, disassemble, or create derivative works of the Software and
+ * any accompanying documents, or assist someone in performing such prohibited acts; or (iii) transfer, rent,
+ * lease, or sub license the Software.
+ *
+ * NO WARRANTIES.
+ * ===============================================
+ * LICENSOR MAKES NO WARRANTIES, EXPRESS OR IMPLIED, INCLUDING, BUT NOT LIMITED TO, IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, TITLE, AND NON-INFRINGEMENT OF THIRD PARTIES' RIGHTS.
+ * THE SOFTWARE (INCLUDING SOURCE CODE) IS PROVIDED TO YOU ON AN "AS IS" BASIS. TO THE FULL EXTENT PERMITTED BY LAW,
+ * THE DURATION OF STATUTORILY REQUIRED WARRANTIES, IF ANY, SHALL BE LIMITED TO THE ABOVE LIMITED WARRANTY PERIOD.
+ * MOREOVER, IN NO EVENT WILL WARRANTIES PROVIDED BY LAW, IF ANY, APPLY UNLESS THEY ARE REQUIRED TO APPLY BY
+ * STATUTE NOTWITHSTANDING THEIR EXCLUSION BY CONTRACT. NO DEALER, AGENT, OR EMPLOYEE OF LICENSOR IS AUTHORIZED TO
+ * MAKE ANY MODIFICATIONS, EXTENSIONS, OR ADDITIONS TO THIS LIMITED WARRANTY. THE ENTIRE RISK ARISING OUT OF USE OR
+ * PERFORMANCE OF THE SOFTWARE REMAINS WITH YOU.
+ *
+ */
+
+package ai.safekids.httpproxy.event;
+
+import ai.safekids.httpproxy.Address;
+import ai.safekids.httpproxy.ConnectionContext;
+import io.netty.util.AsciiString;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Modifier;
+
+import static io.netty.handler.codec.http.HttpMethod.*;
+import static io.netty.handler.codec.http.HttpResponseStatus.*;
+import static io.netty.handler.codec.http.HttpVersion.*;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.*;
+
+public class RecyclableHttpEventTest {
+
+    private ConnectionContext context;
+
+    @Before
+    public void setUp() {
+        context = mock(ConnectionContext.class);
+        when(context.getClientAddr()).thenReturn(new Address("localhost", 8080));
+    }
+
+    @Test
+    public void shouldReadHeaderValues() {
+        RecyclableHttpEvent event = RecyclableHttpEvent.newInstance(context)
+                .method(GET)
+                .version(HTTP_1_1)
+                .host(AsciiString.of("www.google.com"))
+                .path(AsciiString.of("/search"))
+                .contentType(AsciiString.of("text/html; charset=UTF-8"))
+                .requestTime(100)
+                .responseTime(150);
+
+        HttpEvent view = event.event();
+        assertThat(view.getClient()).isEqualTo(new Address("localhost", 8080));
+        assertThat(view.getHost()).isEqualTo("www.google.com");
+        assertThat(view.getPath()).isEqualTo("/search");
+        assertThat(view.getContentType()).isEqualTo("text/html");
+        assertThat(view.getTimeSpent()).isEqualTo(50);
+        event.recycle();
+    }
+
+    @Test
+    public void shouldKeepSnapshotAfterRecycled() {
+        RecyclableHttpEvent event = RecyclableHttpEvent.newInstance(context)
+                .method(POST)
+                .host(AsciiString.of("localhost"))
+                .addRequestBodySize(10)
+                .addRequestBodySize(5)
+                .status(OK)
+                .contentType("application/json")
+                .addResponseBodySize(20);
+
+        HttpEvent view = event.event();
+        HttpEvent snapshot = view.snapshot();
+        event.recycle();
+
+        assertThat(snapshot).isNotSameAs(view);
+        assertThat(snapshot.snapshot()).isSameAs(snapshot);
+        assertThat(snapshot.getMethod()).isEqualTo(POST);
+        assertThat(snapshot.getHost()).isEqualTo("localhost");
+        assertThat(snapshot.getRequestBodySize()).isEqualTo(15);
+        assertThat(snapshot.getStatus()).isEqualTo(OK);
+        assertThat(snapshot.getContentType()).isEqualTo("application/json");
+        assertThat(snapshot.getResponseBodySize()).isEqualTo(20);
+    }
+
+    @Test
+    public void shouldClearWhenRecycled() {
+        RecyclableHttpEvent event = RecyclableHttpEvent.newInstance(context)
+                .method(GET)
+                .host("localhost")
+                .contentType("text/plain")
+                .addResponseBodySize(10);
+        event.recycle();
+
+        RecyclableHttpEvent reused = RecyclableHttpEvent.newInstance(context);
+        HttpEvent view = reused.event();
+        assertThat(view.getMethod()).isNull();
+        assertThat(view.getHost()).isNull();
+        assertThat(view.getContentType()).isNull();
+        assertThat(view.getResponseBodySize()).isZero();
+        assertThat(view.getClient()).isEqualTo(new Address("localhost", 8080));
+        reused.recycle();
+    }
+
+    @Test
+    public void shouldNotExposeMutatorsToListeners() {
+        RecyclableHttpEvent event = RecyclableHttpEvent.newInstance(context);
+        Class<?> viewClass = event.event().getClass();
+
+        assertThat(Modifier.isPublic(viewClass.getModifiers())).isFalse();
+        assertThat(viewClass.getSuperclass()).isEqualTo(HttpEvent.class);
+        event.recycle();
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2021 - Safe Kids LLC
+ *
+ * The complete license agreement is available at https://safekids.ai/eula
+ *
+ *
+ * LICENSE GRANT
+ * ==============================================
+ * Licensor hereby grants to you a non-exclusive and non-transferable license to use the Software and
+ * related documentation (the "Documentation") solely for the intended purposes of the Software as set forth in the
+ * Documentation, according to the provisions contained herein and subject to payment of applicable license fees.
+ * You are not permitted to lease, rent, distribute or sublicense the Software or any rights therein.
+ * You also may not install the Software on a network server, use the Software in a time-sharing arrangement or
+ * in any other unauthorized manner. Further, no license is granted to you in the human readable code of the Software
+ *  (source code). Except as provided below, this Agreement does not grant you any rights to patents, copyrights,
+ *  trade secrets, trademarks, or any other rights in the Software and Documentation.
+ *
+ * NO MODIFICATION, NO REVERSE ENGINEERING
+ * ===============================================
+ * You agree not to, without the prior written permission of Licensor: (i); disassemble, decompile or "unlock",
+ * decode or otherwise reverse translate or engineer, or attempt in any manner to reconstruct or discover any source
+ * code or underlying algorithms of the Software, if provided in object code form only; (ii) use, copy,
+ * modify, translate,reverse engineer, decompile, disassemble, or create derivative works of the Software and
+ * any accompanying documents, or assist someone in performing such prohibited acts; or (iii) transfer, rent,
+ * lease, or sub license the Software.
+ *
+ * NO WARRANTIES.
+ * ===============================================
+ * LICENSOR MAKES NO WARRANTIES, EXPRESS OR IMPLIED, INCLUDING, BUT NOT LIMITED TO, IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, TITLE, AND NON-INFRINGEMENT OF THIRD PARTIES' RIGHTS.
+ * THE SOFTWARE (INCLUDING SOURCE CODE) IS PROVIDED TO YOU ON AN "AS IS" BASIS. TO THE FULL EXTENT PERMITTED BY LAW,
+ * THE DURATION OF STATUTORILY REQUIRED WARRANTIES, IF ANY, SHALL BE LIMITED TO THE ABOVE LIMITED WARRANTY PERIOD.
+ * MOREOVER, IN NO EVENT WILL WARRANTIES PROVIDED BY LAW, IF ANY, APPLY UNLESS THEY ARE REQUIRED TO APPLY BY
+ * STATUTE NOTWITHSTANDING THEIR EXCLUSION BY CONTRACT. NO DEALER, AGENT, OR EMPLOYEE OF LICENSOR IS AUTHORIZED TO
+ * MAKE ANY MODIFICATIONS, EXTENSIONS, OR ADDITIONS TO THIS LIMITED WARRANTY. THE ENTIRE RISK ARISING OUT OF USE OR
+ * PERFORMANCE OF THE SOFTWARE REMAINS WITH YOU.
+ *
+ */
+
+package ai.safekids.httpproxy.handler;
+
+import ai.safekids.httpproxy.ConnectionContext;
+import ai.safekids.httpproxy.NitmProxyConfig;
+import ai.safekids.httpproxy.NitmProxyMaster;
+import ai.safekids.httpproxy.handler.protocol.http2.Http2FrameWrapper;
+import ai.safekids.httpproxy.listener.NitmProxyListenerProvider;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.DefaultHttp2HeadersFrame;
+import io.netty.handler.codec.http2.DefaultHttp2SettingsFrame;
+import io.netty.handler.codec.http2.Http2Settings;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static io.netty.buffer.Unpooled.*;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.*;
+
+public class TailFrontendHandlerTest {
+
+    private NitmProxyConfig config;
+    private EmbeddedChannel serverChannel;
+    private EmbeddedChannel channel;
+    private AtomicInteger flushes;
+
+    @Before
+    public void setUp() {
+        config = new NitmProxyConfig();
+        NitmProxyMaster master = mock(NitmProxyMaster.class);
+        when(master.config()).thenReturn(config);
+        when(master.listenerProvider()).thenReturn(NitmProxyListenerProvider.empty());
+
+        flushes = new AtomicInteger();
+        serverChannel = new EmbeddedChannel(new ChannelOutboundHandlerAdapter() {
+            @Override
+            public void flush(ChannelHandlerContext ctx) {
+                flushes.incrementAndGet();
+                ctx.flush();
+            }
+        });
+        ConnectionContext context = new ConnectionContext(master).withServerChannel(serverChannel);
+        channel = new EmbeddedChannel(new TailFrontendHandler(context));
+    }
+
+    @After
+    public void tearDown() {
+        channel.finishAndReleaseAll();
+        serverChannel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void shouldFlushHttp2FramesOnceReadCompleted() {
+        channel.writeInbound(settings(), headers(1), headers(3));
+
+        assertThat(flushes).hasValue(1);
+        assertThat(serverChannel.outboundMessages()).hasSize(3);
+    }
+
+    @Test
+    public void shouldFlushWhenTooManyPendingFrames() {
+        config.setHttp2MaxPendingFrames(2);
+        channel.writeInbound(settings(), headers(1), headers(3));
+
+        assertThat(flushes).hasValue(2);
+        assertThat(serverChannel.outboundMessages()).hasSize(3);
+    }
+
+    @Test
+    public void shouldFlushOtherMessagesImmediately() {
+        channel.writeInbound(copiedBuffer(new byte[] { 1 }), copiedBuffer(new byte[] { 2 }));
+
+        assertThat(flushes).hasValue(2);
+    }
+
+    private static Http2FrameWrapper<?> settings() {
+        return Http2FrameWrapper.frameWrapper(0, new DefaultHttp2SettingsFrame(new Http2Settings()));
+    }
+
+    private static Http2FrameWrapper<?> headers(int streamId) {
+        return Http2FrameWrapper.frameWrapper(streamId, new DefaultHttp2HeadersFrame(new DefaultHttp2Headers(), true));
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2021 - Safe Kids LLC
+ *
+ * The complete license agreement is available at https://safekids.ai/eula
+ *
+ *
+ * LICENSE GRANT
+ * ==============================================
+ * Licensor hereby grants to you a non-exclusive and non-transferable license to use the Software and
+ * related documentation (the "Documentation") solely for the intended purposes of the Software as set forth in the
+ * Documentation, according to the provisions contained herein and subject to payment of applicable license fees.
+ * You are not permitted to lease, rent, distribute or sublicense the Software or any rights therein.
+ * You also may not install the Software on a network server, use the Software in a time-sharing arrangement or
+ * in any other unauthorized manner. Further, no license is granted to you in the human readable code of the Software
+ *  (source code). Except as provided below, this Agreement does not grant you any rights to patents, copyrights,
+ *  trade secrets, trademarks, or any other rights in the Software and Documentation.
+ *
+ * NO MODIFICATION, NO REVERSE ENGINEERING
+ * ===============================================
+ * You agree not to, without the prior written permission of Licensor: (i); disassemble, decompile or "unlock",
+ * decode or otherwise reverse translate or engineer, or attempt in any manner to reconstruct or discover any source
+ * code or underlying algorithms of the Software, if provided in object code form only; (ii) use, copy,
+ * modify, translate,reverse engineer, decompile, disassemble, or create derivative works of the Software and
+ * any accompanying documents, or assist someone in performing such prohibited acts; or (iii) transfer, rent,
+ * lease, or sub license the Software.
+ *
+ * NO WARRANTIES.
+ * ===============================================
+ * LICENSOR MAKES NO WARRANTIES, EXPRESS OR IMPLIED, INCLUDING, BUT NOT LIMITED TO, IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, TITLE, AND NON-INFRINGEMENT OF THIRD PARTIES' RIGHTS.
+ * THE SOFTWARE (INCLUDING SOURCE CODE) IS PROVIDED TO YOU ON AN "AS IS" BASIS. TO THE FULL EXTENT PERMITTED BY LAW,
+ * THE DURATION OF STATUTORILY REQUIRED WARRANTIES, IF ANY, SHALL BE LIMITED TO THE ABOVE LIMITED WARRANTY PERIOD.
+ * MOREOVER, IN NO EVENT WILL WARRANTIES PROVIDED BY LAW, IF ANY, APPLY UNLESS THEY ARE REQUIRED TO APPLY BY
+ * STATUTE NOTWITHSTANDING THEIR EXCLUSION BY CONTRACT. NO DEALER, AGENT, OR EMPLOYEE OF LICENSOR IS AUTHORIZED TO
+ * MAKE ANY MODIFICATIONS, EXTENSIONS, OR ADDITIONS TO THIS LIMITED WARRANTY. THE ENTIRE RISK ARISING OUT OF USE OR
+ * PERFORMANCE OF THE SOFTWARE REMAINS WITH YOU.
+ *
+ */
+
+package ai.safekids.httpproxy.handler.protocol;
+
+import ai.safekids.httpproxy.Protocols;
+import ai.safekids.httpproxy.handler.protocol.http1.Http1ProtocolDetector;
+import ai.safekids.httpproxy.handler.protocol.http2.Http2ProtocolDetector;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.Test;
+
+import java.util.Optional;
+
+import static io.netty.util.CharsetUtil.*;
+import static java.util.Arrays.*;
+import static org.junit.Assert.*;
+
+public class SignatureProtocolDetectorTest {
+
+    @Test
+    public void shouldDetectHttp1Methods() {
+        ProtocolDetector detector = Http1ProtocolDetector.INSTANCE;
+        assertEquals(Optional.of(Protocols.HTTP_1), detector.detect(buf("GET / HTTP/1.1\r\n")));
+        assertEquals(Optional.of(Protocols.HTTP_1), detector.detect(buf("PROPFIND /dav HTTP/1.1\r\n")));
+        assertEquals(Optional.of(Protocols.HTTP_1), detector.detect(buf("POST /upload HTTP/1.0\r\n")));
+        assertEquals(Optional.empty(), detector.detect(buf("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n")));
+        assertEquals(Optional.empty(), detector.detect(buf("get / HTTP/1.1\r\n")));
+        assertEquals(Optional.empty(), detector.detect(Unpooled.EMPTY_BUFFER));
+    }
+
+    @Test
+    public void shouldDetectHttp2Preface() {
+        ProtocolDetector detector = SignatureProtocolDetector.compile(asList(Http1ProtocolDetector.INSTANCE,
+                                                                             Http2ProtocolDetector.INSTANCE));
+        assertEquals(Optional.of(Protocols.HTTP_2), detector.detect(buf("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n")));
+        assertEquals(Optional.of(Protocols.HTTP_1), detector.detect(buf("PUT / HTTP/1.1\r\n")));
+        assertEquals(Optional.empty(), detector.detect(buf("PRI * HTTP/2.0\r\n")));
+        assertTrue(detector.needMoreData(buf("PRI * HTTP/2.0\r\n")));
+    }
+
+    @Test
+    public void shouldMatchFromReaderIndex() {
+        ByteBuf buf = buf("xxGET / HTTP/1.1\r\n");
+        buf.skipBytes(2);
+        assertEquals(Optional.of(Protocols.HTTP_1), Http1ProtocolDetector.INSTANCE.detect(buf));
+        assertEquals(2, buf.readerIndex());
+    }
+
+    @Test
+    public void shouldNeedMoreDataForPrefix() {
+        ProtocolDetector detector = Http1ProtocolDetector.INSTANCE;
+        assertTrue(detector.needMoreData(buf("OPTI")));
+        assertTrue(detector.needMoreData(Unpooled.EMPTY_BUFFER));
+        assertFalse(detector.needMoreData(buf("OPTX")));
+        assertFalse(detector.needMoreData(buf("\u0016\u0003\u0001")));
+    }
+
+    @Test
+    public void shouldKeepPriorityWhenCompiled() {
+        ProtocolDetector custom = msg -> Optional.of("custom");
+        ProtocolDetector compiled = SignatureProtocolDetector.compile(asList(
+                new SignatureProtocolDetector("first", "GET /first"),
+                Http1ProtocolDetector.INSTANCE,
+                custom));
+
+        assertEquals(Optional.of("first"), compiled.detect(buf("GET /first HTTP/1.1\r\n")));
+        assertEquals(Optional.of(Protocols.HTTP_1), compiled.detect(buf("GET / HTTP/1.1\r\n")));
+        assertEquals(Optional.of("custom"), compiled.detect(buf("SSH-2.0-OpenSSH")));
+    }
+
+    @Test
+    public void shouldMergeAdjacentSignatureDetectors() {
+        ProtocolDetector compiled = SignatureProtocolDetector.compile(asList(
+                new SignatureProtocolDetector("a", "A"),
+                new SignatureProtocolDetector("b", "B")));
+
+        assertTrue(compiled instanceof SignatureProtocolDetector);
+        assertEquals(2, ((SignatureProtocolDetector) compiled).signatures().size());
+        assertEquals(Optional.of("b"), compiled.detect(buf("B")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectEmptySignature() {
+        new SignatureProtocolDetector("empty", "");
+    }
+
+    private static ByteBuf buf(String text) {
+        return Unpooled.copiedBuffer(text, US_ASCII);
+    }
+}
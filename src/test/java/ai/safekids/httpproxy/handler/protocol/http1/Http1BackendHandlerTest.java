@@ -43,16 +43,34 @@ import ai.safekids.httpproxy.Address;
 import ai.safekids.httpproxy.ConnectionContext;
 import ai.safekids.httpproxy.HandlerProvider;
 import ai.safekids.httpproxy.NitmProxyMaster;
+import ai.safekids.httpproxy.handler.protocol.http2.Http2Util;
 import ai.safekids.httpproxy.testing.EmbeddedChannelAssert;
 import ai.safekids.httpproxy.NitmProxyConfig;
 import ai.safekids.httpproxy.listener.NitmProxyListenerProvider;
 import io.netty.channel.ChannelHandlerAdapter;
 import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http2.Http2Settings;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
 import static ai.safekids.httpproxy.http.HttpUtil.*;
+import static io.netty.buffer.Unpooled.*;
+import static io.netty.handler.codec.http.HttpHeaderNames.*;
+import static io.netty.handler.codec.http.HttpHeaderValues.*;
+import static io.netty.handler.codec.http.HttpMethod.*;
+import static io.netty.handler.codec.http.HttpResponseStatus.*;
+import static io.netty.handler.codec.http.HttpVersion.*;
+import static io.netty.handler.codec.http2.Http2CodecUtil.*;
+import static java.nio.charset.StandardCharsets.*;
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
@@ -66,6 +84,7 @@ public class Http1BackendHandlerTest {
         HandlerProvider provider = mock(HandlerProvider.class);
         when(provider.wsBackendHandler()).thenReturn(new ChannelHandlerAdapter() {});
         when(provider.tailBackendHandler()).thenReturn(new ChannelHandlerAdapter() {});
+        when(provider.http2BackendHandler(true)).thenReturn(new ChannelHandlerAdapter() {});
 
         NitmProxyMaster master = mock(NitmProxyMaster.class);
         when(master.config()).thenReturn(new NitmProxyConfig());
@@ -137,4 +156,104 @@ public class Http1BackendHandlerTest {
                              .hasResponse()
                              .release();
     }
+
+    @Test
+    public void shouldBeReusableAfterResponse() {
+        channel.pipeline().addLast(handler);
+        assertTrue(handler.isReusable());
+
+        assertTrue(channel.writeOutbound(defaultRequest()));
+        assertFalse(handler.isReusable());
+        channel.releaseOutbound();
+
+        assertTrue(channel.writeInbound(defaultResponse("test")));
+        assertTrue(handler.isReusable());
+        channel.releaseInbound();
+    }
+
+    @Test
+    public void shouldNotBeReusableBeforeRequestBodyWritten() {
+        channel.pipeline().addLast(handler);
+
+        assertTrue(channel.writeOutbound(new DefaultHttpRequest(HTTP_1_1, POST, "/upload")));
+        channel.releaseOutbound();
+
+        // The server may respond before the whole body was received
+        assertTrue(channel.writeInbound(defaultResponse("test")));
+        channel.releaseInbound();
+        assertFalse(handler.isReusable());
+
+        assertTrue(channel.writeOutbound(new DefaultLastHttpContent(copiedBuffer("body", UTF_8))));
+        channel.releaseOutbound();
+        assertTrue(handler.isReusable());
+    }
+
+    @Test
+    public void shouldDropUnexpectedResponse() {
+        channel.pipeline().addLast(handler);
+
+        // e.g. 408 Request Timeout of an idle connection
+        assertFalse(channel.writeInbound(defaultResponse("timeout")));
+        assertFalse(channel.isActive());
+        assertFalse(handler.isReusable());
+    }
+
+    @Test
+    public void shouldNotBeReusableIfConnectionClose() {
+        channel.pipeline().addLast(handler);
+
+        assertTrue(channel.writeOutbound(defaultRequest()));
+        channel.releaseOutbound();
+
+        FullHttpResponse response = defaultResponse("test");
+        response.headers().set(CONNECTION, CLOSE);
+        assertTrue(channel.writeInbound(response));
+        assertFalse(handler.isReusable());
+        channel.releaseInbound();
+    }
+
+    @Test
+    public void shouldUpgradeToH2cAfterSwitchingProtocols() {
+        channel.pipeline().addLast(handler);
+
+        FullHttpRequest request = defaultRequest();
+        request.headers().set(CONNECTION, "Upgrade, HTTP2-Settings")
+               .set(HttpHeaderNames.UPGRADE, "h2c")
+               .set(HTTP_UPGRADE_SETTINGS_HEADER, "AAMAAABkAAQAAP__");
+        assertTrue(channel.writeOutbound(request));
+        EmbeddedChannelAssert.assertChannel(channel)
+                             .hasOutboundMessage()
+                             .hasByteBuf()
+                             .hasContent("GET / HTTP/1.1\r\nHost: localhost\r\nconnection: Upgrade, HTTP2-Settings\r\n"
+                                         + "upgrade: h2c\r\nHTTP2-Settings: "
+                                         + Http2Util.encodeSettingsHeader(Http2Settings.defaultSettings())
+                                         + "\r\n\r\n")
+                             .release();
+        assertFalse(handler.isReusable());
+
+        FullHttpResponse response = new DefaultFullHttpResponse(HTTP_1_1, SWITCHING_PROTOCOLS);
+        response.headers().set(CONNECTION, HttpHeaderValues.UPGRADE).set(HttpHeaderNames.UPGRADE, "h2c");
+        assertTrue(channel.writeInbound(response));
+        channel.releaseInbound();
+
+        assertNull(channel.pipeline().get(Http1BackendHandler.class));
+        assertNull(channel.pipeline().get(HttpClientCodec.class));
+    }
+
+    @Test
+    public void shouldNotUpgradeToH2cIfDeclined() {
+        channel.pipeline().addLast(handler);
+
+        FullHttpRequest request = defaultRequest();
+        request.headers().set(CONNECTION, "Upgrade, HTTP2-Settings")
+               .set(HttpHeaderNames.UPGRADE, "h2c")
+               .set(HTTP_UPGRADE_SETTINGS_HEADER, "");
+        assertTrue(channel.writeOutbound(request));
+        channel.releaseOutbound();
+
+        assertTrue(channel.writeInbound(defaultResponse("test")));
+        channel.releaseInbound();
+
+        assertNotNull(channel.pipeline().get(Http1BackendHandler.class));
+    }
 }
@@ -48,12 +48,18 @@ import ai.safekids.httpproxy.event.HttpEvent;
 import com.google.common.collect.ImmutableList;
 import io.netty.channel.ChannelPromise;
 import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
 import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpRequest;
 import io.netty.handler.codec.http.DefaultHttpResponse;
 import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.LastHttpContent;
 import io.netty.util.concurrent.DefaultEventExecutor;
 import io.netty.util.concurrent.DefaultPromise;
 import io.netty.util.concurrent.EventExecutor;
@@ -63,8 +69,9 @@ import org.assertj.core.data.Offset;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
-import org.mockito.ArgumentCaptor;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 
 import static ai.safekids.httpproxy.http.HttpUtil.*;
@@ -75,6 +82,7 @@ import static io.netty.handler.codec.http.HttpHeaderValues.*;
 import static io.netty.handler.codec.http.HttpMethod.*;
 import static io.netty.handler.codec.http.HttpResponseStatus.*;
 import static io.netty.handler.codec.http.HttpVersion.*;
+import static io.netty.util.ReferenceCountUtil.*;
 import static java.lang.System.*;
 import static java.nio.charset.StandardCharsets.*;
 import static org.assertj.core.api.Assertions.assertThat;
@@ -83,19 +91,26 @@ import static org.mockito.Mockito.*;
 
 public class Http1EventHandlerTest {
     private NitmProxyListener listener;
+    private List<HttpEvent> events;
     private EmbeddedChannel channel;
 
     @Before
     public void setUp() {
         listener = mock(NitmProxyListener.class);
+        // The events are recycled after the callback
+        events = new ArrayList<>();
+        doAnswer(invocation -> events.add(invocation.<HttpEvent>getArgument(0).snapshot()))
+            .when(listener).onHttpEvent(any());
+        when(listener.onHttp1RequestHeaders(any(), any(), any()))
+            .thenAnswer(invocation -> channel.eventLoop().newSucceededFuture(Optional.empty()));
         NitmProxyMaster master = mock(NitmProxyMaster.class);
         when(master.listenerProvider()).thenReturn(singleton(listener));
 
         ConnectionContext context = new ConnectionContext(master)
-            .withClientAddr(new Address("localhost", 8080))
-            .withClientChannel(channel);
+            .withClientAddr(new Address("localhost", 8080));
         Http1EventHandler handler = new Http1EventHandler(context);
         channel = new EmbeddedChannel(handler);
+        context.withClientChannel(channel);
     }
 
     @After
@@ -115,9 +130,8 @@ public class Http1EventHandlerTest {
         assertTrue(channel.writeInbound(defaultRequest()));
         assertTrue(channel.writeOutbound(defaultResponse("Hello Nitmproxy")));
 
-        ArgumentCaptor<HttpEvent> captor = ArgumentCaptor.forClass(HttpEvent.class);
-        verify(listener).onHttpEvent(captor.capture());
-        HttpEvent event = captor.getValue();
+        assertThat(events).hasSize(1);
+        HttpEvent event = events.get(0);
         assertEquals(new Address("localhost", 8080), event.getClient());
         assertThat(event.getServer()).isNull();
         assertEquals(GET, event.getMethod());
@@ -150,9 +164,8 @@ public class Http1EventHandlerTest {
                                          new DefaultHttpContent(copiedBuffer("Hello ".getBytes(UTF_8))),
                                          new DefaultLastHttpContent(copiedBuffer("Nitmproxy".getBytes(UTF_8)))));
 
-        ArgumentCaptor<HttpEvent> captor = ArgumentCaptor.forClass(HttpEvent.class);
-        verify(listener).onHttpEvent(captor.capture());
-        HttpEvent event = captor.getValue();
+        assertThat(events).hasSize(1);
+        HttpEvent event = events.get(0);
         assertEquals(new Address("localhost", 8080), event.getClient());
         assertThat(event.getServer()).isNull();
         assertEquals(GET, event.getMethod());
@@ -179,9 +192,8 @@ public class Http1EventHandlerTest {
                              .hasResponse()
                              .isEqualTo(defaultResponse("Hello Nitmproxy"));
 
-        ArgumentCaptor<HttpEvent> captor = ArgumentCaptor.forClass(HttpEvent.class);
-        verify(listener).onHttpEvent(captor.capture());
-        HttpEvent event = captor.getValue();
+        assertThat(events).hasSize(1);
+        HttpEvent event = events.get(0);
         assertEquals(new Address("localhost", 8080), event.getClient());
         assertThat(event.getServer()).isNull();
         assertEquals(GET, event.getMethod());
@@ -210,11 +222,115 @@ public class Http1EventHandlerTest {
         assertTrue(channel.writeOutbound(defaultResponse("First Response")));
         assertTrue(channel.writeOutbound(defaultResponse("Second Response")));
 
-        ArgumentCaptor<HttpEvent> captor = ArgumentCaptor.forClass(HttpEvent.class);
-        verify(listener, times(2)).onHttpEvent(captor.capture());
+        assertThat(events).hasSize(2);
+        assertEquals("/first", events.get(0).getPath());
+        assertEquals("/second", events.get(1).getPath());
+    }
+
+    @Test
+    public void shouldLogStreamedRequest() {
+        when(listener.onHttp1Response(any(), any())).thenAnswer(invocation -> {
+            HttpObject httpObject = (HttpObject) invocation.getArguments()[1];
+            return ImmutableList.of(httpObject);
+        });
+
+        assertTrue(channel.writeInbound(new DefaultHttpRequest(HTTP_1_1, POST, "/upload")));
+        assertTrue(channel.writeInbound(new DefaultHttpContent(copiedBuffer("Hello ", UTF_8))));
+        assertTrue(channel.writeInbound(new DefaultLastHttpContent(copiedBuffer("Nitmproxy", UTF_8))));
+        verify(listener, never()).onHttp1Request(any(), any(), any());
+
+        assertTrue(channel.writeOutbound(defaultResponse("ok")));
+
+        assertThat(events).hasSize(1);
+        HttpEvent event = events.get(0);
+        assertEquals(POST, event.getMethod());
+        assertEquals("/upload", event.getPath());
+        assertEquals(15, event.getRequestBodySize());
+        assertEquals(2, event.getResponseBodySize());
+    }
+
+    @Test
+    public void shouldRespondByHeadersAndDiscardBody() {
+        FullHttpResponse blocked = new DefaultFullHttpResponse(HTTP_1_1, FORBIDDEN);
+        when(listener.onHttp1RequestHeaders(any(), any(), any()))
+            .thenReturn(channel.eventLoop().newSucceededFuture(Optional.of(blocked)));
+
+        assertFalse(channel.writeInbound(new DefaultHttpRequest(HTTP_1_1, POST, "/upload"),
+                                         new DefaultHttpContent(copiedBuffer("Hello ", UTF_8)),
+                                         new DefaultLastHttpContent(copiedBuffer("Nitmproxy", UTF_8))));
+        verify(listener, never()).onHttp1Request(any(), any(), any());
+
+        FullHttpResponse response = channel.readOutbound();
+        assertEquals(FORBIDDEN, response.status());
+        response.release();
+
+        // The connection is still usable after the body was discarded
+        when(listener.onHttp1RequestHeaders(any(), any(), any()))
+            .thenReturn(channel.eventLoop().newSucceededFuture(Optional.empty()));
+        when(listener.onHttp1Request(any(), any(), any()))
+            .thenReturn(channel.eventLoop().newSucceededFuture(Optional.empty()));
+        assertTrue(channel.writeInbound(defaultRequest()));
+        Object request = channel.readInbound();
+        assertThat(request).isInstanceOf(FullHttpRequest.class);
+        release(request);
+    }
+
+    @Test
+    public void shouldHoldBodyUntilHeadersDecided() {
+        Promise<Optional<FullHttpResponse>> decision = channel.eventLoop().newPromise();
+        when(listener.onHttp1RequestHeaders(any(), any(), any())).thenReturn(decision);
+
+        assertFalse(channel.writeInbound(new DefaultHttpRequest(HTTP_1_1, POST, "/upload"),
+                                         new DefaultLastHttpContent(copiedBuffer("Nitmproxy", UTF_8))));
+        assertFalse(channel.config().isAutoRead());
+
+        decision.setSuccess(Optional.empty());
+        assertThat((Object) channel.readInbound()).isInstanceOf(HttpRequest.class);
+        Object last = channel.readInbound();
+        assertThat(last).isInstanceOf(LastHttpContent.class);
+        release(last);
+        assertTrue(channel.config().isAutoRead());
+    }
+
+    @Test
+    public void shouldHoldInterceptedResponseUntilPreviousResponded() {
+        FullHttpResponse intercepted = new DefaultFullHttpResponse(HTTP_1_1, FORBIDDEN);
+        Future<Optional<FullHttpResponse>> forwarded = channel.eventLoop().newSucceededFuture(Optional.empty());
+        Future<Optional<FullHttpResponse>> responded = channel.eventLoop().newSucceededFuture(Optional.of(intercepted));
+        when(listener.onHttp1Request(any(), any(), any())).thenReturn(forwarded).thenReturn(responded);
+        when(listener.onHttp1Response(any(), any())).thenAnswer(invocation -> {
+            HttpObject httpObject = (HttpObject) invocation.getArguments()[1];
+            return ImmutableList.of(httpObject);
+        });
+
+        assertTrue(channel.writeInbound(defaultRequest()));
+        channel.writeInbound(defaultRequest());
+        release(channel.readInbound());
+        assertThat((Object) channel.readInbound()).isNull();
+        assertThat((Object) channel.readOutbound()).isNull();
+
+        channel.writeOutbound(defaultResponse("Hello Nitmproxy"));
+        FullHttpResponse first = channel.readOutbound();
+        assertEquals(OK, first.status());
+        first.release();
+        assertSame(intercepted, channel.readOutbound());
+    }
+
+    @Test
+    public void shouldNotCompleteOnInterimResponse() {
+        Future<Optional<FullHttpResponse>> future = channel.eventLoop().newSucceededFuture(Optional.empty());
+        when(listener.onHttp1Request(any(), any(), any())).thenReturn(future);
+        when(listener.onHttp1Response(any(), any())).thenAnswer(invocation -> {
+            HttpObject httpObject = (HttpObject) invocation.getArguments()[1];
+            return ImmutableList.of(httpObject);
+        });
+
+        assertTrue(channel.writeInbound(defaultRequest()));
+        channel.writeOutbound(new DefaultFullHttpResponse(HTTP_1_1, HttpResponseStatus.CONTINUE));
+        verify(listener, never()).onHttpEvent(any());
 
-        assertThat(captor.getAllValues()).hasSize(2);
-        assertEquals("/first", captor.getAllValues().get(0).getPath());
-        assertEquals("/second", captor.getAllValues().get(1).getPath());
+        channel.writeOutbound(defaultResponse("Hello Nitmproxy"));
+        assertThat(events).hasSize(1);
+        assertEquals(OK, events.get(0).getStatus());
     }
 }
@@ -45,20 +45,29 @@ import ai.safekids.httpproxy.NitmProxyMaster;
 import ai.safekids.httpproxy.testing.EmbeddedChannelAssert;
 import ai.safekids.httpproxy.ConnectionContext;
 import ai.safekids.httpproxy.NitmProxyConfig;
+import ai.safekids.httpproxy.http.MemoryBudget;
 import ai.safekids.httpproxy.listener.NitmProxyListenerProvider;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerAdapter;
+import io.netty.channel.ChannelPromise;
 import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
 import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.ReferenceCountUtil;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
 import static ai.safekids.httpproxy.http.HttpUtil.*;
 import static com.google.common.net.HttpHeaders.*;
+import static io.netty.buffer.Unpooled.*;
 import static io.netty.handler.codec.http.HttpMethod.*;
+import static java.nio.charset.StandardCharsets.*;
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
@@ -69,6 +78,10 @@ public class Http1FrontendHandlerTest {
 
     private EmbeddedChannel outboundChannel;
 
+    private boolean outboundConnected;
+
+    private ChannelPromise connectPromise;
+
     @Before
     public void setUp() {
         master = mock(NitmProxyMaster.class);
@@ -76,6 +89,8 @@ public class Http1FrontendHandlerTest {
         when(master.config()).thenReturn(new NitmProxyConfig());
         when(master.provider(any())).thenReturn(provider);
         when(master.listenerProvider()).thenReturn(NitmProxyListenerProvider.empty());
+        when(master.aggregationBudget()).thenReturn(new MemoryBudget(1024 * 1024));
+        when(master.spillExecutor()).thenReturn(Runnable::run);
         when(provider.http1EventHandler()).thenReturn(new ChannelHandlerAdapter() {});
         when(provider.tlsFrontendHandler()).thenReturn(new ChannelHandlerAdapter() {});
         when(provider.wsFrontendHandler()).thenReturn(new ChannelHandlerAdapter() {});
@@ -201,6 +216,7 @@ public class Http1FrontendHandlerTest {
                              .release();
 
         EmbeddedChannel firstOutboundChannel = outboundChannel;
+        respond();
 
         // Second request
         ByteBuf secondRequestBytes = toBytes(request(
@@ -219,6 +235,99 @@ public class Http1FrontendHandlerTest {
         assertFalse(firstOutboundChannel.isActive());
     }
 
+    @Test
+    public void shouldQueuePipelinedRequestToAnotherHost() {
+        Http1FrontendHandler handler = httpProxyHandler(true);
+        inboundChannel.pipeline().addLast(handler);
+
+        assertTrue(inboundChannel.writeInbound(toBytes(request(
+                HttpVersion.HTTP_1_1, GET, "localhost:8000", "http://localhost:8000/"))));
+        EmbeddedChannelAssert.assertChannel(inboundChannel)
+                             .hasInboundMessage()
+                             .hasRequest()
+                             .release();
+        EmbeddedChannel firstOutboundChannel = outboundChannel;
+
+        // The second request waits for the response of the first one
+        assertFalse(inboundChannel.writeInbound(toBytes(request(
+                HttpVersion.HTTP_1_1, GET, "localhost:9000", "http://localhost:9000/"))));
+        assertSame(firstOutboundChannel, outboundChannel);
+        assertFalse(inboundChannel.config().isAutoRead());
+
+        respond();
+        inboundChannel.runPendingTasks();
+        EmbeddedChannelAssert.assertChannel(inboundChannel)
+                             .hasInboundMessage()
+                             .hasRequest()
+                             .hasHeader(HOST, "localhost:9000")
+                             .release();
+        assertNotSame(firstOutboundChannel, outboundChannel);
+        assertTrue(inboundChannel.config().isAutoRead());
+    }
+
+    @Test
+    public void shouldNotQueuePipelinedRequestToSameHost() {
+        Http1FrontendHandler handler = httpProxyHandler(true);
+        inboundChannel.pipeline().addLast(handler);
+
+        ByteBuf requestBytes = toBytes(request(
+                HttpVersion.HTTP_1_1, GET, "localhost:8000", "http://localhost:8000/"));
+        assertTrue(inboundChannel.writeInbound(requestBytes.copy()));
+        EmbeddedChannel firstOutboundChannel = outboundChannel;
+        assertTrue(inboundChannel.writeInbound(requestBytes));
+
+        assertSame(firstOutboundChannel, outboundChannel);
+        EmbeddedChannelAssert.assertChannel(inboundChannel).hasInboundMessage().hasRequest().release();
+        EmbeddedChannelAssert.assertChannel(inboundChannel).hasInboundMessage().hasRequest().release();
+    }
+
+    @Test
+    public void shouldForwardPipelinedRequestsWhenConnected() {
+        Http1FrontendHandler handler = deferredHttpProxyHandler();
+        inboundChannel.pipeline().addLast(handler);
+
+        ByteBuf requestBytes = toBytes(request(
+                HttpVersion.HTTP_1_1, GET, "localhost:8000", "http://localhost:8000/"));
+        assertFalse(inboundChannel.writeInbound(wrappedBuffer(requestBytes.copy(), requestBytes)));
+        verify(master, times(1)).connect(any(), any(), any());
+        assertTrue(outboundChannel.isOpen());
+
+        outboundConnected = true;
+        connectPromise.setSuccess();
+
+        assertTrue(inboundChannel.isActive());
+        EmbeddedChannelAssert.assertChannel(inboundChannel).hasInboundMessage().hasRequest().release();
+        EmbeddedChannelAssert.assertChannel(inboundChannel).hasInboundMessage().hasRequest().release();
+    }
+
+    @Test
+    public void shouldForwardPipelinedStreamedRequestsInOrderWhenConnected() {
+        master.config().setHttp1Streaming(true);
+        Http1FrontendHandler handler = deferredHttpProxyHandler();
+        inboundChannel.pipeline().addLast(handler);
+
+        String request = "POST http://localhost:8000/ HTTP/1.1\r\n"
+                         + "Host: localhost:8000\r\n"
+                         + "Content-Length: 5\r\n\r\n";
+        assertFalse(inboundChannel.writeInbound(copiedBuffer(request + "first" + request + "other", UTF_8)));
+        verify(master, times(1)).connect(any(), any(), any());
+        assertFalse(inboundChannel.config().isAutoRead());
+
+        outboundConnected = true;
+        connectPromise.setSuccess();
+
+        assertTrue(inboundChannel.isActive());
+        assertTrue(inboundChannel.config().isAutoRead());
+        for (String content : new String[] { "first", "other" }) {
+            HttpRequest forwarded = inboundChannel.readInbound();
+            assertEquals("/", forwarded.uri());
+            HttpContent body = inboundChannel.readInbound();
+            assertEquals(content, body.content().toString(UTF_8));
+            body.release();
+        }
+        assertNull(inboundChannel.readInbound());
+    }
+
     @Test
     public void shouldClosedWhenHttpProxyDestinationNotAvailable() {
         Http1FrontendHandler handler = httpProxyHandler(false);
@@ -278,6 +387,11 @@ public class Http1FrontendHandlerTest {
                              .release();
     }
 
+    private void respond() {
+        inboundChannel.writeOutbound(new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK));
+        ReferenceCountUtil.release(inboundChannel.readOutbound());
+    }
+
     private Http1FrontendHandler httpProxyHandler(boolean outboundAvailable) {
         if (outboundAvailable) {
             when(master.connect(any(), any(), any())).then(
@@ -292,6 +406,24 @@ public class Http1FrontendHandlerTest {
         return new Http1FrontendHandler(master, createConnectionContext());
     }
 
+    /**
+     * The server is connected when {@link #connectPromise} is completed, it's registered but inactive until then.
+     */
+    private Http1FrontendHandler deferredHttpProxyHandler() {
+        when(master.connect(any(), any(), any())).then(
+                invocationOnMock -> {
+                    outboundChannel = new EmbeddedChannel((ChannelHandler) invocationOnMock.getArguments()[2]) {
+                        @Override
+                        public boolean isActive() {
+                            return outboundConnected && super.isActive();
+                        }
+                    };
+                    connectPromise = outboundChannel.newPromise();
+                    return connectPromise;
+                });
+        return new Http1FrontendHandler(master, createConnectionContext());
+    }
+
     private Http1FrontendHandler tunneledHandler() {
         outboundChannel = new EmbeddedChannel();
         return new Http1FrontendHandler(master, createConnectionContext());
@@ -0,0 +1,266 @@
+/*
+ * Copyright 2021 - Safe Kids LLC
+ *
+ * The complete license agreement is available at https://safekids.ai/eula
+ *
+ *
+ * LICENSE GRANT
+ * ==============================================
+ * Licensor hereby grants to you a non-exclusive and non-transferable license to use the Software and
+ * related documentation (the "Documentation") solely for the intended purposes of the Software as set forth in the
+ * Documentation, according to the provisions contained herein and subject to payment of applicable license fees.
+ * You are not permitted to lease, rent, distribute or sublicense the Software or any rights therein.
+ * You also may not install the Software on a network server, use the Software in a time-sharing arrangement or
+ * in any other unauthorized manner. Further, no license is granted to you in the human readable code of the Software
+ *  (source code). Except as provided below, this Agreement does not grant you any rights to patents, copyrights,
+ *  trade secrets, trademarks, or any other rights in the Software and Documentation.
+ *
+ * NO MODIFICATION, NO REVERSE ENGINEERING
+ * ===============================================
+ * You agree not to, without the prior written permission of Licensor: (i); disassemble, decompile or "unlock",
+ * decode or otherwise reverse translate or engineer, or attempt in any manner to reconstruct or discover any source
+ * code or underlying algorithms of the Software, if provided in object code form only; (ii) use, copy,
+ * modify, translate,reverse engineer, decompile, disassemble, or create derivative works of the Software and
+ * any accompanying documents, or assist someone in performing such prohibited acts; or (iii) transfer, rent,
+ * lease, or sub license the Software.
+ *
+ * NO WARRANTIES.
+ * ===============================================
+ * LICENSOR MAKES NO WARRANTIES, EXPRESS OR IMPLIED, INCLUDING, BUT NOT LIMITED TO, IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, TITLE, AND NON-INFRINGEMENT OF THIRD PARTIES' RIGHTS.
+ * THE SOFTWARE (INCLUDING SOURCE CODE) IS PROVIDED TO YOU ON AN "AS IS" BASIS. TO THE FULL EXTENT PERMITTED BY LAW,
+ * THE DURATION OF STATUTORILY REQUIRED WARRANTIES, IF ANY, SHALL BE LIMITED TO THE ABOVE LIMITED WARRANTY PERIOD.
+ * MOREOVER, IN NO EVENT WILL WARRANTIES PROVIDED BY LAW, IF ANY, APPLY UNLESS THEY ARE REQUIRED TO APPLY BY
+ * STATUTE NOTWITHSTANDING THEIR EXCLUSION BY CONTRACT. NO DEALER, AGENT, OR EMPLOYEE OF LICENSOR IS AUTHORIZED TO
+ * MAKE ANY MODIFICATIONS, EXTENSIONS, OR ADDITIONS TO THIS LIMITED WARRANTY. THE ENTIRE RISK ARISING OUT OF USE OR
+ * PERFORMANCE OF THE SOFTWARE REMAINS WITH YOU.
+ *
+ */
+
+package ai.safekids.httpproxy.handler.protocol.http1;
+
+import ai.safekids.httpproxy.ConnectionContext;
+import ai.safekids.httpproxy.NitmProxyMaster;
+import ai.safekids.httpproxy.http.MemoryBudget;
+import ai.safekids.httpproxy.listener.NitmProxyListenerProvider;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.LastHttpContent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static io.netty.buffer.Unpooled.*;
+import static io.netty.handler.codec.http.HttpHeaderNames.*;
+import static io.netty.handler.codec.http.HttpMethod.*;
+import static io.netty.handler.codec.http.HttpVersion.*;
+import static io.netty.util.ReferenceCountUtil.*;
+import static java.nio.charset.StandardCharsets.*;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.*;
+
+public class SpillingHttpObjectAggregatorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private MemoryBudget budget;
+    private List<Runnable> spills;
+    private ConnectionContext context;
+    private EmbeddedChannel channel;
+
+    @Before
+    public void setUp() {
+        budget = new MemoryBudget(1024);
+        spills = new ArrayList<>();
+        NitmProxyMaster master = mock(NitmProxyMaster.class);
+        when(master.listenerProvider()).thenReturn(NitmProxyListenerProvider.empty());
+        context = new ConnectionContext(master);
+        channel = new EmbeddedChannel(new SpillingHttpObjectAggregator(
+                context, 1024, 8, budget, folder.getRoot().toPath(), spills::add,
+                request -> request.uri().startsWith("/inspect")));
+        context.withClientChannel(channel);
+    }
+
+    @After
+    public void tearDown() {
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void shouldAggregateAcceptedRequest() {
+        writeRequest(new DefaultHttpRequest(HTTP_1_1, POST, "/inspect"));
+
+        FullHttpRequest request = channel.readInbound();
+        assertThat(request.content().toString(UTF_8)).isEqualTo("Hello Nitmproxy");
+        request.release();
+        assertThat((Object) channel.readInbound()).isNull();
+    }
+
+    @Test
+    public void shouldStreamOtherRequest() {
+        writeRequest(new DefaultHttpRequest(HTTP_1_1, POST, "/upload"));
+
+        Object request = channel.readInbound();
+        assertThat(request).isInstanceOf(HttpRequest.class).isNotInstanceOf(FullHttpRequest.class);
+        HttpContent content = channel.readInbound();
+        assertThat(content).isNotInstanceOf(LastHttpContent.class);
+        content.release();
+        LastHttpContent last = channel.readInbound();
+        last.release();
+    }
+
+    @Test
+    public void shouldAlwaysAggregateUpgradeRequest() {
+        HttpRequest upgrade = new DefaultHttpRequest(HTTP_1_1, GET, "/ws");
+        upgrade.headers().set(CONNECTION, "Upgrade").set(UPGRADE, "websocket");
+        channel.writeInbound(upgrade, LastHttpContent.EMPTY_LAST_CONTENT);
+        Object ws = channel.readInbound();
+        assertThat(ws).isInstanceOf(FullHttpRequest.class);
+        release(ws);
+
+        channel.writeInbound(new DefaultHttpRequest(HTTP_1_1, CONNECT, "localhost:443"),
+                             LastHttpContent.EMPTY_LAST_CONTENT);
+        Object connect = channel.readInbound();
+        assertThat(connect).isInstanceOf(FullHttpRequest.class);
+        release(connect);
+    }
+
+    @Test
+    public void shouldDecidePerRequest() {
+        writeRequest(new DefaultHttpRequest(HTTP_1_1, POST, "/upload"));
+        writeRequest(new DefaultHttpRequest(HTTP_1_1, POST, "/inspect"));
+
+        assertThat((Object) channel.readInbound()).isNotInstanceOf(FullHttpRequest.class);
+        release(channel.readInbound());
+        release(channel.readInbound());
+        Object aggregated = channel.readInbound();
+        assertThat(aggregated).isInstanceOf(FullHttpRequest.class);
+        release(aggregated);
+    }
+
+    @Test
+    public void shouldSpillLargeBody() {
+        HttpRequest upload = new DefaultHttpRequest(HTTP_1_1, POST, "/inspect");
+        upload.headers().set(TRANSFER_ENCODING, "chunked");
+        writeRequest(upload);
+
+        FullHttpRequest request = channel.readInbound();
+        assertThat(request.content().isDirect()).isTrue();
+        assertThat(request.content().toString(UTF_8)).isEqualTo("Hello Nitmproxy");
+        assertThat(request.headers().getInt(CONTENT_LENGTH)).isEqualTo(15);
+        assertThat(request.headers().contains(TRANSFER_ENCODING)).isFalse();
+        assertThat(folder.getRoot().list()).isEmpty();
+        assertThat(budget.used()).isZero();
+        request.release();
+    }
+
+    @Test
+    public void shouldStopReadingWhileSpilling() {
+        channel.writeInbound(new DefaultHttpRequest(HTTP_1_1, POST, "/inspect"),
+                             new DefaultHttpContent(copiedBuffer("Hello Nitmproxy", UTF_8)));
+        assertThat(spills).hasSize(1);
+        assertThat(channel.config().isAutoRead()).isFalse();
+
+        channel.writeInbound(new DefaultLastHttpContent(copiedBuffer("!", UTF_8)),
+                             new DefaultHttpRequest(HTTP_1_1, GET, "/next"));
+        assertThat((Object) channel.readInbound()).isNull();
+
+        runSpills();
+        assertThat(channel.config().isAutoRead()).isTrue();
+        FullHttpRequest request = channel.readInbound();
+        assertThat(request.content().toString(UTF_8)).isEqualTo("Hello Nitmproxy!");
+        request.release();
+        Object next = channel.readInbound();
+        assertThat(next).isInstanceOf(HttpRequest.class).isNotInstanceOf(FullHttpRequest.class);
+    }
+
+    @Test
+    public void shouldKeepReadingSuspendedByOthers() {
+        context.suspendClientRead(this);
+        channel.writeInbound(new DefaultHttpRequest(HTTP_1_1, POST, "/inspect"),
+                             new DefaultLastHttpContent(copiedBuffer("Hello Nitmproxy", UTF_8)));
+
+        runSpills();
+        assertThat(channel.config().isAutoRead()).isFalse();
+        release(channel.readInbound());
+
+        context.resumeClientRead(this);
+        assertThat(channel.config().isAutoRead()).isTrue();
+    }
+
+    @Test
+    public void shouldReleaseBodyClosedWhileSpilling() {
+        channel.writeInbound(new DefaultHttpRequest(HTTP_1_1, POST, "/inspect"),
+                             new DefaultHttpContent(copiedBuffer("Hello Nitmproxy", UTF_8)));
+        channel.close();
+
+        runSpills();
+        assertThat(folder.getRoot().list()).isEmpty();
+        assertThat(budget.used()).isZero();
+    }
+
+    @Test
+    public void shouldGiveBackBudgetOnRelease() {
+        channel.writeInbound(new DefaultHttpRequest(HTTP_1_1, POST, "/inspect"),
+                             new DefaultLastHttpContent(copiedBuffer("Hello", UTF_8)));
+
+        FullHttpRequest request = channel.readInbound();
+        assertThat(budget.used()).isEqualTo(5);
+        request.release();
+        assertThat(budget.used()).isZero();
+    }
+
+    @Test
+    public void shouldRejectTooLargeRequest() {
+        HttpRequest upload = new DefaultHttpRequest(HTTP_1_1, POST, "/inspect");
+        upload.headers().setInt(CONTENT_LENGTH, 2048);
+        channel.writeInbound(upload);
+
+        assertThat((Object) channel.readInbound()).isNull();
+        FullHttpResponse response = channel.readOutbound();
+        assertThat(response.status()).isEqualTo(HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE);
+        response.release();
+        assertThat(channel.isOpen()).isFalse();
+    }
+
+    @Test
+    public void shouldSendContinue() {
+        HttpRequest upload = new DefaultHttpRequest(HTTP_1_1, POST, "/inspect");
+        upload.headers().set(EXPECT, "100-continue");
+        writeRequest(upload);
+
+        FullHttpResponse response = channel.readOutbound();
+        assertThat(response.status()).isEqualTo(HttpResponseStatus.CONTINUE);
+        response.release();
+        FullHttpRequest request = channel.readInbound();
+        assertThat(request.headers().contains(EXPECT)).isFalse();
+        request.release();
+    }
+
+    private void runSpills() {
+        while (!spills.isEmpty()) {
+            spills.remove(0).run();
+            channel.runPendingTasks();
+        }
+    }
+
+    private void writeRequest(HttpRequest request) {
+        channel.writeInbound(request,
+                             new DefaultHttpContent(copiedBuffer("Hello ", UTF_8)),
+                             new DefaultLastHttpContent(copiedBuffer("Nitmproxy", UTF_8)));
+        runSpills();
+    }
+}
@@ -41,6 +41,11 @@ package ai.safekids.httpproxy.handler.protocol.http2;
 
 import static io.netty.buffer.ByteBufUtil.writeUtf8;
 import static java.util.concurrent.TimeUnit.SECONDS;
+import static ai.safekids.httpproxy.handler.protocol.http2.Http2FrameWrapper.isFrame;
+import static io.netty.handler.codec.http2.Http2Error.NO_ERROR;
+import static io.netty.handler.codec.http2.Http2Error.REFUSED_STREAM;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyBoolean;
@@ -58,7 +63,10 @@ import ai.safekids.httpproxy.NitmProxyConfig;
 import ai.safekids.httpproxy.ConnectionContext;
 import ai.safekids.httpproxy.NitmProxyMaster;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import ai.safekids.httpproxy.listener.NitmProxyListenerProvider;
 import org.junit.After;
@@ -69,11 +77,14 @@ import org.mockito.InOrder;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.DefaultEventLoopGroup;
 import io.netty.channel.embedded.EmbeddedChannel;
@@ -83,17 +94,22 @@ import io.netty.channel.local.LocalServerChannel;
 import io.netty.handler.codec.http2.DefaultHttp2DataFrame;
 import io.netty.handler.codec.http2.DefaultHttp2Headers;
 import io.netty.handler.codec.http2.DefaultHttp2HeadersFrame;
+import io.netty.handler.codec.http2.Http2ConnectionHandler;
 import io.netty.handler.codec.http2.Http2ConnectionHandlerBuilder;
 import io.netty.handler.codec.http2.Http2ConnectionPrefaceAndSettingsFrameWrittenEvent;
 import io.netty.handler.codec.http2.Http2FrameListener;
+import io.netty.handler.codec.http2.Http2GoAwayFrame;
 import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.handler.codec.http2.Http2ResetFrame;
 import io.netty.util.AsciiString;
+import io.netty.util.ReferenceCountUtil;
 import io.netty.util.concurrent.Future;
 
 public class Http2BackendHandlerTest {
 
     private static final long DEFAULT_AWAIT_TIMEOUT_SECONDS = 15;
 
+    private NitmProxyConfig config;
     private ConnectionContext connectionContext;
     private Http2FrameListener serverListener;
 
@@ -108,7 +124,8 @@ public class Http2BackendHandlerTest {
     @Before
     public void setUp() throws Exception {
         NitmProxyMaster master = mock(NitmProxyMaster.class);
-        when(master.config()).thenReturn(new NitmProxyConfig());
+        config = new NitmProxyConfig();
+        when(master.config()).thenReturn(config);
         when(master.listenerProvider()).thenReturn(NitmProxyListenerProvider.empty());
         connectionContext = new ConnectionContext(master);
 
@@ -119,6 +136,9 @@ public class Http2BackendHandlerTest {
     @After
     public void tearDown() {
         targetChannel.finishAndReleaseAll();
+        if (sb == null) {
+            return;
+        }
         Channel serverConnectedChannel = this.serverConnectedChannel;
         if (serverConnectedChannel != null) {
             serverConnectedChannel.close().syncUninterruptibly();
@@ -225,6 +245,173 @@ public class Http2BackendHandlerTest {
                                                   eq(3), any(ByteBuf.class), eq(0), eq(true));
     }
 
+    @Test
+    public void shouldRelayDataWithoutCopy() {
+        Http2Pair pair = new Http2Pair();
+        pair.backend.writeOutbound(new Http2FrameWrapper<>(1, new DefaultHttp2HeadersFrame(dummyHeaders(), true)));
+        pair.exchange();
+        pair.respond(1, "Hello");
+        pair.exchange();
+
+        Http2DataFrameWrapper data = pair.relayed(Http2DataFrameWrapper.class);
+        assertEquals("Hello", data.content().toString(UTF_8));
+        assertTrue(pair.read.stream().anyMatch(buf -> root(buf) == root(data.content())));
+
+        data.release();
+        pair.finish();
+        pair.read.forEach(buf -> assertEquals(0, buf.refCnt()));
+    }
+
+    @Test
+    public void shouldRefuseStreamsAboveGoAway() {
+        Http2Pair pair = new Http2Pair();
+        pair.backend.writeOutbound(new Http2FrameWrapper<>(1, new DefaultHttp2HeadersFrame(dummyHeaders(), true)));
+        pair.backend.writeOutbound(new Http2FrameWrapper<>(3, new DefaultHttp2HeadersFrame(dummyHeaders(), true)));
+        pair.exchange();
+        pair.goAway(1);
+        pair.exchange();
+
+        Http2FrameWrapper<?> reset = pair.relayed(Http2ResetFrame.class);
+        assertEquals(3, reset.streamId());
+        assertEquals(REFUSED_STREAM.code(), ((Http2ResetFrame) reset.frame()).errorCode());
+        Http2FrameWrapper<?> goAway = pair.relayed(Http2GoAwayFrame.class);
+        assertEquals(0, goAway.streamId());
+
+        pair.finish();
+        pair.read.forEach(buf -> assertEquals(0, buf.refCnt()));
+    }
+
+    @Test
+    public void shouldFlushClientOnceReadCompleted() {
+        Http2Pair pair = new Http2Pair();
+        pair.backend.writeOutbound(new Http2FrameWrapper<>(1, new DefaultHttp2HeadersFrame(dummyHeaders(), true)));
+        pair.exchange();
+        AtomicInteger flushes = pair.countClientFlushes();
+        pair.respond(1, "Hello");
+        pair.exchange();
+
+        assertEquals(1, flushes.get());
+        assertEquals(3, pair.client.outboundMessages().size());
+        pair.finish();
+    }
+
+    @Test
+    public void shouldFlushClientWhenTooManyPendingFrames() {
+        config.setHttp2MaxPendingFrames(1);
+        Http2Pair pair = new Http2Pair();
+        pair.backend.writeOutbound(new Http2FrameWrapper<>(1, new DefaultHttp2HeadersFrame(dummyHeaders(), true)));
+        pair.exchange();
+        AtomicInteger flushes = pair.countClientFlushes();
+        pair.respond(1, "Hello");
+        pair.exchange();
+
+        assertEquals(2, flushes.get());
+        pair.finish();
+    }
+
+    private static ByteBuf root(ByteBuf buf) {
+        while (buf.unwrap() != null) {
+            buf = buf.unwrap();
+        }
+        return buf;
+    }
+
+    /**
+     * A backend handler connected to a server in memory, the frames relayed to the client are kept in the client
+     * channel. The buffers read by the backend are unpooled, so their reference counts stay meaningful.
+     */
+    private class Http2Pair {
+
+        private final EmbeddedChannel client = new EmbeddedChannel();
+        private final EmbeddedChannel backend = new EmbeddedChannel();
+        private final EmbeddedChannel server = new EmbeddedChannel();
+        private final Http2ConnectionHandler serverHandler = new Http2ConnectionHandlerBuilder()
+                .server(true)
+                .frameListener(serverListener)
+                .validateHeaders(false)
+                .gracefulShutdownTimeoutMillis(0)
+                .build();
+        private final List<ByteBuf> read = new ArrayList<>();
+
+        private Http2Pair() {
+            connectionContext.withClientChannel(client).withServerChannel(backend);
+            backend.config().setAllocator(UnpooledByteBufAllocator.DEFAULT);
+            server.config().setAllocator(UnpooledByteBufAllocator.DEFAULT);
+            server.pipeline().addLast(serverHandler);
+            backend.pipeline().addLast(new Http2BackendHandler(connectionContext));
+            exchange();
+        }
+
+        private void exchange() {
+            boolean moved;
+            do {
+                moved = false;
+                ByteBuf buf;
+                while ((buf = backend.readOutbound()) != null) {
+                    server.writeInbound(buf);
+                    moved = true;
+                }
+                // The buffers written by the server are read by the backend in a single read
+                List<Object> written = new ArrayList<>();
+                while ((buf = server.readOutbound()) != null) {
+                    if (buf.capacity() > 0) {
+                        read.add(buf);
+                    }
+                    written.add(buf);
+                }
+                if (!written.isEmpty()) {
+                    backend.writeInbound(written.toArray());
+                    moved = true;
+                }
+            } while (moved);
+        }
+
+        private AtomicInteger countClientFlushes() {
+            AtomicInteger flushes = new AtomicInteger();
+            client.pipeline().addFirst(new ChannelOutboundHandlerAdapter() {
+                @Override
+                public void flush(ChannelHandlerContext ctx) {
+                    flushes.incrementAndGet();
+                    ctx.flush();
+                }
+            });
+            return flushes;
+        }
+
+        private void respond(int streamId, String body) {
+            ChannelHandlerContext ctx = server.pipeline().context(serverHandler);
+            serverHandler.encoder().writeHeaders(ctx, streamId, new DefaultHttp2Headers().status("200"), 0, false,
+                                                 ctx.newPromise());
+            serverHandler.encoder().writeData(ctx, streamId, Unpooled.copiedBuffer(body, UTF_8), 0, true,
+                                              ctx.newPromise());
+            serverHandler.flush(ctx);
+        }
+
+        private void goAway(int lastStreamId) {
+            ChannelHandlerContext ctx = server.pipeline().context(serverHandler);
+            serverHandler.goAway(ctx, lastStreamId, NO_ERROR.code(), Unpooled.EMPTY_BUFFER, ctx.newPromise());
+            serverHandler.flush(ctx);
+        }
+
+        @SuppressWarnings("unchecked")
+        private <T> T relayed(Class<?> frameType) {
+            Object msg;
+            while ((msg = client.readOutbound()) != null) {
+                if (frameType.isInstance(msg) || isFrame(msg, (Class) frameType)) {
+                    return (T) msg;
+                }
+                ReferenceCountUtil.release(msg);
+            }
+            throw new AssertionError("No relayed " + frameType.getSimpleName());
+        }
+
+        private void finish() {
+            backend.finishAndReleaseAll();
+            server.finishAndReleaseAll();
+            client.finishAndReleaseAll();
+        }
+    }
+
     private void bootstrapEnv() throws Exception {
         final CountDownLatch prefaceWrittenLatch = new CountDownLatch(1);
         sb = new ServerBootstrap();
@@ -41,13 +41,20 @@ package ai.safekids.httpproxy.handler.protocol.http2;
 
 import ai.safekids.httpproxy.Address;
 import ai.safekids.httpproxy.ConnectionContext;
+import ai.safekids.httpproxy.NitmProxyConfig;
 import ai.safekids.httpproxy.NitmProxyMaster;
 import ai.safekids.httpproxy.event.HttpEvent;
 import ai.safekids.httpproxy.listener.NitmProxyListener;
 import com.google.common.collect.ImmutableList;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.embedded.EmbeddedChannel;
 import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http2.DefaultHttp2DataFrame;
+import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.DefaultHttp2HeadersFrame;
+import io.netty.handler.codec.http2.DefaultHttp2ResetFrame;
+import io.netty.handler.codec.http2.Http2ResetFrame;
 import io.netty.util.ReferenceCountUtil;
 import io.netty.util.concurrent.DefaultEventExecutor;
 import io.netty.util.concurrent.Future;
@@ -56,8 +63,8 @@ import org.assertj.core.data.Offset;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
-import org.mockito.ArgumentCaptor;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
 
@@ -67,21 +74,31 @@ import static ai.safekids.httpproxy.testing.EmbeddedChannelAssert.*;
 import static io.netty.handler.codec.http.HttpHeaderValues.*;
 import static io.netty.handler.codec.http.HttpMethod.*;
 import static io.netty.handler.codec.http.HttpResponseStatus.*;
+import static io.netty.handler.codec.http2.Http2Error.*;
 import static java.lang.System.*;
+import static java.nio.charset.StandardCharsets.*;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
 public class Http2EventHandlerTest {
 
+    private NitmProxyConfig config;
     private NitmProxyListener listener;
+    private List<HttpEvent> events;
     private EmbeddedChannel channel;
 
     @Before
     public void setUp() {
         listener = mock(NitmProxyListener.class);
+        // The events are recycled after the callback
+        events = new ArrayList<>();
+        doAnswer(invocation -> events.add(invocation.<HttpEvent>getArgument(0).snapshot()))
+            .when(listener).onHttpEvent(any());
         NitmProxyMaster master = mock(NitmProxyMaster.class);
         when(master.listenerProvider()).thenReturn(singleton(listener));
+        config = new NitmProxyConfig();
+        when(master.config()).thenReturn(config);
 
         ConnectionContext context = new ConnectionContext(master)
             .withClientAddr(new Address("localhost", 8080))
@@ -125,6 +142,88 @@ public class Http2EventHandlerTest {
         requestFrames.forEach(ReferenceCountUtil::release);
     }
 
+    @Test
+    public void shouldRelayRequestFramesWhenStreaming() {
+        config.setHttp2Streaming(true);
+        List<Http2FrameWrapper<?>> requestFrames = Http2FramesWrapper
+            .builder(1)
+            .request(textRequest(HttpVersion.HTTP_1_1, POST, "localhost", "/", "Hello nitmproxy"))
+            .build()
+            .getAllFrames();
+        assertTrue(channel.writeInbound(requestFrames.get(0)));
+        assertTrue(channel.writeInbound(requestFrames.get(1)));
+        assertThat(channel.inboundMessages().poll()).isSameAs(requestFrames.get(0));
+        assertThat(channel.inboundMessages().poll()).isSameAs(requestFrames.get(1));
+        verify(listener, never()).onHttp2Request(any(), any(), any());
+
+        Http2FramesWrapper
+            .builder(1)
+            .response(defaultResponse("Hello nitmproxy"))
+            .build()
+            .getAllFrames()
+            .forEach(channel::writeOutbound);
+
+        assertThat(events).hasSize(1);
+        assertEquals(POST, events.get(0).getMethod());
+        assertEquals(15, events.get(0).getRequestBodySize());
+        assertEquals(15, events.get(0).getResponseBodySize());
+        requestFrames.forEach(ReferenceCountUtil::release);
+    }
+
+    @Test
+    public void shouldAggregateRequestWhenListenerInspects() {
+        config.setHttp2Streaming(true);
+        when(listener.aggregateHttp2Request(any(), any())).thenReturn(true);
+        when(listener.onHttp2Request(any(), any(), any())).thenReturn(emptyRequest());
+        List<Http2FrameWrapper<?>> requestFrames = Http2FramesWrapper
+            .builder(1)
+            .request(textRequest(HttpVersion.HTTP_1_1, POST, "localhost", "/", "Hello nitmproxy"))
+            .build()
+            .getAllFrames();
+        assertFalse(channel.writeInbound(requestFrames.get(0)));
+        assertTrue(channel.writeInbound(requestFrames.get(1)));
+        verify(listener).onHttp2Request(any(), any(), any());
+        assertChannel(channel).hasInboundMessage().hasSize(2);
+    }
+
+    @Test
+    public void shouldReleaseAggregatedRequestWhenReset() {
+        Http2DataFrameWrapper data = new Http2DataFrameWrapper(
+            1, new DefaultHttp2DataFrame(Unpooled.copiedBuffer("Hello", UTF_8), false));
+        assertFalse(channel.writeInbound(
+            new Http2FrameWrapper<>(1, new DefaultHttp2HeadersFrame(new DefaultHttp2Headers().method("POST"), false))));
+        assertFalse(channel.writeInbound(data));
+        assertTrue(channel.writeInbound(new Http2FrameWrapper<>(1, new DefaultHttp2ResetFrame(CANCEL))));
+
+        assertEquals(0, data.refCnt());
+        assertThat(Http2FrameWrapper.isFrame(channel.readInbound(), Http2ResetFrame.class)).isTrue();
+        verify(listener, never()).onHttp2Request(any(), any(), any());
+    }
+
+    @Test
+    public void shouldReleaseInterceptedResponseWhenReset() {
+        when(listener.onHttp2Request(any(), any(), any())).thenReturn(emptyRequest());
+        when(listener.interceptHttp2Response(any())).thenReturn(true);
+        Http2FramesWrapper
+            .builder(1)
+            .request(defaultRequest())
+            .build()
+            .getAllFrames()
+            .forEach(channel::writeInbound);
+
+        Http2DataFrameWrapper data = new Http2DataFrameWrapper(
+            1, new DefaultHttp2DataFrame(Unpooled.copiedBuffer("Hello", UTF_8), false));
+        channel.writeOutbound(
+            new Http2FrameWrapper<>(1, new DefaultHttp2HeadersFrame(new DefaultHttp2Headers().status("200"), false)));
+        channel.writeOutbound(data);
+        assertThat(channel.outboundMessages()).isEmpty();
+        channel.writeOutbound(new Http2FrameWrapper<>(1, new DefaultHttp2ResetFrame(INTERNAL_ERROR)));
+
+        assertEquals(0, data.refCnt());
+        assertThat(Http2FrameWrapper.isFrame(channel.readOutbound(), Http2ResetFrame.class)).isTrue();
+        assertThat(events).isEmpty();
+    }
+
     @Test
     public void shouldLogWithFullResponse() {
         when(listener.onHttp2Request(any(), any(), any())).thenReturn(emptyRequest());
@@ -146,9 +245,8 @@ public class Http2EventHandlerTest {
             .getAllFrames()
             .forEach(channel::writeOutbound);
 
-        ArgumentCaptor<HttpEvent> captor = ArgumentCaptor.forClass(HttpEvent.class);
-        verify(listener).onHttpEvent(captor.capture());
-        HttpEvent event = captor.getValue();
+        assertThat(events).hasSize(1);
+        HttpEvent event = events.get(0);
         assertEquals(new Address("localhost", 8080), event.getClient());
         assertThat(event.getServer()).isNull();
         assertEquals(GET, event.getMethod());
@@ -179,9 +277,8 @@ public class Http2EventHandlerTest {
 
         assertChannel(channel).hasOutboundMessage().hasSize(2);
 
-        ArgumentCaptor<HttpEvent> captor = ArgumentCaptor.forClass(HttpEvent.class);
-        verify(listener).onHttpEvent(captor.capture());
-        HttpEvent event = captor.getValue();
+        assertThat(events).hasSize(1);
+        HttpEvent event = events.get(0);
         assertEquals(new Address("localhost", 8080), event.getClient());
         assertThat(event.getServer()).isNull();
         assertEquals(GET, event.getMethod());
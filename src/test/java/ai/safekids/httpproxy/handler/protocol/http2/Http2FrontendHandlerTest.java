@@ -64,6 +64,7 @@ import io.netty.channel.local.LocalAddress;
 import io.netty.channel.local.LocalChannel;
 import io.netty.channel.local.LocalServerChannel;
 import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.Http2Connection;
 import io.netty.handler.codec.http2.Http2ConnectionHandler;
 import io.netty.handler.codec.http2.Http2ConnectionHandlerBuilder;
 import io.netty.handler.codec.http2.Http2ConnectionPrefaceAndSettingsFrameWrittenEvent;
@@ -215,6 +216,47 @@ public class Http2FrontendHandlerTest {
                              .release();
     }
 
+    @Test
+    public void shouldConsumeDataOnceDelivered() throws Exception {
+        bootstrapEnv();
+        CountDownLatch latch = new CountDownLatch(1);
+        targetChannel.pipeline().addLast(new ChannelOutboundHandlerAdapter() {
+            @Override
+            public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+                ctx.write(msg, promise);
+                if (isFrame(msg, Http2DataFrame.class)) {
+                    promise.addListener(future -> latch.countDown());
+                }
+            }
+        });
+
+        ChannelHandlerContext ctx = clientChannel.pipeline().firstContext();
+        Http2TestUtil.runInChannel(clientChannel, () -> {
+            http2Client.encoder().writeHeaders(ctx, 1, dummyHeaders(), 0, false, ctx.newPromise());
+            http2Client.encoder().writeData(
+                    ctx, 1, writeUtf8(ctx.alloc(), "Hello"), 0, true, ctx.newPromise());
+            http2Client.flush(ctx);
+        });
+
+        assertTrue(latch.await(DEFAULT_AWAIT_TIMEOUT_SECONDS, SECONDS));
+        assertEquals(5, unconsumedBytes(1));
+
+        targetChannel.readOutbound();
+        targetChannel.readOutbound();
+        Http2DataFrameWrapper data = targetChannel.readOutbound();
+        data.consume();
+        data.release();
+        assertEquals(0, unconsumedBytes(1));
+    }
+
+    private int unconsumedBytes(int streamId) throws Exception {
+        return serverConnectedChannel.eventLoop().submit(() -> {
+            Http2Connection connection = serverConnectedChannel.pipeline().get(Http2ConnectionHandler.class)
+                                                               .connection();
+            return connection.local().flowController().unconsumedBytes(connection.stream(streamId));
+        }).get(DEFAULT_AWAIT_TIMEOUT_SECONDS, SECONDS);
+    }
+
     private void bootstrapEnv() throws Exception {
         final CountDownLatch prefaceWrittenLatch = new CountDownLatch(1);
         sb = new ServerBootstrap();
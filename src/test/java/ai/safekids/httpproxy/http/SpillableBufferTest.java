@@ -0,0 +1,151 @@
+/*
+ * Copyright 2021 - Safe Kids LLC
+ *
+ * The complete license agreement is available at https://safekids.ai/eula
+ *
+ *
+ * LICENSE GRANT
+ * ==============================================
+ * Licensor hereby grants to you a non-exclusive and non-transferable license to use the Software and
+ * related documentation (the "Documentation") solely for the intended purposes of the Software as set forth in the
+ * Documentation, according to the provisions contained herein and subject to payment of applicable license fees.
+ * You are not permitted to lease, rent, distribute or sublicense the Software or any rights therein.
+ * You also may not install the Software on a network server, use the Software in a time-sharing arrangement or
+ * in any other unauthorized manner. Further, no license is granted to you in the human readable code of the Software
+ *  (source code). Except as provided below, this Agreement does not grant you any rights to patents, copyrights,
+ *  trade secrets, trademarks, or any other rights in the Software and Documentation.
+ *
+ * NO MODIFICATION, NO REVERSE ENGINEERING
+ * ===============================================
+ * You agree not to, without the prior written permission of Licensor: (i); disassemble, decompile or "unlock",
+ * decode or otherwise reverse translate or engineer, or attempt in any manner to reconstruct or discover any source
+ * code or underlying algorithms of the Software, if provided in object code form only; (ii) use, copy,
+ * modify, translate,reverse engineer, decompile, disassemble, or create derivative works of the Software and
+ * any accompanying documents, or assist someone in performing such prohibited acts; or (iii) transfer, rent,
+ * lease, or sub license the Software.
+ *
+ * NO WARRANTIES.
+ * ===============================================
+ * LICENSOR MAKES NO WARRANTIES, EXPRESS OR IMPLIED, INCLUDING, BUT NOT LIMITED TO, IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, TITLE, AND NON-INFRINGEMENT OF THIRD PARTIES' RIGHTS.
+ * THE SOFTWARE (INCLUDING SOURCE CODE) IS PROVIDED TO YOU ON AN "AS IS" BASIS. TO THE FULL EXTENT PERMITTED BY LAW,
+ * THE DURATION OF STATUTORILY REQUIRED WARRANTIES, IF ANY, SHALL BE LIMITED TO THE ABOVE LIMITED WARRANTY PERIOD.
+ * MOREOVER, IN NO EVENT WILL WARRANTIES PROVIDED BY LAW, IF ANY, APPLY UNLESS THEY ARE REQUIRED TO APPLY BY
+ * STATUTE NOTWITHSTANDING THEIR EXCLUSION BY CONTRACT. NO DEALER, AGENT, OR EMPLOYEE OF LICENSOR IS AUTHORIZED TO
+ * MAKE ANY MODIFICATIONS, EXTENSIONS, OR ADDITIONS TO THIS LIMITED WARRANTY. THE ENTIRE RISK ARISING OUT OF USE OR
+ * PERFORMANCE OF THE SOFTWARE REMAINS WITH YOU.
+ *
+ */
+
+package ai.safekids.httpproxy.http;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+
+import static io.netty.buffer.Unpooled.*;
+import static java.nio.charset.StandardCharsets.*;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SpillableBufferTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private MemoryBudget budget;
+    private SpillableBuffer buffer;
+
+    @Before
+    public void setUp() {
+        budget = new MemoryBudget(16);
+        buffer = new SpillableBuffer(UnpooledByteBufAllocator.DEFAULT, 8, budget, folder.getRoot().toPath());
+    }
+
+    @After
+    public void tearDown() {
+        buffer.release();
+    }
+
+    @Test
+    public void shouldKeepInMemoryWithinLimit() throws IOException {
+        append("Hel", "lo");
+        assertThat(buffer.isSpilled()).isFalse();
+        assertThat(budget.used()).isEqualTo(5);
+
+        ByteBuf content = buffer.content();
+        assertThat(content.toString(UTF_8)).isEqualTo("Hello");
+        assertThat(budget.used()).isEqualTo(5);
+        content.release();
+        assertThat(budget.used()).isZero();
+    }
+
+    @Test
+    public void shouldSpillBeyondLimit() throws IOException {
+        append("Hello ", "Nitm", "proxy");
+        assertThat(buffer.isSpilled()).isTrue();
+        assertThat(buffer.size()).isEqualTo(15);
+        assertThat(budget.used()).isZero();
+
+        ByteBuf content = buffer.content();
+        assertThat(folder.getRoot().list()).isEmpty();
+        assertThat(content.toString(UTF_8)).isEqualTo("Hello Nitmproxy");
+        content.release();
+    }
+
+    @Test
+    public void shouldSpillWhenBudgetExhausted() throws IOException {
+        assertThat(budget.tryReserve(12)).isTrue();
+
+        append("Hello ");
+        assertThat(buffer.isSpilled()).isTrue();
+        assertThat(budget.used()).isEqualTo(12);
+    }
+
+    @Test
+    public void shouldNotSpillOnTryAppend() {
+        ByteBuf buf = copiedBuffer("Hello Nitmproxy", UTF_8);
+        assertThat(buffer.tryAppend(buf)).isFalse();
+        assertThat(buffer.isSpilled()).isFalse();
+        assertThat(buffer.size()).isZero();
+        buf.release();
+    }
+
+    @Test
+    public void shouldCopySmallSliceOfLargeBuffer() throws IOException {
+        ByteBuf read = buffer(1024).writeBytes("Hello".getBytes(UTF_8));
+        ByteBuf slice = read.retainedSlice(0, 5);
+        assertThat(buffer.tryAppend(slice)).isTrue();
+        slice.release();
+        assertThat(read.refCnt()).isEqualTo(1);
+        assertThat(budget.used()).isEqualTo(5);
+        read.release();
+
+        ByteBuf content = buffer.content();
+        assertThat(content.toString(UTF_8)).isEqualTo("Hello");
+        content.release();
+    }
+
+    @Test
+    public void shouldDeleteSpilledFileOnRelease() throws IOException {
+        append("Hello Nitmproxy");
+        assertThat(buffer.isSpilled()).isTrue();
+
+        buffer.release();
+        assertThat(folder.getRoot().list()).isEmpty();
+        assertThat(buffer.size()).isZero();
+    }
+
+    private void append(String... chunks) throws IOException {
+        for (String chunk : chunks) {
+            ByteBuf buf = copiedBuffer(chunk, UTF_8);
+            buffer.append(buf);
+            buf.release();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2021 - Safe Kids LLC
+ *
+ * The complete license agreement is available at https://safekids.ai/eula
+ *
+ *
+ * LICENSE GRANT
+ * ==============================================
+ * Licensor hereby grants to you a non-exclusive and non-transferable license to use the Software and
+ * related documentation (the "Documentation") solely for the intended purposes of the Software as set forth in the
+ * Documentation, according to the provisions contained herein and subject to payment of applicable license fees.
+ * You are not permitted to lease, rent, distribute or sublicense the Software or any rights therein.
+ * You also may not install the Software on a network server, use the Software in a time-sharing arrangement or
+ * in any other unauthorized manner. Further, no license is granted to you in the human readable code of the Software
+ *  (source code). Except as provided below, this Agreement does not grant you any rights to patents, copyrights,
+ *  trade secrets, trademarks, or any other rights in the Software and Documentation.
+ *
+ * NO MODIFICATION, NO REVERSE ENGINEERING
+ * ===============================================
+ * You agree not to, without the prior written permission of Licensor: (i); disassemble, decompile or "unlock",
+ * decode or otherwise reverse translate or engineer, or attempt in any manner to reconstruct or discover any source
+ * code or underlying algorithms of the Software, if provided in object code form only; (ii) use, copy,
+ * modify, translate,reverse engineer, decompile, disassemble, or create derivative works of the Software and
+ * any accompanying documents, or assist someone in performing such prohibited acts; or (iii) transfer, rent,
+ * lease, or sub license the Software.
+ *
+ * NO WARRANTIES.
+ * ===============================================
+ * LICENSOR MAKES NO WARRANTIES, EXPRESS OR IMPLIED, INCLUDING, BUT NOT LIMITED TO, IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, TITLE, AND NON-INFRINGEMENT OF THIRD PARTIES' RIGHTS.
+ * THE SOFTWARE (INCLUDING SOURCE CODE) IS PROVIDED TO YOU ON AN "AS IS" BASIS. TO THE FULL EXTENT PERMITTED BY LAW,
+ * THE DURATION OF STATUTORILY REQUIRED WARRANTIES, IF ANY, SHALL BE LIMITED TO THE ABOVE LIMITED WARRANTY PERIOD.
+ * MOREOVER, IN NO EVENT WILL WARRANTIES PROVIDED BY LAW, IF ANY, APPLY UNLESS THEY ARE REQUIRED TO APPLY BY
+ * STATUTE NOTWITHSTANDING THEIR EXCLUSION BY CONTRACT. NO DEALER, AGENT, OR EMPLOYEE OF LICENSOR IS AUTHORIZED TO
+ * MAKE ANY MODIFICATIONS, EXTENSIONS, OR ADDITIONS TO THIS LIMITED WARRANTY. THE ENTIRE RISK ARISING OUT OF USE OR
+ * PERFORMANCE OF THE SOFTWARE REMAINS WITH YOU.
+ *
+ */
+
+package ai.safekids.httpproxy.listener;
+
+import ai.safekids.httpproxy.ConnectionContext;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+import io.netty.util.concurrent.Promise;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Optional;
+
+import static io.netty.handler.codec.http.HttpMethod.*;
+import static io.netty.handler.codec.http.HttpResponseStatus.*;
+import static io.netty.handler.codec.http.HttpVersion.*;
+import static java.util.Arrays.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class NitmProxyListenerManagerTest {
+
+    private ChannelHandlerContext ctx;
+    private ConnectionContext connectionContext;
+
+    @Before
+    public void setUp() {
+        ctx = mock(ChannelHandlerContext.class);
+        when(ctx.executor()).thenReturn(ImmediateEventExecutor.INSTANCE);
+        connectionContext = mock(ConnectionContext.class);
+    }
+
+    @Test
+    public void shouldSeeRewriteOfPreviousListener() {
+        NitmProxyListener rewrite = new NitmProxyListener() {
+            @Override
+            public Future<Optional<FullHttpResponse>> onHttp1RequestHeaders(ChannelHandlerContext ctx,
+                                                                            ConnectionContext connectionContext,
+                                                                            HttpRequest request) {
+                request.setUri("/rewritten");
+                return NitmProxyListener.super.onHttp1RequestHeaders(ctx, connectionContext, request);
+            }
+        };
+        NitmProxyListener block = blockPath("/rewritten");
+        NitmProxyListenerManager manager = new NitmProxyListenerManager(asList(rewrite, block));
+
+        Future<Optional<FullHttpResponse>> future =
+            manager.onHttp1RequestHeaders(ctx, connectionContext, new DefaultHttpRequest(HTTP_1_1, GET, "/"));
+        assertTrue(future.getNow().isPresent());
+        assertEquals(FORBIDDEN, future.getNow().get().status());
+    }
+
+    @Test
+    public void shouldStopAtFirstResponse() {
+        NitmProxyListener second = spy(new NitmProxyListener() {});
+        NitmProxyListenerManager manager = new NitmProxyListenerManager(asList(blockPath("/"), second));
+
+        Future<Optional<FullHttpResponse>> future =
+            manager.onHttp1RequestHeaders(ctx, connectionContext, new DefaultHttpRequest(HTTP_1_1, GET, "/"));
+        assertTrue(future.getNow().isPresent());
+        verify(second, never()).onHttp1RequestHeaders(any(), any(), any());
+    }
+
+    @Test
+    public void shouldContinueAfterAsyncListener() {
+        Promise<Optional<FullHttpResponse>> decision = ImmediateEventExecutor.INSTANCE.newPromise();
+        NitmProxyListener async = new NitmProxyListener() {
+            @Override
+            public Future<Optional<FullHttpResponse>> onHttp1RequestHeaders(ChannelHandlerContext ctx,
+                                                                            ConnectionContext connectionContext,
+                                                                            HttpRequest request) {
+                return decision;
+            }
+        };
+        NitmProxyListenerManager manager = new NitmProxyListenerManager(asList(async, blockPath("/blocked")));
+
+        Future<Optional<FullHttpResponse>> future = manager.onHttp1RequestHeaders(
+            ctx, connectionContext, new DefaultHttpRequest(HTTP_1_1, GET, "/blocked"));
+        assertFalse(future.isDone());
+
+        decision.setSuccess(Optional.empty());
+        assertTrue(future.getNow().isPresent());
+    }
+
+    @Test
+    public void shouldAllowByDefault() {
+        NitmProxyListenerManager manager = new NitmProxyListenerManager(asList(new NitmProxyListener() {}));
+
+        Future<Optional<FullHttpResponse>> future =
+            manager.onHttp1RequestHeaders(ctx, connectionContext, new DefaultHttpRequest(HTTP_1_1, GET, "/"));
+        assertFalse(future.getNow().isPresent());
+    }
+
+    private static NitmProxyListener blockPath(String path) {
+        return new NitmProxyListener() {
+            @Override
+            public Future<Optional<FullHttpResponse>> onHttp1RequestHeaders(ChannelHandlerContext ctx,
+                                                                            ConnectionContext connectionContext,
+                                                                            HttpRequest request) {
+                if (!request.uri().equals(path)) {
+                    return NitmProxyListener.super.onHttp1RequestHeaders(ctx, connectionContext, request);
+                }
+                return ctx.executor().newSucceededFuture(
+                    Optional.of(new DefaultFullHttpResponse(HTTP_1_1, FORBIDDEN)));
+            }
+        };
+    }
+}
@@ -40,22 +40,32 @@
 package ai.safekids.httpproxy.tls;
 
 import ai.safekids.httpproxy.NitmProxyConfig;
+import ai.safekids.httpproxy.enums.LeafKeyStrategy;
 import com.google.common.io.Resources;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.ImmediateEventExecutor;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import static ai.safekids.httpproxy.tls.CertUtil.*;
+import static java.util.Arrays.*;
+import static java.util.Collections.*;
 import static org.junit.Assert.*;
 
 public class CertManagerTest {
     private CertManager certManager;
+    private List<Runnable> signings;
 
     @Before
     public void setUp() {
         NitmProxyConfig config = new NitmProxyConfig();
         config.setCertificate(readPemFromFile(Resources.getResource("server.pem").getFile()));
         config.setKey(readPrivateKeyFromFile(Resources.getResource("key.pem").getFile()));
-        certManager = new CertManager(config);
+        signings = new ArrayList<>();
+        certManager = new CertManager(config, signings::add);
     }
 
     @Test
@@ -72,4 +82,92 @@ public class CertManagerTest {
                 certManager.getCert("www.google.com"),
                 certManager.getCert("www.apple.com"));
     }
+
+    @Test
+    public void shouldUsePooledEcKeyPair() {
+        Certificate cert = certManager.getCert("localhost");
+        assertEquals("EC", cert.getKeyPair().getPublic().getAlgorithm());
+        assertEquals(cert.getKeyPair().getPublic(), cert.getChain()[0].getPublicKey());
+    }
+
+    @Test
+    public void shouldUseCaKeyPair() {
+        NitmProxyConfig config = new NitmProxyConfig();
+        config.setCertificate(readPemFromFile(Resources.getResource("server.pem").getFile()));
+        config.setKey(readPrivateKeyFromFile(Resources.getResource("key.pem").getFile()));
+        config.setLeafKeyStrategy(LeafKeyStrategy.CA);
+        Certificate cert = new CertManager(config, Runnable::run).getCert("localhost");
+        assertEquals(cert.getChain()[1].getPublicKey(), cert.getKeyPair().getPublic());
+    }
+
+    @Test
+    public void shouldShareWildcardCert() throws Exception {
+        CertManager wildcardManager = new CertManager(wildcardConfig(), Runnable::run);
+        Certificate cert = wildcardManager.getCert("img1.example.com");
+
+        assertSame(cert, wildcardManager.getCert("img2.example.com"));
+        assertSame(cert, wildcardManager.getCert("example.com"));
+        assertEquals(asList(asList(2, "*.example.com"), asList(2, "example.com")),
+                     new ArrayList<>(cert.getChain()[0].getSubjectAlternativeNames()));
+    }
+
+    @Test
+    public void shouldNotWildcardPublicSuffixOrAddress() {
+        CertManager wildcardManager = new CertManager(wildcardConfig(), Runnable::run);
+
+        assertEquals("*.example.co.uk", wildcardManager.certHost("www.example.co.uk"));
+        assertEquals("*.b.example.com", wildcardManager.certHost("a.b.example.com"));
+        assertEquals("localhost", wildcardManager.certHost("localhost"));
+        assertEquals("co.uk", wildcardManager.certHost("co.uk"));
+        assertEquals("127.0.0.1", wildcardManager.certHost("127.0.0.1"));
+        assertEquals("www.example.com", certManager.certHost("www.example.com"));
+    }
+
+    @Test
+    public void shouldRotateCert() {
+        List<Certificate> rotated = new ArrayList<>();
+        certManager.addRotationListener(rotated::add);
+        Certificate cert = certManager.getCert("localhost");
+
+        certManager.rotate("localhost");
+        assertEquals(singletonList(cert), rotated);
+        assertNotSame(cert, certManager.getCert("localhost"));
+    }
+
+    @Test
+    public void shouldCreateCertAsynchronously() {
+        Future<Certificate> future = certManager.getCert(ImmediateEventExecutor.INSTANCE, "localhost");
+        assertFalse(future.isDone());
+
+        signings.forEach(Runnable::run);
+        assertTrue(future.isSuccess());
+        assertSame(certManager.getCert("localhost"), future.getNow());
+    }
+
+    @Test
+    public void shouldCoalesceAsyncRequests() {
+        Future<Certificate> first = certManager.getCert(ImmediateEventExecutor.INSTANCE, "localhost");
+        Future<Certificate> second = certManager.getCert(ImmediateEventExecutor.INSTANCE, "localhost");
+        assertEquals(1, signings.size());
+
+        signings.forEach(Runnable::run);
+        assertSame(first.getNow(), second.getNow());
+    }
+
+    @Test
+    public void shouldGetCachedCertImmediately() {
+        Certificate cert = certManager.getCert("localhost");
+
+        Future<Certificate> future = certManager.getCert(ImmediateEventExecutor.INSTANCE, "localhost");
+        assertTrue(signings.isEmpty());
+        assertSame(cert, future.getNow());
+    }
+
+    private static NitmProxyConfig wildcardConfig() {
+        NitmProxyConfig config = new NitmProxyConfig();
+        config.setCertificate(readPemFromFile(Resources.getResource("server.pem").getFile()));
+        config.setKey(readPrivateKeyFromFile(Resources.getResource("key.pem").getFile()));
+        config.setWildcardCerts(true);
+        return config;
+    }
 }
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2021 - Safe Kids LLC
+ *
+ * The complete license agreement is available at https://safekids.ai/eula
+ *
+ *
+ * LICENSE GRANT
+ * ==============================================
+ * Licensor hereby grants to you a non-exclusive and non-transferable license to use the Software and
+ * related documentation (the "Documentation") solely for the intended purposes of the Software as set forth in the
+ * Documentation, according to the provisions contained herein and subject to payment of applicable license fees.
+ * You are not permitted to lease, rent, distribute or sublicense the Software or any rights therein.
+ * You also may not install the Software on a network server, use the Software in a time-sharing arrangement or
+ * in any other unauthorized manner. Further, no license is granted to you in the human readable code of the Software
+ *  (source code). Except as provided below, this Agreement does not grant you any rights to patents, copyrights,
+ *  trade secrets, trademarks, or any other rights in the Software and Documentation.
+ *
+ * NO MODIFICATION, NO REVERSE ENGINEERING
+ * ===============================================
+ * You agree not to, without the prior written permission of Licensor: (i); disassemble, decompile or "unlock",
+ * decode or otherwise reverse translate or engineer, or attempt in any manner to reconstruct or discover any source
+ * code or underlying algorithms of the Software, if provided in object code form only; (ii) use, copy,
+ * modify, translate,reverse engineer, decompile, disassemble, or create derivative works of the Software and
+ * any accompanying documents, or assist someone in performing such prohibited acts; or (iii) transfer, rent,
+ * lease, or sub license the Software.
+ *
+ * NO WARRANTIES.
+ * ===============================================
+ * LICENSOR MAKES NO WARRANTIES, EXPRESS OR IMPLIED, INCLUDING, BUT NOT LIMITED TO, IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, TITLE, AND NON-INFRINGEMENT OF THIRD PARTIES' RIGHTS.
+ * THE SOFTWARE (INCLUDING SOURCE CODE) IS PROVIDED TO YOU ON AN "AS IS" BASIS. TO THE FULL EXTENT PERMITTED BY LAW,
+ * THE DURATION OF STATUTORILY REQUIRED WARRANTIES, IF ANY, SHALL BE LIMITED TO THE ABOVE LIMITED WARRANTY PERIOD.
+ * MOREOVER, IN NO EVENT WILL WARRANTIES PROVIDED BY LAW, IF ANY, APPLY UNLESS THEY ARE REQUIRED TO APPLY BY
+ * STATUTE NOTWITHSTANDING THEIR EXCLUSION BY CONTRACT. NO DEALER, AGENT, OR EMPLOYEE OF LICENSOR IS AUTHORIZED TO
+ * MAKE ANY MODIFICATIONS, EXTENSIONS, OR ADDITIONS TO THIS LIMITED WARRANTY. THE ENTIRE RISK ARISING OUT OF USE OR
+ * PERFORMANCE OF THE SOFTWARE REMAINS WITH YOU.
+ *
+ */
+
+package ai.safekids.httpproxy.tls;
+
+import com.google.common.io.Resources;
+import org.bouncycastle.asn1.pkcs.PrivateKeyInfo;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateHolder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+
+import static ai.safekids.httpproxy.tls.CertUtil.*;
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+
+public class CertStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private X509CertificateHolder ca;
+    private PrivateKeyInfo key;
+    private File file;
+    private CertStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        ca = readPemFromFile(Resources.getResource("server.pem").getFile());
+        key = readPrivateKeyFromFile(Resources.getResource("key.pem").getFile());
+        file = folder.newFile("certs.db");
+        store = CertStore.open(file, ca);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+    }
+
+    @Test
+    public void shouldPersistCerts() throws Exception {
+        Certificate cert = newCert(ca, key, "localhost");
+        store.put("localhost", cert);
+        assertCertEquals(cert, store.get("localhost"));
+
+        reopen(ca);
+        assertEquals(1, store.size());
+        assertCertEquals(cert, store.get("localhost"));
+        assertNull(store.get("www.google.com"));
+    }
+
+    @Test
+    public void shouldGetLatestCert() throws Exception {
+        store.put("localhost", newCert(ca, key, "localhost"));
+        Certificate latest = newCert(ca, key, "localhost");
+        store.put("localhost", latest);
+
+        reopen(ca);
+        assertCertEquals(latest, store.get("localhost"));
+    }
+
+    @Test
+    public void shouldDiscardCertsOfOtherCa() throws Exception {
+        store.put("localhost", newCert(ca, key, "localhost"));
+
+        KeyPair keyPair = generateKeyPair(2048);
+        reopen(new JcaX509CertificateHolder(generateCertificate(
+                "CN=other", new Date(), new Date(System.currentTimeMillis() + 86400000L), keyPair)));
+        assertEquals(0, store.size());
+        assertNull(store.get("localhost"));
+    }
+
+    @Test
+    public void shouldSkipExpiredCert() throws Exception {
+        KeyPair keyPair = generateKeyPair(2048);
+        X509Certificate expired = generateCertificate(
+                "CN=localhost", new Date(0), new Date(System.currentTimeMillis() - 1000), keyPair);
+        store.put("localhost", new Certificate(keyPair, expired));
+
+        assertNull(store.get("localhost"));
+    }
+
+    @Test
+    public void shouldIgnoreIncompleteRecord() throws Exception {
+        Certificate cert = newCert(ca, key, "localhost");
+        store.put("localhost", cert);
+        store.close();
+        Files.write(file.toPath(), new byte[] { 0, 0, 1, 0, 1, 2 }, StandardOpenOption.APPEND);
+
+        store = CertStore.open(file, ca);
+        assertCertEquals(cert, store.get("localhost"));
+        store.put("www.google.com", newCert(ca, key, "www.google.com"));
+
+        reopen(ca);
+        assertEquals(2, store.size());
+    }
+
+    @Test
+    public void shouldCreateOwnerOnlyFile() throws Exception {
+        assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"));
+        store.close();
+        file = new File(folder.getRoot(), "new.db");
+        store = CertStore.open(file, ca);
+        assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(file.toPath())));
+    }
+
+    @Test
+    public void shouldKeepOwnerOnlyAfterCompaction() throws Exception {
+        assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"));
+        for (int i = 0; i < 3; i++) {
+            store.put("localhost", newCert(ca, key, "localhost"));
+        }
+        long length = file.length();
+
+        reopen(ca);
+        assertTrue(file.length() < length);
+        assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(file.toPath())));
+    }
+
+    private void reopen(X509CertificateHolder newCa) throws Exception {
+        store.close();
+        store = CertStore.open(file, newCa);
+    }
+
+    private static void assertCertEquals(Certificate expected, Certificate actual) throws Exception {
+        assertNotNull(actual);
+        assertArrayEquals(expected.getChain()[0].getEncoded(), actual.getChain()[0].getEncoded());
+        assertArrayEquals(expected.getChain()[1].getEncoded(), actual.getChain()[1].getEncoded());
+        assertEquals(expected.getKeyPair().getPrivate(), actual.getKeyPair().getPrivate());
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2021 - Safe Kids LLC
+ *
+ * The complete license agreement is available at https://safekids.ai/eula
+ *
+ *
+ * LICENSE GRANT
+ * ==============================================
+ * Licensor hereby grants to you a non-exclusive and non-transferable license to use the Software and
+ * related documentation (the "Documentation") solely for the intended purposes of the Software as set forth in the
+ * Documentation, according to the provisions contained herein and subject to payment of applicable license fees.
+ * You are not permitted to lease, rent, distribute or sublicense the Software or any rights therein.
+ * You also may not install the Software on a network server, use the Software in a time-sharing arrangement or
+ * in any other unauthorized manner. Further, no license is granted to you in the human readable code of the Software
+ *  (source code). Except as provided below, this Agreement does not grant you any rights to patents, copyrights,
+ *  trade secrets, trademarks, or any other rights in the Software and Documentation.
+ *
+ * NO MODIFICATION, NO REVERSE ENGINEERING
+ * ===============================================
+ * You agree not to, without the prior written permission of Licensor: (i); disassemble, decompile or "unlock",
+ * decode or otherwise reverse translate or engineer, or attempt in any manner to reconstruct or discover any source
+ * code or underlying algorithms of the Software, if provided in object code form only; (ii) use, copy,
+ * modify, translate,reverse engineer, decompile, disassemble, or create derivative works of the Software and
+ * any accompanying documents, or assist someone in performing such prohibited acts; or (iii) transfer, rent,
+ * lease, or sub license the Software.
+ *
+ * NO WARRANTIES.
+ * ===============================================
+ * LICENSOR MAKES NO WARRANTIES, EXPRESS OR IMPLIED, INCLUDING, BUT NOT LIMITED TO, IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, TITLE, AND NON-INFRINGEMENT OF THIRD PARTIES' RIGHTS.
+ * THE SOFTWARE (INCLUDING SOURCE CODE) IS PROVIDED TO YOU ON AN "AS IS" BASIS. TO THE FULL EXTENT PERMITTED BY LAW,
+ * THE DURATION OF STATUTORILY REQUIRED WARRANTIES, IF ANY, SHALL BE LIMITED TO THE ABOVE LIMITED WARRANTY PERIOD.
+ * MOREOVER, IN NO EVENT WILL WARRANTIES PROVIDED BY LAW, IF ANY, APPLY UNLESS THEY ARE REQUIRED TO APPLY BY
+ * STATUTE NOTWITHSTANDING THEIR EXCLUSION BY CONTRACT. NO DEALER, AGENT, OR EMPLOYEE OF LICENSOR IS AUTHORIZED TO
+ * MAKE ANY MODIFICATIONS, EXTENSIONS, OR ADDITIONS TO THIS LIMITED WARRANTY. THE ENTIRE RISK ARISING OUT OF USE OR
+ * PERFORMANCE OF THE SOFTWARE REMAINS WITH YOU.
+ *
+ */
+
+package ai.safekids.httpproxy.tls;
+
+import com.google.common.io.Resources;
+import org.bouncycastle.asn1.pkcs.PrivateKeyInfo;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+
+import static ai.safekids.httpproxy.tls.CertUtil.*;
+import static org.junit.Assert.*;
+
+public class CertUtilTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldUseCaKeyPairByDefault() throws Exception {
+        X509CertificateHolder ca = readPemFromFile(Resources.getResource("server.pem").getFile());
+        PrivateKeyInfo key = readPrivateKeyFromFile(Resources.getResource("key.pem").getFile());
+
+        Certificate cert = newCert(ca, key, "localhost");
+
+        X509Certificate leaf = cert.getChain()[0];
+        assertTrue("SHA256withRSA".equalsIgnoreCase(leaf.getSigAlgName()));
+        assertEquals(cert.getChain()[1].getPublicKey(), leaf.getPublicKey());
+        leaf.verify(cert.getChain()[1].getPublicKey());
+    }
+
+    @Test
+    public void shouldUseLeafKeyPair() throws Exception {
+        X509CertificateHolder ca = readPemFromFile(Resources.getResource("server.pem").getFile());
+        PrivateKeyInfo key = readPrivateKeyFromFile(Resources.getResource("key.pem").getFile());
+        KeyPair leafKeyPair = generateEcKeyPair();
+
+        Certificate cert = newCert(ca, key, "localhost", leafKeyPair);
+
+        X509Certificate leaf = cert.getChain()[0];
+        assertSame(leafKeyPair, cert.getKeyPair());
+        assertEquals(leafKeyPair.getPublic(), leaf.getPublicKey());
+        assertTrue("SHA256withRSA".equalsIgnoreCase(leaf.getSigAlgName()));
+        leaf.verify(cert.getChain()[1].getPublicKey());
+    }
+
+    @Test
+    public void shouldSignWithEcdsaIfCaKeyIsEc() throws Exception {
+        File caCert = folder.newFile("server.pem");
+        File caKey = folder.newFile("key.pem");
+        createCACertificates(caCert, caKey, "CN=Nitm EC Root", generateEcKeyPair());
+        X509CertificateHolder ca = readPemFromFile(caCert.getPath());
+        PrivateKeyInfo key = readPrivateKeyFromFile(caKey.getPath());
+
+        Certificate cert = newCert(ca, key, "localhost", generateEcKeyPair());
+
+        X509Certificate leaf = cert.getChain()[0];
+        assertTrue("SHA256withECDSA".equalsIgnoreCase(leaf.getSigAlgName()));
+        leaf.verify(cert.getChain()[1].getPublicKey());
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2021 - Safe Kids LLC
+ *
+ * The complete license agreement is available at https://safekids.ai/eula
+ *
+ *
+ * LICENSE GRANT
+ * ==============================================
+ * Licensor hereby grants to you a non-exclusive and non-transferable license to use the Software and
+ * related documentation (the "Documentation") solely for the intended purposes of the Software as set forth in the
+ * Documentation, according to the provisions contained herein and subject to payment of applicable license fees.
+ * You are not permitted to lease, rent, distribute or sublicense the Software or any rights therein.
+ * You also may not install the Software on a network server, use the Software in a time-sharing arrangement or
+ * in any other unauthorized manner. Further, no license is granted to you in the human readable code of the Software
+ *  (source code). Except as provided below, this Agreement does not grant you any rights to patents, copyrights,
+ *  trade secrets, trademarks, or any other rights in the Software and Documentation.
+ *
+ * NO MODIFICATION, NO REVERSE ENGINEERING
+ * ===============================================
+ * You agree not to, without the prior written permission of Licensor: (i); disassemble, decompile or "unlock",
+ * decode or otherwise reverse translate or engineer, or attempt in any manner to reconstruct or discover any source
+ * code or underlying algorithms of the Software, if provided in object code form only; (ii) use, copy,
+ * modify, translate,reverse engineer, decompile, disassemble, or create derivative works of the Software and
+ * any accompanying documents, or assist someone in performing such prohibited acts; or (iii) transfer, rent,
+ * lease, or sub license the Software.
+ *
+ * NO WARRANTIES.
+ * ===============================================
+ * LICENSOR MAKES NO WARRANTIES, EXPRESS OR IMPLIED, INCLUDING, BUT NOT LIMITED TO, IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, TITLE, AND NON-INFRINGEMENT OF THIRD PARTIES' RIGHTS.
+ * THE SOFTWARE (INCLUDING SOURCE CODE) IS PROVIDED TO YOU ON AN "AS IS" BASIS. TO THE FULL EXTENT PERMITTED BY LAW,
+ * THE DURATION OF STATUTORILY REQUIRED WARRANTIES, IF ANY, SHALL BE LIMITED TO THE ABOVE LIMITED WARRANTY PERIOD.
+ * MOREOVER, IN NO EVENT WILL WARRANTIES PROVIDED BY LAW, IF ANY, APPLY UNLESS THEY ARE REQUIRED TO APPLY BY
+ * STATUTE NOTWITHSTANDING THEIR EXCLUSION BY CONTRACT. NO DEALER, AGENT, OR EMPLOYEE OF LICENSOR IS AUTHORIZED TO
+ * MAKE ANY MODIFICATIONS, EXTENSIONS, OR ADDITIONS TO THIS LIMITED WARRANTY. THE ENTIRE RISK ARISING OUT OF USE OR
+ * PERFORMANCE OF THE SOFTWARE REMAINS WITH YOU.
+ *
+ */
+
+package ai.safekids.httpproxy.tls;
+
+import ai.safekids.httpproxy.NitmProxyConfig;
+import com.google.common.io.Resources;
+import org.junit.Before;
+import org.junit.Test;
+
+import static ai.safekids.httpproxy.tls.CertUtil.*;
+import static io.netty.handler.ssl.ApplicationProtocolNames.*;
+import static java.util.Arrays.*;
+import static java.util.Collections.*;
+import static org.junit.Assert.*;
+
+public class CertWarmerTest {
+    private NitmProxyConfig config;
+    private CertManager certManager;
+    private SslContextCache sslContextCache;
+    private CertWarmer certWarmer;
+
+    @Before
+    public void setUp() {
+        config = new NitmProxyConfig();
+        config.setCertificate(readPemFromFile(Resources.getResource("server.pem").getFile()));
+        config.setKey(readPrivateKeyFromFile(Resources.getResource("key.pem").getFile()));
+        certManager = new CertManager(config, Runnable::run);
+        sslContextCache = new SslContextCache();
+        certWarmer = new CertWarmer(config, certManager, sslContextCache);
+    }
+
+    @Test
+    public void shouldWarmUpCertAndContexts() throws Exception {
+        certWarmer.offer("localhost");
+        assertEquals(1, certWarmer.pending());
+
+        assertTrue(certWarmer.warmUpNext() > 0);
+        assertTrue(certManager.hasCert("localhost"));
+
+        Certificate cert = certManager.getCert("localhost");
+        for (String protocol : asList(HTTP_2, HTTP_1_1)) {
+            assertNotNull(sslContextCache.serverContext(cert, singletonList(protocol), () -> {
+                throw new IllegalStateException("Not warmed up: " + protocol);
+            }));
+        }
+    }
+
+    @Test
+    public void shouldIgnoreDuplicatedAndReadyHosts() {
+        certManager.getCert("localhost");
+        certWarmer.offer("localhost");
+        certWarmer.offer("www.example.com");
+        certWarmer.offer("www.example.com");
+        assertEquals(1, certWarmer.pending());
+    }
+
+    @Test
+    public void shouldReturnNegativeIfEmpty() {
+        assertEquals(-1, certWarmer.warmUpNext());
+    }
+
+    @Test
+    public void shouldDropPendingHostsOnStop() {
+        certWarmer.offer("www.example.com");
+        certWarmer.stop();
+        assertEquals(0, certWarmer.pending());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectIllegalCpuBudget() {
+        config.setWarmUpCpuBudget(0);
+        new CertWarmer(config, certManager, sslContextCache);
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2021 - Safe Kids LLC
+ *
+ * The complete license agreement is available at https://safekids.ai/eula
+ *
+ *
+ * LICENSE GRANT
+ * ==============================================
+ * Licensor hereby grants to you a non-exclusive and non-transferable license to use the Software and
+ * related documentation (the "Documentation") solely for the intended purposes of the Software as set forth in the
+ * Documentation, according to the provisions contained herein and subject to payment of applicable license fees.
+ * You are not permitted to lease, rent, distribute or sublicense the Software or any rights therein.
+ * You also may not install the Software on a network server, use the Software in a time-sharing arrangement or
+ * in any other unauthorized manner. Further, no license is granted to you in the human readable code of the Software
+ *  (source code). Except as provided below, this Agreement does not grant you any rights to patents, copyrights,
+ *  trade secrets, trademarks, or any other rights in the Software and Documentation.
+ *
+ * NO MODIFICATION, NO REVERSE ENGINEERING
+ * ===============================================
+ * You agree not to, without the prior written permission of Licensor: (i); disassemble, decompile or "unlock",
+ * decode or otherwise reverse translate or engineer, or attempt in any manner to reconstruct or discover any source
+ * code or underlying algorithms of the Software, if provided in object code form only; (ii) use, copy,
+ * modify, translate,reverse engineer, decompile, disassemble, or create derivative works of the Software and
+ * any accompanying documents, or assist someone in performing such prohibited acts; or (iii) transfer, rent,
+ * lease, or sub license the Software.
+ *
+ * NO WARRANTIES.
+ * ===============================================
+ * LICENSOR MAKES NO WARRANTIES, EXPRESS OR IMPLIED, INCLUDING, BUT NOT LIMITED TO, IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, TITLE, AND NON-INFRINGEMENT OF THIRD PARTIES' RIGHTS.
+ * THE SOFTWARE (INCLUDING SOURCE CODE) IS PROVIDED TO YOU ON AN "AS IS" BASIS. TO THE FULL EXTENT PERMITTED BY LAW,
+ * THE DURATION OF STATUTORILY REQUIRED WARRANTIES, IF ANY, SHALL BE LIMITED TO THE ABOVE LIMITED WARRANTY PERIOD.
+ * MOREOVER, IN NO EVENT WILL WARRANTIES PROVIDED BY LAW, IF ANY, APPLY UNLESS THEY ARE REQUIRED TO APPLY BY
+ * STATUTE NOTWITHSTANDING THEIR EXCLUSION BY CONTRACT. NO DEALER, AGENT, OR EMPLOYEE OF LICENSOR IS AUTHORIZED TO
+ * MAKE ANY MODIFICATIONS, EXTENSIONS, OR ADDITIONS TO THIS LIMITED WARRANTY. THE ENTIRE RISK ARISING OUT OF USE OR
+ * PERFORMANCE OF THE SOFTWARE REMAINS WITH YOU.
+ *
+ */
+
+package ai.safekids.httpproxy.tls;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.ApplicationProtocolConfig.Protocol;
+import io.netty.handler.ssl.ApplicationProtocolConfig.SelectedListenerFailureBehavior;
+import io.netty.handler.ssl.ApplicationProtocolConfig.SelectorFailureBehavior;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import org.junit.After;
+import org.junit.Test;
+
+import static java.util.Arrays.*;
+import static org.junit.Assert.*;
+
+public class ClientHelloTest {
+
+    // Record header and handshake header
+    private static final int HEADER_LENGTH = 5 + 4;
+
+    private ByteBuf buf;
+
+    @After
+    public void tearDown() {
+        if (buf != null) {
+            buf.release();
+        }
+    }
+
+    @Test
+    public void shouldParseClientHello() throws Exception {
+        ClientHello clientHello = ClientHello.parse(clientHello(
+                "WWW.Example.com", ApplicationProtocolNames.HTTP_2, ApplicationProtocolNames.HTTP_1_1));
+
+        assertEquals(0x0303, clientHello.legacyVersion());
+        assertTrue(clientHello.hasServerName());
+        assertEquals("www.example.com", clientHello.serverName());
+        assertTrue(clientHello.hasAlpn());
+        assertEquals(asList("h2", "http/1.1"), clientHello.alpnProtocols());
+        assertSame(ApplicationProtocolNames.HTTP_2, clientHello.alpnProtocols().get(0));
+        assertTrue(clientHello.offersAlpn(ApplicationProtocolNames.HTTP_1_1));
+        assertFalse(clientHello.offersAlpn("spdy/3.1"));
+        assertTrue(clientHello.cipherSuiteCount() > 0);
+    }
+
+    @Test
+    public void shouldParseSupportedVersions() throws Exception {
+        ClientHello clientHello = ClientHello.parse(clientHello("localhost"));
+
+        boolean tls13 = false;
+        for (int i = 0; i < clientHello.supportedVersionCount(); i++) {
+            tls13 |= clientHello.supportedVersion(i) == 0x0304;
+        }
+        assertTrue(tls13);
+    }
+
+    @Test
+    public void shouldReportAbsentExtensions() throws Exception {
+        ClientHello clientHello = ClientHello.parse(clientHello(null));
+
+        assertFalse(clientHello.hasServerName());
+        assertNull(clientHello.serverName());
+        assertFalse(clientHello.hasAlpn());
+        assertNull(clientHello.alpnProtocols());
+        assertFalse(clientHello.offersAlpn(ApplicationProtocolNames.HTTP_2));
+    }
+
+    @Test
+    public void shouldTolerateTruncatedMessage() throws Exception {
+        ByteBuf full = clientHello("localhost", ApplicationProtocolNames.HTTP_2);
+        ClientHello clientHello = ClientHello.parse(full.slice(full.readerIndex(), 40));
+
+        assertEquals(0x0303, clientHello.legacyVersion());
+        assertNull(clientHello.serverName());
+        assertNull(clientHello.alpnProtocols());
+        assertEquals(0, clientHello.supportedVersionCount());
+    }
+
+    @Test
+    public void shouldNotChangeReaderIndex() throws Exception {
+        ByteBuf full = clientHello("localhost");
+        int readerIndex = full.readerIndex();
+        ClientHello.parse(full).serverName();
+        assertEquals(readerIndex, full.readerIndex());
+
+        assertEquals(-1, ClientHello.parse(Unpooled.EMPTY_BUFFER).legacyVersion());
+    }
+
+    private ByteBuf clientHello(String host, String... protocols) throws Exception {
+        SslContextBuilder builder = SslContextBuilder.forClient()
+                                                     .sslProvider(SslProvider.JDK)
+                                                     .protocols("TLSv1.3", "TLSv1.2")
+                                                     .trustManager(InsecureTrustManagerFactory.INSTANCE);
+        if (protocols.length > 0) {
+            builder.applicationProtocolConfig(new ApplicationProtocolConfig(
+                    Protocol.ALPN,
+                    SelectorFailureBehavior.NO_ADVERTISE,
+                    SelectedListenerFailureBehavior.ACCEPT,
+                    protocols));
+        }
+        SslContext context = builder.build();
+        EmbeddedChannel channel = new EmbeddedChannel(host == null
+                ? context.newHandler(ByteBufAllocator.DEFAULT)
+                : context.newHandler(ByteBufAllocator.DEFAULT, host, 443));
+        buf = Unpooled.buffer();
+        ByteBuf record;
+        while ((record = channel.readOutbound()) != null) {
+            buf.writeBytes(record);
+            record.release();
+        }
+        channel.finishAndReleaseAll();
+        return buf.skipBytes(HEADER_LENGTH);
+    }
+}
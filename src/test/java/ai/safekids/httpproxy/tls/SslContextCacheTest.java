@@ -0,0 +1,166 @@
+/*
+ * Copyright 2021 - Safe Kids LLC
+ *
+ * The complete license agreement is available at https://safekids.ai/eula
+ *
+ *
+ * LICENSE GRANT
+ * ==============================================
+ * Licensor hereby grants to you a non-exclusive and non-transferable license to use the Software and
+ * related documentation (the "Documentation") solely for the intended purposes of the Software as set forth in the
+ * Documentation, according to the provisions contained herein and subject to payment of applicable license fees.
+ * You are not permitted to lease, rent, distribute or sublicense the Software or any rights therein.
+ * You also may not install the Software on a network server, use the Software in a time-sharing arrangement or
+ * in any other unauthorized manner. Further, no license is granted to you in the human readable code of the Software
+ *  (source code). Except as provided below, this Agreement does not grant you any rights to patents, copyrights,
+ *  trade secrets, trademarks, or any other rights in the Software and Documentation.
+ *
+ * NO MODIFICATION, NO REVERSE ENGINEERING
+ * ===============================================
+ * You agree not to, without the prior written permission of Licensor: (i); disassemble, decompile or "unlock",
+ * decode or otherwise reverse translate or engineer, or attempt in any manner to reconstruct or discover any source
+ * code or underlying algorithms of the Software, if provided in object code form only; (ii) use, copy,
+ * modify, translate,reverse engineer, decompile, disassemble, or create derivative works of the Software and
+ * any accompanying documents, or assist someone in performing such prohibited acts; or (iii) transfer, rent,
+ * lease, or sub license the Software.
+ *
+ * NO WARRANTIES.
+ * ===============================================
+ * LICENSOR MAKES NO WARRANTIES, EXPRESS OR IMPLIED, INCLUDING, BUT NOT LIMITED TO, IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, TITLE, AND NON-INFRINGEMENT OF THIRD PARTIES' RIGHTS.
+ * THE SOFTWARE (INCLUDING SOURCE CODE) IS PROVIDED TO YOU ON AN "AS IS" BASIS. TO THE FULL EXTENT PERMITTED BY LAW,
+ * THE DURATION OF STATUTORILY REQUIRED WARRANTIES, IF ANY, SHALL BE LIMITED TO THE ABOVE LIMITED WARRANTY PERIOD.
+ * MOREOVER, IN NO EVENT WILL WARRANTIES PROVIDED BY LAW, IF ANY, APPLY UNLESS THEY ARE REQUIRED TO APPLY BY
+ * STATUTE NOTWITHSTANDING THEIR EXCLUSION BY CONTRACT. NO DEALER, AGENT, OR EMPLOYEE OF LICENSOR IS AUTHORIZED TO
+ * MAKE ANY MODIFICATIONS, EXTENSIONS, OR ADDITIONS TO THIS LIMITED WARRANTY. THE ENTIRE RISK ARISING OUT OF USE OR
+ * PERFORMANCE OF THE SOFTWARE REMAINS WITH YOU.
+ *
+ */
+
+package ai.safekids.httpproxy.tls;
+
+import ai.safekids.httpproxy.NitmProxyConfig;
+import com.google.common.io.Resources;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.OpenSslSessionContext;
+import io.netty.handler.ssl.OpenSslSessionTicketKey;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.ReferenceCounted;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import javax.net.ssl.SSLException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static ai.safekids.httpproxy.tls.CertUtil.*;
+import static java.util.Arrays.*;
+import static java.util.Collections.*;
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+import static org.mockito.Mockito.*;
+
+public class SslContextCacheTest {
+    private CertManager certManager;
+    private SslContextCache cache;
+    private AtomicInteger builds;
+
+    @Before
+    public void setUp() {
+        NitmProxyConfig config = new NitmProxyConfig();
+        config.setCertificate(readPemFromFile(Resources.getResource("server.pem").getFile()));
+        config.setKey(readPrivateKeyFromFile(Resources.getResource("key.pem").getFile()));
+        certManager = new CertManager(config);
+        cache = new SslContextCache();
+        certManager.addRotationListener(cache::invalidate);
+        builds = new AtomicInteger();
+    }
+
+    @Test
+    public void shouldCacheServerContext() throws Exception {
+        Certificate cert = certManager.getCert("localhost");
+        SslContext first = serverContext(cert, "h2", "http/1.1");
+        assertSame(first, serverContext(cert, "h2", "http/1.1"));
+        assertNotSame(first, serverContext(cert, "http/1.1"));
+        assertNotSame(first, serverContext(certManager.getCert("www.google.com"), "h2", "http/1.1"));
+        assertEquals(3, builds.get());
+    }
+
+    @Test
+    public void shouldRebuildServerContextAfterRotation() throws Exception {
+        SslContext first = serverContext(certManager.getCert("localhost"), "http/1.1");
+        certManager.rotate("localhost");
+
+        assertNotSame(first, serverContext(certManager.getCert("localhost"), "http/1.1"));
+        assertEquals(2, builds.get());
+    }
+
+    @Test
+    public void shouldCacheClientContext() throws Exception {
+        SslContext first = cache.clientContext(InsecureTrustManagerFactory.INSTANCE, singletonList("h2"),
+                                               this::clientContext);
+        assertSame(first, cache.clientContext(InsecureTrustManagerFactory.INSTANCE, singletonList("h2"),
+                                              this::clientContext));
+        assertNotSame(first, cache.clientContext(InsecureTrustManagerFactory.INSTANCE, singletonList("http/1.1"),
+                                                 this::clientContext));
+        assertEquals(2, builds.get());
+    }
+
+    @Test
+    public void shouldRetainReferenceCountedContextForCaller() throws Exception {
+        assumeTrue(OpenSsl.isAvailable());
+        Certificate cert = certManager.getCert("localhost");
+        SslContext sslContext = cache.serverContext(cert, singletonList("http/1.1"), () -> SslContextBuilder
+                .forServer(cert.getKeyPair().getPrivate(), cert.getChain())
+                .sslProvider(SslProvider.OPENSSL_REFCNT)
+                .build());
+        ReferenceCounted counted = (ReferenceCounted) sslContext;
+        assertEquals(2, counted.refCnt());
+
+        // evicted while the caller still holds it
+        cache.invalidate(cert);
+        assertEquals(1, counted.refCnt());
+        ReferenceCountUtil.release(sslContext.newHandler(ByteBufAllocator.DEFAULT).engine());
+
+        assertTrue(counted.release());
+    }
+
+    @Test
+    public void shouldRotateTicketKeys() throws Exception {
+        OpenSslSessionContext sessionContext = mock(OpenSslSessionContext.class);
+        SslContext sslContext = mock(SslContext.class);
+        when(sslContext.sessionContext()).thenReturn(sessionContext);
+        cache.serverContext(certManager.getCert("localhost"), singletonList("h2"), () -> sslContext);
+
+        ArgumentCaptor<OpenSslSessionTicketKey> keys = ArgumentCaptor.forClass(OpenSslSessionTicketKey.class);
+        verify(sessionContext).setTicketKeys(keys.capture());
+        OpenSslSessionTicketKey first = keys.getValue();
+
+        cache.rotateTicketKeys();
+        ArgumentCaptor<OpenSslSessionTicketKey> allKeys = ArgumentCaptor.forClass(OpenSslSessionTicketKey.class);
+        verify(sessionContext, times(2)).setTicketKeys(allKeys.capture());
+        // the new key encrypts, and the previous key still decrypts
+        List<OpenSslSessionTicketKey> rotated = allKeys.getAllValues().subList(1, allKeys.getAllValues().size());
+        assertEquals(2, rotated.size());
+        assertNotSame(first, rotated.get(0));
+        assertSame(first, rotated.get(1));
+    }
+
+    private SslContext serverContext(Certificate cert, String... alpnProtocols) throws SSLException {
+        return cache.serverContext(cert, asList(alpnProtocols), () -> {
+            builds.incrementAndGet();
+            return SslContextBuilder.forServer(cert.getKeyPair().getPrivate(), cert.getChain()).build();
+        });
+    }
+
+    private SslContext clientContext() throws SSLException {
+        builds.incrementAndGet();
+        return SslContextBuilder.forClient().trustManager(InsecureTrustManagerFactory.INSTANCE).build();
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2021 - Safe Kids LLC
+ *
+ * The complete license agreement is available at https://safekids.ai/eula
+ *
+ *
+ * LICENSE GRANT
+ * ==============================================
+ * Licensor hereby grants to you a non-exclusive and non-transferable license to use the Software and
+ * related documentation (the "Documentation") solely for the intended purposes of the Software as set forth in the
+ * Documentation, according to the provisions contained herein and subject to payment of applicable license fees.
+ * You are not permitted to lease, rent, distribute or sublicense the Software or any rights therein.
+ * You also may not install the Software on a network server, use the Software in a time-sharing arrangement or
+ * in any other unauthorized manner. Further, no license is granted to you in the human readable code of the Software
+ *  (source code). Except as provided below, this Agreement does not grant you any rights to patents, copyrights,
+ *  trade secrets, trademarks, or any other rights in the Software and Documentation.
+ *
+ * NO MODIFICATION, NO REVERSE ENGINEERING
+ * ===============================================
+ * You agree not to, without the prior written permission of Licensor: (i); disassemble, decompile or "unlock",
+ * decode or otherwise reverse translate or engineer, or attempt in any manner to reconstruct or discover any source
+ * code or underlying algorithms of the Software, if provided in object code form only; (ii) use, copy,
+ * modify, translate,reverse engineer, decompile, disassemble, or create derivative works of the Software and
+ * any accompanying documents, or assist someone in performing such prohibited acts; or (iii) transfer, rent,
+ * lease, or sub license the Software.
+ *
+ * NO WARRANTIES.
+ * ===============================================
+ * LICENSOR MAKES NO WARRANTIES, EXPRESS OR IMPLIED, INCLUDING, BUT NOT LIMITED TO, IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, TITLE, AND NON-INFRINGEMENT OF THIRD PARTIES' RIGHTS.
+ * THE SOFTWARE (INCLUDING SOURCE CODE) IS PROVIDED TO YOU ON AN "AS IS" BASIS. TO THE FULL EXTENT PERMITTED BY LAW,
+ * THE DURATION OF STATUTORILY REQUIRED WARRANTIES, IF ANY, SHALL BE LIMITED TO THE ABOVE LIMITED WARRANTY PERIOD.
+ * MOREOVER, IN NO EVENT WILL WARRANTIES PROVIDED BY LAW, IF ANY, APPLY UNLESS THEY ARE REQUIRED TO APPLY BY
+ * STATUTE NOTWITHSTANDING THEIR EXCLUSION BY CONTRACT. NO DEALER, AGENT, OR EMPLOYEE OF LICENSOR IS AUTHORIZED TO
+ * MAKE ANY MODIFICATIONS, EXTENSIONS, OR ADDITIONS TO THIS LIMITED WARRANTY. THE ENTIRE RISK ARISING OUT OF USE OR
+ * PERFORMANCE OF THE SOFTWARE REMAINS WITH YOU.
+ *
+ */
+
+package ai.safekids.httpproxy.tls;
+
+import ai.safekids.httpproxy.NitmProxyConfig;
+import com.google.common.io.Resources;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.net.ssl.SSLSession;
+
+import static ai.safekids.httpproxy.testing.EmbeddedChannels.*;
+import static ai.safekids.httpproxy.tls.CertUtil.*;
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+import static org.mockito.Mockito.*;
+
+public class TlsSessionStatsTest {
+    private TlsSessionStats stats;
+    private Certificate cert;
+    private SslContext serverContext;
+    private SslContext clientContext;
+
+    @Before
+    public void setUp() throws Exception {
+        NitmProxyConfig config = new NitmProxyConfig();
+        config.setCertificate(readPemFromFile(Resources.getResource("server.pem").getFile()));
+        config.setKey(readPrivateKeyFromFile(Resources.getResource("key.pem").getFile()));
+        cert = new CertManager(config, Runnable::run).getCert("localhost");
+        stats = new TlsSessionStats();
+    }
+
+    @Test
+    public void shouldCountResumedHandshakes() throws Exception {
+        createContexts(SslProvider.JDK, "TLSv1.2");
+        handshake();
+        assertEquals(0, stats.serverHits());
+        assertEquals(1, stats.serverMisses());
+        assertEquals(0, stats.clientHits());
+        assertEquals(1, stats.clientMisses());
+
+        Thread.sleep(2);
+        handshake();
+        assertEquals(1, stats.serverHits());
+        assertEquals(1, stats.clientHits());
+    }
+
+    @Test
+    public void shouldCountResumedHandshakesWithOpenSsl() throws Exception {
+        assumeTrue(OpenSsl.isAvailable());
+        createContexts(SslProvider.OPENSSL, "TLSv1.3");
+        handshake();
+        assertEquals(0, stats.serverHits());
+        assertEquals(1, stats.serverMisses());
+        assertEquals(0, stats.clientHits());
+        assertEquals(1, stats.clientMisses());
+
+        handshake();
+        assertEquals(1, stats.serverHits());
+        assertEquals(1, stats.serverMisses());
+        assertEquals(1, stats.clientHits());
+        assertEquals(1, stats.clientMisses());
+    }
+
+    @Test
+    public void shouldDetectResumedSession() {
+        SSLSession session = mock(SSLSession.class);
+        when(session.getCreationTime()).thenReturn(1000L);
+
+        assertTrue(TlsSessionStats.isResumed(session, 1001L));
+        assertFalse(TlsSessionStats.isResumed(session, 1000L));
+        assertFalse(TlsSessionStats.isResumed((SSLSession) null, 1000L));
+    }
+
+    private void createContexts(SslProvider provider, String protocol) throws Exception {
+        serverContext = SslContextBuilder.forServer(cert.getKeyPair().getPrivate(), cert.getChain())
+                                         .sslProvider(provider)
+                                         .protocols(protocol)
+                                         .build();
+        clientContext = TlsUtil.enableClientSessionCache(
+                SslContextBuilder.forClient()
+                                 .sslProvider(provider)
+                                 .protocols(protocol)
+                                 .trustManager(InsecureTrustManagerFactory.INSTANCE)
+                                 .build());
+    }
+
+    private void handshake() {
+        SslHandler serverHandler = serverContext.newHandler(ByteBufAllocator.DEFAULT);
+        SslHandler clientHandler = clientContext.newHandler(ByteBufAllocator.DEFAULT, "localhost", 443);
+        stats.track(serverHandler, true);
+        stats.track(clientHandler, false);
+        EmbeddedChannel server = new EmbeddedChannel(serverHandler);
+        EmbeddedChannel client = new EmbeddedChannel(clientHandler);
+        boolean transferred = true;
+        while (transferred) {
+            transferred = transfer(client, server) | transfer(server, client);
+        }
+        assertTrue(serverHandler.handshakeFuture().isSuccess());
+        assertTrue(clientHandler.handshakeFuture().isSuccess());
+
+        // TLSv1.3 session tickets are sent along with the first data after the handshake
+        server.writeAndFlush(Unpooled.wrappedBuffer(new byte[] { 1 }));
+        transfer(server, client);
+        server.finishAndReleaseAll();
+        client.finishAndReleaseAll();
+    }
+}
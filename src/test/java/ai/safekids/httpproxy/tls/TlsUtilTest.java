@@ -0,0 +1,124 @@
+/*
+ * Copyright 2021 - Safe Kids LLC
+ *
+ * The complete license agreement is available at https://safekids.ai/eula
+ *
+ *
+ * LICENSE GRANT
+ * ==============================================
+ * Licensor hereby grants to you a non-exclusive and non-transferable license to use the Software and
+ * related documentation (the "Documentation") solely for the intended purposes of the Software as set forth in the
+ * Documentation, according to the provisions contained herein and subject to payment of applicable license fees.
+ * You are not permitted to lease, rent, distribute or sublicense the Software or any rights therein.
+ * You also may not install the Software on a network server, use the Software in a time-sharing arrangement or
+ * in any other unauthorized manner. Further, no license is granted to you in the human readable code of the Software
+ *  (source code). Except as provided below, this Agreement does not grant you any rights to patents, copyrights,
+ *  trade secrets, trademarks, or any other rights in the Software and Documentation.
+ *
+ * NO MODIFICATION, NO REVERSE ENGINEERING
+ * ===============================================
+ * You agree not to, without the prior written permission of Licensor: (i); disassemble, decompile or "unlock",
+ * decode or otherwise reverse translate or engineer, or attempt in any manner to reconstruct or discover any source
+ * code or underlying algorithms of the Software, if provided in object code form only; (ii) use, copy,
+ * modify, translate,reverse engineer, decompile, disassemble, or create derivative works of the Software and
+ * any accompanying documents, or assist someone in performing such prohibited acts; or (iii) transfer, rent,
+ * lease, or sub license the Software.
+ *
+ * NO WARRANTIES.
+ * ===============================================
+ * LICENSOR MAKES NO WARRANTIES, EXPRESS OR IMPLIED, INCLUDING, BUT NOT LIMITED TO, IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, TITLE, AND NON-INFRINGEMENT OF THIRD PARTIES' RIGHTS.
+ * THE SOFTWARE (INCLUDING SOURCE CODE) IS PROVIDED TO YOU ON AN "AS IS" BASIS. TO THE FULL EXTENT PERMITTED BY LAW,
+ * THE DURATION OF STATUTORILY REQUIRED WARRANTIES, IF ANY, SHALL BE LIMITED TO THE ABOVE LIMITED WARRANTY PERIOD.
+ * MOREOVER, IN NO EVENT WILL WARRANTIES PROVIDED BY LAW, IF ANY, APPLY UNLESS THEY ARE REQUIRED TO APPLY BY
+ * STATUTE NOTWITHSTANDING THEIR EXCLUSION BY CONTRACT. NO DEALER, AGENT, OR EMPLOYEE OF LICENSOR IS AUTHORIZED TO
+ * MAKE ANY MODIFICATIONS, EXTENSIONS, OR ADDITIONS TO THIS LIMITED WARRANTY. THE ENTIRE RISK ARISING OUT OF USE OR
+ * PERFORMANCE OF THE SOFTWARE REMAINS WITH YOU.
+ *
+ */
+
+package ai.safekids.httpproxy.tls;
+
+import ai.safekids.httpproxy.NitmProxyConfig;
+import ai.safekids.httpproxy.enums.LeafKeyStrategy;
+import com.google.common.io.Resources;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Before;
+import org.junit.Test;
+
+import static ai.safekids.httpproxy.testing.EmbeddedChannels.*;
+import static ai.safekids.httpproxy.tls.CertUtil.*;
+import static io.netty.handler.ssl.ApplicationProtocolNames.*;
+import static java.util.Collections.*;
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+
+public class TlsUtilTest {
+    private NitmProxyConfig config;
+
+    @Before
+    public void setUp() {
+        config = new NitmProxyConfig();
+        config.setCertificate(readPemFromFile(Resources.getResource("server.pem").getFile()));
+        config.setKey(readPrivateKeyFromFile(Resources.getResource("key.pem").getFile()));
+    }
+
+    @Test
+    public void shouldDetectTlsProvider() {
+        assertEquals(OpenSsl.isAvailable()? SslProvider.OPENSSL : SslProvider.JDK, TlsUtil.tlsProvider(config));
+
+        config.setSslProvider(new BouncyCastleProvider());
+        assertEquals(SslProvider.JDK, TlsUtil.tlsProvider(config));
+
+        config.setTlsProvider(SslProvider.OPENSSL_REFCNT);
+        assertEquals(SslProvider.OPENSSL_REFCNT, TlsUtil.tlsProvider(config));
+    }
+
+    @Test
+    public void shouldHandshakeWithOpenSslAndEcLeafKey() throws Exception {
+        assumeTrue(OpenSsl.isAvailable());
+        config.setTlsProvider(SslProvider.OPENSSL);
+        handshake(new CertManager(config, Runnable::run).getCert("localhost"));
+    }
+
+    @Test
+    public void shouldHandshakeWithOpenSslAndCaKey() throws Exception {
+        assumeTrue(OpenSsl.isAvailable());
+        config.setTlsProvider(SslProvider.OPENSSL);
+        config.setLeafKeyStrategy(LeafKeyStrategy.CA);
+        handshake(new CertManager(config, Runnable::run).getCert("localhost"));
+    }
+
+    private void handshake(Certificate cert) throws Exception {
+        SslContextCache cache = new SslContextCache();
+        TlsUtil.warmServerContexts(config, cache, cert);
+        SslContext serverContext = cache.serverContext(cert, singletonList(HTTP_1_1), () -> {
+            throw new IllegalStateException("Not warmed up");
+        });
+        SslContext clientContext = SslContextBuilder.forClient()
+                                                    .sslProvider(SslProvider.JDK)
+                                                    .trustManager(InsecureTrustManagerFactory.INSTANCE)
+                                                    .build();
+        SslHandler serverHandler = serverContext.newHandler(ByteBufAllocator.DEFAULT);
+        SslHandler clientHandler = clientContext.newHandler(ByteBufAllocator.DEFAULT, "localhost", 443);
+        EmbeddedChannel server = new EmbeddedChannel(serverHandler);
+        EmbeddedChannel client = new EmbeddedChannel(clientHandler);
+        boolean transferred = true;
+        while (transferred) {
+            transferred = transfer(client, server) | transfer(server, client);
+        }
+        assertTrue(serverHandler.handshakeFuture().isSuccess());
+        assertTrue(clientHandler.handshakeFuture().isSuccess());
+        assertEquals(cert.getChain()[0], clientHandler.engine().getSession().getPeerCertificates()[0]);
+        server.finishAndReleaseAll();
+        client.finishAndReleaseAll();
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2021 - Safe Kids LLC
+ *
+ * The complete license agreement is available at https://safekids.ai/eula
+ *
+ *
+ * LICENSE GRANT
+ * ==============================================
+ * Licensor hereby grants to you a non-exclusive and non-transferable license to use the Software and
+ * related documentation (the "Documentation") solely for the intended purposes of the Software as set forth in the
+ * Documentation, according to the provisions contained herein and subject to payment of applicable license fees.
+ * You are not permitted to lease, rent, distribute or sublicense the Software or any rights therein.
+ * You also may not install the Software on a network server, use the Software in a time-sharing arrangement or
+ * in any other unauthorized manner. Further, no license is granted to you in the human readable code of the Software
+ *  (source code). Except as provided below, this Agreement does not grant you any rights to patents, copyrights,
+ *  trade secrets, trademarks, or any other rights in the Software and Documentation.
+ *
+ * NO MODIFICATION, NO REVERSE ENGINEERING
+ * ===============================================
+ * You agree not to, without the prior written permission of Licensor: (i); disassemble, decompile or "unlock",
+ * decode or otherwise reverse translate or engineer, or attempt in any manner to reconstruct or discover any source
+ * code or underlying algorithms of the Software, if provided in object code form only; (ii) use, copy,
+ * modify, translate,reverse engineer, decompile, disassemble, or create derivative works of the Software and
+ * any accompanying documents, or assist someone in performing such prohibited acts; or (iii) transfer, rent,
+ * lease, or sub license the Software.
+ *
+ * NO WARRANTIES.
+ * ===============================================
+ * LICENSOR MAKES NO WARRANTIES, EXPRESS OR IMPLIED, INCLUDING, BUT NOT LIMITED TO, IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, TITLE, AND NON-INFRINGEMENT OF THIRD PARTIES' RIGHTS.
+ * THE SOFTWARE (INCLUDING SOURCE CODE) IS PROVIDED TO YOU ON AN "AS IS" BASIS. TO THE FULL EXTENT PERMITTED BY LAW,
+ * THE DURATION OF STATUTORILY REQUIRED WARRANTIES, IF ANY, SHALL BE LIMITED TO THE ABOVE LIMITED WARRANTY PERIOD.
+ * MOREOVER, IN NO EVENT WILL WARRANTIES PROVIDED BY LAW, IF ANY, APPLY UNLESS THEY ARE REQUIRED TO APPLY BY
+ * STATUTE NOTWITHSTANDING THEIR EXCLUSION BY CONTRACT. NO DEALER, AGENT, OR EMPLOYEE OF LICENSOR IS AUTHORIZED TO
+ * MAKE ANY MODIFICATIONS, EXTENSIONS, OR ADDITIONS TO THIS LIMITED WARRANTY. THE ENTIRE RISK ARISING OUT OF USE OR
+ * PERFORMANCE OF THE SOFTWARE REMAINS WITH YOU.
+ *
+ */
+
+package ai.safekids.httpproxy.util;
+
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.*;
+
+public class CoalescingExecutorTest {
+    private List<Runnable> tasks;
+    private CoalescingExecutor<String, String> executor;
+
+    @Before
+    public void setUp() {
+        tasks = new ArrayList<>();
+        executor = new CoalescingExecutor<>(tasks::add);
+    }
+
+    @Test
+    public void shouldCoalesceTasksOfSameKey() {
+        Future<String> first = executor.submit(ImmediateEventExecutor.INSTANCE, "key", String::toUpperCase);
+        Future<String> second = executor.submit(ImmediateEventExecutor.INSTANCE, "key", String::toUpperCase);
+        assertEquals(1, tasks.size());
+        assertTrue(executor.isPending("key"));
+
+        tasks.forEach(Runnable::run);
+        assertEquals("KEY", first.getNow());
+        assertEquals("KEY", second.getNow());
+        assertFalse(executor.hasPendings());
+    }
+
+    @Test
+    public void shouldRunAgainAfterCompleted() {
+        executor.submit(ImmediateEventExecutor.INSTANCE, "key", String::toUpperCase);
+        tasks.remove(0).run();
+
+        executor.submit(ImmediateEventExecutor.INSTANCE, "key", String::toUpperCase);
+        assertEquals(1, tasks.size());
+    }
+
+    @Test
+    public void shouldFailAllWaiters() {
+        Future<String> first = executor.submit(ImmediateEventExecutor.INSTANCE, "key", key -> {
+            throw new IllegalStateException();
+        });
+        Future<String> second = executor.submit(ImmediateEventExecutor.INSTANCE, "key", String::toUpperCase);
+
+        tasks.forEach(Runnable::run);
+        assertTrue(first.cause() instanceof IllegalStateException);
+        assertTrue(second.cause() instanceof IllegalStateException);
+        assertFalse(executor.isPending("key"));
+    }
+
+    @Test
+    public void shouldFailIfRejected() {
+        CoalescingExecutor<String, String> rejecting = new CoalescingExecutor<>(task -> {
+            throw new RejectedExecutionException();
+        });
+        Future<String> future = rejecting.submit(ImmediateEventExecutor.INSTANCE, "key", String::toUpperCase);
+        assertTrue(future.cause() instanceof RejectedExecutionException);
+        assertFalse(rejecting.isPending("key"));
+    }
+}